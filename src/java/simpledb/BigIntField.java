@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 
 /**
  * Instance of Field that stores a single BigInteger.
@@ -11,6 +12,13 @@ public class BigIntField implements Field {
 	private static final long serialVersionUID = 1L;
 	
 	private final BigInteger value;
+	// BigInteger does not cache its hash, and fields are hashed repeatedly as
+	// join and group-by keys
+	private final int hash;
+
+    // Per-thread buffer for reading BigInts out of pages. BigInteger copies the
+    // bytes it is built from, so the buffer can be reused for the next field.
+    private static final ThreadLocal<byte[]> READ_BUFFER = new ThreadLocal<byte[]>();
 
     public BigInteger getValue() {
         return value;
@@ -23,6 +31,7 @@ public class BigIntField implements Field {
      */
     public BigIntField(BigInteger i) {
         value = i;
+        hash = i.hashCode();
     }
 
     public String toString() {
@@ -30,23 +39,85 @@ public class BigIntField implements Field {
     }
 
     public int hashCode() {
-        return value.intValueExact();
+        return hash;
     }
 
     public boolean equals(Object field) {
-        return ((BigIntField) field).value == value;
+        if (!(field instanceof BigIntField)) {
+            return false;
+        }
+        BigIntField other = (BigIntField) field;
+        return other.hash == hash && other.value.equals(value);
     }
 
     /**
-     * Write this BigInt to dos. First writes the number of bytes need to represent this
-     * BigInt.
+     * Write this BigInt to dos as a Type.BIGINT_LEN-byte, big-endian two's
+     * complement number.
      */
     public void serialize(DataOutputStream dos) throws IOException {
-//        dos.writeObject(value);
-        BigInteger b = value;
-        dos.writeInt(b.bitLength());
-        dos.write(value.toByteArray());
-        
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > Type.BIGINT_LEN) {
+            throw new IOException("BigInt of " + bytes.length + " bytes does not fit in "
+                    + Type.BIGINT_LEN + " bytes");
+        }
+        int pad = value.signum() < 0 ? -1 : 0;
+        for (int i = bytes.length; i < Type.BIGINT_LEN; i++) {
+            dos.write(pad);
+        }
+        dos.write(bytes);
+    }
+
+    /**
+     * Write this BigInt to buf as a len-byte, big-endian two's complement
+     * number. Values that fit in a long are written without building an
+     * intermediate byte array.
+     *
+     * @throws IllegalArgumentException if the value does not fit in len bytes
+     */
+    public void serialize(ByteBuffer buf, int len) {
+        if (value.bitLength() < Long.SIZE) {
+            if (value.bitLength() >= len * 8) {
+                throw new IllegalArgumentException("BigInt " + value + " does not fit in " + len + " bytes");
+            }
+            long v = value.longValue();
+            for (int i = len - 1; i >= 0; i--) {
+                buf.put(i >= 8 ? (byte) (v >> 63) : (byte) (v >> (i * 8)));
+            }
+            return;
+        }
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > len) {
+            throw new IllegalArgumentException("BigInt of " + bytes.length + " bytes does not fit in "
+                    + len + " bytes");
+        }
+        byte pad = (byte) (value.signum() < 0 ? -1 : 0);
+        for (int i = bytes.length; i < len; i++) {
+            buf.put(pad);
+        }
+        buf.put(bytes);
+    }
+
+    /**
+     * Reads a BigInt written by {@link #serialize(ByteBuffer, int)} from buf
+     * at its current position.
+     *
+     * @param len the number of bytes the value takes
+     */
+    static BigIntField read(ByteBuffer buf, int len) {
+        if (len <= 8) {
+            long v = buf.get();
+            for (int i = 1; i < len; i++) {
+                v = (v << 8) | (buf.get() & 0xFF);
+            }
+            return new BigIntField(BigInteger.valueOf(v));
+        }
+        byte[] bytes = READ_BUFFER.get();
+        if (bytes == null || bytes.length != len) {
+            bytes = new byte[len];
+            READ_BUFFER.set(bytes);
+        }
+        buf.get(bytes);
+        return new BigIntField(new BigInteger(bytes));
     }
 
     /**
@@ -62,9 +133,9 @@ public class BigIntField implements Field {
 
         switch (op) {
         case EQUALS:
-            return value == iVal.value;
+            return value.equals(iVal.value);
         case NOT_EQUALS:
-            return value != iVal.value;
+            return !value.equals(iVal.value);
 
         case GREATER_THAN:
             return value.compareTo(iVal.value) > 0;
@@ -79,7 +150,7 @@ public class BigIntField implements Field {
             return value.compareTo(iVal.value) <= 0;
 
     case LIKE:
-        return value == iVal.value;
+        return value.equals(iVal.value);
         }
 
         return false;
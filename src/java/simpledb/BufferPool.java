@@ -2,7 +2,11 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.Set;
 import java.util.HashSet;
 
@@ -33,6 +37,12 @@ public class BufferPool {
     private HashSet<PageId> pids;
     private LockManager lockManager;
     private static final long DL_TIMEOUT = 50;
+    // Pages being read in the background for a ReadAhead, which getPage
+    // waits for rather than reading them again
+    private final ConcurrentHashMap<PageId, Future<Page>> readingAhead;
+    // Pages read ahead that getPage has not returned yet, which are evicted
+    // only when no other page can be; changed only under the pool's monitor
+    private final Set<PageId> readAhead;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -45,6 +55,8 @@ public class BufferPool {
         this.idToPage = new ConcurrentHashMap<PageId, Page>();
         this.pids = new HashSet<PageId>();
         this.lockManager = new LockManager();
+        this.readingAhead = new ConcurrentHashMap<PageId, Future<Page>>();
+        this.readAhead = Collections.synchronizedSet(new HashSet<PageId>());
     }
     
     public static int getPageSize() {
@@ -91,18 +103,117 @@ public class BufferPool {
         Catalog catalog = Database.getCatalog();
         Page page = this.idToPage.get(pid);
         if (page == null) {
-          if (this.idToPage.size() == this.numPgs) {
-            this.evictPage();
+          Future<Page> reading = this.readingAhead.get(pid);
+          if (reading != null) {
+            // the page is added to the pool when the read is done, unless
+            // it was discarded meanwhile
+            try {
+              reading.get();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+              // read it here instead
+            }
+            page = this.idToPage.get(pid);
           }
+        }
+        if (page == null) {
           int tableId = pid.getTableId();
           DbFile table = catalog.getDatabaseFile(tableId);
-          page = table.readPage(pid);
-          this.idToPage.put(pid, page);
-          this.pids.add(pid);
+          Page read = table.readPage(pid);
+          synchronized (this) {
+            page = this.idToPage.get(pid);
+            if (page == null) {
+              if (this.idToPage.size() >= this.numPgs) {
+                this.evictPage();
+              }
+              page = read;
+              this.idToPage.put(pid, page);
+              this.pids.add(pid);
+            }
+          }
+        }
+        // a page read ahead is in readAhead before it is in idToPage, so one
+        // found here is either in it already or was never read ahead
+        if (this.readAhead.contains(pid)) {
+          synchronized (this) {
+            this.readAhead.remove(pid);
+          }
         }
         return page;
     }
 
+    /**
+     * @return whether the specified page is in the buffer pool, so that
+     *   getPage returns it without reading it
+     */
+    public boolean isCached(PageId pid) {
+        return this.idToPage.containsKey(pid);
+    }
+
+    /**
+     * Starts reading the specified page into the buffer pool in the
+     * background, for a {@link ReadAhead}, unless it is in the pool or
+     * being read already. The page takes a free frame, or the frame of a
+     * clean page that was not read ahead; it is dropped if there is none,
+     * and no read is started while half the pool is taken by pages read
+     * ahead that nobody has asked for yet.
+     *
+     * @return false if no read was started for lack of room
+     */
+    public boolean prefetchPage(PageId pid) {
+        if (this.idToPage.containsKey(pid) || this.readingAhead.containsKey(pid)) {
+          return true;
+        }
+        if (2 * (this.readAhead.size() + this.readingAhead.size()) >= this.numPgs) {
+          return false;
+        }
+        PageRead read = new PageRead(pid);
+        if (this.readingAhead.putIfAbsent(pid, read.future) == null) {
+          ReadAhead.READERS.execute(read.future);
+        }
+        return true;
+    }
+
+    /**
+     * A page read ahead, which joins the pool once it has been read
+     */
+    private class PageRead implements Callable<Page> {
+        private final PageId pid;
+        private final FutureTask<Page> future;
+
+        PageRead(PageId pid) {
+          this.pid = pid;
+          this.future = new FutureTask<Page>(this);
+        }
+
+        public Page call() throws Exception {
+          try {
+            DbFile table = Database.getCatalog().getDatabaseFile(this.pid.getTableId());
+            Page page = table.readPage(this.pid);
+            synchronized (BufferPool.this) {
+              // a page discarded meanwhile may have been read before it
+              // was rewritten, so only a read still registered is kept
+              if (readingAhead.get(this.pid) == this.future && !idToPage.containsKey(this.pid)) {
+                PageId victim = idToPage.size() < numPgs ? null : evictionCandidate(false);
+                if (idToPage.size() < numPgs || victim != null) {
+                  if (victim != null) {
+                    discardPage(victim);
+                  }
+                  // noted as read ahead before getPage can find it
+                  readAhead.add(this.pid);
+                  idToPage.put(this.pid, page);
+                  pids.add(this.pid);
+                }
+              }
+            }
+            return page;
+          } finally {
+            readingAhead.remove(this.pid, this.future);
+          }
+        }
+    }
+
     /**
      * Acquire write access on page
      *
@@ -199,10 +310,7 @@ public class BufferPool {
         DbFile table = catalog.getDatabaseFile(tableId);
         ArrayList<Page> pagesAffected = table.insertTuple(tid, t);
         for (Page pageAffected : pagesAffected) {
-          pageAffected.markDirty(true, tid);
-          PageId pAffId = pageAffected.getId();
-          this.idToPage.put(pAffId, pageAffected);
-          this.pids.remove(pAffId);
+          this.markPageDirty(pageAffected, tid);
         }
     }
 
@@ -229,13 +337,25 @@ public class BufferPool {
         DbFile table = catalog.getDatabaseFile(tableId);
         ArrayList<Page> pagesAffected = table.deleteTuple(tid, t);
         for (Page pageAffected : pagesAffected) {
-          pageAffected.markDirty(true, tid);
-          PageId pAffId = pageAffected.getId();
-          this.idToPage.put(pAffId, pageAffected);
-          this.pids.remove(pAffId);
+          this.markPageDirty(pageAffected, tid);
         }
     }
 
+    /**
+     * Marks page dirty and caches it in place of any other version, so that it
+     * is not evicted before it is flushed. Used by insertTuple and deleteTuple,
+     * and by files that change several pages in one operation.
+     *
+     * @param page the page that was changed
+     * @param tid the transaction that changed it
+     */
+    public synchronized void markPageDirty(Page page, TransactionId tid) {
+        page.markDirty(true, tid);
+        PageId pid = page.getId();
+        this.idToPage.put(pid, page);
+        this.pids.remove(pid);
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
@@ -263,6 +383,9 @@ public class BufferPool {
         // not necessary for lab1
         this.idToPage.remove(pid);
         this.pids.remove(pid);
+        this.readAhead.remove(pid);
+        // a read of the page under way may have started before it changed
+        this.readingAhead.remove(pid);
     }
 
     /**
@@ -351,6 +474,10 @@ public class BufferPool {
               int tableId = pid.getTableId();
               DbFile table = catalog.getDatabaseFile(tableId);
               Page page = table.readPage(pid);
+              // the inserts undone may have marked the page full
+              if (page instanceof HeapPage) {
+                ((HeapPage) page).markFreeSpace();
+              }
               this.idToPage.put(pid, page);
               this.pids.add(pid);
             }
@@ -385,6 +512,10 @@ public class BufferPool {
                 int tableId = pid.getTableId();
                 DbFile table = catalog.getDatabaseFile(tableId);
                 Page page = table.readPage(pid);
+                // the inserts undone may have marked the page full
+                if (page instanceof HeapPage) {
+                  ((HeapPage) page).markFreeSpace();
+                }
                 this.idToPage.put(pid, page);
                 this.pids.add(pid);
                 this.releasePage(tid, pid);
@@ -414,11 +545,29 @@ public class BufferPool {
     private synchronized void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        try {
-          PageId pid = this.pids.iterator().next();
-          this.discardPage(pid);
-        } catch (NoSuchElementException nseExn) {
+        PageId pid = this.evictionCandidate(true);
+        if (pid == null) {
           throw new DbException("No clean pages available for eviction!");
         }
+        this.discardPage(pid);
+    }
+
+    /**
+     * @return a clean page to evict, preferring one that was not read ahead
+     *   and is still waiting for getPage; null if there is none
+     * @param orReadAhead whether a page read ahead may be returned if no
+     *   other page is clean
+     */
+    private synchronized PageId evictionCandidate(boolean orReadAhead) {
+        PageId readAheadPid = null;
+        for (PageId pid : this.pids) {
+          if (!this.readAhead.contains(pid)) {
+            return pid;
+          }
+          if (readAheadPid == null) {
+            readAheadPid = pid;
+          }
+        }
+        return orReadAhead ? readAheadPid : null;
     }
 }
@@ -23,6 +23,7 @@ public class Catalog {
     private ConcurrentHashMap<String, String> pKeyToName;
     private ConcurrentHashMap<Integer, String> idToName;
     private ConcurrentHashMap<String, DbFile> nameToTable;
+    private ConcurrentHashMap<Integer, PageLayout> idToLayout;
 
     /**
      * Constructor.
@@ -35,6 +36,7 @@ public class Catalog {
         this.pKeyToName = new ConcurrentHashMap<String, String>();
         this.idToName = new ConcurrentHashMap<Integer, String>();
         this.nameToTable = new ConcurrentHashMap<String, DbFile>();
+        this.idToLayout = new ConcurrentHashMap<Integer, PageLayout>();
     }
 
     /**
@@ -71,6 +73,30 @@ public class Catalog {
         this.pKeyToName.put(pkeyField, name);
         this.idToName.put(new Integer(file.getId()), name);
         this.nameToTable.put(name, file);
+        // a layout set before the table was added is recorded with its file,
+        // and one recorded before is set again
+        File f = fileOf(file);
+        if (f != null) {
+          PageLayout layout = this.idToLayout.get(file.getId());
+          if (layout != null) {
+            layout.write(f);
+          } else if ((layout = PageLayout.read(f)) != null) {
+            this.idToLayout.put(file.getId(), layout);
+          }
+        }
+    }
+
+    /**
+     * @return the file that the specified table is stored in, or null if it
+     *   is not stored in a file of its own
+     */
+    private static File fileOf(DbFile table) {
+        if (table instanceof HeapFile) {
+          return ((HeapFile) table).getFile();
+        } else if (table instanceof EncryptedFile) {
+          return ((EncryptedFile) table).getFile();
+        }
+        return null;
     }
 
     public void addTable(DbFile file, String name) {
@@ -153,14 +179,53 @@ public class Catalog {
         return this.idToName.get(new Integer(id));
     }
     
+    /**
+     * Sets the layout of the pages of the specified table. The table need not
+     * have been added yet, so the layout can be chosen before its file is
+     * written, and every page of its file must be in this layout. The layout
+     * is recorded next to the table's file once the table is added, so it is
+     * set again whenever the table is added after a restart or clear().
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public void setPageLayout(int tableid, PageLayout layout) {
+        this.idToLayout.put(tableid, layout);
+        String name = this.idToName.get(tableid);
+        File f = name == null ? null : fileOf(this.nameToTable.get(name));
+        if (f != null) {
+          layout.write(f);
+        }
+    }
+
+    /**
+     * @return the layout of the pages of the specified table;
+     *     {@link PageLayout#ROW} unless set otherwise
+     */
+    public PageLayout getPageLayout(int tableid) {
+        PageLayout layout = this.idToLayout.get(tableid);
+        return layout == null ? PageLayout.ROW : layout;
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
+        // the layouts recorded for tables whose files were deleted are stale
+        for (DbFile table : this.nameToTable.values()) {
+          File f = fileOf(table);
+          if (f != null && !f.exists()) {
+            new File(f.getAbsolutePath() + PageLayout.SUFFIX).delete();
+          }
+        }
         this.tableIds = new ArrayList<Integer>();
         this.idToPKey = new ConcurrentHashMap<Integer, String>();
         this.pKeyToName = new ConcurrentHashMap<String, String>();
         this.idToName = new ConcurrentHashMap<Integer, String>();
         this.nameToTable = new ConcurrentHashMap<String, DbFile>();
+        this.idToLayout = new ConcurrentHashMap<Integer, PageLayout>();
+        // the channels of the tables dropped are not needed any more, nor
+        // the free space maps of those whose files were deleted
+        DbFileChannel.closeAll();
+        FreeSpaceMap.dropDeleted();
     }
     
     /**
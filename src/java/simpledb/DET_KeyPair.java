@@ -0,0 +1,53 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+/**
+ * A class that holds a pair of associated DET encryption and decryption keys.
+ *
+ * @see DET_PublicKey
+ */
+public class DET_KeyPair implements KeyPair, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DET_PrivateKey privateKey;
+    private final DET_PublicKey publicKey;
+
+    /**
+     * @param key the AES key, of DET_PublicKey.BLOCK_SIZE bytes
+     */
+    public DET_KeyPair(byte[] key) {
+        this.privateKey = new DET_PrivateKey(key);
+        this.publicKey = new DET_PublicKey(key);
+    }
+
+    /**
+     * @return a key pair with a new random AES key
+     */
+    public static DET_KeyPair generate() {
+        byte[] key = new byte[DET_PublicKey.BLOCK_SIZE];
+        new SecureRandom().nextBytes(key);
+        return new DET_KeyPair(key);
+    }
+
+    public DET_PrivateKey getPrivateKey() {
+        return this.privateKey;
+    }
+
+    public DET_PublicKey getPublicKey() {
+        return this.publicKey;
+    }
+
+    /**
+     * Decrypts the given ciphertext.
+     *
+     * @param val The ciphertext that should be decrypted.
+     * @return The corresponding plaintext.
+     */
+    public int decrypt(BigInteger val) {
+        return this.privateKey.decrypt(val);
+    }
+}
@@ -0,0 +1,55 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+
+/**
+ * A class that represents the decrypting part of the DET key pair. DET is
+ * symmetric, so it holds the same AES key as the matching DET_PublicKey.
+ */
+public class DET_PrivateKey implements PrivateKey, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] key;
+    private transient ThreadLocal<Cipher> cipher;
+
+    public DET_PrivateKey(byte[] key) {
+        if (key.length != DET_PublicKey.BLOCK_SIZE) {
+            throw new IllegalArgumentException("A DET key has " + DET_PublicKey.BLOCK_SIZE
+                    + " bytes, not " + key.length);
+        }
+        this.key = key.clone();
+    }
+
+    /**
+     * @return the raw AES key
+     */
+    public byte[] getKey() {
+        return this.key.clone();
+    }
+
+    /**
+     * Decrypts the given ciphertext.
+     *
+     * @param val The ciphertext that should be decrypted.
+     * @return The corresponding plaintext.
+     */
+    public final int decrypt(BigInteger val) {
+        byte[] bytes = val.toByteArray();
+        byte[] block = new byte[DET_PublicKey.BLOCK_SIZE];
+        int len = Math.min(bytes.length, block.length);
+        System.arraycopy(bytes, bytes.length - len, block, block.length - len, len);
+        if (this.cipher == null) {
+            this.cipher = DET_PublicKey.newCipherCache(Cipher.DECRYPT_MODE, this.key);
+        }
+        try {
+            return ByteBuffer.wrap(this.cipher.get().doFinal(block)).getInt(block.length - 4);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not decrypt with AES: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A class that represents the encrypting part of the DET key pair.
+ * <p>
+ * DET is deterministic encryption: an int is placed in a single AES block and
+ * encrypted with AES in ECB mode, so equal plaintexts give equal ciphertexts
+ * and DET columns can be compared for equality, joined and grouped on
+ * without decrypting them. Every ciphertext is one block, written as a
+ * non-negative BigInteger of at most CIPHERTEXT_LEN bytes.
+ */
+public class DET_PublicKey implements PublicKey, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // Bytes in an AES block, and in a DET key
+    public static final int BLOCK_SIZE = 16;
+    // Width of a DET column: one block and a sign byte
+    public static final int CIPHERTEXT_LEN = BLOCK_SIZE + 1;
+
+    private final byte[] key;
+    // Ciphers are not thread safe, so every thread keeps its own
+    private transient ThreadLocal<Cipher> cipher;
+
+    public DET_PublicKey(byte[] key) {
+        if (key.length != BLOCK_SIZE) {
+            throw new IllegalArgumentException("A DET key has " + BLOCK_SIZE + " bytes, not " + key.length);
+        }
+        this.key = key.clone();
+    }
+
+    /**
+     * @return the raw AES key
+     */
+    public byte[] getKey() {
+        return this.key.clone();
+    }
+
+    /**
+     * Encrypts the given plaintext.
+     *
+     * @param val The plaintext that should be encrypted.
+     * @return The corresponding ciphertext.
+     */
+    public final BigInteger encrypt(int val) {
+        byte[] block = new byte[BLOCK_SIZE];
+        ByteBuffer.wrap(block).putInt(BLOCK_SIZE - 4, val);
+        try {
+            return new BigInteger(1, this.cipher().doFinal(block));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not encrypt with AES: " + e.getMessage());
+        }
+    }
+
+    private Cipher cipher() {
+        if (this.cipher == null) {
+            this.cipher = newCipherCache(Cipher.ENCRYPT_MODE, this.key);
+        }
+        return this.cipher.get();
+    }
+
+    /**
+     * @return a per-thread cache of AES ciphers in ECB mode for key
+     */
+    static ThreadLocal<Cipher> newCipherCache(final int mode, final byte[] key) {
+        return new ThreadLocal<Cipher>() {
+            protected Cipher initialValue() {
+                try {
+                    Cipher c = Cipher.getInstance("AES/ECB/NoPadding");
+                    c.init(mode, new SecretKeySpec(key, "AES"));
+                    return c;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("AES is not available: " + e.getMessage());
+                }
+            }
+        };
+    }
+}
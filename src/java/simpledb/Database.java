@@ -5,8 +5,8 @@ import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Database is a class that initializes several static variables used by the
- * database system (the catalog, the buffer pool, and the log files, in
- * particular.)
+ * database system (the catalog, the buffer pool, the log files and the
+ * keystore, in particular.)
  * <p>
  * Provides a set of methods that can be used to access these variables from
  * anywhere.
@@ -21,6 +21,9 @@ public class Database {
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
 
+    private final static String KEYSTOREFILENAME = "simpledb.keys";
+    private final TableKeyStore _keystore;
+
     private Database() {
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
@@ -32,6 +35,7 @@ public class Database {
             System.exit(1);
         }
         _logfile = tmp;
+        _keystore = new TableKeyStore(new File(KEYSTOREFILENAME));
         // startControllerThread();
     }
 
@@ -45,6 +49,11 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the keystore of the static Database instance */
+    public static TableKeyStore getKeyStore() {
+        return _instance.get()._keystore;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
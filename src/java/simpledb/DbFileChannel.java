@@ -0,0 +1,454 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * DbFileChannel is the page I/O of the file backing a {@link DbFile}. It
+ * keeps one FileChannel open per file, shared by every DbFile of that file,
+ * instead of opening a RandomAccessFile for each page, and serves reads of
+ * whole pages from a read-only mapping of the file when mapping is enabled
+ * (see {@link #setMapped}). The size of the file is kept in memory and
+ * updated by the writes made through the channel, so {@link #numPages} costs
+ * no system call, which matters to scans that check it at every page.
+ * <p>
+ * Writes to the file should therefore go through its DbFileChannel. Pages
+ * written by other means are seen after {@link #statPages} or {@link #get},
+ * which also notices a file replaced on disk.
+ * <p>
+ * At most MAX_OPEN channels are open at once: opening another closes the
+ * one opened longest ago that no read or write is using, and that one is
+ * opened again when it is next used. {@link #closeAll}, which
+ * {@link Catalog#clear} calls, closes every channel and forgets the files
+ * that no longer exist.
+ */
+public class DbFileChannel {
+
+    // The channel of each file, by absolute path
+    private static final ConcurrentHashMap<String, DbFileChannel> channels =
+            new ConcurrentHashMap<String, DbFileChannel>();
+
+    // Channels kept open at once
+    public static final int MAX_OPEN = 256;
+
+    // The open channels, in the order they were opened
+    private static final LinkedHashMap<DbFileChannel, Boolean> open =
+            new LinkedHashMap<DbFileChannel, Boolean>();
+
+    private static volatile boolean mapped = true;
+
+    // How many times larger than its mapping the file must grow before it
+    // is mapped again
+    public static final int REMAP_FACTOR = 2;
+
+    private final File file;
+    // Reads and writes share the lock; truncating and closing take it alone,
+    // so no read is left with a mapping of pages that are gone
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile RandomAccessFile raf;
+    private volatile FileChannel channel;
+    private volatile Object fileKey;
+    private volatile long size;
+    private volatile MappedByteBuffer map;
+    // The number of times the file was mapped
+    private volatile int maps;
+
+    private DbFileChannel(File f) {
+        this.file = f.getAbsoluteFile();
+    }
+
+    /**
+     * Returns the channel of f, which is opened the first time it is used. A
+     * channel that is already open is checked against the file on disk
+     * first: its size is read again, and if f has been replaced by another
+     * file, it is closed so the new file is opened instead.
+     */
+    public static DbFileChannel get(File f) {
+        String path = f.getAbsoluteFile().getPath();
+        synchronized (channels) {
+            DbFileChannel channel = channels.get(path);
+            if (channel == null) {
+                channel = new DbFileChannel(f);
+                channels.put(path, channel);
+            } else {
+                channel.refresh();
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Sets whether reads are served from a mapping of the file rather than
+     * read from the channel.
+     */
+    public static void setMapped(boolean mapped) {
+        DbFileChannel.mapped = mapped;
+    }
+
+    public static boolean isMapped() {
+        return mapped;
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Closes every channel, and forgets the channels of files that no longer
+     * exist. A channel still in use by a DbFile is opened again when it is
+     * next used.
+     */
+    public static void closeAll() {
+        synchronized (channels) {
+            Iterator<DbFileChannel> it = channels.values().iterator();
+            while (it.hasNext()) {
+                DbFileChannel channel = it.next();
+                channel.close();
+                if (!channel.file.exists()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of channels that are open
+     */
+    static int numOpen() {
+        synchronized (open) {
+            return open.size();
+        }
+    }
+
+    /**
+     * @return the number of times the file of this channel was mapped
+     */
+    int numMaps() {
+        return this.maps;
+    }
+
+    /**
+     * Opens the channel if it is not open yet, closing the channel opened
+     * longest ago if MAX_OPEN are open.
+     *
+     * @param create whether to create the file if it does not exist
+     * @return false if the file does not exist and was not created
+     */
+    private boolean open(boolean create) throws IOException {
+        if (this.channel != null) {
+            return true;
+        }
+        if (!this.openChannel(create)) {
+            return false;
+        }
+        // outside the monitor of this channel, which closing another takes
+        ArrayList<DbFileChannel> victims = new ArrayList<DbFileChannel>();
+        synchronized (open) {
+            open.put(this, Boolean.TRUE);
+            Iterator<DbFileChannel> it = open.keySet().iterator();
+            while (open.size() - victims.size() > MAX_OPEN && it.hasNext()) {
+                DbFileChannel victim = it.next();
+                if (victim != this) {
+                    victims.add(victim);
+                }
+            }
+        }
+        for (DbFileChannel victim : victims) {
+            victim.evict();
+        }
+        return true;
+    }
+
+    /**
+     * Closes the channel unless a read or write is using it, since a reader
+     * may be waiting for the channel that is closing this one.
+     */
+    private void evict() {
+        if (this.lock.writeLock().tryLock()) {
+            try {
+                this.closeChannel();
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private synchronized boolean openChannel(boolean create) throws IOException {
+        if (this.channel != null) {
+            return true;
+        }
+        if (!create && !this.file.exists()) {
+            return false;
+        }
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(this.file, "rw");
+        } catch (FileNotFoundException e) {
+            if (create || !this.file.exists()) {
+                throw e;
+            }
+            // a read-only file can still be read
+            raf = new RandomAccessFile(this.file, "r");
+        }
+        this.raf = raf;
+        this.size = raf.length();
+        this.fileKey = fileKey(this.file);
+        this.map = null;
+        this.channel = raf.getChannel();
+        return true;
+    }
+
+    private static Object fileKey(File f) throws IOException {
+        return Files.readAttributes(f.toPath(), BasicFileAttributes.class).fileKey();
+    }
+
+    /**
+     * Reads the size of the file again, dropping the mapping, or closes the
+     * channel if the file it has open is no longer at its path.
+     */
+    private void refresh() {
+        this.lock.writeLock().lock();
+        try {
+            if (this.channel == null) {
+                return;
+            }
+            Object key = this.file.exists() ? fileKey(this.file) : null;
+            if (key == null || this.fileKey != null && !this.fileKey.equals(key)) {
+                this.closeChannel();
+            } else {
+                this.size = this.channel.size();
+                this.map = null;
+            }
+        } catch (IOException e) {
+            this.closeChannel();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of pages in the file, counting a partial last page,
+     *   as of the last write through this channel or the last time the size
+     *   of the file was read
+     */
+    public int numPages() {
+        if (this.channel == null) {
+            try {
+                if (!this.open(false)) {
+                    return 0;
+                }
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+        int pageSize = BufferPool.getPageSize();
+        return (int) ((this.size + pageSize - 1) / pageSize);
+    }
+
+    /**
+     * Reads the size of the file again, for pages written to it other than
+     * through this channel, and returns the number of pages in the file.
+     */
+    public int statPages() {
+        boolean stale = false;
+        this.lock.readLock().lock();
+        try {
+            if (!this.open(false)) {
+                return 0;
+            }
+            long actual = this.channel.size();
+            if (actual < this.size) {
+                // the file was cut short behind the channel's back
+                stale = true;
+            } else {
+                synchronized (this) {
+                    this.size = Math.max(this.size, actual);
+                }
+            }
+        } catch (IOException e) {
+            stale = true;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        if (stale) {
+            this.refresh();
+        }
+        return this.numPages();
+    }
+
+    /**
+     * Reads page pageNo of the file. The part of the page past the end of
+     * the file, if any, reads as zeros.
+     *
+     * @throws FileNotFoundException if the file does not exist
+     */
+    public byte[] readPage(int pageNo) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        long offset = (long) pageNo * pageSize;
+        byte[] data = new byte[pageSize];
+        this.lock.readLock().lock();
+        try {
+            if (!this.open(false)) {
+                throw new FileNotFoundException(this.file.getPath());
+            }
+            MappedByteBuffer map = this.mapping(offset + pageSize);
+            if (map != null) {
+                ByteBuffer src = map.duplicate();
+                src.position((int) offset);
+                src.get(data);
+            } else {
+                ByteBuffer dst = ByteBuffer.wrap(data);
+                while (dst.hasRemaining()) {
+                    if (this.channel.read(dst, offset + dst.position()) < 0) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        return data;
+    }
+
+    /**
+     * @return a mapping of the file that reaches end, or null if reads are
+     *   not mapped, end is past the end of the file or of what a mapping can
+     *   hold, or end is past the mapping and the file has not yet grown to
+     *   REMAP_FACTOR times its size. Then the whole file is mapped again, so
+     *   a file that grows a page at a time is only mapped a logarithmic number
+     *   of times, and pages appended meanwhile are read from the channel. A
+     *   mapping that is replaced is unmapped once it is garbage collected.
+     */
+    private MappedByteBuffer mapping(long end) throws IOException {
+        if (!mapped || end > this.size || end > Integer.MAX_VALUE) {
+            return null;
+        }
+        MappedByteBuffer map = this.map;
+        if (map == null || map.capacity() < end) {
+            synchronized (this) {
+                map = this.map;
+                if (map != null && map.capacity() < end
+                        && this.size < (long) REMAP_FACTOR * map.capacity()) {
+                    return null;
+                }
+                if (map == null || map.capacity() < end) {
+                    map = this.channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                            Math.min(this.size, Integer.MAX_VALUE));
+                    this.map = map;
+                    this.maps++;
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Writes data as page pageNo of the file, which is created if it does not
+     * exist and grows if the page is past its end.
+     */
+    public void writePage(int pageNo, byte[] data) throws IOException {
+        this.lock.readLock().lock();
+        try {
+            this.open(true);
+            this.write((long) pageNo * BufferPool.getPageSize(), data);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    private void write(long offset, byte[] data) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(data);
+        while (src.hasRemaining()) {
+            this.channel.write(src, offset + src.position());
+        }
+        synchronized (this) {
+            this.size = Math.max(this.size, offset + data.length);
+        }
+    }
+
+    /**
+     * Writes data as a new page at the end of the file.
+     *
+     * @return the number of the new page
+     */
+    public int appendPage(byte[] data) throws IOException {
+        this.lock.readLock().lock();
+        try {
+            this.open(true);
+            // hold the monitor so concurrent appends get different pages
+            synchronized (this) {
+                int pageNo = this.numPages();
+                this.write((long) pageNo * BufferPool.getPageSize(), data);
+                return pageNo;
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Empties the file, creating it if it does not exist.
+     */
+    public void truncate() throws IOException {
+        this.lock.writeLock().lock();
+        try {
+            this.open(true);
+            this.channel.truncate(0);
+            this.size = 0;
+            this.map = null;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forces the writes made so far to disk.
+     */
+    public void force() throws IOException {
+        this.lock.readLock().lock();
+        try {
+            if (this.channel != null) {
+                this.channel.force(false);
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the channel. It is opened again if it is used afterwards.
+     */
+    public void close() {
+        this.lock.writeLock().lock();
+        try {
+            this.closeChannel();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private synchronized void closeChannel() {
+        synchronized (open) {
+            open.remove(this);
+        }
+        if (this.raf != null) {
+            try {
+                this.raf.close();
+            } catch (IOException e) {
+                // nothing was left to write
+            }
+        }
+        this.raf = null;
+        this.channel = null;
+        this.map = null;
+    }
+}
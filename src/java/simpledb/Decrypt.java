@@ -0,0 +1,235 @@
+package simpledb;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Decrypt is an operator that turns the PAILLIER_, OPE_ and DET_ columns of
+ * its child back into plaintext INT columns, named as the child names them
+ * without the encryption prefix (so "t.OPE_a" becomes "t.a"). All other
+ * columns are passed through unchanged.
+ * <p>
+ * The child is read on the calling thread in batches of BATCH_SIZE tuples,
+ * and each batch is decrypted by a worker of the common fork/join pool. At
+ * most maxInFlight batches are read ahead of the one being returned, and
+ * batches are returned in the order they were read, so the output keeps the
+ * order of the child.
+ */
+public class Decrypt extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    // How each column of the child is turned into a column of the output
+    private static final int PLAIN = 0;
+    private static final int PAILLIER = 1;
+    private static final int OPE = 2;
+    private static final int DET = 3;
+
+    // Tuples of the child decrypted by a single task
+    public static final int BATCH_SIZE = 128;
+
+    private OpIterator child;
+    private Paillier_KeyPair paillierKeyPair;
+    private OPE_KeyPair opeKeyPair;
+    private DET_KeyPair detKeyPair;
+    private int[] schemes;
+    private TupleDesc td;
+    private final int maxInFlight;
+    // The batches being decrypted, in child order, and the one being returned
+    private transient ArrayDeque<Future<List<Tuple>>> inFlight;
+    private transient Iterator<Tuple> batch;
+    private transient boolean childDone;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The child operator, reading from an EncryptedFile
+     * @param keyPairs
+     *            the key pairs the child's columns were encrypted with, keyed
+     *            by {@link HeapFile#PAILLIER_PREFIX}, {@link HeapFile#OPE_PREFIX}
+     *            and {@link HeapFile#DET_PREFIX}
+     * @throws IllegalArgumentException if the child has a packed Paillier
+     *            column, which does not decrypt to a single value, or a
+     *            column whose key is missing from keyPairs
+     */
+    public Decrypt(OpIterator child, Map<String, KeyPair> keyPairs) {
+        this.child = child;
+        this.paillierKeyPair = (Paillier_KeyPair) keyPairs.get(HeapFile.PAILLIER_PREFIX);
+        this.opeKeyPair = (OPE_KeyPair) keyPairs.get(HeapFile.OPE_PREFIX);
+        this.detKeyPair = (DET_KeyPair) keyPairs.get(HeapFile.DET_PREFIX);
+        TupleDesc childTd = child.getTupleDesc();
+        this.schemes = new int[childTd.numFields()];
+        ArrayList<TDItem> items = new ArrayList<TDItem>(childTd.numFields());
+        for (int i = 0; i < childTd.numFields(); i++) {
+            String name = childTd.getFieldName(i);
+            // the prefix follows the table alias, if there is one
+            int start = name == null ? 0 : name.lastIndexOf('.') + 1;
+            String pureName = name == null ? null : name.substring(start);
+            if (pureName != null && pureName.startsWith(HeapFile.PAILLIER_PACKED_PREFIX)) {
+                throw new IllegalArgumentException("Cannot decrypt packed column " + name);
+            } else if (pureName != null && pureName.startsWith(HeapFile.PAILLIER_PREFIX)
+                    && this.paillierKeyPair != null) {
+                this.schemes[i] = PAILLIER;
+                items.add(new TDItem(Type.INT_TYPE, name.substring(0, start)
+                        + pureName.substring(HeapFile.PAILLIER_PREFIX.length())));
+            } else if (pureName != null && pureName.startsWith(HeapFile.OPE_PREFIX)
+                    && this.opeKeyPair != null) {
+                this.schemes[i] = OPE;
+                items.add(new TDItem(Type.INT_TYPE, name.substring(0, start)
+                        + pureName.substring(HeapFile.OPE_PREFIX.length())));
+            } else if (pureName != null && pureName.startsWith(HeapFile.DET_PREFIX)
+                    && this.detKeyPair != null) {
+                this.schemes[i] = DET;
+                items.add(new TDItem(Type.INT_TYPE, name.substring(0, start)
+                        + pureName.substring(HeapFile.DET_PREFIX.length())));
+            } else if (pureName != null && (pureName.startsWith(HeapFile.PAILLIER_PREFIX)
+                    || pureName.startsWith(HeapFile.OPE_PREFIX)
+                    || pureName.startsWith(HeapFile.DET_PREFIX))) {
+                throw new IllegalArgumentException("No key to decrypt column " + name);
+            } else {
+                this.schemes[i] = PLAIN;
+                items.add(new TDItem(childTd.getFieldType(i), name, childTd.getFieldLen(i)));
+            }
+        }
+        this.td = new TupleDesc(items);
+        this.maxInFlight = 2 * ForkJoinPool.commonPool().getParallelism() + 1;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        this.child.open();
+        this.reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        this.reset();
+        this.child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.reset();
+        this.child.rewind();
+    }
+
+    /**
+     * Drops the batches in flight, so the next read starts a new batch.
+     */
+    private void reset() {
+        if (this.inFlight != null) {
+            for (Future<List<Tuple>> f : this.inFlight) {
+                f.cancel(false);
+            }
+        }
+        this.inFlight = new ArrayDeque<Future<List<Tuple>>>();
+        this.batch = null;
+        this.childDone = false;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the next tuple of the
+     * current batch, first reading and handing off batches of the child
+     * until maxInFlight are in flight.
+     *
+     * @return The next decrypted tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        while (this.batch == null || !this.batch.hasNext()) {
+            while (!this.childDone && this.inFlight.size() < this.maxInFlight) {
+                final List<Tuple> tuples = new ArrayList<Tuple>(BATCH_SIZE);
+                while (tuples.size() < BATCH_SIZE && this.child.hasNext()) {
+                    tuples.add(this.child.next());
+                }
+                this.childDone = tuples.size() < BATCH_SIZE;
+                if (tuples.isEmpty()) {
+                    break;
+                }
+                this.inFlight.add(ForkJoinPool.commonPool().submit(new Callable<List<Tuple>>() {
+                    public List<Tuple> call() {
+                        return decryptTuples(tuples);
+                    }
+                }));
+            }
+            if (this.inFlight.isEmpty()) {
+                return null;
+            }
+            try {
+                this.batch = this.inFlight.poll().get().iterator();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("Interrupted while decrypting");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new DbException("Failed to decrypt: " + e.getCause());
+            }
+        }
+        return this.batch.next();
+    }
+
+    /**
+     * @return the decryptions of tuples, in the same order
+     */
+    private List<Tuple> decryptTuples(List<Tuple> tuples) {
+        List<Tuple> plain = new ArrayList<Tuple>(tuples.size());
+        for (Tuple t : tuples) {
+            plain.add(this.decrypt(t));
+        }
+        return plain;
+    }
+
+    /**
+     * @return the tuple of the output for the tuple t of the child
+     */
+    private Tuple decrypt(Tuple t) {
+        Tuple plain = new Tuple(this.td);
+        plain.setRecordId(t.getRecordId());
+        for (int i = 0; i < this.schemes.length; i++) {
+            switch (this.schemes[i]) {
+            case PAILLIER:
+                BigInteger c = ((BigIntField) t.getField(i)).getValue();
+                plain.setField(i, new IntField(this.paillierKeyPair.decrypt(c).intValue()));
+                break;
+            case OPE:
+                // INT for the linear ciphers, BIGINT for an encoding tree
+                Field f = t.getField(i);
+                BigInteger v = f instanceof BigIntField ? ((BigIntField) f).getValue()
+                        : BigInteger.valueOf(((IntField) f).getValue());
+                plain.setField(i, new IntField(this.opeKeyPair.decrypt(v).intValue()));
+                break;
+            case DET:
+                BigInteger d = ((BigIntField) t.getField(i)).getValue();
+                plain.setField(i, new IntField(this.detKeyPair.decrypt(d)));
+                break;
+            default:
+                plain.setField(i, t.getField(i));
+                break;
+            }
+        }
+        return plain;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        if (this.child != children[0]) {
+            this.child = children[0];
+        }
+    }
+}
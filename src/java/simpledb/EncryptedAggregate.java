@@ -1,18 +1,99 @@
 package simpledb;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * EncryptedAggregate computes an {@link EncryptedAggregator.EncOp} over a
+ * column of an encrypted child, optionally grouped by another column.
+ * <p>
+ * Nothing is read until open. Then the child is read on the calling thread
+ * and its tuples are hash-partitioned by group into one partition per
+ * worker of the common fork/join pool (a single partition without
+ * grouping). Each partition has its own {@link EncryptedBigIntegerAggregator}
+ * and receives its tuples in batches of BATCH_SIZE, which are merged by one
+ * worker at a time, with at most maxInFlight batches waiting overall. As no
+ * group spans two partitions, the result is the groups of every partition.
+ */
 public class EncryptedAggregate extends Operator {
     
     private static final long serialVersionUID = 1L;
 
+    // Tuples of a partition handed to a worker at a time
+    public static final int BATCH_SIZE = 256;
+
+    /**
+     * The groups whose keys hash to one partition. Batches of tuples are
+     * queued, and whichever thread finds the partition idle schedules a
+     * worker that merges the queue into the partition's aggregator, so no two
+     * workers ever touch the same aggregator.
+     */
+    private static class Partition implements Runnable {
+        final EncryptedBigIntegerAggregator aggr;
+        final Semaphore inFlight;
+        final ConcurrentLinkedQueue<List<Tuple>> pending = new ConcurrentLinkedQueue<List<Tuple>>();
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        volatile RuntimeException error = null;
+        // The batch being filled by the reading thread
+        List<Tuple> batch = new ArrayList<Tuple>(BATCH_SIZE);
+
+        Partition(EncryptedBigIntegerAggregator aggr, Semaphore inFlight) {
+            this.aggr = aggr;
+            this.inFlight = inFlight;
+        }
+
+        /**
+         * Queues the current batch, holding a permit of inFlight until it
+         * is merged, and starts a new one.
+         */
+        void submit() throws InterruptedException {
+            this.inFlight.acquire();
+            this.pending.add(this.batch);
+            this.batch = new ArrayList<Tuple>(BATCH_SIZE);
+            if (this.scheduled.compareAndSet(false, true)) {
+                ForkJoinPool.commonPool().execute(this);
+            }
+        }
+
+        public void run() {
+            while (true) {
+                List<Tuple> tuples;
+                while ((tuples = this.pending.poll()) != null) {
+                    try {
+                        if (this.error == null) {
+                            for (Tuple t : tuples) {
+                                this.aggr.mergeTupleIntoGroup(t);
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        this.error = e;
+                    } finally {
+                        this.inFlight.release();
+                    }
+                }
+                this.scheduled.set(false);
+                // a batch queued after the last poll found the partition still scheduled
+                if (this.pending.isEmpty() || !this.scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+    }
+
     private OpIterator child;
     private int aField;
     private int gbField;
     private EncryptedAggregator.EncOp aOprtr;
-    private EncryptedAggregator aggr;
-    private OpIterator aggrIter;
+    private Paillier_PublicKey publicKey;
+    private transient ArrayList<Tuple> results;
+    private transient int resultIdx;
     private TupleDesc tupDesc;
+    private TupleDesc outDesc;
     private OpIterator[] children;
     private boolean isOpen;
 
@@ -35,23 +116,69 @@ public class EncryptedAggregate extends Operator {
      *            The aggregation operator to use
      */
     public EncryptedAggregate(OpIterator child, int afield, int gbfield, EncryptedAggregator.EncOp aop) {
+        this(child, afield, gbfield, aop, null);
+    }
+
+    /**
+     * Constructor for a child whose Paillier public key is known up front,
+     * such as the key of the encrypted table it reads. Without it, a Paillier
+     * aggregate looks the key up from the table of the RecordId of its first
+     * tuple, which joins and projections do not have.
+     *
+     * @param publicKey
+     *            The key the aggregate column was encrypted with, or null
+     */
+    public EncryptedAggregate(OpIterator child, int afield, int gbfield, EncryptedAggregator.EncOp aop,
+            Paillier_PublicKey publicKey) {
         // some code goes here
         this.child = child;
         this.aField = afield;
         this.gbField = gbfield;
         this.aOprtr = aop;
+        this.publicKey = publicKey;
         this.isOpen = false;
         this.tupDesc = this.child.getTupleDesc();
-        Type gbFieldType;
+        this.outDesc = this.outputTupleDesc();
+    }
+
+    /**
+     * @return the TupleDesc of the output tuples. The group column keeps the
+     *   name it has in the child. A Paillier sum or an OPE minimum or maximum
+     *   is still a ciphertext of the scheme of the aggregate column, so it
+     *   keeps that column's name too, while a COUNT is plaintext and is named
+     *   after the column without its encryption prefix.
+     */
+    private TupleDesc outputTupleDesc() {
+        ArrayList<TDItem> items = new ArrayList<TDItem>(2);
         if (this.hasGrouping()) {
-          gbFieldType = this.tupDesc.getFieldType(gbfield);
-        } else {
-          gbFieldType = null;
+            items.add(new TDItem(this.tupDesc.getFieldType(this.gbField), this.tupDesc.getFieldName(this.gbField),
+                    this.tupDesc.getFieldLen(this.gbField)));
+        }
+        String name = this.tupDesc.getFieldName(this.aField);
+        switch (this.aOprtr) {
+        case PAILLIER_SUM:
+        case PAILLIER_AVG:
+            items.add(new TDItem(Type.BIGINT_TYPE, name, this.tupDesc.getFieldLen(this.aField)));
+            break;
+        case COUNT:
+            int start = name == null ? 0 : name.lastIndexOf('.') + 1;
+            for (String prefix : new String[]{ HeapFile.PAILLIER_PREFIX, HeapFile.OPE_PREFIX, HeapFile.DET_PREFIX }) {
+                if (name != null && name.startsWith(prefix, start)) {
+                    name = name.substring(0, start) + name.substring(start + prefix.length());
+                    break;
+                }
+            }
+            items.add(new TDItem(Type.INT_TYPE, name));
+            break;
+        case OPE_MIN:
+        case OPE_MAX:
+            items.add(new TDItem(this.tupDesc.getFieldType(this.aField), name, this.tupDesc.getFieldLen(this.aField)));
+            break;
+        default:
+            items.add(new TDItem(Type.INT_TYPE, name));
+            break;
         }
-        Type aFieldType = this.tupDesc.getFieldType(afield);
-        this.aggr = new EncryptedBigIntegerAggregator(gbfield, gbFieldType, afield, aop);
-        this.mergeAllTuples(child, this.aggr);
-        this.aggrIter = this.aggr.iterator();
+        return new TupleDesc(items);
     }
     
     /**
@@ -62,21 +189,57 @@ public class EncryptedAggregate extends Operator {
     }
     
     /**
-     * Merge all tuples of a child OpIterator into their appropriate group
-     * @param child the OpIterator feeding tuples
+     * Reads the whole child, which must be open, and aggregates it in
+     * partitions.
+     *
+     * @return the result tuples of every partition
+     * @throws DbException if reading the child fails or is interrupted
      */
-    private void mergeAllTuples(OpIterator child, EncryptedAggregator aggr) {
+    private ArrayList<Tuple> aggregate() throws DbException, TransactionAbortedException {
+        Type gbFieldType = this.hasGrouping() ? this.tupDesc.getFieldType(this.gbField) : null;
+        int parallelism = ForkJoinPool.commonPool().getParallelism();
+        int maxInFlight = 2 * parallelism + 1;
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        Partition[] partitions = new Partition[this.hasGrouping() ? parallelism : 1];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition(new EncryptedBigIntegerAggregator(this.gbField, gbFieldType,
+                    this.aField, this.aOprtr, this.publicKey), inFlight);
+        }
         try {
-          child.open();
-          while (child.hasNext()) {
-            Tuple next = child.next();
-            aggr.mergeTupleIntoGroup(next);
-          }
-          child.rewind();
-          child.close();
-        } catch (DbException dbExn) {
-        } catch (TransactionAbortedException txnAbExn) {
+            while (this.child.hasNext()) {
+                Tuple t = this.child.next();
+                Partition partition = partitions.length == 1 ? partitions[0]
+                        : partitions[Math.floorMod(t.getField(this.gbField).hashCode(), partitions.length)];
+                partition.batch.add(t);
+                if (partition.batch.size() == BATCH_SIZE) {
+                    partition.submit();
+                }
+            }
+            for (Partition partition : partitions) {
+                if (!partition.batch.isEmpty()) {
+                    partition.submit();
+                }
+            }
+            // every permit is back once every batch is merged
+            inFlight.acquire(maxInFlight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("Interrupted while aggregating");
         }
+
+        ArrayList<Tuple> results = new ArrayList<Tuple>();
+        for (Partition partition : partitions) {
+            if (partition.error != null) {
+                throw partition.error;
+            }
+            OpIterator it = partition.aggr.iterator();
+            it.open();
+            while (it.hasNext()) {
+                results.add(it.next());
+            }
+            it.close();
+        }
+        return results;
     }
     
     /**
@@ -146,7 +309,8 @@ public class EncryptedAggregate extends Operator {
         // some code goes here
         super.open();
         this.child.open();
-        this.aggrIter.open();
+        this.results = this.aggregate();
+        this.resultIdx = 0;
         this.isOpen = true;
     }
     
@@ -159,20 +323,16 @@ public class EncryptedAggregate extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
 	    // some code goes here
-        Tuple next;
-        try {
-          next = this.aggrIter.next();
-        } catch (NoSuchElementException nseExn) {
-          next = null;
+        if (this.resultIdx >= this.results.size()) {
+          return null;
         }
-        return next;
+        return this.results.get(this.resultIdx++);
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         this.checkOpen();
-        this.child.rewind();
-        this.aggrIter.rewind();
+        this.resultIdx = 0;
     }
 
     /**
@@ -188,14 +348,14 @@ public class EncryptedAggregate extends Operator {
      */
     public TupleDesc getTupleDesc() {
 	    // some code goes here
-	    return this.tupDesc;
+	    return this.outDesc;
     }
 
     public void close() {
         // some code goes here
         super.close();
         this.child.close();
-        this.aggrIter.close();
+        this.results = null;
         this.isOpen = false;
     }
     
@@ -0,0 +1,317 @@
+package simpledb;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * EncryptedAggregateView is a materialized SUM and COUNT per group over one
+ * Paillier column of an {@link EncryptedFile}. Each group has one row holding
+ * its DET or OPE group ciphertext, its count, and the Paillier product of its
+ * ciphertexts, which is the encryption of its sum. The EncryptedFile keeps
+ * the rows up to date as its own tuples change: an insert multiplies the
+ * product by the new ciphertext, and a delete multiplies it by the modular
+ * inverse of the old one, so neither needs the private key nor a scan.
+ * <p>
+ * The rows are stored in a HeapFile that is registered with the Catalog
+ * under the path of its file and changed through the BufferPool like any
+ * table, so they are locked, flushed and rolled back with the transaction
+ * that changed the EncryptedFile. A group whose count drops to zero keeps
+ * its row, so an abort can only take away rows that the aborted transaction
+ * added.
+ * <p>
+ * {@link SplitPlanner} answers a matching SUM or COUNT from the rows of the
+ * view, reading one tuple per group instead of the whole table.
+ */
+public class EncryptedAggregateView {
+
+    // Ciphertexts, of any groups, collected while building before they are multiplied
+    public static final int BUILD_BATCH_SIZE = 4096;
+
+    private final EncryptedFile table;
+    private final int groupField;
+    private final int aggField;
+    private final HeapFile store;
+    private final int countField;
+    private final int productField;
+    // Where the row of each group was last written, keyed by the group
+    // ciphertext (null without grouping); rebuilt from the store whenever an
+    // entry is found to be stale
+    private final HashMap<Field, RecordId> rows = new HashMap<Field, RecordId>();
+
+    /**
+     * Opens the view stored in f, which may be empty. Use {@link #build} to
+     * fill it from the table.
+     *
+     * @param f the file backing the rows of the view
+     * @param table the EncryptedFile the view aggregates
+     * @param groupField the DET_ or OPE_ column of table to group on, or
+     *   {@link Aggregator#NO_GROUPING}
+     * @param aggField the PAILLIER_ column of table to sum
+     */
+    public EncryptedAggregateView(File f, EncryptedFile table, int groupField, int aggField) {
+        this.table = table;
+        this.groupField = groupField;
+        this.aggField = aggField;
+        TupleDesc td = table.getTupleDesc();
+        ArrayList<TDItem> items = new ArrayList<TDItem>(3);
+        if (groupField != Aggregator.NO_GROUPING) {
+            items.add(new TDItem(td.getFieldType(groupField), td.getFieldName(groupField),
+                    td.getFieldLen(groupField)));
+        }
+        String aggName = td.getFieldName(aggField);
+        items.add(new TDItem(Type.INT_TYPE, aggName.substring(HeapFile.PAILLIER_PREFIX.length())));
+        items.add(new TDItem(Type.BIGINT_TYPE, aggName, td.getFieldLen(aggField)));
+        this.store = new HeapFile(f, new TupleDesc(items));
+        this.countField = items.size() - 2;
+        this.productField = items.size() - 1;
+        // named after its file, so opening the view again replaces its entry
+        Database.getCatalog().addTable(this.store, f.getAbsolutePath());
+    }
+
+    /**
+     * @return the grouped column of the table, or
+     *   {@link Aggregator#NO_GROUPING}
+     */
+    public int getGroupField() {
+        return this.groupField;
+    }
+
+    /**
+     * @return the summed Paillier column of the table
+     */
+    public int getAggField() {
+        return this.aggField;
+    }
+
+    /**
+     * @return the HeapFile of the rows of the view: the group column, if
+     *   any, named as in the table; the count, named after the summed column
+     *   without its PAILLIER_ prefix; and the Paillier sum, named as the
+     *   summed column. Groups with a count of zero have a row too.
+     */
+    public HeapFile getStore() {
+        return this.store;
+    }
+
+    /**
+     * @return the index of the count column in the rows of the view
+     */
+    public int getCountField() {
+        return this.countField;
+    }
+
+    /**
+     * @return the index of the Paillier sum column in the rows of the view
+     */
+    public int getProductField() {
+        return this.productField;
+    }
+
+    /**
+     * Recomputes the rows of the view from the current tuples of the table,
+     * writing them straight to the file of the view, which is overwritten.
+     */
+    public synchronized void build()
+        throws DbException, IOException, TransactionAbortedException {
+        Paillier_PublicKey key = this.publicKey();
+        LinkedHashMap<Field, int[]> counts = new LinkedHashMap<Field, int[]>();
+        HashMap<Field, BigInteger> products = new HashMap<Field, BigInteger>();
+        // the group and ciphertext of each row not yet multiplied in
+        ArrayList<Field> batchGroups = new ArrayList<Field>(BUILD_BATCH_SIZE);
+        ArrayList<BigInteger> batchValues = new ArrayList<BigInteger>(BUILD_BATCH_SIZE);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = this.table.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            Field group = this.group(t);
+            int[] count = counts.get(group);
+            if (count == null) {
+                count = new int[1];
+                counts.put(group, count);
+                products.put(group, BigInteger.ONE);
+            }
+            count[0]++;
+            batchGroups.add(group);
+            batchValues.add(((BigIntField) t.getField(this.aggField)).getValue());
+            if (batchValues.size() == BUILD_BATCH_SIZE) {
+                foldBatch(products, batchGroups, batchValues, key);
+            }
+        }
+        it.close();
+        foldBatch(products, batchGroups, batchValues, key);
+
+        for (int i = 0; i < this.store.numPages(); i++) {
+            Database.getBufferPool().discardPage(new HeapPageId(this.store.getId(), i));
+        }
+        this.rows.clear();
+        DbFileChannel channel = this.store.getChannel();
+        channel.truncate();
+        this.store.getFreeSpaceMap().clear();
+        HeapPage page = null;
+        for (Map.Entry<Field, int[]> entry : counts.entrySet()) {
+            Field group = entry.getKey();
+            Tuple row = this.row(group, entry.getValue()[0], products.get(group));
+            if (page == null || !page.hasRoomFor(row)) {
+                if (page != null) {
+                    channel.writePage(page.getId().getPageNumber(), page.getPageData());
+                }
+                page = new HeapPage(new HeapPageId(this.store.getId(), this.store.numPages()),
+                        HeapPage.createEmptyPageData());
+                // reserve the page, so numPages counts it
+                channel.writePage(page.getId().getPageNumber(), page.getPageData());
+            }
+            page.insertTuple(row);
+            this.rows.put(group, row.getRecordId());
+        }
+        if (page != null) {
+            channel.writePage(page.getId().getPageNumber(), page.getPageData());
+        }
+        channel.force();
+    }
+
+    /**
+     * Multiplies the ciphertexts of a batch into the products of their
+     * groups, where values[i] belongs to groups[i], and empties the batch.
+     */
+    private static void foldBatch(HashMap<Field, BigInteger> products, ArrayList<Field> groups,
+            ArrayList<BigInteger> values, Paillier_PublicKey key) {
+        Map<Field, BigInteger> sums = EncryptedBigIntegerAggregator.partialSums(groups, values, key);
+        for (Map.Entry<Field, BigInteger> sum : sums.entrySet()) {
+            products.put(sum.getKey(), Paillier.add(products.get(sum.getKey()), sum.getValue(), key));
+        }
+        groups.clear();
+        values.clear();
+    }
+
+    /**
+     * Adds t, a new tuple of the table, to its group.
+     *
+     * @return the pages of the view that were changed
+     */
+    public synchronized ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+        throws DbException, IOException, TransactionAbortedException {
+        return this.update(tid, t, true);
+    }
+
+    /**
+     * Removes t, a tuple of the table that is being deleted, from its group.
+     *
+     * @return the pages of the view that were changed
+     */
+    public synchronized ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+        throws DbException, IOException, TransactionAbortedException {
+        return this.update(tid, t, false);
+    }
+
+    /**
+     * Replaces the row of the group of t with one that counts t and includes
+     * its ciphertext in the sum, or that no longer does if !insert.
+     */
+    private ArrayList<Page> update(TransactionId tid, Tuple t, boolean insert)
+        throws DbException, IOException, TransactionAbortedException {
+        Paillier_PublicKey key = this.publicKey();
+        Field group = this.group(t);
+        BigInteger c = ((BigIntField) t.getField(this.aggField)).getValue();
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+        BufferPool bufferPool = Database.getBufferPool();
+
+        RecordId rid = this.find(tid, group);
+        int count = 0;
+        BigInteger product = BigInteger.ONE;
+        HeapPage page = null;
+        if (rid != null) {
+            page = (HeapPage) bufferPool.getPage(tid, rid.getPageId(), Permissions.READ_WRITE);
+            Tuple old = page.getTuple(rid.getTupleNumber());
+            count = ((IntField) old.getField(this.countField)).getValue();
+            product = ((BigIntField) old.getField(this.productField)).getValue();
+            page.deleteTuple(old);
+        }
+        if (!insert && count == 0) {
+            throw new DbException("Tuple " + t.getRecordId() + " is not in the view");
+        }
+        Tuple row = insert ? this.row(group, count + 1, Paillier.add(product, c, key))
+                : this.row(group, count - 1, Paillier.subtract(product, c, key));
+        if (page != null) {
+            // the slot just freed has room for the new row
+            page.insertTuple(row);
+            bufferPool.markPageDirty(page, tid);
+            dirtied.add(page);
+        } else {
+            dirtied.addAll(this.store.insertTuple(tid, row));
+        }
+        this.rows.put(group, row.getRecordId());
+        return dirtied;
+    }
+
+    /**
+     * @return the RecordId of the row of group, or null if the group has
+     *   none. A remembered RecordId is checked against the page first, since
+     *   an abort may have moved or removed the row.
+     */
+    private RecordId find(TransactionId tid, Field group)
+        throws DbException, TransactionAbortedException {
+        RecordId rid = this.rows.get(group);
+        if (rid == null || this.holds(tid, rid, group)) {
+            return rid;
+        }
+        this.rows.clear();
+        for (int i = 0; i < this.store.numPages(); i++) {
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(this.store.getId(), i), Permissions.READ_ONLY);
+            for (Tuple row : page.getValidTuples()) {
+                this.rows.put(this.rowGroup(row), row.getRecordId());
+            }
+        }
+        return this.rows.get(group);
+    }
+
+    /**
+     * @return whether the slot rid of the store holds the row of group
+     */
+    private boolean holds(TransactionId tid, RecordId rid, Field group)
+        throws DbException, TransactionAbortedException {
+        if (rid.getPageId().getPageNumber() >= this.store.numPages()) {
+            return false;
+        }
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+        if (!page.isSlotUsed(rid.getTupleNumber())) {
+            return false;
+        }
+        Field g = this.rowGroup(page.getTuple(rid.getTupleNumber()));
+        return g == null ? group == null : g.equals(group);
+    }
+
+    /**
+     * @return the group of t, a tuple of the table, or null without grouping
+     */
+    private Field group(Tuple t) {
+        return this.groupField == Aggregator.NO_GROUPING ? null : t.getField(this.groupField);
+    }
+
+    /**
+     * @return the group of row, a row of the view, or null without grouping
+     */
+    private Field rowGroup(Tuple row) {
+        return this.groupField == Aggregator.NO_GROUPING ? null : row.getField(0);
+    }
+
+    private Tuple row(Field group, int count, BigInteger product) {
+        Tuple row = new Tuple(this.store.getTupleDesc());
+        if (group != null) {
+            row.setField(0, group);
+        }
+        row.setField(this.countField, new IntField(count));
+        row.setField(this.productField, new BigIntField(product));
+        return row;
+    }
+
+    private Paillier_PublicKey publicKey() throws DbException {
+        Paillier_PublicKey key = this.table.getPaillierPublicKey();
+        if (key == null) {
+            throw new DbException("Table " + this.table.getId() + " has no Paillier public key");
+        }
+        return key;
+    }
+}
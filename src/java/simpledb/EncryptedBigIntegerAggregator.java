@@ -1,16 +1,40 @@
 package simpledb;
 
 import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Knows how to compute some aggregate over a set of encrypted IntFields.
+ * <p>
+ * PAILLIER_SUM and PAILLIER_AVG do not multiply every ciphertext into the
+ * group's total as it arrives. Instead, the rows of all groups are collected
+ * into partitions of PARTITION_SIZE rows, and a worker of the common
+ * fork/join pool sums every full partition into one partial sum per group
+ * while the scan continues. Finished partial sums are folded into each
+ * group's running total as the scan goes on, so at most MAX_PENDING
+ * partitions are held at once however many groups there are.
+ *
+ * @see Paillier#sum
  */
 public class EncryptedBigIntegerAggregator implements EncryptedAggregator {
 
     private static final long serialVersionUID = 1L;
 
+    // Rows, of any groups, collected before their partial Paillier sums are handed to a worker
+    public static final int PARTITION_SIZE = 4096;
+    // Partitions handed to workers whose partial sums have not been folded in yet
+    public static final int MAX_PENDING = Runtime.getRuntime().availableProcessors() + 1;
+
     private final int gbfield;
     private final Type gbfieldtype;
     private final int afield;
@@ -20,13 +44,16 @@ public class EncryptedBigIntegerAggregator implements EncryptedAggregator {
             new ConcurrentHashMap<Field, BigInteger>();
     private final ConcurrentHashMap<Field, BigInteger> avgCount = 
             new ConcurrentHashMap<Field, BigInteger>();
+    // the group and ciphertext of each row not yet handed to a worker
+    private List<Field> partitionGroups = new ArrayList<Field>(PARTITION_SIZE);
+    private List<BigInteger> partitionValues = new ArrayList<BigInteger>(PARTITION_SIZE);
+    // the partial sums per group of the partitions handed to workers, oldest first
+    private final ArrayDeque<Future<Map<Field, BigInteger>>> pending =
+            new ArrayDeque<Future<Map<Field, BigInteger>>>();
+    // whether the aggregate field is a BIGINT, such as the OPE column of an
+    // encoding tree, so MIN and MAX are BigInts too
+    private volatile boolean bigValues = false;
     private TupleDesc td;
-    // Encrypted columns show have names corresponding to these
-    private int modIndex;
-    private int gIndex;
-    private int N;
-    private int N2;
-    private int G;
     Paillier_PublicKey publicKey;
     
     /**
@@ -48,23 +75,58 @@ public class EncryptedBigIntegerAggregator implements EncryptedAggregator {
      */
 
     public EncryptedBigIntegerAggregator(int gbfield, Type gbfieldtype, int afield, EncOp what) {
+        this(gbfield, gbfieldtype, afield, what, null);
+    }
+
+    /**
+     * Aggregate constructor for a table whose Paillier public key is known up
+     * front, so it need not be looked up from the table of the first tuple.
+     * This is needed when the child produces tuples without a RecordId.
+     *
+     * @param publicKey the key the aggregate field was encrypted with, or null
+     */
+    public EncryptedBigIntegerAggregator(int gbfield, Type gbfieldtype, int afield, EncOp what,
+            Paillier_PublicKey publicKey) {
         this.gbfield = gbfield;
         this.gbfieldtype = gbfieldtype;
         this.afield = afield;
         this.op = what;
+        this.publicKey = publicKey;
+    }
+
+    /**
+     * @return whether op is computed homomorphically over Paillier ciphertexts
+     */
+    private boolean isPaillierOp() {
+        return op.equals(EncOp.PAILLIER_SUM) || op.equals(EncOp.PAILLIER_AVG);
+    }
+
+    /**
+     * @return the value of an IntField or BigIntField as a BigInteger
+     */
+    private static BigInteger valueOf(Field f) {
+        if (f instanceof BigIntField) {
+            return ((BigIntField) f).getValue();
+        }
+        return BigInteger.valueOf(((IntField) f).getValue());
     }
     
+    /**
+     * Looks up the Paillier public key of the EncryptedFile that t was read from.
+     *
+     * @throws NoSuchElementException if t does not come from an EncryptedFile
+     *   with a known key
+     */
     private void initializePublicKey(Tuple t) {
-        TupleDesc td = t.getTupleDesc();
-        this.modIndex = td.fieldNameToIndex(HeapFile.PAILLIER_MODULUS);
-        this.gIndex = td.fieldNameToIndex(HeapFile.PAILLIER_G);
-        
-        this.N = ((IntField) t.getField(modIndex)).getValue();
-        this.N2 = N*N;
-        this.G = ((IntField) t.getField(gIndex)).getValue();
-        this.publicKey = 
-                new Paillier_PublicKey(BigInteger.valueOf(N), BigInteger.valueOf(N2), 
-                              BigInteger.valueOf(G), HeapFile.BITS_INTEGER);
+        RecordId rid = t.getRecordId();
+        if (rid == null) {
+            throw new NoSuchElementException("Cannot find the Paillier key of a tuple with no RecordId");
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(rid.getPageId().getTableId());
+        if (!(file instanceof EncryptedFile) || ((EncryptedFile) file).getPaillierPublicKey() == null) {
+            throw new NoSuchElementException("Table " + rid.getPageId().getTableId() + " has no Paillier public key");
+        }
+        this.publicKey = ((EncryptedFile) file).getPaillierPublicKey();
     }
 
     /**
@@ -75,13 +137,22 @@ public class EncryptedBigIntegerAggregator implements EncryptedAggregator {
      *            the encrypted Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
+        td = tup.getTupleDesc();
         // This field could be either a StringField or an IntField
         Field gbField = gbfield != Aggregator.NO_GROUPING ? 
                 tup.getField(gbfield) : // IntField
                 new IntField(gbfield);  // -1
                 
-        BigInteger aggVal = BigInteger.valueOf(((IntField) tup.getField(afield)).getValue());
-        
+        BigInteger aggVal = valueOf(tup.getField(afield));
+        if (!bigValues && tup.getField(afield) instanceof BigIntField) {
+            bigValues = true;
+        }
+
+        if (isPaillierOp()) {
+            mergePaillierValue(gbField, aggVal, tup);
+            return;
+        }
+
         if (!gbValues.containsKey(gbField)) {
             gbValues.put(gbField, op.equals(EncOp.COUNT) ? BigInteger.valueOf(1) : aggVal);
             avgCount.putIfAbsent(gbField, BigInteger.valueOf(1));
@@ -89,27 +160,6 @@ public class EncryptedBigIntegerAggregator implements EncryptedAggregator {
             BigInteger prevVal = gbValues.get(gbField);
             
             switch (this.op) {    
-            case PAILLIER_SUM:
-                // TODO: Replace with actual implementation of Paillier sum
-                td = tup.getTupleDesc();
-                if (publicKey == null) {
-                    initializePublicKey(tup);
-                }
-                // Encrypted columns show have names corresponding to these
-                gbValues.put(gbField, Paillier.add(prevVal, aggVal, publicKey));
-                break;
-            case PAILLIER_AVG:
-                // TODO: Replace with Paillier implementation
-                td = tup.getTupleDesc();
-                if (publicKey == null) {
-                    initializePublicKey(tup);
-                }
-                gbValues.put(gbField, Paillier.add(prevVal, aggVal, publicKey));
-                avgCount.put(gbField, avgCount.get(gbField).add(BigInteger.ONE));
-                
-                //Integer num = prevVal + aggVal;
-                //gbValues.put(gbField, num);
-                break;
             case OPE_MIN:
                 // TODO: Replace with OPE implementation
                 gbValues.put(gbField, OPE.min(prevVal, aggVal));
@@ -128,6 +178,137 @@ public class EncryptedBigIntegerAggregator implements EncryptedAggregator {
         
     }
 
+    /**
+     * Adds a Paillier ciphertext to the current partition, handing the
+     * partition to a worker once it is full.
+     */
+    private void mergePaillierValue(Field gbField, BigInteger aggVal, Tuple tup) {
+        if (publicKey == null) {
+            initializePublicKey(tup);
+        }
+        BigInteger count = avgCount.get(gbField);
+        avgCount.put(gbField, count == null ? BigInteger.ONE : count.add(BigInteger.ONE));
+        partitionGroups.add(gbField);
+        partitionValues.add(aggVal);
+        if (partitionValues.size() == PARTITION_SIZE) {
+            final List<Field> groups = partitionGroups;
+            final List<BigInteger> values = partitionValues;
+            final Paillier_PublicKey key = publicKey;
+            pending.add(ForkJoinPool.commonPool().submit(new Callable<Map<Field, BigInteger>>() {
+                public Map<Field, BigInteger> call() {
+                    return partialSums(groups, values, key);
+                }
+            }));
+            partitionGroups = new ArrayList<Field>(PARTITION_SIZE);
+            partitionValues = new ArrayList<BigInteger>(PARTITION_SIZE);
+            // fold in the partitions that are done, and wait for the oldest
+            // if too many are still being summed
+            while (!pending.isEmpty() && (pending.peek().isDone() || pending.size() > MAX_PENDING)) {
+                foldPartialSums(await(pending.poll()));
+            }
+        }
+    }
+
+    /**
+     * @return the Paillier sum of the values of each group of a partition,
+     *   where values[i] belongs to groups[i]
+     */
+    static Map<Field, BigInteger> partialSums(List<Field> groups, List<BigInteger> values,
+            Paillier_PublicKey key) {
+        Map<Field, List<BigInteger>> byGroup = new HashMap<Field, List<BigInteger>>();
+        for (int i = 0; i < values.size(); i++) {
+            List<BigInteger> groupValues = byGroup.get(groups.get(i));
+            if (groupValues == null) {
+                groupValues = new ArrayList<BigInteger>();
+                byGroup.put(groups.get(i), groupValues);
+            }
+            groupValues.add(values.get(i));
+        }
+        Map<Field, BigInteger> sums = new HashMap<Field, BigInteger>();
+        for (Map.Entry<Field, List<BigInteger>> entry : byGroup.entrySet()) {
+            sums.put(entry.getKey(), Paillier.sum(entry.getValue(), key));
+        }
+        return sums;
+    }
+
+    /**
+     * @return the partial sums of a partition handed to a worker, once the
+     *   worker is done
+     */
+    private static Map<Field, BigInteger> await(Future<Map<Field, BigInteger>> partial) {
+        try {
+            return partial.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while summing a partition", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to sum a partition", e.getCause());
+        }
+    }
+
+    /**
+     * Adds the partial sums of a partition to the running totals in gbValues.
+     */
+    private void foldPartialSums(Map<Field, BigInteger> sums) {
+        for (Map.Entry<Field, BigInteger> entry : sums.entrySet()) {
+            BigInteger prevVal = gbValues.get(entry.getKey());
+            gbValues.put(entry.getKey(), prevVal == null ? entry.getValue()
+                    : Paillier.add(prevVal, entry.getValue(), publicKey));
+        }
+    }
+
+    /**
+     * Waits for the partial sums of every partition handed to a worker and
+     * folds them, along with those of the last partition, into gbValues.
+     */
+    private void finishPaillierGroups() {
+        while (!pending.isEmpty()) {
+            foldPartialSums(await(pending.poll()));
+        }
+        if (!partitionValues.isEmpty()) {
+            foldPartialSums(partialSums(partitionGroups, partitionValues, publicKey));
+            partitionGroups = new ArrayList<Field>(PARTITION_SIZE);
+            partitionValues = new ArrayList<BigInteger>(PARTITION_SIZE);
+        }
+    }
+
+    /**
+     * @return whether the aggregate values are BigInts
+     */
+    private boolean isBigResult() {
+        return isPaillierOp() || (bigValues && !op.equals(EncOp.COUNT));
+    }
+
+    /**
+     * @return the result field for an aggregate value: a BigIntField holding
+     *   the ciphertext for Paillier aggregates and for the MIN or MAX of a
+     *   BIGINT field, an IntField otherwise
+     */
+    private Field resultField(BigInteger value) {
+        if (isBigResult()) {
+            return new BigIntField(value);
+        }
+        return new IntField(value.intValueExact());
+    }
+
+    /**
+     * @return the TupleDesc of the results, whose group field and BIGINT
+     *   aggregate field are as wide as the fields they come from
+     */
+    private TupleDesc resultDesc() {
+        ArrayList<TDItem> items = new ArrayList<TDItem>(2);
+        if (gbfield != Aggregator.NO_GROUPING) {
+            items.add(td == null ? new TDItem(gbfieldtype, "null")
+                    : new TDItem(gbfieldtype, "null", td.getFieldLen(gbfield)));
+        }
+        if (!isBigResult()) {
+            items.add(new TDItem(Type.INT_TYPE, "null"));
+        } else {
+            items.add(td == null ? new TDItem(Type.BIGINT_TYPE, "null")
+                    : new TDItem(Type.BIGINT_TYPE, "null", td.getFieldLen(afield)));
+        }
+        return new TupleDesc(items);
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      * 
@@ -137,23 +318,27 @@ public class EncryptedBigIntegerAggregator implements EncryptedAggregator {
      *         the constructor.
      */
     public OpIterator iterator() {
+        finishPaillierGroups();
+        TupleDesc td = resultDesc();
         if (gbfield == Aggregator.NO_GROUPING) {
             // No group case, return single value
-            TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE});
             Tuple t = new Tuple(td);
             Field gb = new IntField(gbfield);
             BigInteger value = (BigInteger) gbValues.get(new IntField(gbfield));
+            if (value == null) {
+                // nothing was merged, so there is no aggregate value
+                return new TupleIterator(td, results);
+            }
             
             // Multiply by one over count to divide TODO: Test that this works
             if (op.equals(EncOp.PAILLIER_AVG)) {
                 value = Paillier.constMult(value, BigInteger.ONE.divide(avgCount.get(gb)), publicKey);
             }
-            t.setField(0, new IntField(value.intValueExact()));
+            t.setField(0, resultField(value));
             results.add(t);
             return new TupleIterator(td, results);
         } else {
             // Regular case, return (groupVal, aggVal) pairs
-            TupleDesc td = new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE});
                
             for (Field gb : gbValues.keySet()) {
                 Tuple t = new Tuple(td);
@@ -164,7 +349,7 @@ public class EncryptedBigIntegerAggregator implements EncryptedAggregator {
                     value = Paillier.constMult(value, BigInteger.ONE.divide(avgCount.get(gb)), publicKey);
                 }
                 t.setField(0, gb);
-                t.setField(1, new IntField(value.intValueExact()));                    
+                t.setField(1, resultField(value));
                 results.add(t);
             }
             return new TupleIterator(td, results);
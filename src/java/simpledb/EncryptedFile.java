@@ -2,11 +2,12 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * EncryptedFile is an encrypted version of a HeapFile using Paillier encryption 
- * and OPE to encrypt its columns. The last column of the table is the public key for the
- * Paillier encryption (the modulus n)
+ * and OPE to encrypt its columns. The Paillier public key is stored once for the
+ * whole table, with the file's entry in the Catalog, rather than in every row.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Akengin, Mehmet Efe; Ezike, Kayode; Henriquez, Carlos. 
@@ -14,7 +15,20 @@ import java.util.*;
 public class EncryptedFile implements DbFile {
 
     private File file;
+    private DbFileChannel channel;
+    private FreeSpaceMap freeSpace;
     private TupleDesc tupDesc;
+    private Paillier_PublicKey paillierPublicKey;
+    // OPE indexes of this table by column, kept up to date by insertTuple and deleteTuple
+    private final ConcurrentHashMap<Integer, OPE_Index> indexes = new ConcurrentHashMap<Integer, OPE_Index>();
+    // Aggregate views of this table by "groupField.aggField", kept up to date the same way
+    private final ConcurrentHashMap<String, EncryptedAggregateView> views =
+            new ConcurrentHashMap<String, EncryptedAggregateView>();
+
+    // Suffix added to the name of this file for the file of an index, after the column number
+    public static final String INDEX_SUFFIX = ".idx";
+    // Suffix added to the name of this file for the file of a view, after the column numbers
+    public static final String VIEW_SUFFIX = ".view";
 
     /**
      * FileTupleIterator implements DbFileIterator
@@ -26,6 +40,7 @@ public class EncryptedFile implements DbFile {
         private TransactionId txnId;
         private boolean isOpen;
         private int pgIdx;
+        private ReadAhead readAhead;
         
         public HeapFileIterator(EncryptedFile hf, TransactionId tid) {
             this.heapFile = hf;
@@ -33,6 +48,7 @@ public class EncryptedFile implements DbFile {
             this.txnId = tid;
             this.isOpen = false;
             this.pgIdx = -1;
+            this.readAhead = new ReadAhead(hf.getId());
         }
         
         /**
@@ -41,6 +57,11 @@ public class EncryptedFile implements DbFile {
          */
         public void open()
             throws DbException, TransactionAbortedException {
+            // reopening after a close starts again from the first page
+            this.rewind();
+            // count the pages written to the file other than through its
+            // channel once, rather than at every page
+            this.heapFile.numPages();
             this.isOpen = true;
         }
         
@@ -56,10 +77,13 @@ public class EncryptedFile implements DbFile {
               }
             }
             do {
-              this.pgIdx++;
-              if (this.pgIdx == this.heapFile.numPages()) {
+              // stay on the last page, so hasNext can be called again at the end
+              int numPages = this.heapFile.getChannel().numPages();
+              if (this.pgIdx + 1 >= numPages) {
                   return false;
               }
+              this.pgIdx++;
+              this.readAhead.access(this.pgIdx, numPages);
               BufferPool bufferPool = Database.getBufferPool();
               PageId pid = new HeapPageId(this.heapFile.getId(), this.pgIdx);
               HeapPage page = (HeapPage) bufferPool.getPage(this.txnId, pid, Permissions.READ_ONLY);
@@ -108,9 +132,81 @@ public class EncryptedFile implements DbFile {
      *            file.
      */
     public EncryptedFile(File f, TupleDesc td) {
-        // some code goes here
+        this(f, td, null);
+    }
+
+    /**
+     * Constructs an encrypted file whose Paillier columns were encrypted with
+     * paillierPublicKey.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this file.
+     * @param paillierPublicKey
+     *            the Paillier public key of the table, or null if unknown
+     */
+    public EncryptedFile(File f, TupleDesc td, Paillier_PublicKey paillierPublicKey) {
         this.file = f;
+        this.channel = DbFileChannel.get(f);
+        this.freeSpace = FreeSpaceMap.get(f);
         this.tupDesc = td;
+        this.paillierPublicKey = paillierPublicKey;
+        this.openViews();
+    }
+
+    /**
+     * Opens the views of this table whose files are already on disk, named
+     * as {@link #createAggregateView} names them, so they keep following
+     * inserts and deletes after a restart.
+     */
+    private void openViews() {
+        File dir = this.file.getAbsoluteFile().getParentFile();
+        final String prefix = this.file.getName() + ".";
+        File[] viewFiles = dir == null ? null : dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.startsWith(prefix) && name.endsWith(VIEW_SUFFIX);
+            }
+        });
+        if (viewFiles == null) {
+            return;
+        }
+        for (File viewFile : viewFiles) {
+            String name = viewFile.getName();
+            String[] columns = name.substring(prefix.length(), name.length() - VIEW_SUFFIX.length()).split("\\.");
+            if (columns.length != 2 || viewFile.length() == 0) {
+                continue;
+            }
+            try {
+                int groupField = Integer.parseInt(columns[0]);
+                int aggField = Integer.parseInt(columns[1]);
+                this.checkViewColumns(groupField, aggField);
+                this.views.put(groupField + "." + aggField,
+                        new EncryptedAggregateView(viewFile, this, groupField, aggField));
+            } catch (NumberFormatException e) {
+                // not the file of a view of this table
+            } catch (DbException e) {
+                // nor is this one, whose columns do not fit this table
+            }
+        }
+    }
+
+    /**
+     * @return the Paillier public key the columns of this table were
+     *   encrypted with, from the keystore if it was not given to the
+     *   constructor, or null if it is not known
+     */
+    public synchronized Paillier_PublicKey getPaillierPublicKey() {
+        if (this.paillierPublicKey == null) {
+            try {
+                ConcurrentHashMap<String, KeyPair> keyPairs = Database.getKeyStore().getKeyPairs(this.getId());
+                if (keyPairs != null) {
+                    this.paillierPublicKey =
+                            ((Paillier_KeyPair) keyPairs.get(HeapFile.PAILLIER_PREFIX)).getPublicKey();
+                }
+            } catch (DbException e) {
+                return null;
+            }
+        }
+        return this.paillierPublicKey;
     }
 
     /**
@@ -123,6 +219,21 @@ public class EncryptedFile implements DbFile {
         return this.file;
     }
 
+    /**
+     * @return the channel that pages of this file are read and written
+     *   through; any other write to the file must use it as well
+     */
+    public DbFileChannel getChannel() {
+        return this.channel;
+    }
+
+    /**
+     * @return the map of the pages of this file that may have a free slot
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return this.freeSpace;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -150,28 +261,14 @@ public class EncryptedFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
-        RandomAccessFile pageRaf;
-        try {
-          pageRaf = new RandomAccessFile(this.file, "r");
-        } catch (FileNotFoundException fnfExn) {
-          throw new IllegalArgumentException("File not found");
-        }
         int pageNum = pid.getPageNumber();
-        int pageSize = BufferPool.getPageSize();
-        int offset = pageNum * pageSize;
-        byte pageData[] = new byte[pageSize];
-        if (pageNum < 0 || pageNum > this.numPages()) {
-          try {
-            pageRaf.close();
-          } catch (IOException ioExn) {
-          }
+        if (pageNum < 0 || pageNum > this.channel.numPages() && pageNum > this.numPages()) {
           throw new IllegalArgumentException("This page does not exist");
         }
         try {
-          pageRaf.seek(offset);
-          pageRaf.read(pageData, 0, pageSize);
-          pageRaf.close();
-          return new HeapPage((HeapPageId)pid, pageData);
+          return new HeapPage((HeapPageId)pid, this.channel.readPage(pageNum));
+        } catch (FileNotFoundException fnfExn) {
+          throw new IllegalArgumentException("File not found");
         } catch (IOException ioExn) {
           throw new IllegalArgumentException("Page does not exist in this file");
         }
@@ -181,15 +278,8 @@ public class EncryptedFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        PageId pid = page.getId();
-        int pageNum = pid.getPageNumber();
-        int pageSize = BufferPool.getPageSize();
-        int offset = pageNum * pageSize;
-        byte[] pageData = page.getPageData();
-        RandomAccessFile pageRaf = new RandomAccessFile(this.file, "rw");
-        pageRaf.seek(offset);
-        pageRaf.write(pageData);
-        pageRaf.close();
+        this.channel.writePage(page.getId().getPageNumber(), page.getPageData());
+        ((HeapPage) page).markFreeSpace();
     }
 
     /**
@@ -197,8 +287,7 @@ public class EncryptedFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        int pageSize = BufferPool.getPageSize();
-        return (int) Math.ceil(this.file.length() / (double) pageSize);
+        return this.channel.statPages();
     }
 
     // see DbFile.java for javadocs
@@ -211,9 +300,15 @@ public class EncryptedFile implements DbFile {
         HeapPage page;
         HeapPageId pid;
         boolean foundPage = false;
+        if (!t.getTupleDesc().equals(this.tupDesc)) {
+          // checked here, so a mismatch is not taken for full pages
+          throw new DbException("Tuple description of " + t + " does not match tuple description for this file");
+        }
         int numPages = this.numPages();
-        for (int i = 0; i < numPages; i++) {
+        // only try the pages that the free space map has not seen fill up
+        for (int i = this.freeSpace.nextFree(0, numPages); i >= 0; i = this.freeSpace.nextFree(i + 1, numPages)) {
           pid = new HeapPageId(this.getId(), i);
+          page = null;
           try {
             page = (HeapPage) bufferPool.getPage(tid, pid, Permissions.READ_WRITE);
             page.insertTuple(t);
@@ -221,28 +316,194 @@ public class EncryptedFile implements DbFile {
             foundPage = true;
             break;
           } catch (DbException dbExn) {
+            if (page != null && page.isDirty() == null) {
+              // the page is as it is on disk, so its mark can be kept
+              page.markFreeSpace();
+            } else {
+              this.freeSpace.markFull(i);
+            }
             bufferPool.releasePage(tid, pid);
           }
         }
         if (!foundPage) {
-          pid = new HeapPageId(this.getId(), numPages);
-          int pageSize = BufferPool.getPageSize();
-          int offset = numPages * pageSize;
-          byte[] pageData = new byte[pageSize];
-          Arrays.fill(pageData, (byte) 0);
-          RandomAccessFile pageRaf = new RandomAccessFile(this.file, "rw");
-          pageRaf.seek(offset);
-          pageRaf.write(pageData);
-          pageRaf.close();
+          pid = new HeapPageId(this.getId(), this.channel.appendPage(HeapPage.createEmptyPageData()));
           page = (HeapPage) this.readPage(pid);
           page.insertTuple(t);
           page = (HeapPage) bufferPool.getPage(tid, pid, Permissions.READ_WRITE);
           page.insertTuple(t);
           pagesAffected.add(page);
         }
+        for (OPE_Index index : this.indexes.values()) {
+          pagesAffected.addAll(index.insertTuple(tid, t));
+        }
+        for (EncryptedAggregateView view : this.views.values()) {
+          pagesAffected.addAll(view.insertTuple(tid, t));
+        }
         return pagesAffected;
     }
 
+    /**
+     * Appends all of tuples to the end of this file, filling new pages in order
+     * and writing them straight to disk instead of going through insertTuple.
+     * This file is registered with the Catalog under tableName before loading.
+     *
+     * @param tuples the tuples to load; each gets its RecordId set
+     * @param tableName the name to register this file under, or null if it is
+     *   already in the Catalog
+     * @return the ids of the pages written, in file order
+     * @see EncryptedFileAppender
+     */
+    public List<HeapPageId> bulkAppend(Iterator<Tuple> tuples, String tableName)
+        throws DbException, IOException {
+        EncryptedFileAppender appender = new EncryptedFileAppender(this, tableName);
+        List<HeapPageId> pageIds;
+        try {
+            while (tuples.hasNext()) {
+                appender.append(tuples.next());
+            }
+        } finally {
+            pageIds = appender.close();
+        }
+        // the appended pages skip insertTuple, so rebuild the indexes and views instead
+        try {
+            for (Integer field : this.indexes.keySet()) {
+                this.buildIndex(field);
+            }
+            for (EncryptedAggregateView view : this.views.values()) {
+                view.build();
+            }
+        } catch (TransactionAbortedException e) {
+            throw new DbException("Could not rebuild indexes");
+        }
+        return pageIds;
+    }
+
+    /**
+     * Creates an OPE_Index on an OPE column of this table and registers it
+     * with the Catalog, or opens the existing one if its file is already on
+     * disk. From then on the index follows inserts and deletes on this
+     * table, and {@link IndexScan} can read the table through it.
+     *
+     * @param field the index of an OPE_ column of this table
+     * @return the index
+     * @throws DbException if field is not an OPE column whose ciphertexts fit
+     *   the keys of an index (see {@link OPE_Index#indexable})
+     */
+    public OPE_Index createIndex(int field)
+        throws DbException, IOException, TransactionAbortedException {
+        if (!OPE_Index.indexable(this.tupDesc.getFieldType(field), this.tupDesc.getFieldLen(field))
+                || this.tupDesc.getFieldName(field) == null
+                || !this.tupDesc.getFieldName(field).startsWith(HeapFile.OPE_PREFIX)) {
+            throw new DbException("Field " + field + " is not an OPE column");
+        }
+        OPE_Index index = this.indexes.get(field);
+        if (index != null) {
+            return index;
+        }
+        File indexFile = new File(this.file.getAbsolutePath() + "." + field + INDEX_SUFFIX);
+        if (indexFile.length() > 0) {
+            index = new OPE_Index(indexFile, this.getId(), field);
+            Database.getCatalog().addTable(index, indexFile.getAbsolutePath());
+            this.indexes.put(field, index);
+            return index;
+        }
+        return this.buildIndex(field);
+    }
+
+    /**
+     * Builds the index on field from the current contents of this table,
+     * replacing any cached pages of an older version.
+     */
+    private OPE_Index buildIndex(int field)
+        throws DbException, IOException, TransactionAbortedException {
+        File indexFile = new File(this.file.getAbsolutePath() + "." + field + INDEX_SUFFIX);
+        OPE_Index old = this.indexes.get(field);
+        if (old != null) {
+            for (int i = 0; i < old.numPages(); i++) {
+                Database.getBufferPool().discardPage(new HeapPageId(old.getId(), i));
+            }
+        }
+        OPE_Index index = OPE_Index.build(indexFile, this, field);
+        if (old == null) {
+            Database.getCatalog().addTable(index, indexFile.getAbsolutePath());
+        }
+        this.indexes.put(field, old == null ? index : old);
+        return this.indexes.get(field);
+    }
+
+    /**
+     * @return the OPE_Index on field, or null if there is none
+     */
+    public OPE_Index getIndex(int field) {
+        return this.indexes.get(field);
+    }
+
+    /**
+     * Creates an EncryptedAggregateView of the Paillier sum and the count of
+     * aggField per value of groupField, or opens the existing one if its
+     * file is already on disk. From then on the view follows inserts and
+     * deletes on this table, and {@link SplitPlanner} answers matching SUM
+     * and COUNT queries from it.
+     *
+     * @param groupField the index of a DET_ or OPE_ column of this table, or
+     *   {@link Aggregator#NO_GROUPING}
+     * @param aggField the index of an unpacked PAILLIER_ column of this table
+     * @return the view
+     * @throws DbException if the columns are not of those kinds, or this
+     *   table has no Paillier public key
+     */
+    public EncryptedAggregateView createAggregateView(int groupField, int aggField)
+        throws DbException, IOException, TransactionAbortedException {
+        this.checkViewColumns(groupField, aggField);
+        if (this.getPaillierPublicKey() == null) {
+            throw new DbException("Table " + this.getId() + " has no Paillier public key");
+        }
+        String name = groupField + "." + aggField;
+        EncryptedAggregateView view = this.views.get(name);
+        if (view != null) {
+            return view;
+        }
+        File viewFile = new File(this.file.getAbsolutePath() + "." + name + VIEW_SUFFIX);
+        boolean exists = viewFile.length() > 0;
+        view = new EncryptedAggregateView(viewFile, this, groupField, aggField);
+        if (!exists) {
+            view.build();
+        }
+        this.views.put(name, view);
+        return view;
+    }
+
+    /**
+     * @throws DbException unless aggField is an unpacked PAILLIER_ column of
+     *   this table and groupField a DET_ or OPE_ column or
+     *   {@link Aggregator#NO_GROUPING}
+     */
+    private void checkViewColumns(int groupField, int aggField) throws DbException {
+        int numFields = this.tupDesc.numFields();
+        String aggName = aggField < 0 || aggField >= numFields ? null : this.tupDesc.getFieldName(aggField);
+        if (aggName == null || this.tupDesc.getFieldType(aggField) != Type.BIGINT_TYPE
+                || !aggName.startsWith(HeapFile.PAILLIER_PREFIX)
+                || aggName.startsWith(HeapFile.PAILLIER_PACKED_PREFIX)) {
+            throw new DbException("Field " + aggField + " is not an unpacked Paillier column");
+        }
+        if (groupField == Aggregator.NO_GROUPING) {
+            return;
+        }
+        String groupName = groupField < 0 || groupField >= numFields ? null : this.tupDesc.getFieldName(groupField);
+        if (groupName == null
+                || !(groupName.startsWith(HeapFile.DET_PREFIX) || groupName.startsWith(HeapFile.OPE_PREFIX))) {
+            throw new DbException("Field " + groupField + " is not a DET or OPE column");
+        }
+    }
+
+    /**
+     * @return the EncryptedAggregateView of aggField per value of groupField,
+     *   or null if there is none
+     */
+    public EncryptedAggregateView getAggregateView(int groupField, int aggField) {
+        return this.views.get(groupField + "." + aggField);
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -254,6 +515,20 @@ public class EncryptedFile implements DbFile {
         HeapPage page = (HeapPage) bufferPool.getPage(tid, pid, Permissions.READ_WRITE);
         page.deleteTuple(t);
         pagesAffected.add(page);
+        for (OPE_Index index : this.indexes.values()) {
+          try {
+            pagesAffected.addAll(index.deleteTuple(tid, t));
+          } catch (IOException ioExn) {
+            throw new DbException("Could not update index on field " + index.getField());
+          }
+        }
+        for (EncryptedAggregateView view : this.views.values()) {
+          try {
+            pagesAffected.addAll(view.deleteTuple(tid, t));
+          } catch (IOException ioExn) {
+            throw new DbException("Could not update view of field " + view.getAggField());
+          }
+        }
         return pagesAffected;
     }
 
@@ -0,0 +1,111 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * EncryptedFileAppender bulk-loads tuples at the end of an EncryptedFile.
+ * <p>
+ * Unlike {@link EncryptedFile#insertTuple}, which searches every page of the
+ * file through the BufferPool for a free slot, the appender fills one new page
+ * at a time in memory and writes each page through the file's
+ * {@link DbFileChannel} once it is full. Existing pages are never touched, so
+ * loading N tuples costs O(N) no matter how large the file already is. The pages bypass the
+ * BufferPool, so the appender is meant for loading a table that no running
+ * transaction is using yet.
+ * <p>
+ * Every call to {@link #append} reports the page the tuple was placed on
+ * (the tuple's RecordId is set as well), so callers can build indexes over
+ * the new tuples in the same pass.
+ */
+public class EncryptedFileAppender {
+
+    private final EncryptedFile file;
+    private final DbFileChannel channel;
+    private final List<HeapPageId> pagesWritten;
+    private HeapPage page;
+    private int nextPageNo;
+    private boolean closed;
+
+    /**
+     * Opens file for appending. The file is registered with the Catalog under
+     * tableName first, because pages are laid out using the TupleDesc the
+     * Catalog has for the file.
+     *
+     * @param file the file to append to
+     * @param tableName the name to register file under, or null if file is
+     *   already in the Catalog
+     */
+    public EncryptedFileAppender(EncryptedFile file, String tableName) throws IOException {
+        if (tableName != null) {
+            Database.getCatalog().addTable(file, tableName);
+        }
+        this.file = file;
+        this.channel = file.getChannel();
+        this.pagesWritten = new ArrayList<HeapPageId>();
+        this.page = null;
+        this.nextPageNo = file.numPages();
+        this.closed = false;
+    }
+
+    /**
+     * Adds t to the page being filled, writing that page out first if it is full.
+     *
+     * @return the id of the page t was placed on
+     * @throws DbException if t does not match the TupleDesc of the file, a
+     *   tuple does not fit on a page, or the appender is closed
+     */
+    public HeapPageId append(Tuple t) throws DbException, IOException {
+        if (this.closed) {
+            throw new DbException("Appender for " + this.file.getFile() + " is closed");
+        }
+        if (this.page == null || !this.page.hasRoomFor(t)) {
+            if (this.page != null) {
+                this.writePage();
+            }
+            this.page = new HeapPage(new HeapPageId(this.file.getId(), this.nextPageNo++),
+                    HeapPage.createEmptyPageData());
+            if (!this.page.hasRoomFor(t)) {
+                throw new DbException("Tuples of " + this.file.getFile() + " do not fit in a page");
+            }
+        }
+        this.page.insertTuple(t);
+        return this.page.getId();
+    }
+
+    /**
+     * Writes out the last, partially filled page and closes the file. If the
+     * file would otherwise have no pages at all, a single empty page is written
+     * so the table can be scanned. Closing twice is harmless.
+     *
+     * @return the ids of all pages written by this appender, in file order
+     */
+    public List<HeapPageId> close() throws IOException {
+        if (this.closed) {
+            return this.pagesWritten;
+        }
+        try {
+            if (this.page == null && this.nextPageNo == 0) {
+                this.page = new HeapPage(new HeapPageId(this.file.getId(), this.nextPageNo++),
+                        HeapPage.createEmptyPageData());
+            }
+            if (this.page != null) {
+                this.writePage();
+                this.page = null;
+            }
+            this.channel.force();
+        } finally {
+            this.closed = true;
+        }
+        return this.pagesWritten;
+    }
+
+    private void writePage() throws IOException {
+        HeapPageId pid = this.page.getId();
+        this.channel.writePage(pid.getPageNumber(), this.page.getPageData());
+        // make sure no stale copy of this page survives in the BufferPool
+        Database.getBufferPool().discardPage(pid);
+        this.pagesWritten.add(pid);
+    }
+}
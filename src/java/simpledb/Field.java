@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Interface for values of fields in tuples in SimpleDB.
@@ -14,6 +15,16 @@ public interface Field extends Serializable{
      */
     void serialize(DataOutputStream dos) throws IOException;
 
+    /**
+     * Write exactly len bytes representing this field to buf at its current
+     * position, as HeapPage does when building page data. len is the length
+     * the field's column has in its TupleDesc.
+     * @see TupleDesc#getFieldLen
+     * @param buf The buffer to write to.
+     * @param len The number of bytes to write.
+     */
+    void serialize(ByteBuffer buf, int len);
+
     /**
      * Compare the value of this field object to the passed in value.
      * @param op The operator
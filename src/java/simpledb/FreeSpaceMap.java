@@ -0,0 +1,251 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FreeSpaceMap records which pages of a {@link HeapFile} or
+ * {@link EncryptedFile} may have a free slot, so an insert can go straight
+ * to such a page instead of trying every page of the file in turn.
+ * {@link HeapPage#insertTuple} marks its page full when it takes the last
+ * free slot, and {@link HeapPage#deleteTuple} marks it free again.
+ * <p>
+ * The map is only a hint: an insert that finds a page marked free to be
+ * full marks it full and moves on, and pages past the end of the map, such
+ * as pages appended since it was last written, count as free. It is kept in
+ * a file next to the table, one byte per page after a header that ties it
+ * to the table's file, so the map survives a restart. Marks are made in
+ * memory as pages change, but only written to the file for pages as they
+ * are on disk (see {@link #markOnDisk}), so the file never records a page
+ * as full because of an insert that was not committed, and a transaction
+ * that aborts marks the pages it restores again (see
+ * {@link HeapPage#markFreeSpace}). The file is only created once it has a
+ * full page to record, and is deleted with its table's file (see
+ * {@link #dropDeleted}).
+ */
+public class FreeSpaceMap {
+
+    // Suffix added to the name of a table's file for the file of its map
+    public static final String SUFFIX = ".fsm";
+
+    private static final byte FULL = 0;
+    private static final byte FREE = 1;
+    private static final int HEADER_SIZE = 8;
+
+    // The map of each table, by table id
+    private static final ConcurrentHashMap<Integer, FreeSpaceMap> maps =
+            new ConcurrentHashMap<Integer, FreeSpaceMap>();
+
+    private final File tableFile;
+    private final File file;
+    private byte[] pages;
+    // the number of pages the map has an entry for
+    private int known;
+    // every page below this one is full
+    private int firstFree;
+    // the entries in the map's file, and their number
+    private byte[] onDisk;
+    private int written;
+    private boolean loaded;
+
+    private FreeSpaceMap(File tableFile) {
+        this.tableFile = tableFile.getAbsoluteFile();
+        this.file = new File(this.tableFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * @return the map of the table stored in f, read from disk when it is
+     *   first used
+     */
+    public static FreeSpaceMap get(File f) {
+        int tableId = f.getAbsoluteFile().hashCode();
+        FreeSpaceMap map = maps.get(tableId);
+        if (map == null) {
+            maps.putIfAbsent(tableId, new FreeSpaceMap(f));
+            map = maps.get(tableId);
+        }
+        return map;
+    }
+
+    /**
+     * @return the map of the table with the given id, or null if the table
+     *   has none
+     */
+    public static FreeSpaceMap forTable(int tableId) {
+        return maps.get(tableId);
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * @return a number that identifies the table's file on disk, so a map
+     *   left behind by another file of the same name is not trusted
+     */
+    private long tableKey() {
+        try {
+            Object key = Files.readAttributes(this.tableFile.toPath(), BasicFileAttributes.class).fileKey();
+            return key == null ? 0 : key.toString().hashCode();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void load() {
+        if (this.loaded) {
+            return;
+        }
+        this.loaded = true;
+        this.pages = new byte[16];
+        this.known = 0;
+        this.firstFree = 0;
+        try {
+            if (this.file.exists()) {
+                RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+                try {
+                    if (raf.length() >= HEADER_SIZE && raf.readLong() == this.tableKey()) {
+                        this.known = (int) (raf.length() - HEADER_SIZE);
+                        this.pages = new byte[Math.max(16, this.known)];
+                        raf.readFully(this.pages, 0, this.known);
+                    }
+                } finally {
+                    raf.close();
+                }
+                if (this.known == 0) {
+                    // left behind by another file of the table's name
+                    this.file.delete();
+                }
+            }
+        } catch (IOException e) {
+            // without a file the map only lasts until a restart
+            this.known = 0;
+        }
+        this.onDisk = Arrays.copyOf(this.pages, this.known);
+        this.written = this.known;
+    }
+
+    /**
+     * @return the first page at or after from, and before numPages, that may
+     *   have a free slot, or -1 if there is none
+     */
+    public synchronized int nextFree(int from, int numPages) {
+        this.load();
+        for (int i = Math.max(from, this.firstFree); i < numPages; i++) {
+            if (i >= this.known || this.pages[i] == FREE) {
+                if (from <= this.firstFree) {
+                    this.firstFree = i;
+                }
+                return i;
+            }
+        }
+        if (from <= this.firstFree) {
+            this.firstFree = Math.max(this.firstFree, numPages);
+        }
+        return -1;
+    }
+
+    /**
+     * Records that page pageNo has no free slot.
+     */
+    public synchronized void markFull(int pageNo) {
+        this.set(pageNo, FULL);
+    }
+
+    /**
+     * Records that page pageNo has a free slot.
+     */
+    public synchronized void markFree(int pageNo) {
+        this.set(pageNo, FREE);
+        this.firstFree = Math.min(this.firstFree, pageNo);
+    }
+
+    /**
+     * Records that page pageNo, as it is on disk, has a free slot or not,
+     * and writes this to the map's file.
+     */
+    public synchronized void markOnDisk(int pageNo, boolean free) {
+        byte value = free ? FREE : FULL;
+        if (free) {
+            this.markFree(pageNo);
+        } else {
+            this.markFull(pageNo);
+        }
+        // pages past the end of the file count as free
+        if (pageNo < this.written ? this.onDisk[pageNo] == value : free) {
+            return;
+        }
+        int from = Math.min(pageNo, this.written);
+        if (pageNo >= this.onDisk.length) {
+            this.onDisk = Arrays.copyOf(this.onDisk, Math.max(pageNo + 1, this.onDisk.length * 2));
+        }
+        Arrays.fill(this.onDisk, from, pageNo, FREE);
+        this.onDisk[pageNo] = value;
+        this.written = Math.max(this.written, pageNo + 1);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+            try {
+                if (raf.length() < HEADER_SIZE) {
+                    raf.setLength(0);
+                    raf.writeLong(this.tableKey());
+                }
+                raf.seek(HEADER_SIZE + from);
+                raf.write(this.onDisk, from, pageNo + 1 - from);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            // the map is only a hint, so it is enough to keep it in memory
+        }
+    }
+
+    /**
+     * Forgets every page, for a table whose file was emptied.
+     */
+    public synchronized void clear() {
+        this.file.delete();
+        this.loaded = false;
+        this.load();
+    }
+
+    /**
+     * Reads the map from its file again, as after a restart.
+     */
+    synchronized void reload() {
+        this.loaded = false;
+    }
+
+    /**
+     * Forgets the maps of the tables whose files were deleted, and deletes
+     * the files of those maps.
+     */
+    public static void dropDeleted() {
+        for (Iterator<FreeSpaceMap> it = maps.values().iterator(); it.hasNext();) {
+            FreeSpaceMap map = it.next();
+            if (!map.tableFile.exists()) {
+                it.remove();
+                map.file.delete();
+            }
+        }
+    }
+
+    private void set(int pageNo, byte value) {
+        this.load();
+        if (pageNo < this.known && this.pages[pageNo] == value) {
+            return;
+        }
+        if (pageNo >= this.pages.length) {
+            this.pages = Arrays.copyOf(this.pages, Math.max(pageNo + 1, this.pages.length * 2));
+        }
+        // pages between the old end of the map and this one are not known
+        if (pageNo > this.known) {
+            Arrays.fill(this.pages, this.known, pageNo, FREE);
+        }
+        this.pages[pageNo] = value;
+        this.known = Math.max(this.known, pageNo + 1);
+    }
+}
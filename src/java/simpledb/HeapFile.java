@@ -6,6 +6,7 @@ import java.io.*;
 import java.math.BigInteger;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -23,6 +24,9 @@ public class HeapFile implements DbFile {
     public static final String PAILLIER_PREFIX = "PAILLIER_";
     // Prefix for the OPE column name
     public static final String OPE_PREFIX = "OPE_";
+    // Prefix for the DET column name. DET columns follow the OPE columns, and
+    // are only added when the key pairs given to encrypt() include a DET key
+    public static final String DET_PREFIX = "DET_";
     // Prefixes for the column names that will be given to the new TupleDesc
     public static final String[] ENCRYPTION_PREFIXES = new String[]{PAILLIER_PREFIX, OPE_PREFIX};
     // Determines how many new columns the EncryptedFile will have per original column
@@ -30,22 +34,27 @@ public class HeapFile implements DbFile {
     // Suffix added to the end of the HeapFile's name when encrypted
     public static final String ENCRYPTION_SUFFIX = "_enc";
     public static final String DECRYPTION_SUFFIX = "_dec";
-    // Name of the column with Paillier modulus
-    public static final String PAILLIER_MODULUS = ENCRYPTION_PREFIXES[0] + "MODULUS";
-    // Name of the column with Paillier G
-    public static final String PAILLIER_G = ENCRYPTION_PREFIXES[0] + "G";
+    // Prefix for the Paillier columns of a packed EncryptedFile, followed by the column's index
+    public static final String PAILLIER_PACKED_PREFIX = PAILLIER_PREFIX + "PACKED_";
     // Bits integer used in creating keys. Should be the same for all files we encrypt
     // public static final int BITS_INTEGER = Type.BIGINT_LEN;
     public static final int BITS_INTEGER = 40; // TODO: Should be Type.BIGINT_LEN
-    // Number of extra columns beyond encrypted columns needed to recreate keys
-    // First one is for N, second one is for G
-    public static final int NUM_EXTRA_COLUMNS = 2;
+
+    // The OPE encoding tree of the default key pairs of tables encrypted for
+    // the first time, or null for the linear cipher
+    private static volatile OPE_EncodingTree defaultOpeTree = null;
     
     private File file;
+    private DbFileChannel channel;
+    private FreeSpaceMap freeSpace;
     private TupleDesc tupDesc;
     private ConcurrentHashMap<String, PublicKey> publicKey;
     private ConcurrentHashMap<String, PrivateKey> privateKey;
-    private ConcurrentHashMap<String, KeyPair> defaultKeyPairs;
+    private volatile ConcurrentHashMap<String, KeyPair> defaultKeyPairs;
+    // Tuples inserted into or deleted from this file so far, and how many
+    // there had been when encrypt() last read this file
+    private final AtomicLong changes = new AtomicLong();
+    private volatile long encryptedAt = -1;
 
     /**
      * FileTupleIterator implements DbFileIterator
@@ -57,6 +66,7 @@ public class HeapFile implements DbFile {
         private TransactionId txnId;
         private boolean isOpen;
         private int pgIdx;
+        private ReadAhead readAhead;
         
         public HeapFileIterator(HeapFile hf, TransactionId tid) {
             this.heapFile = hf;
@@ -64,6 +74,7 @@ public class HeapFile implements DbFile {
             this.txnId = tid;
             this.isOpen = false;
             this.pgIdx = -1;
+            this.readAhead = new ReadAhead(hf.getId());
         }
         
         /**
@@ -72,6 +83,11 @@ public class HeapFile implements DbFile {
          */
         public void open()
             throws DbException, TransactionAbortedException {
+            // reopening after a close starts again from the first page
+            this.rewind();
+            // count the pages written to the file other than through its
+            // channel once, rather than at every page
+            this.heapFile.numPages();
             this.isOpen = true;
         }
         
@@ -87,10 +103,13 @@ public class HeapFile implements DbFile {
               }
             }
             do {
-              this.pgIdx++;
-              if (this.pgIdx == this.heapFile.numPages()) {
+              // stay on the last page, so hasNext can be called again at the end
+              int numPages = this.heapFile.getChannel().numPages();
+              if (this.pgIdx + 1 >= numPages) {
                   return false;
               }
+              this.pgIdx++;
+              this.readAhead.access(this.pgIdx, numPages);
               BufferPool bufferPool = Database.getBufferPool();
               PageId pid = new HeapPageId(this.heapFile.getId(), this.pgIdx);
               HeapPage page = (HeapPage) bufferPool.getPage(this.txnId, pid, Permissions.READ_ONLY);
@@ -141,32 +160,102 @@ public class HeapFile implements DbFile {
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
         this.file = f;
+        this.channel = DbFileChannel.get(f);
+        this.freeSpace = FreeSpaceMap.get(f);
         this.tupDesc = td;
-        this.defaultKeyPairs = new ConcurrentHashMap<String, KeyPair>();
+        // Keys are loaded or generated by the first call to encrypt()
+        this.defaultKeyPairs = null;
+    }
+
+    /**
+     * Returns the key pairs encrypt() uses for this file: the ones kept for it
+     * in the keystore, or new ones the first time this file is encrypted.
+     */
+    ConcurrentHashMap<String, KeyPair> getDefaultKeyPairs() throws DbException {
+        ConcurrentHashMap<String, KeyPair> pairs = this.defaultKeyPairs;
+        if (pairs == null) {
+            synchronized (this) {
+                pairs = this.defaultKeyPairs;
+                if (pairs == null) {
+                    pairs = Database.getKeyStore().getKeyPairs(this.getId());
+                    if (pairs == null) {
+                        pairs = generateKeyPairs();
+                    }
+                    this.defaultKeyPairs = pairs;
+                }
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Sets the OPE encoding tree whose key pair the tables encrypted from now
+     * on with new default keys share, so their OPE columns hold the long
+     * ciphertexts of the tree (see {@link OPE_EncodingTree#forInts}) instead
+     * of those of the linear cipher. Tables that already have keys keep them.
+     *
+     * @param tree the tree, or null to go back to the linear cipher
+     */
+    public static void setDefaultOpeTree(OPE_EncodingTree tree) {
+        defaultOpeTree = tree;
+    }
+
+    /**
+     * @return a new Paillier key pair, the default OPE key pair (see
+     *   {@link #setDefaultOpeTree}) and the DET key pair shared by the tables
+     *   in the keystore (see {@link TableKeyStore#getDetKeyPair}), or a new one
+     *   if there is none
+     */
+    private static ConcurrentHashMap<String, KeyPair> generateKeyPairs() throws DbException {
+        ConcurrentHashMap<String, KeyPair> pairs = new ConcurrentHashMap<String, KeyPair>();
         Paillier_KeyPairBuilder paillierKeyGen = new Paillier_KeyPairBuilder();
         paillierKeyGen.upperBound(BigInteger.valueOf(Integer.MAX_VALUE));
         paillierKeyGen.bits(HeapFile.BITS_INTEGER);
         Paillier_KeyPair paillerKeyPair = paillierKeyGen.generateKeyPair();
-        Paillier_PublicKey paillierPublicKey = paillerKeyPair.getPublicKey();
-        Paillier_PrivateKey paillierPrivateKey = paillerKeyPair.getPrivateKey();
-        OPE_CipherPrivate opeCipherPrivate = new OPE_CipherPrivate.Mult(BigInteger.valueOf(5));
-        OPE_CipherPublic opeCipherPublic = new OPE_CipherPublic.Mult(BigInteger.valueOf(5));
-        OPE_PrivateKey opePrivateKey = new OPE_PrivateKey(opeCipherPrivate);
-        OPE_PublicKey opePublicKey = new OPE_PublicKey(opeCipherPublic);
-        OPE_KeyPair opeKeyPair = new OPE_KeyPair(opePrivateKey, opePublicKey);
-        this.defaultKeyPairs.put(HeapFile.PAILLIER_PREFIX, (KeyPair) paillerKeyPair);
-        this.defaultKeyPairs.put(HeapFile.OPE_PREFIX, (KeyPair) opeKeyPair);
+        OPE_EncodingTree opeTree = defaultOpeTree;
+        OPE_KeyPair opeKeyPair;
+        if (opeTree != null) {
+            opeKeyPair = opeTree.keyPair();
+        } else {
+            OPE_CipherPrivate opeCipherPrivate = new OPE_CipherPrivate.Mult(BigInteger.valueOf(5));
+            OPE_CipherPublic opeCipherPublic = new OPE_CipherPublic.Mult(BigInteger.valueOf(5));
+            OPE_PrivateKey opePrivateKey = new OPE_PrivateKey(opeCipherPrivate);
+            OPE_PublicKey opePublicKey = new OPE_PublicKey(opeCipherPublic);
+            opeKeyPair = new OPE_KeyPair(opePrivateKey, opePublicKey);
+        }
+        pairs.put(HeapFile.PAILLIER_PREFIX, (KeyPair) paillerKeyPair);
+        pairs.put(HeapFile.OPE_PREFIX, (KeyPair) opeKeyPair);
+        DET_KeyPair detKeyPair = Database.getKeyStore().getDetKeyPair();
+        pairs.put(HeapFile.DET_PREFIX, (KeyPair) (detKeyPair == null ? DET_KeyPair.generate() : detKeyPair));
+        return pairs;
     }
     
     /**
      * Takes the contents of this file and applies Paillier and Order-Preserving
      * Encryption to all the fields. The resulting EncryptedFile will have two columns for
      * each column in the original file, one for the Paillier Encryption and one for the
-     * Order-Preserving Encryption. The last column of the EncryptedFile will be 
-     * the modulus n of the Paillier public key.
+     * Order-Preserving Encryption. The Paillier public key is kept by the
+     * EncryptedFile, see {@link EncryptedFile#getPaillierPublicKey}. If keyPairs
+     * has a DET key pair under DET_PREFIX, a third DET column is added for each
+     * column in the original file, after the OPE columns.
      * @return An EncryptedFile that contains the encrypted contents of this HeapFile
      */
     public EncryptedFile encrypt(ConcurrentHashMap<String, KeyPair> keyPairs)
+        throws IOException, DbException, 
+        TransactionAbortedException {
+        return this.encrypt(keyPairs, false);
+    }
+
+    /**
+     * Like {@link #encrypt(ConcurrentHashMap)}, but if packed is true the Paillier
+     * ciphertexts are packed: each PAILLIER_PACKED_k column holds as many
+     * consecutive columns of the original file as fit in one ciphertext (see
+     * {@link Paillier_Packer}), so a single PAILLIER_SUM over it sums all of them.
+     * @param packed whether to pack several columns into each Paillier ciphertext
+     * @throws DbException if packed is true and the Paillier key is too small to
+     *   hold even one packed value
+     */
+    public EncryptedFile encrypt(ConcurrentHashMap<String, KeyPair> keyPairs, boolean packed)
         throws IOException, DbException, 
         TransactionAbortedException {
         // TODO: Apply the relevant encryption schemes to each tuple in each page
@@ -176,61 +265,79 @@ public class HeapFile implements DbFile {
     	this.publicKey = new ConcurrentHashMap<String, PublicKey>();
     	this.privateKey = new ConcurrentHashMap<String, PrivateKey>();
     	
-        // Create a new TupleDescriptor that includes the new columns
-        // +1 for the Paillier modulus column and +1 for the Paillier g column
+        // Create a new TupleDescriptor that includes the new columns. The Paillier
+        // public key is kept once for the whole table by the EncryptedFile, not per row
         int origNumFields = tupDesc.numFields();
-        int newNumFields = origNumFields * NUM_ENCRYPTIONS + NUM_EXTRA_COLUMNS;
+
+        // When packing, several original columns share each Paillier column
+        Paillier_Packer packer = null;
+        int paillierNumFields = origNumFields;
+        if (packed) {
+            packer = new Paillier_Packer(((Paillier_KeyPair) keyPairs.get(PAILLIER_PREFIX)).getPublicKey());
+            if (packer.getSlots() == 0) {
+                throw new DbException("Paillier key is too small to pack " + Paillier_Packer.VALUE_BITS + "-bit values");
+            }
+            paillierNumFields = packer.numPackedColumns(origNumFields);
+        }
+        // OPE columns are as wide as the ciphertexts of the OPE key
+        OPE_KeyPair opeKeyPair = (OPE_KeyPair) keyPairs.get(OPE_PREFIX);
+        Type opeType = opeKeyPair.getPublicKey().getCiphertextType();
+        int opeLen = opeKeyPair.getPublicKey().getCiphertextLen();
+
+        // DET columns are only added for a DET key
+        DET_KeyPair detKeyPair = (DET_KeyPair) keyPairs.get(DET_PREFIX);
+        int detNumFields = detKeyPair == null ? 0 : origNumFields;
+        int newNumFields = paillierNumFields + origNumFields + detNumFields;
         
         Type[] newTypes = new Type[newNumFields];
         String[] newNames = new String[newNumFields];
         
-        // Create a new column for each encryption scheme
-        for (int i = 0; i < NUM_ENCRYPTIONS; i++) {
-            for (int j = 0; j < origNumFields; j++) {
-                TDItem td = tupDesc.getItems().get(j);
-                newTypes[i * origNumFields + j] = td.getFieldType();
-                newNames[i * origNumFields + j] = ENCRYPTION_PREFIXES[i] + td.getFieldName(); // TODO: Check for NPE
-            }
+        // Create the Paillier columns; Paillier ciphertexts do not fit in an int
+        for (int j = 0; j < paillierNumFields; j++) {
+            newTypes[j] = Type.BIGINT_TYPE;
+            newNames[j] = packed ? PAILLIER_PACKED_PREFIX + j
+                    : PAILLIER_PREFIX + tupDesc.getFieldName(j); // TODO: Check for NPE
         }
 
-        // Add one more column that has the public key values for paillier encryption
-        // First extra column is N, second extra column is G
-        int nColumn = newNumFields - 2;
-        int gColumn = newNumFields - 1; // last column
-        newTypes[nColumn] = Type.INT_TYPE;
-        newNames[nColumn] = PAILLIER_MODULUS;
-        newTypes[gColumn] = Type.INT_TYPE;
-        newNames[gColumn] = PAILLIER_G;
-        
-        TupleDesc newTD = new TupleDesc(newTypes, newNames);
+        // Create the OPE columns
+        for (int j = 0; j < origNumFields; j++) {
+            TDItem td = tupDesc.getItems().get(j);
+            newTypes[paillierNumFields + j] = opeType;
+            newNames[paillierNumFields + j] = OPE_PREFIX + td.getFieldName(); // TODO: Check for NPE
+        }
+
+        // Create the DET columns
+        for (int j = 0; j < detNumFields; j++) {
+            newTypes[paillierNumFields + origNumFields + j] = Type.BIGINT_TYPE;
+            newNames[paillierNumFields + origNumFields + j] = DET_PREFIX + tupDesc.getFieldName(j);
+        }
+
+        // Paillier columns are exactly as wide as the ciphertexts of this table's key
+        int ciphertextLen = ((Paillier_KeyPair) keyPairs.get(PAILLIER_PREFIX)).getPublicKey().getCiphertextLen();
+        ArrayList<TDItem> newItems = new ArrayList<TDItem>(newNumFields);
+        for (int j = 0; j < newNumFields; j++) {
+            if (j >= paillierNumFields + origNumFields) {
+                newItems.add(new TDItem(newTypes[j], newNames[j], DET_PublicKey.CIPHERTEXT_LEN));
+            } else if (j >= paillierNumFields && newTypes[j] == Type.BIGINT_TYPE) {
+                newItems.add(new TDItem(newTypes[j], newNames[j], opeLen));
+            } else {
+                newItems.add(newTypes[j] == Type.BIGINT_TYPE
+                        ? new TDItem(newTypes[j], newNames[j], ciphertextLen)
+                        : new TDItem(newTypes[j], newNames[j]));
+            }
+        }
+        TupleDesc newTD = new TupleDesc(newItems);
 
         // Create a new file that we're going to write to
         File newF = new File(this.file.getAbsolutePath() + ENCRYPTION_SUFFIX);
 
-        // Touch the file
-        FileOutputStream fos = new FileOutputStream(newF);
-        fos.write(new byte[0]);
-        fos.close();
+        // Create the file, or empty it if this file was encrypted before
+        DbFileChannel.get(newF).truncate();
+        FreeSpaceMap.get(newF).clear();
+        // the twin is written in the layout set for it now, not in one
+        // recorded for an earlier twin
+        Database.getCatalog().getPageLayout(this.getEncryptedTwinId()).write(newF);
 
-        EncryptedFile encF = new EncryptedFile(newF, newTD);
-        Database.getCatalog().addTable(encF, UUID.randomUUID().toString());
-        
-        // Write an empty page to the new file
-        HeapPageId pid = new HeapPageId(encF.getId(), 0);
-        HeapPage page = null;
-        try {
-          page = new HeapPage(pid, HeapPage.createEmptyPageData());
-        } catch (IOException e) {
-          // this should never happen for an empty page; bail;
-          throw new RuntimeException("failed to create empty page in HeapFile");
-        }
-        
-        encF.writePage(page);
-        // Now that we have the new file to write to, iterate through each tuple in
-        // the original heap file, apply the encryptions, and write to encFile
-        HeapFileIterator hfi = (HeapFileIterator) this.iterator(null);
-        hfi.open();
-        
         // Create new Pallier KeyPair for the whole table
         // TODO: PUT encryption keys somehwere
         Paillier_KeyPair paillierKeyPair = (Paillier_KeyPair) keyPairs.get(PAILLIER_PREFIX);
@@ -241,53 +348,28 @@ public class HeapFile implements DbFile {
 
         // Create new OPE KeyPair for the whole table
         // TODO: PUT encryption keys somewhere
-        OPE_KeyPair opeKeyPair = (OPE_KeyPair) keyPairs.get(OPE_PREFIX);
         OPE_PublicKey opePublicKey = opeKeyPair.getPublicKey();
         OPE_PrivateKey opePrivateKey = opeKeyPair.getPrivateKey();
         this.publicKey.put(OPE_PREFIX, opePublicKey);
         this.privateKey.put(OPE_PREFIX, opePrivateKey);
+
+        // The EncryptedFile keeps the Paillier public key as metadata for the whole table
+        EncryptedFile encF = new EncryptedFile(newF, newTD, paillierPublicKey);
         
-        // TODO: Come up with convention for saving all the different private keys. Do we
-        // want a file for each key, or one file with all the keys for the file
-        saveKeyPair(keyPairs.get(PAILLIER_PREFIX), String.valueOf(getId()) + ".paillier");
-        saveKeyPair(keyPairs.get(OPE_PREFIX), String.valueOf(getId()) + ".ope");
+        // Keep the keys in the keystore under both files, so this file encrypts
+        // with the same keys and encF finds its key after a restart
+        TableKeyStore keyStore = Database.getKeyStore();
+        keyStore.putKeyPairs(getId(), keyPairs);
+        keyStore.putKeyPairs(encF.getId(), keyPairs);
         
-        while (hfi.hasNext()) {
-            Tuple originalTuple = hfi.next();
-            Tuple encTuple = new Tuple(newTD); // Tuple to save encrypted data, has 2n+2 columns
-            int i = 0;
-
-            // Paillier Encryption
-            for (int j = 0; j < origNumFields; j++) {
-                Integer fieldValue = ((IntField) originalTuple.getField(j)).getValue();
-                BigInteger plainData = BigInteger.valueOf((long) fieldValue);
-                BigInteger encryptedData = paillierPublicKey.encrypt(plainData);
-                BigIntField encryptedField = new BigIntField(encryptedData);
-                encTuple.setField(j, encryptedField);
-            }
-
-            i++;
-
-            // OPE Encryption
-            for (int j = 0; j < origNumFields; j++) {
-                Integer fieldValue = ((IntField) originalTuple.getField(j)).getValue();
-                BigInteger plainData = BigInteger.valueOf((long) fieldValue);
-                BigInteger encryptedData = opePublicKey.encrypt(plainData);
-                IntField encryptedField = new IntField(encryptedData.intValue());
-                encTuple.setField(i * origNumFields + j, encryptedField);
-            }
-            
-            // Save public key values
-            IntField N = new IntField(paillierPublicKey.getN().intValue());
-            encTuple.setField(nColumn, N);
-            IntField G = new IntField(paillierPublicKey.getG().intValue());
-            encTuple.setField(gColumn, G);
-            
-            // Write tuple to file
-            encF.insertTuple(null, encTuple);
-        }
-
-        hfi.close();
+        // Now that we have the new file to write to, read the pages of this file,
+        // encrypt their tuples in parallel and append them to encF in order
+        DET_PublicKey detPublicKey = detKeyPair == null ? null : detKeyPair.getPublicKey();
+        long changesBefore = this.changes.get();
+        this.encryptedAt = -1;
+        new HeapFileEncryptor(this, encF, paillierPublicKey, opePublicKey, detPublicKey, packer)
+                .run(UUID.randomUUID().toString());
+        this.encryptedAt = changesBefore;
         return encF;
     }
     
@@ -295,32 +377,49 @@ public class HeapFile implements DbFile {
      * Takes the contents of this file and applies Paillier and Order-Preserving
      * Encryption to all the fields. The resulting EncryptedFile will have two columns for
      * each column in the original file, one for the Paillier Encryption and one for the
-     * Order-Preserving Encryption. The last column of the EncryptedFile will be 
-     * the modulus n of the Paillier public key.
+     * Order-Preserving Encryption. The Paillier public key is kept by the
+     * EncryptedFile, see {@link EncryptedFile#getPaillierPublicKey}.
      * @return An EncryptedFile that contains the encrypted contents of this HeapFile
      */
     public EncryptedFile encrypt()
         throws IOException, DbException, 
         TransactionAbortedException {
-        return this.encrypt(this.defaultKeyPairs);
+        return this.encrypt(this.getDefaultKeyPairs());
     }
 
     /**
-     * Saves the private key used to encrypt this file
-     * @param privateKey the PrivateKey that was used to encrypt this file
-     * @param the name of the file to save the private key to
+     * @return the id that the EncryptedFile written by encrypt() has, which
+     *   can be used to set up the twin in the Catalog before it is written,
+     *   e.g. with {@link Catalog#setPageLayout}
      */
-    public static void saveKeyPair(KeyPair keypair, String filename) {
-        try {
-            ObjectOutputStream objectOutputStream = 
-                    new ObjectOutputStream(new FileOutputStream(filename));
-            objectOutputStream.writeObject(keypair);
-            objectOutputStream.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+    public int getEncryptedTwinId() {
+        File encFile = new File(this.file.getAbsolutePath() + ENCRYPTION_SUFFIX);
+        return encFile.getAbsoluteFile().hashCode();
+    }
+
+    /**
+     * Returns the encrypted twin of this file: the EncryptedFile that encrypt()
+     * writes this file's contents to, if it has been added to the Catalog.
+     * The twin is not kept in step with later changes to this file, so it is
+     * only returned while it holds the same tuples as this file: once a tuple
+     * is inserted into or deleted from this file, there is no twin until
+     * encrypt() is called again.
+     * @return the EncryptedFile in the Catalog for this file, or null if there
+     *   is none or it is out of date
+     */
+    public EncryptedFile getEncryptedTwin() {
+        if (this.encryptedAt != this.changes.get()) {
+            return null;
+        }
+        int encId = this.getEncryptedTwinId();
+        Catalog catalog = Database.getCatalog();
+        if (catalog.getTableName(encId) == null) {
+            return null;
         }
+        DbFile encF = catalog.getDatabaseFile(encId);
+        return encF instanceof EncryptedFile ? (EncryptedFile) encF : null;
     }
-    
+
     /**
      * FOR TESTING ONLY: Gets the private key associated with this file for given scheme
      * @return
@@ -339,6 +438,21 @@ public class HeapFile implements DbFile {
         return this.file;
     }
 
+    /**
+     * @return the channel that pages of this file are read and written
+     *   through; any other write to the file must use it as well
+     */
+    public DbFileChannel getChannel() {
+        return this.channel;
+    }
+
+    /**
+     * @return the map of the pages of this file that may have a free slot
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return this.freeSpace;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -366,28 +480,14 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
-        RandomAccessFile pageRaf;
-        try {
-          pageRaf = new RandomAccessFile(this.file, "r");
-        } catch (FileNotFoundException fnfExn) {
-          throw new IllegalArgumentException("File not found");
-        }
         int pageNum = pid.getPageNumber();
-        int pageSize = BufferPool.getPageSize();
-        int offset = pageNum * pageSize;
-        byte pageData[] = new byte[pageSize];
-        if (pageNum < 0 || pageNum > this.numPages()) {
-          try {
-            pageRaf.close();
-          } catch (IOException ioExn) {
-          }
+        if (pageNum < 0 || pageNum > this.channel.numPages() && pageNum > this.numPages()) {
           throw new IllegalArgumentException("This page does not exist");
         }
         try {
-          pageRaf.seek(offset);
-          pageRaf.read(pageData, 0, pageSize);
-          pageRaf.close();
-          return new HeapPage((HeapPageId)pid, pageData);
+          return new HeapPage((HeapPageId)pid, this.channel.readPage(pageNum));
+        } catch (FileNotFoundException fnfExn) {
+          throw new IllegalArgumentException("File not found");
         } catch (IOException ioExn) {
           throw new IllegalArgumentException("Page does not exist in this file");
         }
@@ -397,15 +497,8 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        PageId pid = page.getId();
-        int pageNum = pid.getPageNumber();
-        int pageSize = BufferPool.getPageSize();
-        int offset = pageNum * pageSize;
-        byte[] pageData = page.getPageData();
-        RandomAccessFile pageRaf = new RandomAccessFile(this.file, "rw");
-        pageRaf.seek(offset);
-        pageRaf.write(pageData);
-        pageRaf.close();
+        this.channel.writePage(page.getId().getPageNumber(), page.getPageData());
+        ((HeapPage) page).markFreeSpace();
     }
 
     /**
@@ -413,8 +506,7 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        int pageSize = BufferPool.getPageSize();
-        return (int) Math.ceil(this.file.length() / (double) pageSize);
+        return this.channel.statPages();
     }
 
     // see DbFile.java for javadocs
@@ -427,9 +519,16 @@ public class HeapFile implements DbFile {
         HeapPage page;
         HeapPageId pid;
         boolean foundPage = false;
+        if (!t.getTupleDesc().equals(this.tupDesc)) {
+          // checked here, so a mismatch is not taken for full pages
+          throw new DbException("Tuple description of " + t + " does not match tuple description for this file");
+        }
+        this.changes.incrementAndGet();
         int numPages = this.numPages();
-        for (int i = 0; i < numPages; i++) {
+        // only try the pages that the free space map has not seen fill up
+        for (int i = this.freeSpace.nextFree(0, numPages); i >= 0; i = this.freeSpace.nextFree(i + 1, numPages)) {
           pid = new HeapPageId(this.getId(), i);
+          page = null;
           try {
             page = (HeapPage) bufferPool.getPage(tid, pid, Permissions.READ_WRITE);
             page.insertTuple(t);
@@ -437,19 +536,17 @@ public class HeapFile implements DbFile {
             foundPage = true;
             break;
           } catch (DbException dbExn) {
+            if (page != null && page.isDirty() == null) {
+              // the page is as it is on disk, so its mark can be kept
+              page.markFreeSpace();
+            } else {
+              this.freeSpace.markFull(i);
+            }
             bufferPool.releasePage(tid, pid);
           }
         }
         if (!foundPage) {
-          pid = new HeapPageId(this.getId(), numPages);
-          int pageSize = BufferPool.getPageSize();
-          int offset = numPages * pageSize;
-          byte[] pageData = new byte[pageSize];
-          Arrays.fill(pageData, (byte) 0);
-          RandomAccessFile pageRaf = new RandomAccessFile(this.file, "rw");
-          pageRaf.seek(offset);
-          pageRaf.write(pageData);
-          pageRaf.close();
+          pid = new HeapPageId(this.getId(), this.channel.appendPage(HeapPage.createEmptyPageData()));
           page = (HeapPage) this.readPage(pid);
           page.insertTuple(t);
           page = (HeapPage) bufferPool.getPage(tid, pid, Permissions.READ_WRITE);
@@ -467,6 +564,7 @@ public class HeapFile implements DbFile {
         ArrayList<Page> pagesAffected = new ArrayList<Page>();
         BufferPool bufferPool = Database.getBufferPool();
         PageId pid = t.getRecordId().getPageId();
+        this.changes.incrementAndGet();
         HeapPage page = (HeapPage) bufferPool.getPage(tid, pid, Permissions.READ_WRITE);
         page.deleteTuple(t);
         pagesAffected.add(page);
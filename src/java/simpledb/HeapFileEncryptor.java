@@ -0,0 +1,255 @@
+package simpledb;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * HeapFileEncryptor copies the contents of a HeapFile into an EncryptedFile,
+ * encrypting every tuple on the way. The work is split into three stages
+ * that run concurrently:
+ * <ol>
+ * <li>a reader thread that fetches the pages of the source file through the
+ * BufferPool and hands each page's tuples to the workers,</li>
+ * <li>a pool of workers (the common fork/join pool) that encrypt one source
+ * page worth of tuples per task, and</li>
+ * <li>an ordered writer, running on the calling thread, that appends the
+ * encrypted tuples to the EncryptedFile in source order through an
+ * {@link EncryptedFileAppender}.</li>
+ * </ol>
+ * Only a small, fixed number of source pages (twice the number of workers)
+ * are read ahead of the writer, so memory use stays bounded no matter how
+ * large the table is.
+ *
+ * @see HeapFile#encrypt
+ */
+public class HeapFileEncryptor {
+
+    private final HeapFile source;
+    private final EncryptedFile dest;
+    private final Paillier_PublicKey paillierPublicKey;
+    private final OPE_PublicKey opePublicKey;
+    private final DET_PublicKey detPublicKey;
+    private final Paillier_Packer packer;
+    private final int origNumFields;
+    private final int paillierNumFields;
+    private final ForkJoinPool workers;
+    private final int maxInFlight;
+
+    /**
+     * @param source the plaintext file to read
+     * @param dest the empty EncryptedFile to fill
+     * @param paillierPublicKey the key used for the PAILLIER_ columns
+     * @param opePublicKey the key used for the OPE_ columns
+     */
+    public HeapFileEncryptor(HeapFile source, EncryptedFile dest,
+            Paillier_PublicKey paillierPublicKey, OPE_PublicKey opePublicKey) {
+        this(source, dest, paillierPublicKey, opePublicKey, null);
+    }
+
+    /**
+     * @param packer packs the values of each row into the PAILLIER_PACKED_
+     *   columns of dest, or null if dest has one PAILLIER_ column per column
+     */
+    public HeapFileEncryptor(HeapFile source, EncryptedFile dest,
+            Paillier_PublicKey paillierPublicKey, OPE_PublicKey opePublicKey,
+            Paillier_Packer packer) {
+        this(source, dest, paillierPublicKey, opePublicKey, null, packer);
+    }
+
+    /**
+     * @param detPublicKey the key used for the DET_ columns that follow the
+     *   OPE_ columns of dest, or null if dest has no DET_ columns
+     */
+    public HeapFileEncryptor(HeapFile source, EncryptedFile dest,
+            Paillier_PublicKey paillierPublicKey, OPE_PublicKey opePublicKey,
+            DET_PublicKey detPublicKey, Paillier_Packer packer) {
+        this.source = source;
+        this.dest = dest;
+        this.paillierPublicKey = paillierPublicKey;
+        this.opePublicKey = opePublicKey;
+        this.detPublicKey = detPublicKey;
+        this.packer = packer;
+        this.origNumFields = source.getTupleDesc().numFields();
+        TupleDesc destTd = dest.getTupleDesc();
+        this.paillierNumFields = destTd.numFields()
+                - (detPublicKey == null ? 1 : 2) * this.origNumFields;
+        this.workers = ForkJoinPool.commonPool();
+        this.maxInFlight = 2 * this.workers.getParallelism() + 1;
+    }
+
+    /**
+     * Runs the pipeline to completion.
+     *
+     * @param tableName the name to register the EncryptedFile under in the Catalog
+     * @return the ids of the pages written to the EncryptedFile, in file order
+     * @throws DbException if reading, encrypting or writing any page fails
+     */
+    public List<HeapPageId> run(String tableName) throws DbException, IOException {
+        final BlockingQueue<Future<List<Tuple>>> inFlight =
+                new ArrayBlockingQueue<Future<List<Tuple>>>(this.maxInFlight);
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                readPages(inFlight);
+            }
+        }, "heapfile-encrypt-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            return this.writePages(inFlight, new EncryptedFileAppender(this.dest, tableName));
+        } finally {
+            reader.interrupt();
+        }
+    }
+
+    /**
+     * Reader stage: submits one encryption task per source page, in page
+     * order, and finishes with a null batch as end-of-input marker.
+     */
+    private void readPages(BlockingQueue<Future<List<Tuple>>> inFlight) {
+        try {
+            TransactionId tid = new TransactionId();
+            BufferPool bufferPool = Database.getBufferPool();
+            int numPages = this.source.numPages();
+            for (int i = 0; i < numPages; i++) {
+                PageId pid = new HeapPageId(this.source.getId(), i);
+                HeapPage page = (HeapPage) bufferPool.getPage(tid, pid, Permissions.READ_ONLY);
+                final List<Tuple> tuples = page.getValidTuples();
+                inFlight.put(this.workers.submit(new Callable<List<Tuple>>() {
+                    public List<Tuple> call() {
+                        return encryptTuples(tuples);
+                    }
+                }));
+            }
+            inFlight.put(completed(null));
+        } catch (InterruptedException e) {
+            // the writer gave up; nobody is waiting for more pages
+        } catch (Exception e) {
+            try {
+                inFlight.put(completed(e));
+            } catch (InterruptedException ie) {
+                // the writer gave up
+            }
+        }
+    }
+
+    /**
+     * Writer stage: drains the encrypted batches in source order and appends
+     * them to the EncryptedFile.
+     */
+    private List<HeapPageId> writePages(BlockingQueue<Future<List<Tuple>>> inFlight,
+            EncryptedFileAppender appender) throws DbException, IOException {
+        List<HeapPageId> pageIds;
+        try {
+            while (true) {
+                List<Tuple> encTuples;
+                try {
+                    encTuples = inFlight.take().get();
+                } catch (InterruptedException e) {
+                    throw new DbException("Interrupted while encrypting " + this.source.getFile());
+                } catch (ExecutionException e) {
+                    DbException dbExn = new DbException("Failed to encrypt " + this.source.getFile());
+                    dbExn.initCause(e.getCause());
+                    throw dbExn;
+                }
+                if (encTuples == null) {
+                    break;
+                }
+                for (Tuple encTuple : encTuples) {
+                    appender.append(encTuple);
+                }
+            }
+        } finally {
+            pageIds = appender.close();
+        }
+        return pageIds;
+    }
+
+    /**
+     * Encrypts one source page worth of tuples.
+     */
+    List<Tuple> encryptTuples(List<Tuple> tuples) {
+        List<Tuple> encTuples = new ArrayList<Tuple>(tuples.size());
+        Iterator<Tuple> it = tuples.iterator();
+        while (it.hasNext()) {
+            encTuples.add(this.encryptTuple(it.next()));
+        }
+        return encTuples;
+    }
+
+    /**
+     * Applies Paillier, OPE and, if there is a DET key, DET encryption to
+     * every field of originalTuple.
+     *
+     * @return a tuple with the schema of the EncryptedFile
+     */
+    Tuple encryptTuple(Tuple originalTuple) {
+        Tuple encTuple = new Tuple(this.dest.getTupleDesc());
+
+        // Paillier Encryption
+        if (this.packer == null) {
+            for (int j = 0; j < this.origNumFields; j++) {
+                Integer fieldValue = ((IntField) originalTuple.getField(j)).getValue();
+                BigInteger plainData = BigInteger.valueOf((long) fieldValue);
+                BigInteger encryptedData = this.paillierPublicKey.encrypt(plainData);
+                encTuple.setField(j, new BigIntField(encryptedData));
+            }
+        } else {
+            int[] values = new int[this.origNumFields];
+            for (int j = 0; j < this.origNumFields; j++) {
+                values[j] = ((IntField) originalTuple.getField(j)).getValue();
+            }
+            int slots = this.packer.getSlots();
+            for (int k = 0; k < this.paillierNumFields; k++) {
+                int count = Math.min(slots, this.origNumFields - k * slots);
+                BigInteger plainData = this.packer.pack(values, k * slots, count);
+                encTuple.setField(k, new BigIntField(this.paillierPublicKey.encrypt(plainData)));
+            }
+        }
+
+        // OPE Encryption
+        for (int j = 0; j < this.origNumFields; j++) {
+            Integer fieldValue = ((IntField) originalTuple.getField(j)).getValue();
+            BigInteger plainData = BigInteger.valueOf((long) fieldValue);
+            BigInteger encryptedData = this.opePublicKey.encrypt(plainData);
+            encTuple.setField(this.paillierNumFields + j, this.opePublicKey.ciphertextField(encryptedData));
+        }
+
+        // DET Encryption
+        if (this.detPublicKey != null) {
+            for (int j = 0; j < this.origNumFields; j++) {
+                int fieldValue = ((IntField) originalTuple.getField(j)).getValue();
+                encTuple.setField(this.paillierNumFields + this.origNumFields + j,
+                        new BigIntField(this.detPublicKey.encrypt(fieldValue)));
+            }
+        }
+        return encTuple;
+    }
+
+    /**
+     * @return a future that is already done, failing with cause or, if cause
+     *   is null, yielding the null end-of-input marker
+     */
+    private static Future<List<Tuple>> completed(final Exception cause) {
+        FutureTask<List<Tuple>> task = new FutureTask<List<Tuple>>(new Callable<List<Tuple>>() {
+            public List<Tuple> call() throws Exception {
+                if (cause != null) {
+                    throw cause;
+                }
+                return null;
+            }
+        });
+        task.run();
+        return task;
+    }
+}
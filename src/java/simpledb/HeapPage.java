@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -18,6 +19,9 @@ public class HeapPage implements Page {
     final byte header[];
     final Tuple tuples[];
     final int numSlots;
+    final PageLayout layout;
+    // The bytes taken by the records of the used slots of a SLOTTED page
+    private int recordBytes;
     private TransactionId dirtyTid;
 
     byte[] oldData;
@@ -35,31 +39,48 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The slots follow the header one after another, unless the table has
+     * the {@link PageLayout#PAX} layout in the Catalog, in which case each
+     * column of the slots follows the header in turn. A
+     * {@link PageLayout#SLOTTED} page has no header, and its tuples are
+     * decoded as the page is read.
+     * <p>
+     * The page keeps data, and the fields of its tuples are decoded from it
+     * as they are read (see {@link Tuple#Tuple(TupleDesc, byte[], int)}),
+     * so data must not be changed afterwards.
+     * <p>
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
+     * @see Catalog#getPageLayout
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.layout = Database.getCatalog().getPageLayout(id.getTableId());
         this.numSlots = this.getNumTuples();
         this.dirtyTid = null;
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        ByteBuffer buf = ByteBuffer.wrap(data);
 
         // allocate and read the header slots of this page
         this.header = new byte[this.getHeaderSize()];
-        for (int i = 0; i < this.header.length; i++)
-            this.header[i] = dis.readByte();
-        
         this.tuples = new Tuple[numSlots];
+        if (this.layout == PageLayout.SLOTTED) {
+            this.readSlots(buf);
+            setBeforeImage();
+            return;
+        }
+        buf.get(this.header);
+        
         try{
-            // allocate and read the actual records of this page
+            // allocate the actual records of this page; their fields are
+            // decoded from data when they are first read
+            int tupleSize = this.td.getSize();
             for (int i = 0; i < this.tuples.length; i++)
-                this.tuples[i] = this.readNextTuple(dis,i);
+                this.tuples[i] = this.readNextTuple(data, i, tupleSize);
         }catch(NoSuchElementException e){
             e.printStackTrace();
         }
-        dis.close();
 
         setBeforeImage();
     }
@@ -69,12 +90,86 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
-        int tupleSize = this.td.getSize();
         int pageSize = BufferPool.getPageSize();
+        if (this.layout == PageLayout.SLOTTED) {
+            // as many of the smallest records as fit with their entries
+            return (pageSize - 2) / (4 + this.getMinRecordSize());
+        }
+        int tupleSize = this.td.getSize();
         int numTuples = (pageSize * 8) / (tupleSize * 8 + 1);
         return numTuples;
     }
 
+    /**
+     * @return the fewest bytes a record of a SLOTTED page can take
+     */
+    private int getMinRecordSize() {
+        int size = 0;
+        for (int j = 0; j < this.td.numFields(); j++) {
+            size += this.td.getFieldType(j).getMinCompactLen();
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of bytes the record of t takes in a SLOTTED page
+     */
+    private int getRecordSize(Tuple t) {
+        int size = 0;
+        for (int j = 0; j < this.td.numFields(); j++) {
+            size += this.td.getFieldType(j).getCompactLen(t.getField(j), this.td.getFieldLen(j));
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of entries in the slot directory of a SLOTTED page,
+     *   which covers every used slot
+     */
+    private int getDirectorySize() {
+        int n = this.numSlots;
+        while (n > 0 && !isSlotUsed(n - 1)) {
+            n--;
+        }
+        return n;
+    }
+
+    /**
+     * @return whether the record of t fits in slot i of a SLOTTED page along
+     *   with the records already on it
+     */
+    private boolean recordFits(Tuple t, int i) {
+        int entries = Math.max(this.getDirectorySize(), i + 1);
+        return 2 + 4 * entries + this.recordBytes + this.getRecordSize(t) <= BufferPool.getPageSize();
+    }
+
+    /**
+     * Reads the slot directory and the records of a SLOTTED page.
+     */
+    private void readSlots(ByteBuffer buf) throws IOException {
+        int entries = buf.getShort() & 0xFFFF;
+        if (entries > this.numSlots) {
+            throw new IOException("Page " + this.pid + " has " + entries + " slots, not at most " + this.numSlots);
+        }
+        ByteBuffer record = buf.duplicate();
+        for (int i = 0; i < entries; i++) {
+            int offset = buf.getShort() & 0xFFFF;
+            int length = buf.getShort() & 0xFFFF;
+            if (offset == 0) {
+                continue;
+            }
+            record.position(offset);
+            Tuple t = new Tuple(this.td);
+            for (int j = 0; j < this.td.numFields(); j++) {
+                t.setField(j, this.td.getFieldType(j).parseCompact(record, this.td.getFieldLen(j)));
+            }
+            t.setRecordId(new RecordId(this.pid, i));
+            this.tuples[i] = t;
+            markSlotUsed(i, true);
+            this.recordBytes += length;
+        }
+    }
+
     /**
      * Computes the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
@@ -119,36 +214,24 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Suck up tuples from the source file. Fields are left in the page
+     * bytes until they are read.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
+    private Tuple readNextTuple(byte[] data, int slotId, int tupleSize) throws NoSuchElementException {
+        // if associated bit is not set, skip the tuple and return null.
         if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
             return null;
         }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
+        int offset = header.length + slotId * tupleSize;
+        if (offset + tupleSize > data.length) {
             throw new NoSuchElementException("parsing error!");
         }
-
+        Tuple t = this.layout == PageLayout.PAX
+                ? new Tuple(td, data, header.length, this.numSlots, slotId)
+                : new Tuple(td, data, offset);
+        RecordId rid = new RecordId(pid, slotId);
+        t.setRecordId(rid);
         return t;
     }
 
@@ -165,63 +248,67 @@ public class HeapPage implements Page {
      */
     public byte[] getPageData() {
         int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        byte[] data = new byte[len];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+
+        if (this.layout == PageLayout.SLOTTED) {
+            // the directory, then the records from the end of the page back
+            int entries = this.getDirectorySize();
+            buf.putShort((short) entries);
+            int end = len;
+            for (int i=0; i<entries; i++) {
+                if (!isSlotUsed(i)) {
+                    buf.putInt(0);
+                    continue;
+                }
+                int size = this.getRecordSize(tuples[i]);
+                end -= size;
+                buf.putShort((short) end);
+                buf.putShort((short) size);
+                ByteBuffer record = ByteBuffer.wrap(data, end, size);
+                for (int j=0; j<td.numFields(); j++) {
+                    td.getFieldType(j).serializeCompact(tuples[i].getField(j), record, td.getFieldLen(j));
+                }
+            }
+            return data;
+        }
 
         // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
+        buf.put(header);
+
+        // create the tuples; empty slots and the padding after the last
+        // slot stay zero
+        if (this.layout == PageLayout.PAX) {
+            // column by column, each field at its slot in the column
+            int columnStart = header.length;
+            for (int j=0; j<td.numFields(); j++) {
+                int fieldLen = td.getFieldLen(j);
+                for (int i=0; i<tuples.length; i++) {
+                    if (isSlotUsed(i)) {
+                        buf.position(columnStart + i * fieldLen);
+                        tuples[i].serializeField(j, buf);
+                    }
+                }
+                columnStart += this.numSlots * fieldLen;
             }
+            return data;
         }
-
-        // create the tuples
+        int tupleSize = td.getSize();
         for (int i=0; i<tuples.length; i++) {
 
             // empty slot
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
+                buf.position(buf.position() + tupleSize);
                 continue;
             }
 
-            // non-empty slot
+            // non-empty slot; fields never read are copied as they were
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                tuples[i].serializeField(j, buf);
             }
         }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return data;
     }
 
     /**
@@ -240,7 +327,8 @@ public class HeapPage implements Page {
 
     /**
      * Delete the specified tuple from the page; the corresponding header bit should be updated to reflect
-     *   that it is no longer stored on any page.
+     *   that it is no longer stored on any page, and the page is marked free in the table's
+     *   {@link FreeSpaceMap}.
      * @throws DbException if this tuple is not on this page, or tuple slot is
      *         already empty.
      * @param t The tuple to delete
@@ -252,9 +340,13 @@ public class HeapPage implements Page {
         if (!isSlotUsed(tSlot)) {
           throw new DbException("Tuple slot " + String.valueOf(tSlot) + " is already empty");
         }
-        int i;
-        for (i = 0; i < this.numSlots; i++) {
-          if (this.tuples[i] == null) {
+        // the tuple's own slot first, since the page may hold duplicates of it
+        int i = tSlot;
+        if (this.tuples[i] == null || !Tuple.compareTuples(this.tuples[i], t)) {
+          i = 0;
+        }
+        for (; i < this.numSlots; i++) {
+          if (this.tuples[i] == null || !isSlotUsed(i)) {
             continue;
           }
           if (Tuple.compareTuples(this.tuples[i], t)) {
@@ -268,11 +360,19 @@ public class HeapPage implements Page {
           throw new DbException("Tuple " + t + " is not on this page");
         }
         markSlotUsed(i, false);
+        if (this.layout == PageLayout.SLOTTED) {
+          this.recordBytes -= this.getRecordSize(this.tuples[i]);
+        }
+        FreeSpaceMap freeSpace = FreeSpaceMap.forTable(this.pid.getTableId());
+        if (freeSpace != null) {
+          freeSpace.markFree(this.pid.getPageNumber());
+        }
     }
 
     /**
      * Adds the specified tuple to the page;  the tuple should be updated to reflect
-     *  that it is now stored on this page.
+     *  that it is now stored on this page. The page is marked full in the table's
+     *  {@link FreeSpaceMap} when this takes its last free slot.
      * @throws DbException if the page is full (no empty slots) or tupledesc
      *         is mismatch.
      * @param t The tuple to add.
@@ -289,13 +389,45 @@ public class HeapPage implements Page {
             break;
           }
         }
-        if (i == this.numSlots) {
+        if (i == this.numSlots || this.layout == PageLayout.SLOTTED && !this.recordFits(t, i)) {
            throw new DbException("This page is full");
         }
         RecordId rid = new RecordId(this.pid, i);
         t.setRecordId(rid);
         this.tuples[i] = t;
         markSlotUsed(i, true);
+        if (this.layout == PageLayout.SLOTTED) {
+          this.recordBytes += this.getRecordSize(t);
+        }
+        FreeSpaceMap freeSpace = FreeSpaceMap.forTable(this.pid.getTableId());
+        if (freeSpace != null && !this.hasFreeSlot()) {
+          freeSpace.markFull(this.pid.getPageNumber());
+        }
+    }
+
+    /**
+     * @return whether a tuple may still fit on this page
+     */
+    boolean hasFreeSlot() {
+        // no record fits once fewer bytes than the smallest one are left
+        if (this.layout == PageLayout.SLOTTED
+                && 2 + 4 * this.getDirectorySize() + this.recordBytes + this.getMinRecordSize()
+                        > BufferPool.getPageSize()) {
+          return false;
+        }
+        return this.getNumEmptySlots() > 0;
+    }
+
+    /**
+     * Marks this page free or full in the table's {@link FreeSpaceMap} and
+     * the map's file, for a page as it is on disk, such as a page just
+     * written or read back by an abort.
+     */
+    void markFreeSpace() {
+        FreeSpaceMap freeSpace = FreeSpaceMap.forTable(this.pid.getTableId());
+        if (freeSpace != null) {
+          freeSpace.markOnDisk(this.pid.getPageNumber(), this.hasFreeSlot());
+        }
     }
 
     /**
@@ -322,7 +454,22 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Returns the number of empty slots on this page.
+     * @return whether t can be inserted into this page: it has an empty slot
+     *   and, for a SLOTTED page, room for the record of t
+     */
+    public boolean hasRoomFor(Tuple t) {
+        for (int i = 0; i < this.numSlots; i++) {
+          if (!isSlotUsed(i)) {
+            return this.layout != PageLayout.SLOTTED || this.recordFits(t, i);
+          }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of empty slots on this page. A SLOTTED page may run
+     * out of room for records before it runs out of slots, see
+     * {@link #hasRoomFor}.
      */
     public int getNumEmptySlots() {
         // some code goes here
@@ -367,6 +514,17 @@ public class HeapPage implements Page {
         header[i/8] = headerByte;
     }
 
+    /**
+     * @return the tuple in slot i
+     * @throws NoSuchElementException if slot i is empty
+     */
+    public Tuple getTuple(int i) throws NoSuchElementException {
+        if (i < 0 || i >= this.numSlots || !this.isSlotUsed(i)) {
+            throw new NoSuchElementException("Slot " + i + " of page " + this.pid.getPageNumber() + " is empty");
+        }
+        return this.tuples[i];
+    }
+
     /**
      * @return the tuples on this page
      */
@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An InProcessChannel is a {@link TupleChannel} between two threads of this
+ * process: a bounded queue, so a server that runs ahead of its client waits
+ * rather than buffering the whole result. The size of a tuple is that of its
+ * TupleDesc, which is what it would take on the wire.
+ */
+public class InProcessChannel implements TupleChannel {
+
+    // How long a blocked sender waits before checking for a cancel, in milliseconds
+    private static final long POLL_MILLIS = 10;
+
+    // Put after the last tuple
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> queue;
+    private volatile boolean cancelled = false;
+    private volatile Exception error = null;
+    private boolean done = false;
+    private volatile long tuplesShipped = 0;
+    private volatile long bytesShipped = 0;
+
+    /**
+     * @param capacity the number of tuples the server may send ahead of the
+     *   client
+     */
+    public InProcessChannel(int capacity) {
+        this.queue = new ArrayBlockingQueue<Object>(capacity);
+    }
+
+    public boolean send(Tuple t) throws InterruptedException {
+        if (!this.offer(t)) {
+            return false;
+        }
+        this.tuplesShipped++;
+        this.bytesShipped += t.getTupleDesc().getSize();
+        return true;
+    }
+
+    public void finish(Exception error) {
+        this.error = error;
+        try {
+            this.offer(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Puts o on the queue, waiting for room until the channel is cancelled.
+     *
+     * @return whether o was put on the queue
+     */
+    private boolean offer(Object o) throws InterruptedException {
+        while (!this.cancelled) {
+            if (this.queue.offer(o, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Tuple receive() throws DbException, TransactionAbortedException {
+        if (this.done) {
+            return null;
+        }
+        Object o;
+        try {
+            o = this.queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("Interrupted while waiting for the server");
+        }
+        if (o != END) {
+            return (Tuple) o;
+        }
+        this.done = true;
+        Exception e = this.error;
+        if (e instanceof TransactionAbortedException) {
+            throw (TransactionAbortedException) e;
+        } else if (e instanceof DbException) {
+            throw (DbException) e;
+        } else if (e != null) {
+            throw new DbException("Server plan failed: " + e);
+        }
+        return null;
+    }
+
+    public void cancel() {
+        this.cancelled = true;
+        this.queue.clear();
+    }
+
+    public long getTuplesShipped() {
+        return this.tuplesShipped;
+    }
+
+    public long getBytesShipped() {
+        return this.bytesShipped;
+    }
+}
@@ -0,0 +1,207 @@
+package simpledb;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * IndexScan reads the tuples of an EncryptedFile whose OPE column satisfies
+ * a range or equality predicate, by walking the {@link OPE_Index} on that
+ * column instead of scanning the whole table. Tuples come out in the order
+ * of the indexed ciphertexts.
+ */
+public class IndexScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private TransactionId txnId;
+    private int tblId;
+    private String tblAlias;
+    private OPE_Index index;
+    private Predicate.Op op;
+    private Field operand;
+    private long lo;
+    private long hi;
+    private transient Iterator<RecordId> ridIter;
+    private Tuple nextTuple;
+    private boolean isOpen;
+
+    /**
+     * Creates a scan over the tuples of the specified table whose field
+     * compares to operand with op.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the EncryptedFile to scan; it must have an index on field
+     * @param tableAlias
+     *            the alias of this table, as for {@link SeqScan}
+     * @param field
+     *            the indexed OPE column
+     * @param op
+     *            the comparison, one of those accepted by {@link #supports}
+     * @param operand
+     *            the OPE ciphertext to compare against, an IntField or a
+     *            BigIntField like the indexed column
+     * @throws IllegalArgumentException if the table has no index on field or
+     *            op cannot be answered from an index
+     */
+    public IndexScan(TransactionId tid, int tableid, String tableAlias, int field,
+            Predicate.Op op, Field operand) {
+        if (!supports(op)) {
+            throw new IllegalArgumentException("An index cannot answer " + op);
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        OPE_Index index = file instanceof EncryptedFile ? ((EncryptedFile) file).getIndex(field) : null;
+        if (index == null) {
+            throw new IllegalArgumentException("Table " + tableid + " has no index on field " + field);
+        }
+        this.txnId = tid;
+        this.tblId = tableid;
+        this.tblAlias = tableAlias == null ? "null" : tableAlias;
+        this.index = index;
+        this.op = op;
+        this.operand = operand;
+        BigInteger v = operand instanceof BigIntField ? ((BigIntField) operand).getValue()
+                : BigInteger.valueOf(((IntField) operand).getValue());
+        BigInteger lo = BigInteger.valueOf(Long.MIN_VALUE);
+        BigInteger hi = BigInteger.valueOf(Long.MAX_VALUE);
+        switch (op) {
+        case EQUALS:
+            lo = v;
+            hi = v;
+            break;
+        case GREATER_THAN:
+            lo = v.add(BigInteger.ONE);
+            break;
+        case GREATER_THAN_OR_EQ:
+            lo = v;
+            break;
+        case LESS_THAN:
+            hi = v.subtract(BigInteger.ONE);
+            break;
+        case LESS_THAN_OR_EQ:
+            hi = v;
+            break;
+        default:
+            break;
+        }
+        // keys are longs, so a bound past them is clamped, or leaves the range
+        // empty if nothing can satisfy it
+        lo = lo.max(BigInteger.valueOf(Long.MIN_VALUE));
+        hi = hi.min(BigInteger.valueOf(Long.MAX_VALUE));
+        if (lo.compareTo(hi) > 0) {
+            this.lo = 1;
+            this.hi = 0;
+        } else {
+            this.lo = lo.longValue();
+            this.hi = hi.longValue();
+        }
+        this.isOpen = false;
+    }
+
+    /**
+     * @return whether an index scan can answer predicates with op
+     */
+    public static boolean supports(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS || op == Predicate.Op.GREATER_THAN
+                || op == Predicate.Op.GREATER_THAN_OR_EQ || op == Predicate.Op.LESS_THAN
+                || op == Predicate.Op.LESS_THAN_OR_EQ;
+    }
+
+    /**
+     * @return the actual name of the table in the catalog of the database
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(this.tblId);
+    }
+
+    /**
+     * @return the alias of the table this operator scans.
+     */
+    public String getAlias() {
+        return this.tblAlias;
+    }
+
+    /**
+     * @return the predicate this scan answers, over the fields of getTupleDesc
+     */
+    public Predicate getPredicate() {
+        return new Predicate(this.index.getField(), this.op, this.operand);
+    }
+
+    /**
+     * Checks if iterator is open
+     */
+    private void checkOpen() {
+        if (!this.isOpen) {
+            throw new IllegalStateException("Iterator is not open");
+        }
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        this.isOpen = true;
+        this.ridIter = this.index.range(this.txnId, this.lo, this.hi);
+        this.nextTuple = null;
+    }
+
+    /**
+     * Returns the TupleDesc of the table, with field names prefixed with the
+     * alias as in {@link SeqScan#getTupleDesc}.
+     */
+    public TupleDesc getTupleDesc() {
+        TupleDesc tupDesc = Database.getCatalog().getTupleDesc(this.tblId);
+        ArrayList<TDItem> items = new ArrayList<TDItem>();
+        for (TDItem tdItem : tupDesc.getItems()) {
+            items.add(new TDItem(tdItem.getFieldType(), this.tblAlias + "." + tdItem.getFieldName(),
+                    tdItem.getFieldLen()));
+        }
+        return new TupleDesc(items);
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        this.checkOpen();
+        Predicate predicate = null;
+        while (this.nextTuple == null && this.ridIter.hasNext()) {
+            RecordId rid = this.ridIter.next();
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(this.txnId, rid.getPageId(),
+                    Permissions.READ_ONLY);
+            Tuple t;
+            try {
+                t = page.getTuple(rid.getTupleNumber());
+            } catch (NoSuchElementException e) {
+                // the slot was emptied by a change the index has not seen
+                continue;
+            }
+            // or emptied and reused by another tuple, which need not match
+            if (predicate == null) {
+                predicate = this.getPredicate();
+            }
+            if (predicate.filter(t)) {
+                this.nextTuple = t;
+            }
+        }
+        return this.nextTuple != null;
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException("No more tuples in this index range");
+        }
+        Tuple t = this.nextTuple;
+        this.nextTuple = null;
+        return t;
+    }
+
+    public void close() {
+        this.ridIter = null;
+        this.nextTuple = null;
+        this.isOpen = false;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        this.checkOpen();
+        this.open();
+    }
+}
@@ -4,6 +4,7 @@ import java.util.Vector;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.io.File;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
 
@@ -22,6 +23,10 @@ import java.util.NoSuchElementException;
  * best implementations for joins.
  */
 public class LogicalPlan {
+    // Filters on an indexed OPE column that keep at most this fraction of the
+    // table are answered with an IndexScan instead of a SeqScan and a Filter
+    public static final double INDEX_SCAN_MAX_SELECTIVITY = 0.1;
+
     private Vector<LogicalJoinNode> joins;
     private Vector<LogicalScanNode> tables;
     private Vector<LogicalFilterNode> filters;
@@ -35,7 +40,9 @@ public class LogicalPlan {
     private String aggField;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private int limit = -1;
     private String query;
+    private boolean useEncryptedTwins = true;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -66,6 +73,17 @@ public class LogicalPlan {
         return query;
     }
 
+    /** Set whether {@link #physicalPlan} may filter the encrypted twins of
+        the tables instead of the tables themselves.  A plan whose tuples are
+        deleted must read the tables themselves, since the tuples of a twin
+        carry the RecordIds of the twin.
+
+        @param useEncryptedTwins false to always read the tables themselves
+    */
+    public void setUseEncryptedTwins(boolean useEncryptedTwins) {
+        this.useEncryptedTwins = useEncryptedTwins;
+    }
+
     /** Given a table alias, return id of the table object (this id can be supplied to {@link Catalog#getDatabaseFile(int)}).
         Aliases are added as base tables are added via {@link #addScan}.
 
@@ -81,6 +99,61 @@ public class LogicalPlan {
         return this.tableMap;
     }
 
+    /** @return the tables of the FROM list, in the order they were added */
+    Vector<LogicalScanNode> getTables() {
+        return this.tables;
+    }
+
+    /** @return the filters of the WHERE clause */
+    Vector<LogicalFilterNode> getFilters() {
+        return this.filters;
+    }
+
+    /** @return the joins of the WHERE clause */
+    Vector<LogicalJoinNode> getJoins() {
+        return this.joins;
+    }
+
+    /** @return whether the select list has an aggregate */
+    boolean hasAggregate() {
+        return this.hasAgg;
+    }
+
+    /** @return the name of the aggregate operator, if there is an aggregate */
+    String getAggOp() {
+        return this.aggOp;
+    }
+
+    /** @return the qualified name of the aggregated field, if there is an aggregate */
+    String getAggField() {
+        return this.aggField;
+    }
+
+    /** @return the qualified name of the GROUP BY field, or null if there is none */
+    String getGroupByField() {
+        return this.groupByField;
+    }
+
+    /** @return whether the plan has an ORDER BY */
+    boolean hasOrderBy() {
+        return this.hasOrderBy;
+    }
+
+    /** @return the qualified name of the ORDER BY field, if there is an ORDER BY */
+    String getOrderByField() {
+        return this.oByField;
+    }
+
+    /** @return whether the ORDER BY is ascending, if there is one */
+    boolean isOrderByAsc() {
+        return this.oByAsc;
+    }
+
+    /** @return the number of tuples the ORDER BY keeps, or -1 if it keeps all of them */
+    int getLimit() {
+        return this.limit;
+    }
+
     /** Add a new filter to the logical plan
      *   @param field The name of the over which the filter applies;
      *   this can be a fully qualified field (tablename.field or
@@ -216,6 +289,22 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Add an ORDER BY expression that keeps only the first limit tuples, as in
+        ORDER BY field LIMIT limit.  The plan then uses a {@link TopK} instead of
+        sorting every tuple.
+        @param field the field to order by
+        @param asc true if should be ordered in ascending order, false for descending order
+        @param limit the number of tuples to keep
+     * @throws ParsingException if limit is negative
+    */
+    public void addOrderBy(String field, boolean asc, int limit) throws ParsingException {
+        if (limit < 0) {
+            throw new ParsingException("Negative LIMIT " + limit);
+        }
+        addOrderBy(field, asc);
+        this.limit = limit;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -289,6 +378,7 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashMap<String,EncryptedFile> twins = this.encryptedTwins();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -298,6 +388,10 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
+            if (twins.containsKey(table.alias)) {
+                // filter the encrypted twin on the server instead
+                ss = new SeqScan(t, twins.get(table.alias).getId(), table.alias);
+            }
             
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
@@ -314,12 +408,14 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lf.tableAlias);
             }
 
+            int tableId = this.getTableId(lf.tableAlias);
+            TupleDesc plainTd = Database.getCatalog().getTupleDesc(tableId);
             Field f;
             Type ftyp;
-            TupleDesc td = subplanMap.get(lf.tableAlias).getTupleDesc();
-            
-            try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
-                ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
+            int plainField;
+            try {
+                plainField = plainTd.fieldNameToIndex(lf.fieldPureName);
+                ftyp = plainTd.getFieldType(plainField);
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
@@ -328,22 +424,69 @@ public class LogicalPlan {
             else
                 f = new StringField(lf.c, Type.STRING_LEN);
 
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(tableId));
+            
+            double sel= s.estimateSelectivity(plainField, lf.p, f);
+            filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+
+            // on an encrypted twin the filter compares OPE ciphertexts instead
+            String fieldName = lf.fieldQuantifiedName;
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            Predicate.Op op = lf.p;
+            if (twins.containsKey(lf.tableAlias)) {
+                file = twins.get(lf.tableAlias);
+                fieldName = lf.tableAlias + "." + HeapFile.OPE_PREFIX + lf.fieldPureName;
+                Map<String,KeyPair> keyPairs = twinKeyPairs(twins.get(lf.tableAlias));
+                OPE_EncodingTree.Bound bound = opeBound(keyPairs, lf.p, lf.c);
+                op = bound.op;
+                f = opeConstant(keyPairs, bound);
+            }
+
             Predicate p = null;
             try {
-                p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p,f);
+                p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(fieldName), op, f);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
-            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
-            
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
-            filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+            // answer a selective filter on an indexed OPE column straight from the index
+            if (subplan instanceof SeqScan && file instanceof EncryptedFile
+                    && ((EncryptedFile) file).getIndex(p.getField()) != null
+                    && IndexScan.supports(op) && sel <= INDEX_SCAN_MAX_SELECTIVITY) {
+                subplanMap.put(lf.tableAlias, new IndexScan(t, file.getId(), lf.tableAlias, p.getField(), op, f));
+            } else {
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            }
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
+        // decrypt what is left of each encrypted twin into the plaintext columns
+        for (Map.Entry<String,EncryptedFile> twin : twins.entrySet()) {
+            subplanMap.put(twin.getKey(), this.decryptTwin(subplanMap.get(twin.getKey()), twin.getValue()));
+        }
+        
+        return this.finishPlan(subplanMap, equivMap, joins, statsMap, filterSelectivities, false, explain);
+    }
+
+    /**
+     * The second half of {@link #physicalPlan}: joins the scans in subplanMap
+     * in the order chosen by {@link JoinOptimizer#orderJoins}, then adds the
+     * aggregate, the ORDER BY and the projection of the select list.
+     *
+     * @param subplanMap the filtered scan of each table alias not yet joined
+     * @param equivMap for each alias already joined into the plan of another
+     *   alias, that alias
+     * @param joins the joins still to be done
+     * @param aggregated whether the one plan left after the joins already
+     *   computes the aggregate, as (group, aggregate) or (aggregate) tuples
+     *   named after the GROUP BY and aggregate fields
+     * @throws ParsingException if the logical plan is not valid
+     */
+    OpIterator finishPlan(HashMap<String,OpIterator> subplanMap, HashMap<String,String> equivMap,
+            Vector<LogicalJoinNode> joins, HashMap<String,TableStats> statsMap,
+            HashMap<String,Double> filterSelectivities, boolean aggregated, boolean explain)
+            throws ParsingException {
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
@@ -458,7 +601,7 @@ public class LogicalPlan {
                 }
         }
 
-        if (hasAgg) {
+        if (hasAgg && !aggregated) {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
@@ -475,12 +618,149 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int oByIdx = node.getTupleDesc().fieldNameToIndex(oByField);
+            node = limit < 0 ? new OrderBy(oByIdx, oByAsc, node) : new TopK(oByIdx, oByAsc, limit, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /**
+     * Finds the tables of this plan whose filters can run on the encrypted
+     * twin of the table (see {@link HeapFile#getEncryptedTwin}) instead: those
+     * with at least one filter, where every filter compares an INT column with
+     * an INT constant (see {@link #opeFilterable}).
+     *
+     * @return the encrypted twin of each such table, by alias
+     */
+    private HashMap<String,EncryptedFile> encryptedTwins() {
+        HashMap<String,EncryptedFile> twins = new HashMap<String,EncryptedFile>();
+        if (!this.useEncryptedTwins) {
+            return twins;
+        }
+        Catalog catalog = Database.getCatalog();
+        for (LogicalScanNode table : tables) {
+            if (catalog.getTableName(table.t) == null
+                    || !(catalog.getDatabaseFile(table.t) instanceof HeapFile)) {
+                continue;
+            }
+            EncryptedFile twin = ((HeapFile) catalog.getDatabaseFile(table.t)).getEncryptedTwin();
+            Map<String,KeyPair> keyPairs = twin == null ? null : twinKeyPairs(twin);
+            if (keyPairs == null) {
+                continue;
+            }
+            TupleDesc plainTd = catalog.getTupleDesc(table.t);
+            TupleDesc twinTd = twin.getTupleDesc();
+            boolean filtered = false;
+            boolean rewritable = true;
+            for (LogicalFilterNode lf : filters) {
+                if (!lf.tableAlias.equals(table.alias)) {
+                    continue;
+                }
+                filtered = true;
+                rewritable &= opeFilterable(lf, plainTd, twinTd, keyPairs);
+            }
+            if (filtered && rewritable) {
+                twins.put(table.alias, twin);
+            }
+        }
+        return twins;
+    }
+
+    /**
+     * @return whether the filter lf on a table with the TupleDesc plainTd can
+     *   compare the OPE column of its field in twinTd instead: it is not a
+     *   LIKE, its field and constant are INTs, and the OPE column has the
+     *   type of the ciphertexts of the OPE key in keyPairs, so it holds every
+     *   ciphertext whole
+     */
+    static boolean opeFilterable(LogicalFilterNode lf, TupleDesc plainTd, TupleDesc twinTd,
+            Map<String,KeyPair> keyPairs) {
+        try {
+            int opeField = twinTd.fieldNameToIndex(HeapFile.OPE_PREFIX + lf.fieldPureName);
+            Type opeType = ((OPE_KeyPair) keyPairs.get(HeapFile.OPE_PREFIX)).getPublicKey().getCiphertextType();
+            Integer.parseInt(lf.c);
+            return lf.p != Predicate.Op.LIKE
+                    && plainTd.getFieldType(plainTd.fieldNameToIndex(lf.fieldPureName)) == Type.INT_TYPE
+                    && twinTd.getFieldType(opeField) == opeType;
+        } catch (NoSuchElementException e) {
+            return false;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the key pairs of an encrypted twin, or null if the keystore
+     *   has no OPE key for it or the OPE columns of the twin are not of the
+     *   type of its ciphertexts, as in a twin written with ciphertexts cut
+     *   down to an int
+     */
+    static Map<String,KeyPair> twinKeyPairs(EncryptedFile twin) {
+        try {
+            Map<String,KeyPair> keyPairs = Database.getKeyStore().getKeyPairs(twin.getId());
+            if (keyPairs == null || keyPairs.get(HeapFile.OPE_PREFIX) == null) {
+                return null;
+            }
+            Type opeType = ((OPE_KeyPair) keyPairs.get(HeapFile.OPE_PREFIX)).getPublicKey().getCiphertextType();
+            TupleDesc td = twin.getTupleDesc();
+            for (int i = 0; i < td.numFields(); i++) {
+                String name = td.getFieldName(i);
+                if (name != null && name.startsWith(HeapFile.OPE_PREFIX) && td.getFieldType(i) != opeType) {
+                    return null;
+                }
+            }
+            return keyPairs;
+        } catch (DbException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the comparison of OPE ciphertexts that stands for comparing
+     *   with the INT constant c by op, found with the OPE public key in
+     *   keyPairs without encoding c (see {@link OPE_PublicKey#bound})
+     * @throws NumberFormatException if c is not an INT
+     */
+    static OPE_EncodingTree.Bound opeBound(Map<String,KeyPair> keyPairs, Predicate.Op op, String c) {
+        OPE_PublicKey publicKey = ((OPE_KeyPair) keyPairs.get(HeapFile.OPE_PREFIX)).getPublicKey();
+        return publicKey.bound(BigInteger.valueOf(Integer.parseInt(c)), op);
+    }
+
+    /**
+     * @return the ciphertext of bound as a field of the OPE columns of
+     *   keyPairs' twins, to compare them with
+     */
+    static Field opeConstant(Map<String,KeyPair> keyPairs, OPE_EncodingTree.Bound bound) {
+        OPE_PublicKey publicKey = ((OPE_KeyPair) keyPairs.get(HeapFile.OPE_PREFIX)).getPublicKey();
+        return publicKey.ciphertextField(bound.ciphertext);
+    }
+
+    /**
+     * @return plan, a filtered scan of an encrypted twin, followed by the
+     *   decryption of its OPE columns into the plaintext columns of the table
+     */
+    private OpIterator decryptTwin(OpIterator plan, EncryptedFile twin) {
+        return new Decrypt(opeColumns(plan), twinKeyPairs(twin));
+    }
+
+    /**
+     * @return the projection of plan onto its OPE columns
+     */
+    static Project opeColumns(OpIterator plan) {
+        TupleDesc td = plan.getTupleDesc();
+        ArrayList<Integer> opeFields = new ArrayList<Integer>();
+        ArrayList<Type> opeTypes = new ArrayList<Type>();
+        for (int i = 0; i < td.numFields(); i++) {
+            String name = td.getFieldName(i);
+            if (name.substring(name.lastIndexOf('.') + 1).startsWith(HeapFile.OPE_PREFIX)) {
+                opeFields.add(i);
+                opeTypes.add(td.getFieldType(i));
+            }
+        }
+        return new Project(opeFields, opeTypes, plan);
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
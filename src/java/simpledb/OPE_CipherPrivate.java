@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
 
@@ -70,4 +72,39 @@ public interface OPE_CipherPrivate {
           return val.subtract(cipher_y_int).divide(cipher_slope);
       }
    }
+
+   /**
+    * A stateful implementation of the OPE_CipherPrivate interface, backed by an
+    * {@link OPE_EncodingTree}. Only the file of the tree is serialized; the
+    * tree is opened the first time the cipher is used.
+    */
+   public class Tree implements OPE_CipherPrivate, Serializable {
+      private static final long serialVersionUID = 1L;
+
+      private File file;
+      private transient OPE_EncodingTree tree;
+
+      public Tree(OPE_EncodingTree tree) {
+          this.file = tree.getFile();
+          this.tree = tree;
+      }
+
+      /**
+       * @throws IllegalStateException if the tree cannot be read from its file
+       */
+      public synchronized OPE_EncodingTree getTree() {
+          if (this.tree == null) {
+              try {
+                  this.tree = OPE_EncodingTree.open(this.file);
+              } catch (IOException e) {
+                  throw new IllegalStateException("Cannot open OPE encoding tree " + this.file + ": " + e.getMessage());
+              }
+          }
+          return this.tree;
+      }
+      
+      public BigInteger decrypt(BigInteger val) {
+          return this.getTree().decode(val);
+      }
+   }
 }
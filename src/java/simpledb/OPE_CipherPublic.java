@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
 
@@ -22,6 +24,14 @@ public interface OPE_CipherPublic {
       public BigInteger encrypt(BigInteger val) {
           return val.add(this.cipher);
       }
+
+      public boolean equals(Object o) {
+          return o instanceof Add && this.cipher.equals(((Add) o).cipher);
+      }
+
+      public int hashCode() {
+          return this.cipher.hashCode();
+      }
    }
 
    /**
@@ -37,6 +47,14 @@ public interface OPE_CipherPublic {
       public BigInteger encrypt(BigInteger val) {
           return val.subtract(this.cipher);
       }
+
+      public boolean equals(Object o) {
+          return o instanceof Sub && this.cipher.equals(((Sub) o).cipher);
+      }
+
+      public int hashCode() {
+          return this.cipher.hashCode();
+      }
    }
 
    /**
@@ -52,6 +70,14 @@ public interface OPE_CipherPublic {
       public BigInteger encrypt(BigInteger val) {
           return val.multiply(this.cipher);
       }
+
+      public boolean equals(Object o) {
+          return o instanceof Mult && this.cipher.equals(((Mult) o).cipher);
+      }
+
+      public int hashCode() {
+          return this.cipher.hashCode();
+      }
    }
 
    /**
@@ -69,5 +95,60 @@ public interface OPE_CipherPublic {
       public BigInteger encrypt(BigInteger val) {
           return this.cipher_slope.multiply(val).add(cipher_y_int);
       }
+
+      public boolean equals(Object o) {
+          return o instanceof Line && this.cipher_slope.equals(((Line) o).cipher_slope)
+                  && this.cipher_y_int.equals(((Line) o).cipher_y_int);
+      }
+
+      public int hashCode() {
+          return 31 * this.cipher_slope.hashCode() + this.cipher_y_int.hashCode();
+      }
+   }
+
+   /**
+    * A stateful implementation of the OPE_CipherPublic interface, backed by an
+    * {@link OPE_EncodingTree}. Only the file of the tree is serialized; the
+    * tree is opened the first time the cipher is used.
+    */
+   public class Tree implements OPE_CipherPublic, Serializable {
+      private static final long serialVersionUID = 1L;
+
+      private File file;
+      private transient OPE_EncodingTree tree;
+
+      public Tree(OPE_EncodingTree tree) {
+          this.file = tree.getFile();
+          this.tree = tree;
+      }
+
+      /**
+       * @throws IllegalStateException if the tree cannot be read from its file
+       */
+      public synchronized OPE_EncodingTree getTree() {
+          if (this.tree == null) {
+              try {
+                  this.tree = OPE_EncodingTree.open(this.file);
+              } catch (IOException e) {
+                  throw new IllegalStateException("Cannot open OPE encoding tree " + this.file + ": " + e.getMessage());
+              }
+          }
+          return this.tree;
+      }
+      
+      public BigInteger encrypt(BigInteger val) {
+          return this.getTree().encode(val);
+      }
+
+      /**
+       * Two tree ciphers are equal if they encode through the same file
+       */
+      public boolean equals(Object o) {
+          return o instanceof Tree && this.file.getAbsoluteFile().equals(((Tree) o).file.getAbsoluteFile());
+      }
+
+      public int hashCode() {
+          return this.file.getAbsoluteFile().hashCode();
+      }
    }
 }
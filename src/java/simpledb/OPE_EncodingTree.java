@@ -0,0 +1,370 @@
+package simpledb;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * OPE_EncodingTree is the state of a stateful order-preserving encryption
+ * scheme: the ciphertext of each plaintext encoded so far, kept in a search
+ * tree ordered by plaintext. A new plaintext is given a random ciphertext
+ * between those of its neighbours in the tree, chosen so that every
+ * plaintext that may still come between them has room for a ciphertext of
+ * its own. The order of the ciphertexts is thus that of the plaintexts, and
+ * no ciphertext ever has to change, unlike the linear ciphers of
+ * {@link OPE_CipherPublic}, whose ciphertexts reveal the plaintexts to
+ * anyone who knows two of them.
+ * <p>
+ * Plaintexts lie in [plainMin, plainMax] and ciphertexts in [cipherMin,
+ * cipherMax], which must be at least as wide. Encoding a new plaintext takes
+ * O(log n) to find its neighbours and appends one record to the file of the
+ * tree; the CACHE_SIZE plaintexts encoded most recently are answered from an
+ * LRU cache without walking the tree. The constants of queries are compared
+ * through {@link #bound} instead, which encodes nothing, so a query never
+ * grows the tree.
+ * <p>
+ * The file starts with a header of the bounds, followed by one (plaintext,
+ * ciphertext) record per encoded plaintext. The ciphers of a tree are
+ * serialized as the name of its file, so the keys of every table that uses
+ * it share the instance returned by {@link #open}.
+ *
+ * @see OPE_CipherPublic.Tree
+ * @see OPE_CipherPrivate.Tree
+ */
+public class OPE_EncodingTree {
+
+    private static final int MAGIC = 0x4f504554; // "OPET"
+
+    // Plaintexts whose ciphertexts are cached
+    public static final int CACHE_SIZE = 4096;
+
+    // Ciphertexts of the INT plaintexts encoded by {@link #forInts} lie in
+    // [-2^INT_CIPHER_BITS, 2^INT_CIPHER_BITS), a range 2^(INT_CIPHER_BITS - 31)
+    // times wider than the ints, and fit in a long
+    public static final int INT_CIPHER_BITS = 62;
+
+    // The tree of each open file, by absolute path
+    private static final ConcurrentHashMap<String, OPE_EncodingTree> open =
+            new ConcurrentHashMap<String, OPE_EncodingTree>();
+
+    /**
+     * A comparison with a ciphertext that selects the same encoded
+     * plaintexts as a comparison with a plaintext.
+     */
+    public static class Bound {
+        public final Predicate.Op op;
+        public final BigInteger ciphertext;
+
+        public Bound(Predicate.Op op, BigInteger ciphertext) {
+            this.op = op;
+            this.ciphertext = ciphertext;
+        }
+    }
+
+    private final File file;
+    private final long plainMin;
+    private final long plainMax;
+    private final long cipherMin;
+    private final long cipherMax;
+    private ConcurrentSkipListMap<Long, Long> plainToCipher;
+    private ConcurrentSkipListMap<Long, Long> cipherToPlain;
+    private LinkedHashMap<Long, Long> cache;
+    private Random random;
+    private DataOutputStream log;
+
+    /**
+     * Creates a new, empty tree in f, which is overwritten.
+     *
+     * @throws IllegalArgumentException if a range is empty or the ciphertext
+     *   range is narrower than the plaintext range
+     */
+    private OPE_EncodingTree(File f, long plainMin, long plainMax, long cipherMin, long cipherMax)
+        throws IOException {
+        if (plainMin > plainMax || cipherMin > cipherMax
+                || BigInteger.valueOf(cipherMax).subtract(BigInteger.valueOf(cipherMin)).compareTo(
+                        BigInteger.valueOf(plainMax).subtract(BigInteger.valueOf(plainMin))) < 0) {
+            throw new IllegalArgumentException("Cannot encode [" + plainMin + ", " + plainMax
+                    + "] in [" + cipherMin + ", " + cipherMax + "]");
+        }
+        this.file = f.getAbsoluteFile();
+        this.plainMin = plainMin;
+        this.plainMax = plainMax;
+        this.cipherMin = cipherMin;
+        this.cipherMax = cipherMax;
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(this.file));
+        try {
+            out.writeInt(MAGIC);
+            out.writeLong(plainMin);
+            out.writeLong(plainMax);
+            out.writeLong(cipherMin);
+            out.writeLong(cipherMax);
+        } finally {
+            out.close();
+        }
+        this.init();
+    }
+
+    /**
+     * Reads the tree stored in f.
+     */
+    private OPE_EncodingTree(File f) throws IOException {
+        this.file = f.getAbsoluteFile();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(this.file + " is not an OPE encoding tree");
+            }
+            this.plainMin = in.readLong();
+            this.plainMax = in.readLong();
+            this.cipherMin = in.readLong();
+            this.cipherMax = in.readLong();
+            this.init();
+            long length = 4 + 4 * 8;
+            while (true) {
+                long p, c;
+                try {
+                    p = in.readLong();
+                    c = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                this.plainToCipher.put(p, c);
+                this.cipherToPlain.put(c, p);
+                length += 16;
+            }
+            // drop a record cut short by a crash, so appends stay aligned
+            if (this.file.length() != length) {
+                RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+                try {
+                    raf.setLength(length);
+                } finally {
+                    raf.close();
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void init() {
+        this.plainToCipher = new ConcurrentSkipListMap<Long, Long>();
+        this.cipherToPlain = new ConcurrentSkipListMap<Long, Long>();
+        this.cache = new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                return this.size() > CACHE_SIZE;
+            }
+        };
+        this.random = new SecureRandom();
+    }
+
+    /**
+     * Creates a new, empty tree in f, which is overwritten, and makes it the
+     * tree that {@link #open} returns for f.
+     *
+     * @param plainMin the smallest plaintext that can be encoded
+     * @param plainMax the largest plaintext that can be encoded
+     * @param cipherMin the smallest ciphertext
+     * @param cipherMax the largest ciphertext
+     */
+    public static OPE_EncodingTree create(File f, long plainMin, long plainMax, long cipherMin, long cipherMax)
+        throws IOException {
+        OPE_EncodingTree tree = new OPE_EncodingTree(f, plainMin, plainMax, cipherMin, cipherMax);
+        OPE_EncodingTree old = open.put(tree.file.getPath(), tree);
+        if (old != null) {
+            old.closeLog();
+        }
+        return tree;
+    }
+
+    /**
+     * Creates a new, empty tree in f for every plaintext of an INT column.
+     * The ciphertexts are longs, so they are stored in a BIGINT column (see
+     * {@link OPE_PublicKey#getCiphertextType}).
+     */
+    public static OPE_EncodingTree forInts(File f) throws IOException {
+        return create(f, Integer.MIN_VALUE, Integer.MAX_VALUE,
+                -(1L << INT_CIPHER_BITS), (1L << INT_CIPHER_BITS) - 1);
+    }
+
+    /**
+     * @return the tree stored in f, read from the file the first time it is
+     *   opened
+     */
+    public static OPE_EncodingTree open(File f) throws IOException {
+        String path = f.getAbsoluteFile().getPath();
+        synchronized (open) {
+            OPE_EncodingTree tree = open.get(path);
+            if (tree == null) {
+                tree = new OPE_EncodingTree(f);
+                open.put(path, tree);
+            }
+            return tree;
+        }
+    }
+
+    /**
+     * @return a key pair whose ciphers encode and decode with this tree
+     */
+    public OPE_KeyPair keyPair() {
+        return new OPE_KeyPair(new OPE_PrivateKey(new OPE_CipherPrivate.Tree(this)),
+                new OPE_PublicKey(new OPE_CipherPublic.Tree(this)));
+    }
+
+    /**
+     * @return the file of this tree
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * @return the number of plaintexts encoded so far
+     */
+    public int size() {
+        return this.plainToCipher.size();
+    }
+
+    /**
+     * Returns the ciphertext of p, giving it a new one if p has not been
+     * encoded yet.
+     *
+     * @throws IllegalArgumentException if p is outside [plainMin, plainMax]
+     * @throws IllegalStateException if the new ciphertext cannot be written
+     *   to the file of the tree
+     */
+    public BigInteger encode(BigInteger p) {
+        if (p.bitLength() > 63 || p.longValue() < this.plainMin || p.longValue() > this.plainMax) {
+            throw new IllegalArgumentException("Plaintext " + p + " is outside ["
+                    + this.plainMin + ", " + this.plainMax + "]");
+        }
+        Long plain = p.longValue();
+        Long c;
+        synchronized (this.cache) {
+            c = this.cache.get(plain);
+        }
+        if (c == null) {
+            c = this.plainToCipher.get(plain);
+            if (c == null) {
+                c = this.insert(plain);
+            }
+            synchronized (this.cache) {
+                this.cache.put(plain, c);
+            }
+        }
+        return BigInteger.valueOf(c);
+    }
+
+    /**
+     * Gives p a ciphertext between those of its neighbours that leaves room
+     * for every plaintext between them, and appends it to the file.
+     */
+    private synchronized long insert(long p) {
+        Long c = this.plainToCipher.get(p);
+        if (c != null) {
+            return c;
+        }
+        // plainMin - 1 and plainMax + 1 stand for the ends of the ranges
+        Map.Entry<Long, Long> lower = this.plainToCipher.lowerEntry(p);
+        Map.Entry<Long, Long> higher = this.plainToCipher.higherEntry(p);
+        BigInteger pLo = BigInteger.valueOf(lower == null ? this.plainMin : lower.getKey())
+                .subtract(lower == null ? BigInteger.ONE : BigInteger.ZERO);
+        BigInteger cLo = BigInteger.valueOf(lower == null ? this.cipherMin : lower.getValue())
+                .subtract(lower == null ? BigInteger.ONE : BigInteger.ZERO);
+        BigInteger pHi = BigInteger.valueOf(higher == null ? this.plainMax : higher.getKey())
+                .add(higher == null ? BigInteger.ONE : BigInteger.ZERO);
+        BigInteger cHi = BigInteger.valueOf(higher == null ? this.cipherMax : higher.getValue())
+                .add(higher == null ? BigInteger.ONE : BigInteger.ZERO);
+        BigInteger plain = BigInteger.valueOf(p);
+        // leave a ciphertext for each plaintext below p and above it
+        BigInteger from = cLo.add(plain.subtract(pLo));
+        BigInteger to = cHi.subtract(pHi.subtract(plain));
+        BigInteger width = to.subtract(from).add(BigInteger.ONE);
+        BigInteger offset;
+        do {
+            offset = new BigInteger(width.bitLength(), this.random);
+        } while (offset.compareTo(width) >= 0);
+        long cipher = from.add(offset).longValue();
+        try {
+            if (this.log == null) {
+                this.log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file, true)));
+            }
+            this.log.writeLong(p);
+            this.log.writeLong(cipher);
+            this.log.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write OPE encoding tree " + this.file + ": " + e.getMessage());
+        }
+        this.cipherToPlain.put(cipher, p);
+        this.plainToCipher.put(p, cipher);
+        return cipher;
+    }
+
+    /**
+     * Returns the comparison of ciphertexts that selects the plaintexts
+     * encoded so far that compare to p with op, without encoding p. If p has
+     * not been encoded, the comparison is with the ciphertext of its nearest
+     * encoded neighbour: "&gt; p" becomes "&gt;= " the ciphertext of the next
+     * higher plaintext, "&lt; p" becomes "&lt;= " that of the next lower one,
+     * and so on, while "= p" selects nothing and "&lt;&gt; p" everything.
+     *
+     * @throws IllegalArgumentException if p does not fit in a long or op is
+     *   LIKE
+     */
+    public Bound bound(BigInteger p, Predicate.Op op) {
+        if (p.bitLength() > 63 || op == Predicate.Op.LIKE) {
+            throw new IllegalArgumentException("Cannot compare ciphertexts " + op + " " + p);
+        }
+        long plain = p.longValue();
+        Long c = this.plainToCipher.get(plain);
+        if (c != null) {
+            return new Bound(op, BigInteger.valueOf(c));
+        }
+        Bound none = new Bound(Predicate.Op.GREATER_THAN, BigInteger.valueOf(this.cipherMax));
+        Bound all = new Bound(Predicate.Op.LESS_THAN_OR_EQ, BigInteger.valueOf(this.cipherMax));
+        switch (op) {
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            Map.Entry<Long, Long> higher = this.plainToCipher.higherEntry(plain);
+            return higher == null ? none
+                    : new Bound(Predicate.Op.GREATER_THAN_OR_EQ, BigInteger.valueOf(higher.getValue()));
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+            Map.Entry<Long, Long> lower = this.plainToCipher.lowerEntry(plain);
+            return lower == null ? none
+                    : new Bound(Predicate.Op.LESS_THAN_OR_EQ, BigInteger.valueOf(lower.getValue()));
+        case NOT_EQUALS:
+            return all;
+        default:
+            return none;
+        }
+    }
+
+    /**
+     * @return the plaintext whose ciphertext is c
+     * @throws IllegalArgumentException if c is not the ciphertext of any
+     *   plaintext encoded by this tree
+     */
+    public BigInteger decode(BigInteger c) {
+        Long p = c.bitLength() > 63 ? null : this.cipherToPlain.get(c.longValue());
+        if (p == null) {
+            throw new IllegalArgumentException("Ciphertext " + c + " was not encoded by " + this.file);
+        }
+        return BigInteger.valueOf(p);
+    }
+
+    private synchronized void closeLog() {
+        if (this.log != null) {
+            try {
+                this.log.close();
+            } catch (IOException e) {
+                // the records were flushed as they were written
+            }
+            this.log = null;
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package simpledb;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * OPE_Index is a B+-tree over one OPE column of an {@link EncryptedFile}.
+ * Because OPE ciphertexts compare like their plaintexts, a range of
+ * plaintexts is a range of ciphertexts, so the server can answer range and
+ * equality predicates from the index without decrypting anything.
+ * <p>
+ * The index is a DbFile of {@link OPE_IndexPage}s that is registered with
+ * the Catalog and read through the BufferPool like any table. Its tuples are
+ * (ciphertext, page number, tuple number) entries in key order, whose
+ * ciphertext is a BIGINT whether the indexed column is an INT or a BIGINT.
+ * insertTuple and deleteTuple take tuples of the indexed table, which must
+ * carry their RecordId; the EncryptedFile calls them as its own tuples change.
+ * <p>
+ * Page 0 is always the root. Leaves are linked in key order for range scans.
+ * Deleted entries are removed from their leaf but pages are never merged.
+ *
+ * @see IndexScan
+ */
+public class OPE_Index implements DbFile {
+
+    // Fraction of a leaf filled when the index is built from existing tuples,
+    // leaving room for inserts before leaves split
+    public static final double BUILD_FILL = 0.75;
+
+    // Bytes of an indexed ciphertext, which is a long
+    public static final int KEY_LEN = 8;
+
+    private final File file;
+    private final DbFileChannel channel;
+    private final int tableId;
+    private final int field;
+    private final TupleDesc tupDesc;
+
+    /**
+     * Opens the index stored in f. Use {@link #build} to create it.
+     *
+     * @param f the file backing the index
+     * @param tableId the id of the indexed EncryptedFile
+     * @param field the index of the indexed OPE column
+     */
+    public OPE_Index(File f, int tableId, int field) {
+        this.file = f;
+        this.channel = DbFileChannel.get(f);
+        this.tableId = tableId;
+        this.field = field;
+        ArrayList<TDItem> items = new ArrayList<TDItem>(3);
+        items.add(new TDItem(Type.BIGINT_TYPE, "key", KEY_LEN));
+        items.add(new TDItem(Type.INT_TYPE, "pageNumber"));
+        items.add(new TDItem(Type.INT_TYPE, "tupleNumber"));
+        this.tupDesc = new TupleDesc(items);
+    }
+
+    /**
+     * @return whether a column of type type, len bytes wide, holds
+     *   ciphertexts that fit the keys of an index: an INT column, or a BIGINT
+     *   column of at most KEY_LEN bytes
+     */
+    public static boolean indexable(Type type, int len) {
+        return type == Type.INT_TYPE || (type == Type.BIGINT_TYPE && len <= KEY_LEN);
+    }
+
+    /**
+     * @return the ciphertext held by f, an IntField or a BigIntField that
+     *   fits in a long
+     */
+    static long key(Field f) {
+        if (f instanceof BigIntField) {
+            return ((BigIntField) f).getValue().longValueExact();
+        }
+        return ((IntField) f).getValue();
+    }
+
+    /**
+     * @return the id of the indexed table
+     */
+    public int getTableId() {
+        return this.tableId;
+    }
+
+    /**
+     * @return the indexed column of the table
+     */
+    public int getField() {
+        return this.field;
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    public int getId() {
+        return this.file.getAbsoluteFile().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.tupDesc;
+    }
+
+    /**
+     * Returns the number of pages in this index.
+     */
+    public int numPages() {
+        return this.channel.numPages();
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        int pageNo = pid.getPageNumber();
+        if (pageNo < 0 || pageNo >= this.numPages()) {
+            throw new IllegalArgumentException("Page " + pageNo + " does not exist in this index");
+        }
+        try {
+            return new OPE_IndexPage((HeapPageId) pid, this.channel.readPage(pageNo));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Page " + pageNo + " does not exist in this index");
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        this.channel.writePage(page.getId().getPageNumber(), page.getPageData());
+    }
+
+    /**
+     * Builds the index bottom-up from the current tuples of the table,
+     * writing its pages straight to f, which is overwritten.
+     *
+     * @return the new index
+     */
+    public static OPE_Index build(File f, EncryptedFile table, int field)
+        throws DbException, IOException, TransactionAbortedException {
+        // collect and sort every (ciphertext, page, slot) entry of the table
+        ArrayList<long[]> entries = new ArrayList<long[]>();
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            RecordId rid = t.getRecordId();
+            entries.add(new long[]{ key(t.getField(field)),
+                    rid.getPageId().getPageNumber(), rid.getTupleNumber() });
+        }
+        it.close();
+        Collections.sort(entries, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                for (int i = 0; i < a.length; i++) {
+                    if (a[i] != b[i]) {
+                        return a[i] < b[i] ? -1 : 1;
+                    }
+                }
+                return 0;
+            }
+        });
+
+        OPE_Index index = new OPE_Index(f, table.getId(), field);
+        DbFileChannel channel = index.channel;
+        channel.truncate();
+        // page 0 is reserved for the root, which is written once it is known
+        channel.writePage(0, OPE_IndexPage.createEmptyPageData());
+        int perLeaf = Math.max(1, (int) (OPE_IndexPage.leafCapacity() * BUILD_FILL));
+        int perInternal = Math.max(2, (int) ((OPE_IndexPage.internalCapacity() + 1) * BUILD_FILL));
+        int numLeaves = Math.max(1, (entries.size() + perLeaf - 1) / perLeaf);
+
+        // each level is the page numbers and first entries of its pages
+        ArrayList<Integer> levelPages = new ArrayList<Integer>();
+        ArrayList<long[]> levelFirsts = new ArrayList<long[]>();
+        int nextPageNo = numLeaves == 1 ? 0 : 1;
+        for (int l = 0; l < numLeaves; l++) {
+            OPE_IndexPage leaf = index.emptyPage(nextPageNo);
+            int from = l * perLeaf;
+            int to = Math.min(entries.size(), from + perLeaf);
+            for (int i = from; i < to; i++) {
+                long[] e = entries.get(i);
+                leaf.insertEntry(leaf.numEntries, e[0], (int) e[1], (int) e[2], 0);
+            }
+            leaf.next = l + 1 < numLeaves ? nextPageNo + 1 : 0;
+            writeAt(channel, leaf);
+            levelPages.add(nextPageNo);
+            levelFirsts.add(from < to ? entries.get(from) : null);
+            nextPageNo++;
+        }
+        while (levelPages.size() > 1) {
+            int numParents = (levelPages.size() + perInternal - 1) / perInternal;
+            ArrayList<Integer> parentPages = new ArrayList<Integer>();
+            ArrayList<long[]> parentFirsts = new ArrayList<long[]>();
+            for (int p = 0; p < numParents; p++) {
+                int pageNo = numParents == 1 ? 0 : nextPageNo++;
+                OPE_IndexPage parent = index.emptyPage(pageNo);
+                parent.leaf = false;
+                int from = p * perInternal;
+                int to = Math.min(levelPages.size(), from + perInternal);
+                parent.children[0] = levelPages.get(from);
+                for (int c = from + 1; c < to; c++) {
+                    long[] first = levelFirsts.get(c);
+                    parent.insertEntry(parent.numEntries, first[0], (int) first[1], (int) first[2],
+                            levelPages.get(c));
+                }
+                writeAt(channel, parent);
+                parentPages.add(pageNo);
+                parentFirsts.add(levelFirsts.get(from));
+            }
+            levelPages = parentPages;
+            levelFirsts = parentFirsts;
+        }
+        channel.force();
+        return index;
+    }
+
+    private static void writeAt(DbFileChannel channel, OPE_IndexPage page) throws IOException {
+        channel.writePage(page.getId().getPageNumber(), page.getPageData());
+    }
+
+    private OPE_IndexPage emptyPage(int pageNo) {
+        return new OPE_IndexPage(new HeapPageId(this.getId(), pageNo), OPE_IndexPage.createEmptyPageData());
+    }
+
+    private OPE_IndexPage getPage(TransactionId tid, int pageNo, Permissions perm)
+        throws DbException, TransactionAbortedException {
+        return (OPE_IndexPage) Database.getBufferPool().getPage(tid, new HeapPageId(this.getId(), pageNo), perm);
+    }
+
+    /**
+     * Appends an empty page to the file and returns it through the BufferPool.
+     */
+    private OPE_IndexPage allocatePage(TransactionId tid, ArrayList<Page> dirtied)
+        throws DbException, IOException, TransactionAbortedException {
+        int pageNo = this.channel.appendPage(OPE_IndexPage.createEmptyPageData());
+        OPE_IndexPage page = this.getPage(tid, pageNo, Permissions.READ_WRITE);
+        this.dirty(tid, page, dirtied);
+        return page;
+    }
+
+    /**
+     * Marks page dirty in the BufferPool as soon as it is changed, so it is
+     * not evicted while the rest of the operation fetches other pages.
+     */
+    private void dirty(TransactionId tid, OPE_IndexPage page, ArrayList<Page> dirtied) {
+        Database.getBufferPool().markPageDirty(page, tid);
+        if (!dirtied.contains(page)) {
+            dirtied.add(page);
+        }
+    }
+
+    /**
+     * Adds the entry for t, a tuple of the indexed table with its RecordId set.
+     */
+    public synchronized ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+        throws DbException, IOException, TransactionAbortedException {
+        long key = key(t.getField(this.field));
+        RecordId rid = t.getRecordId();
+        int pageNo = rid.getPageId().getPageNumber();
+        int slot = rid.getTupleNumber();
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+
+        // descend to the leaf, remembering the path
+        ArrayList<OPE_IndexPage> path = new ArrayList<OPE_IndexPage>();
+        OPE_IndexPage page = this.getPage(tid, 0, Permissions.READ_WRITE);
+        while (!page.leaf) {
+            path.add(page);
+            page = this.getPage(tid, page.children[page.upperBound(key, pageNo, slot)], Permissions.READ_WRITE);
+        }
+        int pos = page.upperBound(key, pageNo, slot);
+        if (pos > 0 && page.compare(pos - 1, key, pageNo, slot) == 0) {
+            throw new DbException("Tuple " + rid + " is already in the index");
+        }
+        page.insertEntry(pos, key, pageNo, slot, 0);
+        this.dirty(tid, page, dirtied);
+
+        // split full pages from the leaf up
+        while (page.numEntries > page.capacity()) {
+            if (page.getId().getPageNumber() == 0) {
+                this.splitRoot(tid, page, dirtied);
+                break;
+            }
+            OPE_IndexPage parent = path.remove(path.size() - 1);
+            OPE_IndexPage right = this.allocatePage(tid, dirtied);
+            long[] separator = this.split(page, right);
+            int childPos = parent.upperBound(separator[0], (int) separator[1], (int) separator[2]);
+            parent.insertEntry(childPos, separator[0], (int) separator[1], (int) separator[2],
+                    right.getId().getPageNumber());
+            this.dirty(tid, parent, dirtied);
+            page = parent;
+        }
+        return dirtied;
+    }
+
+    /**
+     * Moves the upper half of page into the empty page right.
+     *
+     * @return the separator between page and right
+     */
+    private long[] split(OPE_IndexPage page, OPE_IndexPage right) {
+        int mid = page.numEntries / 2;
+        long[] separator = new long[]{ page.keys[mid], page.pages[mid], page.slots[mid] };
+        if (page.leaf) {
+            // the separator stays in the right leaf
+            right.copyFrom(page, mid, page.numEntries - mid);
+            right.next = page.next;
+            page.next = right.getId().getPageNumber();
+        } else {
+            // the separator moves up, out of both halves
+            right.copyFrom(page, mid + 1, page.numEntries - mid - 1);
+        }
+        page.numEntries = mid;
+        return separator;
+    }
+
+    /**
+     * Splits the full root into two new pages, keeping the root at page 0.
+     */
+    private void splitRoot(TransactionId tid, OPE_IndexPage root, ArrayList<Page> dirtied)
+        throws DbException, IOException, TransactionAbortedException {
+        OPE_IndexPage left = this.allocatePage(tid, dirtied);
+        OPE_IndexPage right = this.allocatePage(tid, dirtied);
+        left.copyFrom(root, 0, root.numEntries);
+        left.next = 0;
+        long[] separator = this.split(left, right);
+        root.leaf = false;
+        root.next = 0;
+        root.numEntries = 0;
+        root.children[0] = left.getId().getPageNumber();
+        root.insertEntry(0, separator[0], (int) separator[1], (int) separator[2], right.getId().getPageNumber());
+    }
+
+    /**
+     * Removes the entry for t, a tuple of the indexed table with its RecordId
+     * set.
+     */
+    public synchronized ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+        throws DbException, IOException, TransactionAbortedException {
+        long key = key(t.getField(this.field));
+        RecordId rid = t.getRecordId();
+        int pageNo = rid.getPageId().getPageNumber();
+        int slot = rid.getTupleNumber();
+        OPE_IndexPage page = this.getPage(tid, 0, Permissions.READ_WRITE);
+        while (!page.leaf) {
+            page = this.getPage(tid, page.children[page.upperBound(key, pageNo, slot)], Permissions.READ_WRITE);
+        }
+        int pos = page.upperBound(key, pageNo, slot) - 1;
+        if (pos < 0 || page.compare(pos, key, pageNo, slot) != 0) {
+            throw new DbException("Tuple " + rid + " is not in the index");
+        }
+        page.removeEntry(pos);
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+        this.dirty(tid, page, dirtied);
+        return dirtied;
+    }
+
+    /**
+     * Returns the RecordIds of the tuples whose indexed ciphertext lies in
+     * [lo, hi], in key order.
+     *
+     * @param lo the smallest ciphertext to return
+     * @param hi the largest ciphertext to return
+     */
+    public Iterator<RecordId> range(TransactionId tid, long lo, long hi) {
+        final Iterator<long[]> entries = this.entries(tid, lo, hi);
+        return new Iterator<RecordId>() {
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            public RecordId next() {
+                long[] e = entries.next();
+                return new RecordId(new HeapPageId(OPE_Index.this.tableId, (int) e[1]), (int) e[2]);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Returns the (ciphertext, page number, tuple number) entries whose
+     * ciphertext lies in [lo, hi], in key order. Entries are read one leaf at
+     * a time, so inserts between leaves are seen by the rest of the scan.
+     */
+    private Iterator<long[]> entries(final TransactionId tid, final long lo, final long hi) {
+        return new Iterator<long[]>() {
+            private ArrayList<long[]> batch = new ArrayList<long[]>();
+            private int pos = 0;
+            private int nextLeaf = -1;
+            private boolean done = false;
+
+            public boolean hasNext() {
+                while (this.pos == this.batch.size() && !this.done) {
+                    this.fill();
+                }
+                return this.pos < this.batch.size();
+            }
+
+            public long[] next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return this.batch.get(this.pos++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            /**
+             * Reads the matching entries of the next leaf into batch.
+             */
+            private void fill() {
+                this.batch.clear();
+                this.pos = 0;
+                try {
+                    synchronized (OPE_Index.this) {
+                        OPE_IndexPage page;
+                        int i;
+                        if (this.nextLeaf < 0) {
+                            page = OPE_Index.this.getPage(tid, 0, Permissions.READ_ONLY);
+                            while (!page.leaf) {
+                                page = OPE_Index.this.getPage(tid,
+                                        page.children[page.upperBound(lo, Integer.MIN_VALUE, Integer.MIN_VALUE)],
+                                        Permissions.READ_ONLY);
+                            }
+                            i = page.upperBound(lo, Integer.MIN_VALUE, Integer.MIN_VALUE);
+                        } else {
+                            page = OPE_Index.this.getPage(tid, this.nextLeaf, Permissions.READ_ONLY);
+                            i = 0;
+                        }
+                        for (; i < page.numEntries; i++) {
+                            if (page.keys[i] > hi) {
+                                this.done = true;
+                                return;
+                            }
+                            this.batch.add(new long[]{ page.keys[i], page.pages[i], page.slots[i] });
+                        }
+                        this.nextLeaf = page.next;
+                        this.done = page.next == 0;
+                    }
+                } catch (DbException e) {
+                    throw new NoSuchElementException("Invalid page access: " + e.getMessage());
+                } catch (TransactionAbortedException e) {
+                    throw new NoSuchElementException("Invalid page access");
+                }
+            }
+        };
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(final TransactionId tid) {
+        return new DbFileIterator() {
+            private Iterator<long[]> it = null;
+
+            public void open() {
+                this.it = OPE_Index.this.entries(tid, Long.MIN_VALUE, Long.MAX_VALUE);
+            }
+
+            public boolean hasNext() {
+                return this.it != null && this.it.hasNext();
+            }
+
+            public Tuple next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException("No more entries in this index");
+                }
+                long[] e = this.it.next();
+                Tuple t = new Tuple(OPE_Index.this.tupDesc);
+                t.setField(0, new BigIntField(BigInteger.valueOf(e[0])));
+                t.setField(1, new IntField((int) e[1]));
+                t.setField(2, new IntField((int) e[2]));
+                return t;
+            }
+
+            public void rewind() {
+                this.open();
+            }
+
+            public void close() {
+                this.it = null;
+            }
+        };
+    }
+}
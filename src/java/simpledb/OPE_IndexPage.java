@@ -0,0 +1,226 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A page of an {@link OPE_Index}. Every page is either a leaf, holding sorted
+ * index entries, or an internal page, holding sorted separator entries and
+ * one more child page number than separators.
+ * <p>
+ * An entry is an OPE ciphertext, held as a long so that INT columns and the
+ * BIGINT columns of wider ciphertexts can both be indexed, together with the
+ * page and slot of the tuple it was read from, compared in that order, so
+ * every entry is unique even when ciphertexts repeat. Child i of an internal
+ * page holds the entries that are at least separator i - 1 and less than
+ * separator i.
+ * <p>
+ * On disk a page is a one-byte kind, the entry count and the next leaf,
+ * followed by the entries (and, for internal pages, the child page numbers).
+ * An all-zero page is an empty leaf. The next leaf is 0 for the last leaf;
+ * page 0 is always the root, so it is never another leaf's successor.
+ */
+public class OPE_IndexPage implements Page {
+
+    // kind byte, entry count, next leaf
+    static final int HEADER_SIZE = 1 + 4 + 4;
+    // ciphertext, page number, tuple number
+    static final int ENTRY_SIZE = 8 + 4 + 4;
+
+    private static final byte LEAF = 0;
+    private static final byte INTERNAL = 1;
+
+    final HeapPageId pid;
+    boolean leaf;
+    int numEntries;
+    int next;
+    // one extra slot so a page can overflow by one entry before it is split
+    final long[] keys;
+    final int[] pages;
+    final int[] slots;
+    final int[] children;
+    private TransactionId dirtyTid;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create an index page from a set of bytes of data read from disk.
+     */
+    public OPE_IndexPage(HeapPageId id, byte[] data) {
+        this.pid = id;
+        int capacity = Math.max(leafCapacity(), internalCapacity()) + 1;
+        this.keys = new long[capacity];
+        this.pages = new int[capacity];
+        this.slots = new int[capacity];
+        this.children = new int[capacity + 1];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        this.leaf = buf.get() == LEAF;
+        this.numEntries = buf.getInt();
+        this.next = buf.getInt();
+        for (int i = 0; i < this.numEntries; i++) {
+            this.keys[i] = buf.getLong();
+            this.pages[i] = buf.getInt();
+            this.slots[i] = buf.getInt();
+        }
+        if (!this.leaf) {
+            for (int i = 0; i <= this.numEntries; i++) {
+                this.children[i] = buf.getInt();
+            }
+        }
+        setBeforeImage();
+    }
+
+    /**
+     * @return the number of entries a leaf holds
+     */
+    public static int leafCapacity() {
+        return (BufferPool.getPageSize() - HEADER_SIZE) / ENTRY_SIZE;
+    }
+
+    /**
+     * @return the number of separators an internal page holds
+     */
+    public static int internalCapacity() {
+        return (BufferPool.getPageSize() - HEADER_SIZE - 4) / (ENTRY_SIZE + 4);
+    }
+
+    /**
+     * @return the number of entries this page holds before it must be split
+     */
+    int capacity() {
+        return this.leaf ? leafCapacity() : internalCapacity();
+    }
+
+    /**
+     * Compares entry i of this page with the entry (key, page, slot).
+     */
+    int compare(int i, long key, int page, int slot) {
+        if (this.keys[i] != key) {
+            return this.keys[i] < key ? -1 : 1;
+        }
+        if (this.pages[i] != page) {
+            return this.pages[i] < page ? -1 : 1;
+        }
+        return this.slots[i] == slot ? 0 : this.slots[i] < slot ? -1 : 1;
+    }
+
+    /**
+     * @return the number of entries of this page that are at most
+     *   (key, page, slot); for an internal page, the child to descend into
+     */
+    int upperBound(long key, int page, int slot) {
+        int lo = 0;
+        int hi = this.numEntries;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (this.compare(mid, key, page, slot) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Inserts an entry at position i, shifting the later entries up. For an
+     * internal page, child becomes the child to the right of the entry.
+     */
+    void insertEntry(int i, long key, int page, int slot, int child) {
+        int moved = this.numEntries - i;
+        System.arraycopy(this.keys, i, this.keys, i + 1, moved);
+        System.arraycopy(this.pages, i, this.pages, i + 1, moved);
+        System.arraycopy(this.slots, i, this.slots, i + 1, moved);
+        if (!this.leaf) {
+            System.arraycopy(this.children, i + 1, this.children, i + 2, moved);
+            this.children[i + 1] = child;
+        }
+        this.keys[i] = key;
+        this.pages[i] = page;
+        this.slots[i] = slot;
+        this.numEntries++;
+    }
+
+    /**
+     * Removes the entry at position i of a leaf.
+     */
+    void removeEntry(int i) {
+        int moved = this.numEntries - i - 1;
+        System.arraycopy(this.keys, i + 1, this.keys, i, moved);
+        System.arraycopy(this.pages, i + 1, this.pages, i, moved);
+        System.arraycopy(this.slots, i + 1, this.slots, i, moved);
+        this.numEntries--;
+    }
+
+    /**
+     * Copies entries [from, from + count) of src, and for internal pages the
+     * count + 1 children starting at child from, into this empty page.
+     */
+    void copyFrom(OPE_IndexPage src, int from, int count) {
+        this.leaf = src.leaf;
+        System.arraycopy(src.keys, from, this.keys, 0, count);
+        System.arraycopy(src.pages, from, this.pages, 0, count);
+        System.arraycopy(src.slots, from, this.slots, 0, count);
+        if (!src.leaf) {
+            System.arraycopy(src.children, from, this.children, 0, count + 1);
+        }
+        this.numEntries = count;
+    }
+
+    /**
+     * @return an all-zero page, which reads as an empty leaf
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    public byte[] getPageData() {
+        byte[] data = createEmptyPageData();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        buf.put(this.leaf ? LEAF : INTERNAL);
+        buf.putInt(this.numEntries);
+        buf.putInt(this.next);
+        for (int i = 0; i < this.numEntries; i++) {
+            buf.putLong(this.keys[i]);
+            buf.putInt(this.pages[i]);
+            buf.putInt(this.slots[i]);
+        }
+        if (!this.leaf) {
+            for (int i = 0; i <= this.numEntries; i++) {
+                buf.putInt(this.children[i]);
+            }
+        }
+        return data;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public OPE_IndexPage getBeforeImage() {
+        byte[] oldDataRef = null;
+        synchronized (oldDataLock) {
+            oldDataRef = oldData;
+        }
+        return new OPE_IndexPage(pid, oldDataRef);
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return this.pid;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirtyTid = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return this.dirtyTid;
+    }
+}
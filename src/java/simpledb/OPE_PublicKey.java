@@ -9,7 +9,13 @@ import java.util.Random;
  * 
  */
 public class OPE_PublicKey implements PublicKey, Serializable {
+    // Bytes of a BIGINT column of ciphertexts, which are longs
+    public static final int CIPHERTEXT_LEN = 8;
+
     private OPE_CipherPublic cipher;
+    // The type and width of the columns of ciphertexts, worked out on first use
+    private transient Type ciphertextType;
+    private transient int ciphertextLen;
 
     public OPE_PublicKey(OPE_CipherPublic cipher) {
         this.cipher = cipher;
@@ -28,4 +34,79 @@ public class OPE_PublicKey implements PublicKey, Serializable {
     public final BigInteger encrypt(BigInteger val) {
         return this.cipher.encrypt(val);
     }
+
+    /**
+     * Returns the comparison of ciphertexts that stands for comparing
+     * plaintexts with p by op. A linear cipher compares with the ciphertext
+     * of p; an {@link OPE_EncodingTree} compares with that of a neighbour of
+     * p if p has not been encoded, so that queries never encode their
+     * constants (see {@link OPE_EncodingTree#bound}).
+     */
+    public OPE_EncodingTree.Bound bound(BigInteger p, Predicate.Op op) {
+        if (this.cipher instanceof OPE_CipherPublic.Tree) {
+            return ((OPE_CipherPublic.Tree) this.cipher).getTree().bound(p, op);
+        }
+        return new OPE_EncodingTree.Bound(op, this.encrypt(p));
+    }
+
+    /**
+     * @return the type of the column that holds the ciphertexts of an INT
+     *   column: INT for a linear cipher that encrypts every int into an int,
+     *   and BIGINT otherwise, as for an {@link OPE_EncodingTree}, whose
+     *   ciphertexts are longs
+     */
+    public Type getCiphertextType() {
+        this.sizeCiphertexts();
+        return this.ciphertextType;
+    }
+
+    /**
+     * @return the width of a BIGINT column of {@link #getCiphertextType}: at
+     *   least CIPHERTEXT_LEN bytes, and more for a linear cipher whose
+     *   ciphertexts do not fit in a long
+     */
+    public int getCiphertextLen() {
+        this.sizeCiphertexts();
+        return this.ciphertextLen;
+    }
+
+    /**
+     * Works out the type and width of the columns of ciphertexts. A linear
+     * cipher preserves order, so its widest ciphertexts are those of the
+     * smallest and the largest int.
+     */
+    private void sizeCiphertexts() {
+        if (this.ciphertextType != null) {
+            return;
+        }
+        int bits = 0;
+        if (!(this.cipher instanceof OPE_CipherPublic.Tree)) {
+            bits = Math.max(this.encrypt(BigInteger.valueOf(Integer.MIN_VALUE)).bitLength(),
+                    this.encrypt(BigInteger.valueOf(Integer.MAX_VALUE)).bitLength());
+        }
+        // bitLength leaves out the sign bit
+        this.ciphertextLen = Math.max(CIPHERTEXT_LEN, bits / 8 + 1);
+        this.ciphertextType = this.cipher instanceof OPE_CipherPublic.Tree || bits >= Integer.SIZE
+                ? Type.BIGINT_TYPE : Type.INT_TYPE;
+    }
+
+    /**
+     * @return the field that holds the ciphertext c in a column of
+     *   {@link #getCiphertextType}
+     */
+    public Field ciphertextField(BigInteger c) {
+        return this.getCiphertextType() == Type.BIGINT_TYPE ? new BigIntField(c) : new IntField(c.intValueExact());
+    }
+
+    /**
+     * Two OPE public keys are equal if their ciphers have the same parameters,
+     * so they encrypt every value alike
+     */
+    public boolean equals(Object o) {
+        return o instanceof OPE_PublicKey && this.cipher.equals(((OPE_PublicKey) o).cipher);
+    }
+
+    public int hashCode() {
+        return this.cipher.hashCode();
+    }
 }
@@ -47,6 +47,9 @@ public class OperatorCardinality {
                             .estimateTableCardinality(1.0);
                 }
             }
+            if (o instanceof TopK) {
+                childC = Math.min(childC, ((TopK) o).getLimit());
+            }
             o.setEstimatedCardinality(childC);
             return hasJoinPK;
         }
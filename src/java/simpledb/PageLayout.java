@@ -0,0 +1,75 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * PageLayout is the order in which a {@link HeapPage} stores the fields of
+ * its tuples. ROW and PAX pages have the same header and the same number of
+ * slots.
+ * <p>
+ * ROW stores the fields of each slot together, one slot after another.
+ * PAX stores the fields of each column together, one column after another,
+ * with the field of slot i at position i of its column. A scan that reads
+ * only some columns of a PAX page touches only the bytes of those columns,
+ * such as the OPE_ columns of an {@link EncryptedFile} rather than its much
+ * wider Paillier ciphertexts.
+ * <p>
+ * SLOTTED stores each tuple as a variable-length record, its strings and
+ * BigInts taking only the bytes their values need (see
+ * {@link Type#serializeCompact}), rather than the fixed length of their
+ * column. The page starts with a slot directory, the number of its entries
+ * followed by the offset and length of the record of each slot (an offset
+ * of 0 for an empty slot), and the records are packed at the end of the
+ * page. A SLOTTED page has as many slots as records of the smallest size
+ * would fill, and takes tuples while their records fit, so short strings
+ * and small ciphertexts leave room for more tuples per page.
+ * <p>
+ * The layout of a table other than ROW is recorded in a file next to the
+ * table's, which the {@link Catalog} reads when the table is added again,
+ * e.g. after a restart.
+ *
+ * @see Catalog#setPageLayout
+ */
+public enum PageLayout {
+    ROW, PAX, SLOTTED;
+
+    // Suffix added to the name of a table's file for the file of its layout
+    public static final String SUFFIX = ".layout";
+
+    /**
+     * @return the layout recorded for the table stored in f, or null if
+     *   none is
+     */
+    static PageLayout read(File f) {
+        File layoutFile = new File(f.getAbsolutePath() + SUFFIX);
+        if (!layoutFile.exists()) {
+            return null;
+        }
+        try {
+            return valueOf(new String(Files.readAllBytes(layoutFile.toPath()), "UTF-8").trim());
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read the page layout of " + f, e);
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Unknown page layout for " + f, e);
+        }
+    }
+
+    /**
+     * Records this as the layout of the table stored in f, or deletes the
+     * record for ROW, the layout of a table that has none.
+     */
+    void write(File f) {
+        File layoutFile = new File(f.getAbsolutePath() + SUFFIX);
+        try {
+            if (this == ROW) {
+                Files.deleteIfExists(layoutFile.toPath());
+            } else {
+                Files.write(layoutFile.toPath(), this.name().getBytes("UTF-8"));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write the page layout of " + f, e);
+        }
+    }
+}
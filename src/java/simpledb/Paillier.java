@@ -1,6 +1,9 @@
 package simpledb;
 
 import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Static class to provide some convenience methods for Paillier operations
@@ -9,6 +12,11 @@ import java.math.BigInteger;
  */
 public class Paillier {
 
+    // Ciphertexts multiplied sequentially by one leaf of a product tree
+    public static final int PRODUCT_LEAF_SIZE = 256;
+    // A running product is only reduced once it is this many times wider than n^2
+    private static final int REDUCTION_FACTOR = 8;
+
     public Paillier() {
 
     }
@@ -25,6 +33,18 @@ public class Paillier {
         return encA.multiply(encB).mod(P.getnSquared());
     }
     
+    /**
+     * Takes 2 encrypted BigIntegers and returns the Paillier difference A - B,
+     *  which is A multiplied by the inverse of B mod the n squared of the public key
+     * @param encA an encrypted BigInt
+     * @param encB an encrypted BigInt
+     * @param P the PublicKey used to encrypt A and B
+     * @return their Paillier difference
+     */
+    public static BigInteger subtract(BigInteger encA, BigInteger encB, Paillier_PublicKey P) {
+        return encA.multiply(encB.modInverse(P.getnSquared())).mod(P.getnSquared());
+    }
+
     /**
      * Takes an encrypted value A and returns the encrypted result of multiplying it by a 
      * constant A
@@ -37,4 +57,71 @@ public class Paillier {
         return encA.modPow(B, P.getnSquared());
     }
     
+    /**
+     * Returns the Paillier sum of all of encs, i.e. their product mod n^2.
+     * <p>
+     * The ciphertexts are combined with a product tree: leaves of
+     * PRODUCT_LEAF_SIZE ciphertexts are multiplied into a running product
+     * that is only reduced mod n^2 once it has grown well past n^2, and the
+     * leaf products are then multiplied pairwise up the tree. Subtrees run in
+     * parallel on the common fork/join pool.
+     * @param encs the encrypted BigInts to add
+     * @param P the PublicKey used to encrypt encs
+     * @return their Paillier sum; an encryption of zero (1) if encs is empty
+     */
+    public static BigInteger sum(List<BigInteger> encs, Paillier_PublicKey P) {
+        if (encs.size() <= PRODUCT_LEAF_SIZE) {
+            return product(encs, 0, encs.size(), P.getnSquared());
+        }
+        return ForkJoinPool.commonPool().invoke(new ProductTask(encs, 0, encs.size(), P.getnSquared()));
+    }
+
+    /**
+     * Multiplies encs[from, to) mod nSquared, reducing only when the running
+     * product gets REDUCTION_FACTOR times wider than nSquared
+     */
+    private static BigInteger product(List<BigInteger> encs, int from, int to, BigInteger nSquared) {
+        int maxBits = REDUCTION_FACTOR * nSquared.bitLength();
+        BigInteger result = BigInteger.ONE;
+        for (int i = from; i < to; i++) {
+            result = result.multiply(encs.get(i));
+            if (result.bitLength() > maxBits) {
+                result = result.mod(nSquared);
+            }
+        }
+        return result.mod(nSquared);
+    }
+
+    /**
+     * One subtree of the product tree built by {@link Paillier#sum}
+     */
+    private static class ProductTask extends RecursiveTask<BigInteger> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<BigInteger> encs;
+        private final int from;
+        private final int to;
+        private final BigInteger nSquared;
+
+        ProductTask(List<BigInteger> encs, int from, int to, BigInteger nSquared) {
+            this.encs = encs;
+            this.from = from;
+            this.to = to;
+            this.nSquared = nSquared;
+        }
+
+        @Override
+        protected BigInteger compute() {
+            if (this.to - this.from <= PRODUCT_LEAF_SIZE) {
+                return product(this.encs, this.from, this.to, this.nSquared);
+            }
+            int mid = (this.from + this.to) >>> 1;
+            ProductTask left = new ProductTask(this.encs, this.from, mid, this.nSquared);
+            left.fork();
+            BigInteger right = new ProductTask(this.encs, mid, this.to, this.nSquared).compute();
+            return left.join().multiply(right).mod(this.nSquared);
+        }
+    }
+
 }
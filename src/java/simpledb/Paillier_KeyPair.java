@@ -2,6 +2,8 @@ package simpledb;
 
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * A class that holds a pair of associated public and private keys.
@@ -28,6 +30,17 @@ public class Paillier_KeyPair implements KeyPair, Serializable {
         return publicKey;
     }
 
+    /**
+     * @return the upper bound used to map decrypted values to negative ones,
+     *   or null if there is none
+     */
+    BigInteger getUpperBound() {
+        return upperBound;
+    }
+
+    // Ciphertexts decrypted by a single task in decryptAll before it stops splitting
+    public static final int DECRYPT_BATCH_SIZE = 64;
+
     /**
      * Decrypts the given ciphertext.
      *
@@ -38,19 +51,74 @@ public class Paillier_KeyPair implements KeyPair, Serializable {
     public final BigInteger decrypt(BigInteger c) {
 
         BigInteger n = publicKey.getN();
-        BigInteger nSquare = publicKey.getnSquared();
-        BigInteger lambda = privateKey.getLambda();
+        BigInteger p;
+
+        if (privateKey.hasFactors()) {
+            p = privateKey.decryptCRT(c);
+        } else {
+            BigInteger nSquare = publicKey.getnSquared();
+            BigInteger lambda = privateKey.getLambda();
 
-        BigInteger u = privateKey.getPreCalculatedDenominator();
+            BigInteger u = privateKey.getPreCalculatedDenominator();
 
-        BigInteger p = c.modPow(lambda, nSquare).subtract(BigInteger.ONE).divide(n).multiply(u).mod(n);
+            p = c.modPow(lambda, nSquare).subtract(BigInteger.ONE).divide(n).multiply(u).mod(n);
+        }
 
         if (upperBound != null && p.compareTo(upperBound) > 0) {
-            System.out.println("Subtracting: " + n + " from " + p + " upper " + upperBound);
             p = p.subtract(n);
-            System.out.println("Final P: " + p + "\n");
         }
 
         return p;
     }
+
+    /**
+     * Decrypts every ciphertext in cs. Batches of {@link #DECRYPT_BATCH_SIZE}
+     * values are decrypted in parallel on the common fork/join pool.
+     *
+     * @param cs The ciphertexts that should be decrypted.
+     * @return The plaintexts, in the same order as cs.
+     */
+    public BigInteger[] decryptAll(BigInteger[] cs) {
+        BigInteger[] ps = new BigInteger[cs.length];
+        if (cs.length <= DECRYPT_BATCH_SIZE) {
+            for (int i = 0; i < cs.length; i++) {
+                ps[i] = decrypt(cs[i]);
+            }
+        } else {
+            ForkJoinPool.commonPool().invoke(new DecryptTask(cs, ps, 0, cs.length));
+        }
+        return ps;
+    }
+
+    /**
+     * Decrypts cs[lo, hi) into ps[lo, hi), splitting in halves down to
+     * batches of DECRYPT_BATCH_SIZE.
+     */
+    private class DecryptTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final BigInteger[] cs;
+        private final BigInteger[] ps;
+        private final int lo;
+        private final int hi;
+
+        DecryptTask(BigInteger[] cs, BigInteger[] ps, int lo, int hi) {
+            this.cs = cs;
+            this.ps = ps;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute() {
+            if (hi - lo <= DECRYPT_BATCH_SIZE) {
+                for (int i = lo; i < hi; i++) {
+                    ps[i] = decrypt(cs[i]);
+                }
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new DecryptTask(cs, ps, lo, mid), new DecryptTask(cs, ps, mid, hi));
+        }
+    }
 }
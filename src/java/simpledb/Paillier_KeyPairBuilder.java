@@ -3,6 +3,9 @@ package simpledb;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * A class that is used for generating a pair of associated public and private
@@ -19,6 +22,8 @@ public class Paillier_KeyPairBuilder {
 
     private Random rng;
 
+    private boolean defaultRng;
+
     private BigInteger upperBound;
 
     /**
@@ -62,6 +67,7 @@ public class Paillier_KeyPairBuilder {
      */
     public Paillier_KeyPairBuilder randomNumberGenerator(Random rng) {
         this.rng = rng;
+        this.defaultRng = false;
         return this;
     }
 
@@ -80,58 +86,95 @@ public class Paillier_KeyPairBuilder {
     }
 
     /**
-     * Creates a pair of associated public and private keys.
+     * Creates a pair of associated public and private keys. With the default
+     * {@link SecureRandom} the primes p and q are searched for in parallel, q
+     * on the common fork/join pool. A generator set through
+     * {@link #randomNumberGenerator(Random)} is drawn from sequentially, so a
+     * seeded one always yields the same key.
      *
      * @return The pair of associated public and private keys.
      */
     public Paillier_KeyPair generateKeyPair() {
+        final int length = bits / 2;
+        BigInteger p;
+        BigInteger q;
         if (rng == null) {
             rng = new SecureRandom();
+            defaultRng = true;
         }
 
-        BigInteger p, q;
-        int length = bits / 2;
-        if (certainty > 0) {
-            p = new BigInteger(length, certainty, rng);
-            q = new BigInteger(length, certainty, rng);
+        if (defaultRng) {
+            ForkJoinTask<BigInteger> qTask = ForkJoinPool.commonPool().submit(new Callable<BigInteger>() {
+                public BigInteger call() {
+                    return generatePrime(length);
+                }
+            });
+            p = generatePrime(length);
+            q = qTask.join();
         } else {
-            p = BigInteger.probablePrime(length, rng);
-            q = BigInteger.probablePrime(length, rng);
+            p = generatePrime(length);
+            q = generatePrime(length);
         }
 
         BigInteger n = p.multiply(q);
         BigInteger nSquared = n.multiply(n);
+        BigInteger lambda = lcm(p.subtract(BigInteger.ONE), q.subtract(BigInteger.ONE));
 
-        BigInteger pMinusOne = p.subtract(BigInteger.ONE);
-        BigInteger qMinusOne = q.subtract(BigInteger.ONE);
-
-        BigInteger lambda = this.lcm(pMinusOne, qMinusOne);
-
-        BigInteger g;
-        BigInteger helper;
+        // g = n + 1 lets encryption compute g^m as 1 + m*n mod n^2; fall back
+        // to a random generator in the (unlikely) case it is not invertible
+        BigInteger g = n.add(BigInteger.ONE);
+        BigInteger helper = calculateL(g.modPow(lambda, nSquared), n);
 
-        do {
+        while (!helper.gcd(n).equals(BigInteger.ONE)) {
             g = new BigInteger(bits, rng);
             helper = calculateL(g.modPow(lambda, nSquared), n);
+        }
+
+        return fromPrimes(p, q, g, bits, upperBound);
+    }
 
-        } while (!helper.gcd(n).equals(BigInteger.ONE));
+    /**
+     * Rebuilds a key pair from the primes of n and the generator g, as kept
+     * by {@link TableKeyStore}.
+     *
+     * @param bits the size the key was created with
+     * @param upperBound see {@link #upperBound(BigInteger)}, may be null
+     */
+    static Paillier_KeyPair fromPrimes(BigInteger p, BigInteger q, BigInteger g, int bits,
+            BigInteger upperBound) {
+        BigInteger n = p.multiply(q);
+        BigInteger nSquared = n.multiply(n);
+        BigInteger lambda = lcm(p.subtract(BigInteger.ONE), q.subtract(BigInteger.ONE));
+        BigInteger helper = calculateL(g.modPow(lambda, nSquared), n);
 
         Paillier_PublicKey publicKey = new Paillier_PublicKey(n, nSquared, g, bits);
-        Paillier_PrivateKey privateKey = new Paillier_PrivateKey(lambda, helper.modInverse(n));
+        Paillier_PrivateKey privateKey;
+        try {
+            privateKey = new Paillier_PrivateKey(lambda, helper.modInverse(n), p, q, g);
+        } catch (ArithmeticException e) {
+            // p = q or g is degenerate mod p^2 / q^2 (only happens for toy key sizes)
+            privateKey = new Paillier_PrivateKey(lambda, helper.modInverse(n));
+        }
 
         return new Paillier_KeyPair(privateKey, publicKey, upperBound);
+    }
 
+    private BigInteger generatePrime(int length) {
+        if (certainty > 0) {
+            return new BigInteger(length, certainty, rng);
+        }
+        return BigInteger.probablePrime(length, rng);
     }
 
     // TODO separate this somewhere
-    private BigInteger calculateL(BigInteger u, BigInteger n) {
+    private static BigInteger calculateL(BigInteger u, BigInteger n) {
         BigInteger result = u.subtract(BigInteger.ONE);
         result = result.divide(n);
         return result;
     }
 
     // TODO add to own BigInteger extended class
-    private BigInteger lcm(BigInteger a, BigInteger b) {
+    private static BigInteger lcm(BigInteger a, BigInteger b) {
         BigInteger result;
         BigInteger gcd = a.gcd(b);
 
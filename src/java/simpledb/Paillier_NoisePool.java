@@ -0,0 +1,125 @@
+package simpledb;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A bounded pool of precomputed Paillier noise values r^n mod n^2 for a
+ * single public key.
+ * <p>
+ * Computing the noise is the most expensive part of an encryption, but it
+ * does not depend on the plaintext, so it can be done ahead of time. The pool
+ * is refilled in the background by a small set of shared producer threads
+ * whenever it drops below half of its capacity. If the pool is empty when a
+ * value is requested, the value is simply computed on the calling thread.
+ *
+ * @see Paillier_PublicKey#encrypt
+ */
+public class Paillier_NoisePool {
+
+    // Default number of precomputed noise values kept per public key
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    // Producer threads are shared between all pools and never keep the JVM alive
+    private static final ExecutorService PRODUCERS = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "paillier-noise-producer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private static final SecureRandom RNG = new SecureRandom();
+
+    private final BigInteger n;
+    private final BigInteger nSquared;
+    private final int bits;
+    private final int capacity;
+    private final ArrayBlockingQueue<BigInteger> noise;
+    private final AtomicBoolean refilling;
+
+    /**
+     * Creates a pool for the given public key and starts filling it.
+     *
+     * @param publicKey the key whose modulus the noise is computed for
+     * @param capacity the maximum number of precomputed values to keep
+     */
+    public Paillier_NoisePool(Paillier_PublicKey publicKey, int capacity) {
+        this.n = publicKey.getN();
+        this.nSquared = publicKey.getnSquared();
+        this.bits = publicKey.getBits();
+        this.capacity = capacity;
+        this.noise = new ArrayBlockingQueue<BigInteger>(capacity);
+        this.refilling = new AtomicBoolean(false);
+        this.refill();
+    }
+
+    /**
+     * @return a noise value r^n mod n^2 for a fresh random r. Never blocks on
+     *   the producers; computes the value inline when the pool is empty.
+     */
+    public BigInteger next() {
+        BigInteger r = this.noise.poll();
+        if (this.noise.size() < this.capacity / 2) {
+            this.refill();
+        }
+        if (r == null) {
+            r = this.computeNoise();
+        }
+        return r;
+    }
+
+    /**
+     * @return the number of precomputed values currently available
+     */
+    public int available() {
+        return this.noise.size();
+    }
+
+    /**
+     * @return the maximum number of precomputed values kept by this pool
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Schedules a producer task unless one is already running for this pool.
+     */
+    private void refill() {
+        if (!this.refilling.compareAndSet(false, true)) {
+            return;
+        }
+        PRODUCERS.execute(new Runnable() {
+            public void run() {
+                try {
+                    while (noise.remainingCapacity() > 0) {
+                        if (!noise.offer(computeNoise())) {
+                            break;
+                        }
+                    }
+                } finally {
+                    refilling.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return r^n mod n^2 for a random r in [1, n) coprime to n
+     */
+    private BigInteger computeNoise() {
+        BigInteger r;
+        do {
+            r = new BigInteger(this.bits, RNG);
+        } while (r.signum() == 0 || r.compareTo(this.n) >= 0 || !r.gcd(this.n).equals(BigInteger.ONE));
+        return r.modPow(this.n, this.nSquared);
+    }
+}
@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+
+/**
+ * Packs several 32-bit column values into a single Paillier plaintext so
+ * that they share one ciphertext.
+ * <p>
+ * The plaintext is split into slots of VALUE_BITS + headroomBits bits, and
+ * value i of a row is stored as a signed digit in slot i, i.e. the plaintext
+ * is the sum of value_i * 2^(i * slotBits). Since Paillier addition adds
+ * plaintexts, a single {@link Paillier#add} of two packed ciphertexts adds
+ * every slot at once. The headroom keeps slot sums from spilling into the
+ * next slot for up to 2^headroomBits additions. After decryption the client
+ * calls {@link #unpack} to recover the per-column sums.
+ * <p>
+ * A key can hold (bits(n) - 1) / slotBits slots, so packing needs keys much
+ * wider than one value; a 1024-bit key holds 21 slots with the default
+ * headroom.
+ *
+ * @see HeapFile#encrypt(java.util.concurrent.ConcurrentHashMap, boolean)
+ */
+public class Paillier_Packer implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // Width of the values being packed
+    public static final int VALUE_BITS = 32;
+    // Extra bits per slot by default; lets 65536 rows be summed without overflow
+    public static final int DEFAULT_HEADROOM_BITS = 16;
+
+    private final BigInteger n;
+    private final int slotBits;
+    private final int slots;
+
+    /**
+     * Creates a packer with the default headroom.
+     */
+    public Paillier_Packer(Paillier_PublicKey publicKey) {
+        this(publicKey, DEFAULT_HEADROOM_BITS);
+    }
+
+    /**
+     * @param publicKey the key the packed values will be encrypted with
+     * @param headroomBits extra bits per slot; sums of up to 2^headroomBits
+     *   values unpack correctly. At most 31, so that slot sums fit in a long.
+     */
+    public Paillier_Packer(Paillier_PublicKey publicKey, int headroomBits) {
+        if (headroomBits < 0 || headroomBits > 31) {
+            throw new IllegalArgumentException("headroomBits must be between 0 and 31");
+        }
+        this.n = publicKey.getN();
+        this.slotBits = VALUE_BITS + headroomBits;
+        this.slots = (this.n.bitLength() - 1) / this.slotBits;
+    }
+
+    /**
+     * @return how many values share one ciphertext; 0 if the key is too
+     *   narrow to hold even one slot
+     */
+    public int getSlots() {
+        return this.slots;
+    }
+
+    /**
+     * @return the number of bits each value occupies in the plaintext
+     */
+    public int getSlotBits() {
+        return this.slotBits;
+    }
+
+    /**
+     * @return the number of packed ciphertexts needed for numValues values
+     */
+    public int numPackedColumns(int numValues) {
+        return (numValues + this.slots - 1) / this.slots;
+    }
+
+    /**
+     * Packs values[from, from + count) into one plaintext.
+     *
+     * @throws IllegalArgumentException if count exceeds the number of slots
+     */
+    public BigInteger pack(int[] values, int from, int count) {
+        if (count > this.slots) {
+            throw new IllegalArgumentException(count + " values do not fit in " + this.slots + " slots");
+        }
+        BigInteger packed = BigInteger.ZERO;
+        for (int i = count - 1; i >= 0; i--) {
+            packed = packed.shiftLeft(this.slotBits).add(BigInteger.valueOf(values[from + i]));
+        }
+        return packed;
+    }
+
+    /**
+     * Unpacks a decrypted plaintext, which may be the sum of many packed rows.
+     *
+     * @param plain the decrypted value, either in [0, n) or already mapped to
+     *   a negative value by the key pair's upper bound
+     * @param count the number of slots to read
+     * @return the value, or sum of values, held in each of the count slots
+     */
+    public long[] unpack(BigInteger plain, int count) {
+        // the packed value is signed; anything past n/2 came from a negative total
+        BigInteger total = plain.mod(this.n);
+        if (total.compareTo(this.n.shiftRight(1)) > 0) {
+            total = total.subtract(this.n);
+        }
+        long[] values = new long[count];
+        BigInteger base = BigInteger.ONE.shiftLeft(this.slotBits);
+        BigInteger half = base.shiftRight(1);
+        for (int i = 0; i < count; i++) {
+            BigInteger digit = total.mod(base);
+            if (digit.compareTo(half) >= 0) {
+                digit = digit.subtract(base);
+            }
+            values[i] = digit.longValue();
+            total = total.subtract(digit).shiftRight(this.slotBits);
+        }
+        return values;
+    }
+}
@@ -12,11 +12,53 @@ public class Paillier_PrivateKey implements PrivateKey, Serializable {
 
     private final BigInteger lambda;
     private final BigInteger preCalculatedDenominator;
+    // Factorization of n and the values needed to decrypt mod p^2 and q^2,
+    // all null when the key was created without its primes
+    private final BigInteger p;
+    private final BigInteger q;
+    private final BigInteger pSquared;
+    private final BigInteger qSquared;
+    private final BigInteger pMinusOne;
+    private final BigInteger qMinusOne;
+    private final BigInteger hp;
+    private final BigInteger hq;
+    private final BigInteger qInverse;
 
     Paillier_PrivateKey(BigInteger lambda, BigInteger preCalculatedDenominator) {
         this.lambda = lambda;
 
         this.preCalculatedDenominator = preCalculatedDenominator;
+        this.p = null;
+        this.q = null;
+        this.pSquared = null;
+        this.qSquared = null;
+        this.pMinusOne = null;
+        this.qMinusOne = null;
+        this.hp = null;
+        this.hq = null;
+        this.qInverse = null;
+    }
+
+    /**
+     * Creates a private key that keeps the factorization of n so ciphertexts
+     * can be decrypted mod p^2 and q^2 and recombined with the CRT.
+     *
+     * @param g the generator of the matching public key
+     */
+    Paillier_PrivateKey(BigInteger lambda, BigInteger preCalculatedDenominator,
+            BigInteger p, BigInteger q, BigInteger g) {
+        this.lambda = lambda;
+
+        this.preCalculatedDenominator = preCalculatedDenominator;
+        this.p = p;
+        this.q = q;
+        this.pSquared = p.multiply(p);
+        this.qSquared = q.multiply(q);
+        this.pMinusOne = p.subtract(BigInteger.ONE);
+        this.qMinusOne = q.subtract(BigInteger.ONE);
+        this.hp = calculateL(g.modPow(pMinusOne, pSquared), p).modInverse(p);
+        this.hq = calculateL(g.modPow(qMinusOne, qSquared), q).modInverse(q);
+        this.qInverse = q.modInverse(p);
     }
 
     public BigInteger getLambda() {
@@ -26,6 +68,43 @@ public class Paillier_PrivateKey implements PrivateKey, Serializable {
     public BigInteger getPreCalculatedDenominator() {
         return preCalculatedDenominator;
     }
+
+    public BigInteger getP() {
+        return p;
+    }
+
+    public BigInteger getQ() {
+        return q;
+    }
+
+    /**
+     * @return true if this key knows the factorization of n
+     */
+    public boolean hasFactors() {
+        return p != null;
+    }
+
+    /**
+     * Decrypts c using the factorization of n. Two half-size exponentiations
+     * mod p^2 and q^2 replace the full c^lambda mod n^2.
+     *
+     * @param c the ciphertext
+     * @return the plaintext in [0, n)
+     * @throws IllegalStateException if this key does not know p and q
+     */
+    BigInteger decryptCRT(BigInteger c) {
+        if (!hasFactors()) {
+            throw new IllegalStateException("Private key does not hold the factorization of n");
+        }
+        BigInteger mp = calculateL(c.mod(pSquared).modPow(pMinusOne, pSquared), p).multiply(hp).mod(p);
+        BigInteger mq = calculateL(c.mod(qSquared).modPow(qMinusOne, qSquared), q).multiply(hq).mod(q);
+        // m = mq + q * ((mp - mq) * q^-1 mod p)
+        return mp.subtract(mq).multiply(qInverse).mod(p).multiply(q).add(mq);
+    }
+
+    private static BigInteger calculateL(BigInteger u, BigInteger n) {
+        return u.subtract(BigInteger.ONE).divide(n);
+    }
     
     public String toString() {
         return "Lambda: " + getLambda() + " PreCalculatedDenominator: " + getPreCalculatedDenominator();
@@ -2,7 +2,6 @@ package simpledb;
 
 import java.io.Serializable;
 import java.math.BigInteger;
-import java.util.Random;
 
 /**
  * A class that represents the public part of the Paillier key pair.
@@ -20,12 +19,21 @@ public class Paillier_PublicKey implements PublicKey, Serializable {
     private final BigInteger n;
     private final BigInteger nSquared;
     private final BigInteger g;
+    // true when g = n + 1, in which case g^m mod n^2 = 1 + m*n mod n^2: one
+    // multiplication, which beats any fixed-base table of powers of g. The
+    // key builder always picks this g, since lambda is coprime to n and so
+    // L(g^lambda mod n^2) = lambda mod n is invertible; keys with another g
+    // are only rebuilt from stored N and G, and use modPow
+    private final boolean simpleG;
+    // Precomputed r^n mod n^2 values, created on the first encryption
+    private transient volatile Paillier_NoisePool noisePool;
 
     Paillier_PublicKey(BigInteger n, BigInteger nSquared, BigInteger g, int bits) {
         this.n = n;
         this.nSquared = nSquared;
         this.bits = bits;
         this.g = g;
+        this.simpleG = g.equals(n.add(BigInteger.ONE));
     }
 
     public int getBits() {
@@ -44,6 +52,14 @@ public class Paillier_PublicKey implements PublicKey, Serializable {
         return g;
     }
 
+    /**
+     * @return the number of bytes needed to store any ciphertext of this key,
+     *   which is less than n^2, as a two's complement number
+     */
+    public int getCiphertextLen() {
+        return nSquared.bitLength() / 8 + 1;
+    }
+
     /**
      * Encrypts the given plaintext.
      *
@@ -52,19 +68,37 @@ public class Paillier_PublicKey implements PublicKey, Serializable {
      */
     public final BigInteger encrypt(BigInteger m) {
 
-        BigInteger r;
-        do {
-            r = new BigInteger(bits, new Random());
-        } while (r.compareTo(n) >= 0);
-
-        BigInteger result = g.modPow(m, nSquared);
-        BigInteger x = r.modPow(n, nSquared);
+        BigInteger result;
+        if (simpleG) {
+            result = m.multiply(n).add(BigInteger.ONE).mod(nSquared);
+        } else {
+            result = g.modPow(m, nSquared);
+        }
+        BigInteger x = getNoisePool().next();
 
         result = result.multiply(x);
         result = result.mod(nSquared);
 
         return result;
     }
+
+    /**
+     * @return the pool of precomputed noise values for this key, starting it
+     *   on first use
+     */
+    public Paillier_NoisePool getNoisePool() {
+        Paillier_NoisePool pool = noisePool;
+        if (pool == null) {
+            synchronized (this) {
+                pool = noisePool;
+                if (pool == null) {
+                    pool = new Paillier_NoisePool(this, Paillier_NoisePool.DEFAULT_CAPACITY);
+                    noisePool = pool;
+                }
+            }
+        }
+        return pool;
+    }
     
     public boolean equals(Object p) {
     		Paillier_PublicKey publicKey = (Paillier_PublicKey) p;
@@ -279,8 +279,10 @@ public class Parser {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
-        OpIterator physicalPlan = lp.physicalPlan(tId,
-                TableStats.getStatsMap(), explain);
+        // queries over tables with encrypted twins run partly on the server
+        OpIterator physicalPlan = SplitPlanner.splits(lp)
+                ? new SplitPlanner(lp).physicalPlan(tId, TableStats.getStatsMap(), explain)
+                : lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
         query.setLogicalPlan(lp);
 
@@ -418,6 +420,7 @@ public class Parser {
         if (s.getWhere() != null)
             processExpression(tid, (ZExpression) s.getWhere(), lp);
         lp.addProjectField("null.*", null);
+        lp.setUseEncryptedTwins(false);
 
         OpIterator op = new Delete(tid, lp.physicalPlan(tid,
                 TableStats.getStatsMap(), false));
@@ -32,13 +32,17 @@ public class Project extends Operator {
             OpIterator child) {
         this.child = child;
         outFieldIds = fieldList;
-        String[] fieldAr = new String[fieldList.size()];
+        ArrayList<TDItem> items = new ArrayList<TDItem>(fieldList.size());
         TupleDesc childtd = child.getTupleDesc();
 
-        for (int i = 0; i < fieldAr.length; i++) {
-            fieldAr[i] = childtd.getFieldName(fieldList.get(i));
+        for (int i = 0; i < fieldList.size(); i++) {
+            int field = fieldList.get(i);
+            // a field keeps its width in the child, such as that of a ciphertext
+            items.add(types[i] == childtd.getFieldType(field)
+                    ? new TDItem(types[i], childtd.getFieldName(field), childtd.getFieldLen(field))
+                    : new TDItem(types[i], childtd.getFieldName(field)));
         }
-        td = new TupleDesc(types, fieldAr);
+        td = new TupleDesc(items);
     }
 
     public TupleDesc getTupleDesc() {
@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * ReadAhead spots a scan reading the pages of a file in order and has the
+ * {@link BufferPool} read the pages after the one being read in the
+ * background (see {@link BufferPool#prefetchPage}), so a cold scan finds
+ * them in memory instead of waiting for each read in turn.
+ * <p>
+ * Reading ahead starts at the second of two pages read in order, with a
+ * window of MIN_WINDOW pages past the page being read. The window doubles,
+ * up to MAX_WINDOW pages, whenever the scan reaches a page that has not
+ * been read yet, i.e. whenever it consumes pages faster than they are read
+ * ahead, and it is closed again when the scan jumps to another page.
+ */
+public class ReadAhead {
+
+    public static final int MIN_WINDOW = 4;
+    public static final int MAX_WINDOW = 64;
+
+    // Reader threads are shared between all scans and never keep the JVM alive
+    static final ExecutorService READERS = Executors.newFixedThreadPool(4,
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "read-ahead");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private static volatile boolean enabled = true;
+
+    private final int tableId;
+    // the page read last, the number of pages read ahead of it (0 while the
+    // scan is not sequential), and the last page asked to be read ahead
+    private int lastPage;
+    private int window;
+    private int readUpTo;
+
+    /**
+     * Creates the read-ahead state of a scan of the specified table.
+     */
+    public ReadAhead(int tableId) {
+        this.tableId = tableId;
+        this.lastPage = -1;
+        this.window = 0;
+        this.readUpTo = -1;
+    }
+
+    /**
+     * Sets whether scans read ahead.
+     */
+    public static void setEnabled(boolean enabled) {
+        ReadAhead.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the number of pages read ahead of the page read last
+     */
+    public int getWindow() {
+        return this.window;
+    }
+
+    /**
+     * Notes that the scan is about to read page pageNo of the table, which
+     * has numPages pages, and reads the pages after it ahead if the scan is
+     * reading pages in order.
+     */
+    public void access(int pageNo, int numPages) {
+        if (!enabled) {
+            return;
+        }
+        BufferPool bufferPool = Database.getBufferPool();
+        if (this.lastPage >= 0 && pageNo == this.lastPage + 1) {
+            if (this.window == 0) {
+                this.window = MIN_WINDOW;
+            } else if (!bufferPool.isCached(new HeapPageId(this.tableId, pageNo))) {
+                // the scan caught up with the pages read ahead
+                this.window = Math.min(2 * this.window, MAX_WINDOW);
+            }
+        } else {
+            this.window = 0;
+            this.readUpTo = pageNo;
+        }
+        this.lastPage = pageNo;
+        int end = Math.min(pageNo + this.window, numPages - 1);
+        for (int i = Math.max(this.readUpTo, pageNo) + 1; i <= end; i++) {
+            if (!bufferPool.prefetchPage(new HeapPageId(this.tableId, i))) {
+                // the pool has no room yet; try again at the next page
+                break;
+            }
+            this.readUpTo = i;
+        }
+    }
+}
@@ -125,7 +125,7 @@ public class SeqScan implements OpIterator {
           String fieldName = tdItem.getFieldName();
           fieldName = this.tblAlias + "." + fieldName;
           Type fieldType = tdItem.getFieldType();
-          items.add(new TDItem(fieldType, fieldName));
+          items.add(new TDItem(fieldType, fieldName, tdItem.getFieldLen()));
         }
         return new TupleDesc(items);
     }
@@ -0,0 +1,204 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+/**
+ * ServerScan is the boundary between the two halves of a split query (see
+ * {@link SplitPlanner}). The first read after opening it runs the server half
+ * on a thread of its own, which sends each tuple over a {@link TupleChannel};
+ * the client half reads them from the channel as the children of this
+ * operator. While the server plan has sent no more than REPLAY_CAPACITY
+ * tuples, the client keeps them, so rewinding after the last one replays
+ * them instead of shipping them again. Past that the client keeps none, and
+ * a rewind runs the server plan again.
+ */
+public class ServerScan extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    // Tuples the server may send ahead of the client
+    public static final int CHANNEL_CAPACITY = 1024;
+    // Tuples the client keeps to replay on rewind
+    public static final int REPLAY_CAPACITY = CHANNEL_CAPACITY;
+
+    private OpIterator serverPlan;
+    private transient TupleChannel channel;
+    private transient Thread server;
+    // The tuples received since open, or null once there were too many to
+    // keep, and whether that is all of them
+    private transient ArrayList<Tuple> received;
+    private transient boolean complete;
+    private transient int replayIdx;
+    // Totals of the channels already closed
+    private long tuplesShipped = 0;
+    private long bytesShipped = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param serverPlan
+     *            the server half of the query, which reads only
+     *            EncryptedFiles
+     */
+    public ServerScan(OpIterator serverPlan) {
+        this.serverPlan = serverPlan;
+    }
+
+    /**
+     * @return a new channel from the server to the client, for one run of
+     *   the server plan
+     */
+    protected TupleChannel openChannel() {
+        return new InProcessChannel(CHANNEL_CAPACITY);
+    }
+
+    /**
+     * @return the server half of the query
+     */
+    public OpIterator getServerPlan() {
+        return this.serverPlan;
+    }
+
+    /**
+     * @return the number of tuples the server has sent to the client
+     */
+    public long getTuplesShipped() {
+        TupleChannel ch = this.channel;
+        return this.tuplesShipped + (ch == null ? 0 : ch.getTuplesShipped());
+    }
+
+    /**
+     * @return the size of the tuples the server has sent to the client, in
+     *   bytes
+     */
+    public long getBytesShipped() {
+        TupleChannel ch = this.channel;
+        return this.bytesShipped + (ch == null ? 0 : ch.getBytesShipped());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.serverPlan.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        this.received = new ArrayList<Tuple>();
+        this.complete = false;
+    }
+
+    public void close() {
+        super.close();
+        this.stopServer();
+        this.received = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (this.complete && this.received != null) {
+            this.replayIdx = 0;
+            return;
+        }
+        this.stopServer();
+        this.received = new ArrayList<Tuple>();
+        this.complete = false;
+    }
+
+    /**
+     * Runs the server plan on a new thread, sending its tuples over a new
+     * channel.
+     */
+    private void startServer() {
+        final TupleChannel ch = this.openChannel();
+        final OpIterator plan = this.serverPlan;
+        this.channel = ch;
+        this.server = new Thread(new Runnable() {
+            public void run() {
+                Exception error = null;
+                try {
+                    plan.open();
+                    try {
+                        while (plan.hasNext() && ch.send(plan.next())) {
+                        }
+                    } finally {
+                        plan.close();
+                    }
+                } catch (DbException e) {
+                    error = e;
+                } catch (TransactionAbortedException e) {
+                    error = e;
+                } catch (InterruptedException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = e;
+                } finally {
+                    ch.finish(error);
+                }
+            }
+        }, "ServerScan");
+        this.server.setDaemon(true);
+        this.server.start();
+    }
+
+    /**
+     * Cancels the channel of the current run of the server plan, if any, and
+     * waits for its thread to stop.
+     */
+    private void stopServer() {
+        if (this.channel == null) {
+            return;
+        }
+        this.channel.cancel();
+        try {
+            this.server.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.tuplesShipped += this.channel.getTuplesShipped();
+        this.bytesShipped += this.channel.getBytesShipped();
+        this.channel = null;
+        this.server = null;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Receives the next tuple sent by the
+     * server, or replays the next one kept before a rewind.
+     *
+     * @return The next tuple of the server plan, or null if there are no
+     *         more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (this.complete) {
+            return this.received != null && this.replayIdx < this.received.size()
+                    ? this.received.get(this.replayIdx++) : null;
+        }
+        if (this.channel == null) {
+            this.startServer();
+        }
+        Tuple t = this.channel.receive();
+        if (t == null) {
+            this.complete = true;
+            this.replayIdx = this.received == null ? 0 : this.received.size();
+            this.stopServer();
+        } else if (this.received != null) {
+            this.received.add(t);
+            if (this.received.size() > REPLAY_CAPACITY) {
+                this.received = null;
+            }
+        }
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.serverPlan };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        if (this.serverPlan != children[0]) {
+            this.serverPlan = children[0];
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SplitPlanner turns a {@link LogicalPlan} over tables with encrypted twins
+ * (see {@link HeapFile#getEncryptedTwin}) into a plan that runs in two
+ * halves, one on an untrusted server that holds only the EncryptedFiles and
+ * one on the client that holds the keys. The {@link Parser} plans a query
+ * this way whenever {@link #splits} says that it reads such a twin.
+ * <p>
+ * The server half of each twin applies the filters that can compare OPE
+ * columns. Where the cost model finds it cheaper for the client, it also
+ * joins two twins on their DET columns, or computes a SUM, MIN or MAX with
+ * Paillier and OPE ciphertexts. A SUM or COUNT over an unfiltered twin with
+ * a matching {@link EncryptedAggregateView} is read from the view instead.
+ * An ORDER BY ... LIMIT over a single server plan keeps only the top tuples
+ * of its OPE column on the server. Each server half feeds a
+ * {@link ServerScan}, whose tuples cross a {@link TupleChannel} to the
+ * client half. That half decrypts them (see {@link Decrypt}), applies the
+ * filters that stayed on the client, and finishes the query with
+ * {@link LogicalPlan#finishPlan}. Tables without a twin are read in
+ * plaintext on the client.
+ * <p>
+ * The cost of a plan is what it costs the client: BYTE_COST for each byte
+ * shipped to it, the decryption of each column it receives, and TUPLE_COST
+ * for each tuple its own joins and aggregate read. The server is assumed to
+ * have time to spare.
+ */
+public class SplitPlanner {
+
+    // Cost of shipping one byte from the server to the client
+    public static final double BYTE_COST = 1.0;
+    // Cost of decrypting one OPE or DET column on the client
+    public static final double DECRYPT_COST = 1.0;
+    // Cost of decrypting one Paillier column on the client
+    public static final double PAILLIER_DECRYPT_COST = 1000.0;
+    // Cost of one tuple read by a join or aggregate on the client
+    public static final double TUPLE_COST = 1.0;
+
+    private final LogicalPlan lp;
+    private final ArrayList<ServerScan> serverScans = new ArrayList<ServerScan>();
+
+    /**
+     * @param lp the query to split
+     */
+    public SplitPlanner(LogicalPlan lp) {
+        this.lp = lp;
+    }
+
+    /**
+     * @return whether a table of lp has an encrypted twin that holds the
+     *   same tuples as the table and whose keys are in the keystore, so
+     *   {@link #physicalPlan} sends at least part of lp to the server
+     */
+    public static boolean splits(LogicalPlan lp) {
+        Catalog catalog = Database.getCatalog();
+        for (LogicalScanNode table : lp.getTables()) {
+            if (catalog.getTableName(table.t) == null) {
+                continue;
+            }
+            DbFile file = catalog.getDatabaseFile(table.t);
+            EncryptedFile twin = file instanceof HeapFile ? ((HeapFile) file).getEncryptedTwin() : null;
+            if (twin != null && LogicalPlan.twinKeyPairs(twin) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the boundaries between the server and client halves of the
+     *   last plan returned by {@link #physicalPlan}
+     */
+    public List<ServerScan> getServerScans() {
+        return this.serverScans;
+    }
+
+    /**
+     * Like {@link LogicalPlan#physicalPlan}, but splits the plan between the
+     * server and the client.
+     *
+     * @param t The transaction that the returned OpIterator will run as a part of
+     * @param baseTableStats a {@link TableStats} for each table of the plan, by
+     *   table name
+     * @param explain flag indicating whether the join order should be explained
+     * @throws ParsingException if the logical plan is not valid
+     * @return A OpIterator representing this plan.
+     */
+    public OpIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats,
+            boolean explain) throws ParsingException {
+        Catalog catalog = Database.getCatalog();
+        HashMap<String,OpIterator> subplanMap = new HashMap<String,OpIterator>();
+        HashMap<String,String> equivMap = new HashMap<String,String>();
+        HashMap<String,Double> filterSelectivities = new HashMap<String,Double>();
+        HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashMap<String,EncryptedFile> twins = new HashMap<String,EncryptedFile>();
+        HashMap<String,Map<String,KeyPair>> keys = new HashMap<String,Map<String,KeyPair>>();
+        // the server half of each twin not yet joined into that of another
+        HashMap<String,OpIterator> serverPlans = new HashMap<String,OpIterator>();
+        ArrayList<LogicalFilterNode> clientFilters = new ArrayList<LogicalFilterNode>();
+        this.serverScans.clear();
+
+        for (LogicalScanNode table : this.lp.getTables()) {
+            String tableName = catalog.getTableName(table.t);
+            if (tableName == null) {
+                throw new ParsingException("Unknown table " + table.t);
+            }
+            statsMap.put(tableName, baseTableStats.get(tableName));
+            filterSelectivities.put(table.alias, 1.0);
+            DbFile file = catalog.getDatabaseFile(table.t);
+            EncryptedFile twin = file instanceof HeapFile ? ((HeapFile) file).getEncryptedTwin() : null;
+            Map<String,KeyPair> keyPairs = twin == null ? null : LogicalPlan.twinKeyPairs(twin);
+            if (keyPairs != null) {
+                twins.put(table.alias, twin);
+                keys.put(table.alias, keyPairs);
+                serverPlans.put(table.alias, new SeqScan(t, twin.getId(), table.alias));
+            } else {
+                subplanMap.put(table.alias, new SeqScan(t, table.t, table.alias));
+            }
+        }
+
+        for (LogicalFilterNode lf : this.lp.getFilters()) {
+            Integer tableId = this.lp.getTableId(lf.tableAlias);
+            if (tableId == null || !filterSelectivities.containsKey(lf.tableAlias)) {
+                throw new ParsingException("Unknown table in WHERE clause " + lf.tableAlias);
+            }
+            TupleDesc plainTd = catalog.getTupleDesc(tableId);
+            int plainField;
+            try {
+                plainField = plainTd.fieldNameToIndex(lf.fieldPureName);
+            } catch (NoSuchElementException e) {
+                throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
+            }
+            Field f = constant(plainTd.getFieldType(plainField), lf.c);
+            double sel = statsMap.get(catalog.getTableName(tableId)).estimateSelectivity(plainField, lf.p, f);
+            filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+
+            EncryptedFile twin = twins.get(lf.tableAlias);
+            if (twin == null) {
+                OpIterator subplan = subplanMap.get(lf.tableAlias);
+                subplanMap.put(lf.tableAlias, new Filter(predicate(subplan, lf.fieldQuantifiedName, lf.p, f), subplan));
+            } else if (LogicalPlan.opeFilterable(lf, plainTd, twin.getTupleDesc(), keys.get(lf.tableAlias))) {
+                OpIterator serverPlan = serverPlans.get(lf.tableAlias);
+                OPE_EncodingTree.Bound bound = LogicalPlan.opeBound(keys.get(lf.tableAlias), lf.p, lf.c);
+                Field c = LogicalPlan.opeConstant(keys.get(lf.tableAlias), bound);
+                Predicate p = predicate(serverPlan, lf.tableAlias + "." + HeapFile.OPE_PREFIX + lf.fieldPureName,
+                        bound.op, c);
+                if (serverPlan instanceof SeqScan && twin.getIndex(p.getField()) != null
+                        && IndexScan.supports(bound.op) && sel <= LogicalPlan.INDEX_SCAN_MAX_SELECTIVITY) {
+                    serverPlans.put(lf.tableAlias, new IndexScan(t, twin.getId(), lf.tableAlias, p.getField(),
+                            bound.op, c));
+                } else {
+                    serverPlans.put(lf.tableAlias, new Filter(p, serverPlan));
+                }
+            } else {
+                clientFilters.add(lf);
+            }
+        }
+
+        boolean aggregated = this.pushViewAggregate(t, twins, keys, serverPlans, clientFilters, subplanMap)
+                || this.pushAggregate(statsMap, filterSelectivities, twins, keys,
+                        serverPlans, clientFilters, subplanMap);
+
+        Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>(this.lp.getJoins());
+        if (!aggregated) {
+            this.pushJoins(joins, statsMap, filterSelectivities, twins, keys, serverPlans, equivMap);
+            this.pushTopK(joins, serverPlans, clientFilters, subplanMap);
+            for (Map.Entry<String,OpIterator> serverPlan : serverPlans.entrySet()) {
+                ServerScan scan = new ServerScan(LogicalPlan.opeColumns(serverPlan.getValue()));
+                this.serverScans.add(scan);
+                subplanMap.put(serverPlan.getKey(), new Decrypt(scan, keys.get(serverPlan.getKey())));
+            }
+        }
+
+        // the filters that cannot run on the server run on the decrypted tuples
+        for (LogicalFilterNode lf : clientFilters) {
+            String alias = equivMap.containsKey(lf.tableAlias) ? equivMap.get(lf.tableAlias) : lf.tableAlias;
+            OpIterator subplan = subplanMap.get(alias);
+            Field f = constant(subplan.getTupleDesc().getFieldType(
+                    subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName)), lf.c);
+            subplanMap.put(alias, new Filter(predicate(subplan, lf.fieldQuantifiedName, lf.p, f), subplan));
+        }
+
+        return this.lp.finishPlan(subplanMap, equivMap, joins, statsMap, filterSelectivities, aggregated, explain);
+    }
+
+    /**
+     * Answers the aggregate of the query from an {@link EncryptedAggregateView}
+     * of its twin, if the query reads one twin with no filters, its aggregate
+     * is a SUM or COUNT, and the twin has a view of the aggregated column with
+     * the same GROUP BY. The server then ships one row of the view per group
+     * that is not empty, however large the table, so the view is always
+     * cheaper than aggregating the twin.
+     *
+     * @return whether the aggregate is answered from a view
+     */
+    private boolean pushViewAggregate(TransactionId t, HashMap<String,EncryptedFile> twins,
+            HashMap<String,Map<String,KeyPair>> keys, HashMap<String,OpIterator> serverPlans,
+            List<LogicalFilterNode> clientFilters, HashMap<String,OpIterator> subplanMap)
+            throws ParsingException {
+        if (!this.lp.hasAggregate() || this.lp.getTables().size() != 1 || !this.lp.getJoins().isEmpty()
+                || !clientFilters.isEmpty() || serverPlans.size() != 1) {
+            return false;
+        }
+        String alias = this.lp.getTables().get(0).alias;
+        Aggregator.Op op = LogicalPlan.getAggOp(this.lp.getAggOp());
+        if ((op != Aggregator.Op.SUM && op != Aggregator.Op.COUNT) || !(serverPlans.get(alias) instanceof SeqScan)) {
+            return false;
+        }
+        EncryptedFile twin = twins.get(alias);
+        TupleDesc twinTd = twin.getTupleDesc();
+        int aField = encryptedField(twinTd, this.lp.getAggField(), HeapFile.PAILLIER_PREFIX);
+        if (aField < 0) {
+            return false;
+        }
+        EncryptedAggregateView view = null;
+        if (this.lp.getGroupByField() == null) {
+            view = twin.getAggregateView(Aggregator.NO_GROUPING, aField);
+        } else {
+            for (String prefix : new String[]{ HeapFile.DET_PREFIX, HeapFile.OPE_PREFIX }) {
+                int gField = encryptedField(twinTd, this.lp.getGroupByField(), prefix);
+                if (view == null && gField >= 0) {
+                    view = twin.getAggregateView(gField, aField);
+                }
+            }
+        }
+        if (view == null) {
+            return false;
+        }
+
+        TupleDesc viewTd = view.getStore().getTupleDesc();
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        ArrayList<Type> types = new ArrayList<Type>();
+        if (view.getGroupField() != Aggregator.NO_GROUPING) {
+            fields.add(0);
+            types.add(viewTd.getFieldType(0));
+        }
+        int value = op == Aggregator.Op.SUM ? view.getProductField() : view.getCountField();
+        fields.add(value);
+        types.add(viewTd.getFieldType(value));
+        // groups emptied by deletes keep their rows
+        OpIterator rows = new Filter(new Predicate(view.getCountField(), Predicate.Op.GREATER_THAN, new IntField(0)),
+                new SeqScan(t, view.getStore().getId(), alias));
+        serverPlans.remove(alias);
+        ServerScan scan = new ServerScan(new Project(fields, types, rows));
+        this.serverScans.add(scan);
+        subplanMap.put(alias, new Decrypt(scan, keys.get(alias)));
+        return true;
+    }
+
+    /**
+     * Moves the aggregate of the query to the server, if the query reads one
+     * twin, all its filters run on the server, its aggregate is a SUM, MIN or
+     * MAX, and that costs the client less than aggregating itself. The client
+     * plan of the table is then the decryption of the server's groups.
+     *
+     * @return whether the aggregate was moved to the server
+     */
+    private boolean pushAggregate(HashMap<String,TableStats> statsMap,
+            HashMap<String,Double> filterSelectivities, HashMap<String,EncryptedFile> twins,
+            HashMap<String,Map<String,KeyPair>> keys, HashMap<String,OpIterator> serverPlans,
+            List<LogicalFilterNode> clientFilters, HashMap<String,OpIterator> subplanMap)
+            throws ParsingException {
+        if (!this.lp.hasAggregate() || this.lp.getTables().size() != 1 || !this.lp.getJoins().isEmpty()
+                || !clientFilters.isEmpty() || serverPlans.size() != 1) {
+            return false;
+        }
+        String alias = this.lp.getTables().get(0).alias;
+        Map<String,KeyPair> keyPairs = keys.get(alias);
+        TupleDesc twinTd = twins.get(alias).getTupleDesc();
+        Aggregator.Op op = LogicalPlan.getAggOp(this.lp.getAggOp());
+        EncryptedAggregator.EncOp encOp;
+        String aggPrefix;
+        double aggCost;
+        if (op == Aggregator.Op.SUM) {
+            encOp = EncryptedAggregator.EncOp.PAILLIER_SUM;
+            aggPrefix = HeapFile.PAILLIER_PREFIX;
+            aggCost = PAILLIER_DECRYPT_COST;
+        } else if (op == Aggregator.Op.MIN || op == Aggregator.Op.MAX) {
+            encOp = op == Aggregator.Op.MIN ? EncryptedAggregator.EncOp.OPE_MIN : EncryptedAggregator.EncOp.OPE_MAX;
+            aggPrefix = HeapFile.OPE_PREFIX;
+            aggCost = DECRYPT_COST;
+        } else {
+            return false;
+        }
+        int aField = encryptedField(twinTd, this.lp.getAggField(), aggPrefix);
+        int gField = Aggregator.NO_GROUPING;
+        if (this.lp.getGroupByField() != null) {
+            // prefer grouping on the DET column, which the server cannot order
+            gField = keyPairs.containsKey(HeapFile.DET_PREFIX)
+                    ? encryptedField(twinTd, this.lp.getGroupByField(), HeapFile.DET_PREFIX) : -1;
+            if (gField < 0) {
+                gField = encryptedField(twinTd, this.lp.getGroupByField(), HeapFile.OPE_PREFIX);
+            }
+        }
+        if (aField < 0 || (this.lp.getGroupByField() != null && gField < 0)) {
+            return false;
+        }
+
+        TableStats stats = statsMap.get(Database.getCatalog().getTableName(this.lp.getTableId(alias)));
+        int card = stats.estimateTableCardinality(filterSelectivities.get(alias));
+        double groups = 1;
+        double groupCost = 0;
+        if (gField != Aggregator.NO_GROUPING) {
+            TupleDesc plainTd = Database.getCatalog().getTupleDesc(this.lp.getTableId(alias));
+            int plainField = plainTd.fieldNameToIndex(pureName(this.lp.getGroupByField()));
+            groups = Math.min(card, (double) stats.maxVal(plainField) - stats.minVal(plainField) + 1);
+            groupCost = twinTd.getFieldLen(gField) * BYTE_COST + DECRYPT_COST;
+        }
+        double serverCost = groups * (groupCost + twinTd.getFieldLen(aField) * BYTE_COST + aggCost);
+        double clientCost = card * (this.opeWidth(twinTd) + TUPLE_COST);
+        if (serverCost >= clientCost) {
+            return false;
+        }
+
+        ServerScan scan = new ServerScan(new EncryptedAggregate(serverPlans.remove(alias), aField, gField, encOp,
+                twins.get(alias).getPaillierPublicKey()));
+        this.serverScans.add(scan);
+        subplanMap.put(alias, new Decrypt(scan, keyPairs));
+        return true;
+    }
+
+    /**
+     * Moves to the server each equality join of two twins whose join fields
+     * have DET columns under the same DET key, if both twins share their OPE
+     * key too (so the client can decrypt the joined tuples with one of them),
+     * no other join links the two, and shipping the join costs the client
+     * less than joining the filtered twins itself. A join moved to the
+     * server is removed from joins.
+     */
+    private void pushJoins(Vector<LogicalJoinNode> joins, HashMap<String,TableStats> statsMap,
+            HashMap<String,Double> filterSelectivities, HashMap<String,EncryptedFile> twins,
+            HashMap<String,Map<String,KeyPair>> keys, HashMap<String,OpIterator> serverPlans,
+            HashMap<String,String> equivMap) throws ParsingException {
+        JoinOptimizer jo = new JoinOptimizer(this.lp, joins);
+        Iterator<LogicalJoinNode> joinIt = joins.iterator();
+        while (joinIt.hasNext()) {
+            LogicalJoinNode lj = joinIt.next();
+            if (lj instanceof LogicalSubplanJoinNode || lj.p != Predicate.Op.EQUALS
+                    || !serverPlans.containsKey(lj.t1Alias) || !serverPlans.containsKey(lj.t2Alias)
+                    || lj.t1Alias.equals(lj.t2Alias) || !sameKeys(keys.get(lj.t1Alias), keys.get(lj.t2Alias))) {
+                continue;
+            }
+            int links = 0;
+            for (LogicalJoinNode other : joins) {
+                if ((other.t1Alias.equals(lj.t1Alias) && lj.t2Alias.equals(other.t2Alias))
+                        || (other.t1Alias.equals(lj.t2Alias) && lj.t1Alias.equals(other.t2Alias))) {
+                    links++;
+                }
+            }
+            OpIterator left = serverPlans.get(lj.t1Alias);
+            OpIterator right = serverPlans.get(lj.t2Alias);
+            int leftField = encryptedField(left.getTupleDesc(), lj.f1QuantifiedName, HeapFile.DET_PREFIX);
+            int rightField = encryptedField(right.getTupleDesc(), lj.f2QuantifiedName, HeapFile.DET_PREFIX);
+            if (links != 1 || leftField < 0 || rightField < 0) {
+                continue;
+            }
+
+            int card1 = this.cardinality(lj.t1Alias, statsMap, filterSelectivities);
+            int card2 = this.cardinality(lj.t2Alias, statsMap, filterSelectivities);
+            int joinCard = jo.estimateJoinCardinality(lj, card1, card2, false, false, statsMap);
+            double width1 = this.opeWidth(twins.get(lj.t1Alias).getTupleDesc());
+            double width2 = this.opeWidth(twins.get(lj.t2Alias).getTupleDesc());
+            double serverCost = joinCard * (width1 + width2);
+            double clientCost = card1 * width1 + card2 * width2 + (card1 + card2) * TUPLE_COST;
+            if (serverCost >= clientCost) {
+                continue;
+            }
+
+            serverPlans.put(lj.t1Alias, new HashEquiJoin(
+                    new JoinPredicate(leftField, Predicate.Op.EQUALS, rightField), left, right));
+            serverPlans.remove(lj.t2Alias);
+            equivMap.put(lj.t2Alias, lj.t1Alias);
+            joinIt.remove();
+        }
+    }
+
+    /**
+     * Moves an ORDER BY ... LIMIT k to the server as a {@link TopK} on the
+     * OPE column of the ORDER BY field, if all the tables of the query are in
+     * one server plan, no filters or aggregate are left to the client, and
+     * the field has an OPE column. The server then ships at most k tuples,
+     * which is never more than it would otherwise; the client still orders
+     * them after decrypting.
+     */
+    private void pushTopK(Vector<LogicalJoinNode> joins, HashMap<String,OpIterator> serverPlans,
+            List<LogicalFilterNode> clientFilters, HashMap<String,OpIterator> subplanMap) {
+        if (!this.lp.hasOrderBy() || this.lp.getLimit() < 0 || this.lp.hasAggregate() || !joins.isEmpty()
+                || !clientFilters.isEmpty() || !subplanMap.isEmpty() || serverPlans.size() != 1) {
+            return;
+        }
+        Map.Entry<String,OpIterator> serverPlan = serverPlans.entrySet().iterator().next();
+        int field = encryptedField(serverPlan.getValue().getTupleDesc(), this.lp.getOrderByField(),
+                HeapFile.OPE_PREFIX);
+        if (field >= 0) {
+            serverPlan.setValue(new TopK(field, this.lp.isOrderByAsc(), this.lp.getLimit(), serverPlan.getValue()));
+        }
+    }
+
+    /**
+     * @return the estimated number of tuples of the filtered table alias
+     */
+    private int cardinality(String alias, HashMap<String,TableStats> statsMap,
+            HashMap<String,Double> filterSelectivities) {
+        TableStats stats = statsMap.get(Database.getCatalog().getTableName(this.lp.getTableId(alias)));
+        return stats.estimateTableCardinality(filterSelectivities.get(alias));
+    }
+
+    /**
+     * @return the cost to the client of shipping and decrypting the OPE
+     *   columns of one tuple of a twin with the TupleDesc twinTd
+     */
+    private double opeWidth(TupleDesc twinTd) {
+        double cost = 0;
+        for (int i = 0; i < twinTd.numFields(); i++) {
+            if (twinTd.getFieldName(i).startsWith(HeapFile.OPE_PREFIX)) {
+                cost += twinTd.getFieldLen(i) * BYTE_COST + DECRYPT_COST;
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * @return the index in td of the column that encrypts the field with
+     *   the (qualified or pure) name field under prefix, or -1 if td has none
+     */
+    private static int encryptedField(TupleDesc td, String field, String prefix) {
+        String pureName = pureName(field);
+        String[] names = field.equals(pureName) ? new String[]{ prefix + pureName }
+                : new String[]{ field.substring(0, field.length() - pureName.length()) + prefix + pureName,
+                                prefix + pureName };
+        for (String name : names) {
+            try {
+                return td.fieldNameToIndex(name);
+            } catch (NoSuchElementException e) {
+                // try the next name
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return name without its table alias
+     */
+    private static String pureName(String name) {
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * @return the constant c of a filter on a column of type type
+     */
+    private static Field constant(Type type, String c) {
+        if (type == Type.INT_TYPE) {
+            return new IntField(Integer.parseInt(c));
+        }
+        return new StringField(c, Type.STRING_LEN);
+    }
+
+    /**
+     * @return the predicate comparing the field named fieldName of plan with f
+     * @throws ParsingException if plan has no such field
+     */
+    private static Predicate predicate(OpIterator plan, String fieldName, Predicate.Op op, Field f)
+            throws ParsingException {
+        try {
+            return new Predicate(plan.getTupleDesc().fieldNameToIndex(fieldName), op, f);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field " + fieldName);
+        }
+    }
+
+    /**
+     * @return whether two twins share their DET and OPE keys
+     */
+    private static boolean sameKeys(Map<String,KeyPair> a, Map<String,KeyPair> b) {
+        DET_KeyPair detA = (DET_KeyPair) a.get(HeapFile.DET_PREFIX);
+        DET_KeyPair detB = (DET_KeyPair) b.get(HeapFile.DET_PREFIX);
+        if (detA == null || detB == null
+                || !Arrays.equals(detA.getPublicKey().getKey(), detB.getPublicKey().getKey())) {
+            return false;
+        }
+        return ((OPE_KeyPair) a.get(HeapFile.OPE_PREFIX)).getPublicKey()
+                .equals(((OPE_KeyPair) b.get(HeapFile.OPE_PREFIX)).getPublicKey());
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Instance of Field that stores a single String of a fixed length.
@@ -66,6 +67,19 @@ public class StringField implements Field {
 			dos.write((byte) 0);
 	}
 
+	/**
+	 * Write this string to buf in the same format as serialize(dos), taking
+	 * len = maxSize + 4 bytes.
+	 */
+	public void serialize(ByteBuffer buf, int len) {
+		int strLen = Math.min(value.length(), len - 4);
+		buf.putInt(strLen);
+		for (int i = 0; i < strLen; i++)
+			buf.put((byte) value.charAt(i));
+		for (int i = strLen; i < len - 4; i++)
+			buf.put((byte) 0);
+	}
+
 	/**
 	 * Compare the specified field to the value of this Field. Return semantics
 	 * are as specified by Field.compare
@@ -19,9 +19,24 @@ public class TDItem implements Serializable {
      * */
     public final String fieldName;
 
+    /**
+     * The number of bytes the field takes in a page
+     * */
+    public final int fieldLen;
+
     public TDItem(Type t, String n) {
+        this(t, n, t.getLen());
+    }
+
+    /**
+     * Creates an item whose values take len bytes instead of the default
+     * t.getLen(), e.g. a BIGINT_TYPE column sized to the ciphertexts of its
+     * table's key.
+     */
+    public TDItem(Type t, String n, int len) {
         this.fieldType = t;
         this.fieldName = n;
+        this.fieldLen = len;
     }
 
     public Type getFieldType() {
@@ -32,6 +47,10 @@ public class TDItem implements Serializable {
         return this.fieldName;
     }
 
+    public int getFieldLen() {
+        return this.fieldLen;
+    }
+
     public String toString() {
         return fieldName + "(" + fieldType + ")";
     }
@@ -0,0 +1,346 @@
+package simpledb;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * TableKeyStore keeps the Paillier, OPE and DET key pairs of every table in a
+ * single file, so that keys survive restarts without being generated again.
+ * <p>
+ * The file is a header followed by an append-only list of records, one per
+ * call to {@link #putKeyPairs}. A Paillier key pair is written as its
+ * parameters (n, g and either the primes of n or lambda and mu) rather than
+ * as a serialized object; the OPE key pair is written as a serialized blob
+ * since its cipher varies; the DET key pair, which a table need not have, is
+ * written as its raw AES key. When a table has several records the last one
+ * wins, and storing the key pairs a table already has writes nothing. Once
+ * the records that later ones replaced outnumber the live ones, the file is
+ * rewritten with the last record of each table only. The file is read once,
+ * on the first lookup. A version 1 file, whose records have no DET key pair,
+ * is rewritten as version 2 when it is read.
+ *
+ * @Threadsafe
+ */
+public class TableKeyStore {
+
+    private static final int MAGIC = 0x53444b53; // "SDKS"
+    // Version 2 added the DET key pair
+    private static final int VERSION = 2;
+    private static final int VERSION_NO_DET = 1;
+
+    // How the private part of a Paillier key is written
+    private static final byte PAILLIER_PRIMES = 0;
+    private static final byte PAILLIER_LAMBDA_MU = 1;
+
+    private final File file;
+    private Map<Integer, ConcurrentHashMap<String, KeyPair>> keyPairs;
+    private DET_KeyPair detKeyPair;
+    // Records in the file that a later record of the same table replaced
+    private int superseded;
+
+    /**
+     * @param f the file the keys are kept in; it need not exist yet
+     */
+    public TableKeyStore(File f) {
+        this.file = f;
+        this.keyPairs = null;
+        this.detKeyPair = null;
+    }
+
+    /**
+     * @return the file backing this keystore
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Returns the key pairs of a table, keyed by {@link HeapFile#PAILLIER_PREFIX},
+     * {@link HeapFile#OPE_PREFIX} and, if the table has one, {@link HeapFile#DET_PREFIX}.
+     *
+     * @param tableId the id of the table
+     * @return the key pairs of the table, or null if none were stored
+     * @throws DbException if the keystore file cannot be read
+     */
+    public synchronized ConcurrentHashMap<String, KeyPair> getKeyPairs(int tableId)
+        throws DbException {
+        this.load();
+        ConcurrentHashMap<String, KeyPair> pairs = this.keyPairs.get(tableId);
+        return pairs == null ? null : new ConcurrentHashMap<String, KeyPair>(pairs);
+    }
+
+    /**
+     * Stores the key pairs of a table, replacing any stored before. The
+     * record is appended and flushed to disk before this returns, unless the
+     * table already has these key pairs.
+     *
+     * @param tableId the id of the table
+     * @param pairs the key pairs, which must include a Paillier_KeyPair under
+     *   HeapFile.PAILLIER_PREFIX and an OPE_KeyPair under HeapFile.OPE_PREFIX,
+     *   and may include a DET_KeyPair under HeapFile.DET_PREFIX
+     * @throws DbException if the keystore file cannot be written
+     */
+    public synchronized void putKeyPairs(int tableId, Map<String, KeyPair> pairs)
+        throws DbException {
+        this.load();
+        Paillier_KeyPair paillier = (Paillier_KeyPair) pairs.get(HeapFile.PAILLIER_PREFIX);
+        OPE_KeyPair ope = (OPE_KeyPair) pairs.get(HeapFile.OPE_PREFIX);
+        DET_KeyPair det = (DET_KeyPair) pairs.get(HeapFile.DET_PREFIX);
+        ConcurrentHashMap<String, KeyPair> old = this.keyPairs.get(tableId);
+        try {
+            byte[] record = record(tableId, pairs);
+            if (old != null && Arrays.equals(record, record(tableId, old))) {
+                return;
+            }
+            boolean isNew = !this.file.exists() || this.file.length() == 0;
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(this.file, true)));
+            try {
+                if (isNew) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                }
+                out.write(record);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new DbException("Could not write keystore " + this.file + ": " + e.getMessage());
+        }
+        ConcurrentHashMap<String, KeyPair> stored = new ConcurrentHashMap<String, KeyPair>();
+        stored.put(HeapFile.PAILLIER_PREFIX, (KeyPair) paillier);
+        stored.put(HeapFile.OPE_PREFIX, (KeyPair) ope);
+        if (det != null) {
+            stored.put(HeapFile.DET_PREFIX, (KeyPair) det);
+            if (this.detKeyPair == null) {
+                this.detKeyPair = det;
+            }
+        }
+        this.keyPairs.put(tableId, stored);
+        if (old != null && ++this.superseded > this.keyPairs.size()) {
+            this.rewrite();
+        }
+    }
+
+    /**
+     * Returns the DET key pair new tables are given by default: that of the
+     * first table stored with one. Tables sharing a DET key can be joined on
+     * their DET columns.
+     *
+     * @return the DET key pair, or null if no table has one
+     * @throws DbException if the keystore file cannot be read
+     */
+    public synchronized DET_KeyPair getDetKeyPair() throws DbException {
+        this.load();
+        return this.detKeyPair;
+    }
+
+    /**
+     * Reads every record of the keystore file, if it has not been read yet.
+     */
+    private void load() throws DbException {
+        if (this.keyPairs != null) {
+            return;
+        }
+        Map<Integer, ConcurrentHashMap<String, KeyPair>> loaded =
+                new HashMap<Integer, ConcurrentHashMap<String, KeyPair>>();
+        int version = VERSION;
+        int records = 0;
+        if (this.file.exists() && this.file.length() > 0) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(this.file)));
+                try {
+                    if (in.readInt() != MAGIC) {
+                        throw new DbException(this.file + " is not a keystore");
+                    }
+                    version = in.readInt();
+                    if (version != VERSION && version != VERSION_NO_DET) {
+                        throw new DbException(this.file + " is not a keystore");
+                    }
+                    while (true) {
+                        int tableId;
+                        try {
+                            tableId = in.readInt();
+                        } catch (EOFException e) {
+                            break;
+                        }
+                        ConcurrentHashMap<String, KeyPair> pairs = new ConcurrentHashMap<String, KeyPair>();
+                        pairs.put(HeapFile.PAILLIER_PREFIX, (KeyPair) readPaillier(in));
+                        byte[] opeBytes = new byte[in.readInt()];
+                        in.readFully(opeBytes);
+                        ObjectInputStream opeIn = new ObjectInputStream(new ByteArrayInputStream(opeBytes));
+                        pairs.put(HeapFile.OPE_PREFIX, (KeyPair) opeIn.readObject());
+                        DET_KeyPair det = version == VERSION_NO_DET ? null : readDet(in);
+                        if (det != null) {
+                            pairs.put(HeapFile.DET_PREFIX, (KeyPair) det);
+                            if (this.detKeyPair == null) {
+                                this.detKeyPair = det;
+                            }
+                        }
+                        loaded.put(tableId, pairs);
+                        records++;
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new DbException("Could not read keystore " + this.file + ": " + e.getMessage());
+            } catch (ClassNotFoundException e) {
+                throw new DbException("Could not read keystore " + this.file + ": " + e.getMessage());
+            }
+        }
+        this.keyPairs = loaded;
+        this.superseded = records - loaded.size();
+        if (version != VERSION || this.superseded > loaded.size()) {
+            this.rewrite();
+        }
+    }
+
+    /**
+     * Replaces the keystore file with one in the current version holding the
+     * last record of each table, through a temporary file so that a crash
+     * leaves either the old file or the new one.
+     */
+    private void rewrite() throws DbException {
+        File tmp = new File(this.file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                for (Map.Entry<Integer, ConcurrentHashMap<String, KeyPair>> entry : this.keyPairs.entrySet()) {
+                    writeRecord(out, entry.getKey(), entry.getValue());
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            this.superseded = 0;
+        } catch (IOException e) {
+            tmp.delete();
+            throw new DbException("Could not rewrite keystore " + this.file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the record of the key pairs of a table, as written to the file
+     */
+    private static byte[] record(int tableId, Map<String, KeyPair> pairs) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeRecord(out, tableId, pairs);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes the record of the key pairs of a table
+     */
+    private static void writeRecord(DataOutputStream out, int tableId, Map<String, KeyPair> pairs)
+        throws IOException {
+        out.writeInt(tableId);
+        writePaillier(out, (Paillier_KeyPair) pairs.get(HeapFile.PAILLIER_PREFIX));
+        ByteArrayOutputStream opeBytes = new ByteArrayOutputStream();
+        ObjectOutputStream opeOut = new ObjectOutputStream(opeBytes);
+        opeOut.writeObject(pairs.get(HeapFile.OPE_PREFIX));
+        opeOut.close();
+        out.writeInt(opeBytes.size());
+        opeBytes.writeTo(out);
+        writeDet(out, (DET_KeyPair) pairs.get(HeapFile.DET_PREFIX));
+    }
+
+    private static void writePaillier(DataOutputStream out, Paillier_KeyPair keyPair)
+        throws IOException {
+        Paillier_PublicKey publicKey = keyPair.getPublicKey();
+        Paillier_PrivateKey privateKey = keyPair.getPrivateKey();
+        out.writeInt(publicKey.getBits());
+        writeBigInteger(out, keyPair.getUpperBound());
+        writeBigInteger(out, publicKey.getG());
+        if (privateKey.hasFactors()) {
+            out.writeByte(PAILLIER_PRIMES);
+            writeBigInteger(out, privateKey.getP());
+            writeBigInteger(out, privateKey.getQ());
+        } else {
+            out.writeByte(PAILLIER_LAMBDA_MU);
+            writeBigInteger(out, publicKey.getN());
+            writeBigInteger(out, privateKey.getLambda());
+            writeBigInteger(out, privateKey.getPreCalculatedDenominator());
+        }
+    }
+
+    private static Paillier_KeyPair readPaillier(DataInputStream in) throws IOException {
+        int bits = in.readInt();
+        BigInteger upperBound = readBigInteger(in);
+        BigInteger g = readBigInteger(in);
+        byte kind = in.readByte();
+        if (kind == PAILLIER_PRIMES) {
+            BigInteger p = readBigInteger(in);
+            BigInteger q = readBigInteger(in);
+            return Paillier_KeyPairBuilder.fromPrimes(p, q, g, bits, upperBound);
+        }
+        if (kind != PAILLIER_LAMBDA_MU) {
+            throw new IOException("Unknown Paillier key record " + kind);
+        }
+        BigInteger n = readBigInteger(in);
+        BigInteger lambda = readBigInteger(in);
+        BigInteger mu = readBigInteger(in);
+        return new Paillier_KeyPair(new Paillier_PrivateKey(lambda, mu),
+                new Paillier_PublicKey(n, n.multiply(n), g, bits), upperBound);
+    }
+
+    /**
+     * Writes the AES key of keyPair, length-prefixed; null is written as
+     * length -1
+     */
+    private static void writeDet(DataOutputStream out, DET_KeyPair keyPair) throws IOException {
+        if (keyPair == null) {
+            out.writeShort(-1);
+            return;
+        }
+        byte[] key = keyPair.getPublicKey().getKey();
+        out.writeShort(key.length);
+        out.write(key);
+    }
+
+    private static DET_KeyPair readDet(DataInputStream in) throws IOException {
+        int len = in.readShort();
+        if (len < 0) {
+            return null;
+        }
+        byte[] key = new byte[len];
+        in.readFully(key);
+        return new DET_KeyPair(key);
+    }
+
+    /**
+     * Writes v as a length-prefixed two's complement array; null is written
+     * as length -1
+     */
+    private static void writeBigInteger(DataOutputStream out, BigInteger v) throws IOException {
+        if (v == null) {
+            out.writeShort(-1);
+            return;
+        }
+        byte[] bytes = v.toByteArray();
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static BigInteger readBigInteger(DataInputStream in) throws IOException {
+        int len = in.readShort();
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new BigInteger(bytes);
+    }
+}
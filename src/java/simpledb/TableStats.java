@@ -118,9 +118,12 @@ public class TableStats {
               }
               Object histogram = (Object) (new IntHistogram(NUM_HIST_BINS, min, max));
               this.histograms.add(histogram);
-            } else {
+            } else if (fieldType == Type.STRING_TYPE) {
               Object histogram = (Object) (new StringHistogram(NUM_HIST_BINS));
               this.histograms.add(histogram);
+            } else {
+              // no histogram over Paillier ciphertexts
+              this.histograms.add(null);
             }
             tblIter.rewind();
           }
@@ -135,7 +138,7 @@ public class TableStats {
                 intHist.addValue(nextVal);
               }
               this.numTuples = intHist.numTuples();
-            } else {
+            } else if (fieldType == Type.STRING_TYPE) {
               StringHistogram strHist = (StringHistogram) this.histograms.get(i);
               while (tblIter.hasNext()) {
                 Tuple next = tblIter.next();
@@ -170,7 +173,8 @@ public class TableStats {
         // some code goes here
         Catalog catalog = Database.getCatalog();
         DbFile table = catalog.getDatabaseFile(this.tblId);
-        int numPages = ((HeapFile) table).numPages();
+        int numPages = table instanceof EncryptedFile ? ((EncryptedFile) table).numPages()
+                : ((HeapFile) table).numPages();
         return numPages * this.ioPageCost;
     }
 
@@ -236,6 +240,9 @@ public class TableStats {
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         // some code goes here
         Type fieldType = constant.getType();
+        if (this.histograms.get(field) == null) {
+          return 1.0;
+        }
         if (fieldType == Type.INT_TYPE) {
           int fieldConstant = ((IntField) constant).getValue();
           IntHistogram intHist = (IntHistogram) this.histograms.get(field);
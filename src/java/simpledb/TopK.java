@@ -0,0 +1,167 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopK is an operator that implements ORDER BY ... LIMIT k. Rather than
+ * sorting all of its child's tuples like {@link OrderBy}, it keeps the best k
+ * seen so far in a heap whose head is the worst of them, so it holds at most
+ * k tuples and replaces the head only when a better tuple arrives. Tuples
+ * that tie keep the order of the child, as in OrderBy.
+ * <p>
+ * OPE ciphertexts are ordered like their plaintexts, so the server half of a
+ * split query (see {@link SplitPlanner}) can run a TopK over an OPE column
+ * and ship only k tuples.
+ */
+public class TopK extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private TupleDesc td;
+    private int orderByField;
+    private String orderByFieldName;
+    private boolean asc;
+    private int k;
+    private ArrayList<Tuple> top;
+    private Iterator<Tuple> it;
+
+    /**
+     * A tuple of the heap, with its position in the child's output to break
+     * ties.
+     */
+    private static class Ranked {
+        final Tuple t;
+        final long seq;
+
+        Ranked(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Creates a new TopK node over the tuples from the iterator.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param k
+     *            the number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopK(int orderbyField, boolean asc, int k, OpIterator child) {
+        if (k < 0) {
+            throw new IllegalArgumentException("negative limit " + k);
+        }
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.orderByField = orderbyField;
+        this.orderByFieldName = td.getFieldName(orderbyField);
+        this.asc = asc;
+        this.k = k;
+    }
+
+    public boolean isASC() {
+        return this.asc;
+    }
+
+    public int getOrderByField() {
+        return this.orderByField;
+    }
+
+    public String getOrderFieldName() {
+        return this.orderByFieldName;
+    }
+
+    /** @return the number of tuples this operator returns at most */
+    public int getLimit() {
+        return this.k;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        this.child.open();
+        this.top = this.select();
+        this.it = this.top.iterator();
+        super.open();
+    }
+
+    /**
+     * @return the best k tuples of the child, in order
+     */
+    private ArrayList<Tuple> select() throws DbException, TransactionAbortedException {
+        final Comparator<Tuple> order = new TupleComparator(this.orderByField, this.asc);
+        // the head of the heap is the worst tuple kept: the last in order,
+        // and of those that tie, the last to arrive
+        Comparator<Ranked> worstFirst = new Comparator<Ranked>() {
+            public int compare(Ranked a, Ranked b) {
+                int c = order.compare(b.t, a.t);
+                return c != 0 ? c : Long.compare(b.seq, a.seq);
+            }
+        };
+        PriorityQueue<Ranked> heap = new PriorityQueue<Ranked>(Math.max(1, this.k), worstFirst);
+        long seq = 0;
+        if (this.k > 0) {
+            while (this.child.hasNext()) {
+                Tuple t = this.child.next();
+                if (heap.size() < this.k) {
+                    heap.add(new Ranked(t, seq));
+                } else if (order.compare(t, heap.peek().t) < 0) {
+                    // a later tuple that ties with the head comes after it
+                    heap.poll();
+                    heap.add(new Ranked(t, seq));
+                }
+                seq++;
+            }
+        }
+        ArrayList<Tuple> sorted = new ArrayList<Tuple>(heap.size());
+        while (!heap.isEmpty()) {
+            sorted.add(heap.poll().t);
+        }
+        Collections.reverse(sorted);
+        return sorted;
+    }
+
+    public void close() {
+        super.close();
+        this.child.close();
+        this.it = null;
+        this.top = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.it = this.top.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the best k tuples from the
+     * child operator in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (this.it != null && this.it.hasNext()) {
+            return this.it.next();
+        } else
+            return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -1,7 +1,11 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.ArrayList;
 
@@ -9,6 +13,10 @@ import java.util.ArrayList;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page keeps the bytes of the page instead, and decodes
+ * each field from them the first time it is read, so operators only pay for
+ * the fields they use.
  */
 public class Tuple implements Serializable {
 
@@ -17,6 +25,14 @@ public class Tuple implements Serializable {
     private TupleDesc tupDesc;
     private RecordId recId;
     private ArrayList<Field> fields;
+    // The page the fields not decoded yet are read from, null once every
+    // field is decoded or set, and where they are in it: field i is at
+    // offset + columnScale * (its offset in a tuple) + columnSlot * (its
+    // length), which is offset + (its offset in a tuple) in a row-wise page
+    private transient byte[] data;
+    private transient int offset;
+    private transient int columnScale;
+    private transient int columnSlot;
 
     /**
      * Create a new tuple with the specified schema (type).
@@ -31,6 +47,56 @@ public class Tuple implements Serializable {
         this.fields = new ArrayList<Field>();
     }
 
+    /**
+     * Create a new tuple whose fields are encoded in data as laid out by td,
+     * starting at offset. Each field is decoded when it is first read; data
+     * must not change afterwards.
+     *
+     * @param td
+     *            the schema of this tuple.
+     * @param data
+     *            the bytes of the tuple, usually a whole page.
+     * @param offset
+     *            the position of the tuple in data.
+     */
+    public Tuple(TupleDesc td, byte[] data, int offset) {
+        this(td, data, offset, 1, 0);
+    }
+
+    /**
+     * Create a new tuple whose fields are encoded in data column by column,
+     * as in a {@link PageLayout#PAX} page: each column holds the field of
+     * every slot in turn, and the columns follow one another from offset.
+     * Fields are decoded as with {@link #Tuple(TupleDesc, byte[], int)}.
+     *
+     * @param td
+     *            the schema of this tuple.
+     * @param data
+     *            the bytes of the page.
+     * @param offset
+     *            the position of the first column in data.
+     * @param numSlots
+     *            the number of slots in each column.
+     * @param slot
+     *            the slot of this tuple.
+     */
+    public Tuple(TupleDesc td, byte[] data, int offset, int numSlots, int slot) {
+        this.tupDesc = td;
+        this.fields = new ArrayList<Field>(Collections.<Field>nCopies(td.numFields(), null));
+        this.data = data;
+        this.offset = offset;
+        this.columnScale = numSlots;
+        this.columnSlot = slot;
+    }
+
+    /**
+     * @return the position in data of the ith field
+     */
+    private int fieldPosition(int i) {
+        return this.offset + this.columnScale * this.tupDesc.getFieldOffset(i)
+                + this.columnSlot * this.tupDesc.getFieldLen(i);
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -104,10 +170,52 @@ public class Tuple implements Serializable {
         int numFldsCum = this.fields.size();
         if (i >= numFldsCum) {
           return null;
-        } else if (this.fields.get(i) == null) {
-          return null;
         }
-        return this.fields.get(i);
+        Field f = this.fields.get(i);
+        if (f == null) {
+          byte[] data = this.data;
+          if (data == null) {
+            return null;
+          }
+          // racing readers decode equal fields, so either may be kept
+          f = this.tupDesc.getFieldType(i).parse(ByteBuffer.wrap(data,
+                  this.fieldPosition(i), this.tupDesc.getFieldLen(i)),
+                  this.tupDesc.getFieldLen(i));
+          this.fields.set(i, f);
+        }
+        return f;
+    }
+
+    /**
+     * Writes the ith field of this tuple to buf, as laid out in a page. A
+     * field that was never read is copied from the page it was read from.
+     */
+    void serializeField(int i, ByteBuffer buf) {
+        int len = this.tupDesc.getFieldLen(i);
+        byte[] data = this.data;
+        if (data != null && this.fields.get(i) == null) {
+          buf.put(data, this.fieldPosition(i), len);
+        } else {
+          this.getField(i).serialize(buf, len);
+        }
+    }
+
+    /**
+     * Decodes every field that has not been read yet, and lets go of the
+     * page they were read from.
+     */
+    private void decodeAll() {
+        if (this.data != null) {
+          for (int i = 0; i < this.tupDesc.numFields(); i++) {
+            this.getField(i);
+          }
+          this.data = null;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        this.decodeAll();
+        out.defaultWriteObject();
     }
 
     /**
@@ -185,6 +293,7 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
+        this.decodeAll();
         return this.fields.iterator();
     }
 
@@ -196,5 +305,6 @@ public class Tuple implements Serializable {
         // some code goes here
         this.tupDesc = td;
         this.fields = new ArrayList<Field>();
+        this.data = null;
     }
 }
@@ -0,0 +1,49 @@
+package simpledb;
+
+/**
+ * A TupleChannel carries the tuples of the server half of a split query to
+ * the client half that finishes it (see {@link ServerScan} and
+ * {@link SplitPlanner}). The server calls {@link #send} for each tuple and
+ * then {@link #finish}; the client calls {@link #receive} until it returns
+ * null. {@link InProcessChannel} hands the tuples between two threads of
+ * this process; a channel over a socket would serialize them instead.
+ */
+public interface TupleChannel {
+
+    /**
+     * Sends a tuple to the client, waiting while the channel is full.
+     *
+     * @return false if the client has cancelled the channel, in which case
+     *   the server should stop sending
+     * @throws InterruptedException if the server thread is interrupted
+     */
+    public boolean send(Tuple t) throws InterruptedException;
+
+    /**
+     * Marks the end of the tuples.
+     *
+     * @param error the exception that stopped the server half early, or
+     *   null if it ran to completion
+     */
+    public void finish(Exception error);
+
+    /**
+     * @return the next tuple sent by the server, or null once the server
+     *   has finished
+     * @throws DbException if the server half failed, or if the client is
+     *   interrupted while waiting
+     * @throws TransactionAbortedException if the server half was aborted
+     */
+    public Tuple receive() throws DbException, TransactionAbortedException;
+
+    /**
+     * Stops the transfer, dropping any tuples not yet received.
+     */
+    public void cancel();
+
+    /** @return the number of tuples sent so far */
+    public long getTuplesShipped();
+
+    /** @return the size of the tuples sent so far, in bytes */
+    public long getBytesShipped();
+}
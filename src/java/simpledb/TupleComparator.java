@@ -0,0 +1,33 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/**
+ * Orders tuples by one of their fields, for {@link OrderBy} and {@link TopK}.
+ */
+class TupleComparator implements Comparator<Tuple> {
+    int field;
+    boolean asc;
+
+    public TupleComparator(int field, boolean asc) {
+        this.field = field;
+        this.asc = asc;
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        Field t1 = (o1).getField(field);
+        Field t2 = (o2).getField(field);
+        // INT fields, which include OPE ciphertexts, compare in one step
+        if (t1 instanceof IntField && t2 instanceof IntField) {
+            int c = Integer.compare(((IntField) t1).getValue(), ((IntField) t2).getValue());
+            return asc ? c : -c;
+        }
+        if (t1.compare(Predicate.Op.EQUALS, t2))
+            return 0;
+        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+            return asc ? 1 : -1;
+        else
+            return asc ? -1 : 1;
+    }
+    
+}
@@ -9,6 +9,9 @@ import java.util.*;
 public class TupleDesc implements Serializable, Iterable<TDItem> {
 
     private ArrayList<TDItem> items;
+    // Where each field starts in a tuple of this TupleDesc, computed when
+    // first asked for
+    private transient int[] offsets;
 
     /**
      * @return
@@ -133,6 +136,54 @@ public class TupleDesc implements Serializable, Iterable<TDItem> {
         }
     }
 
+    /**
+     * Gets the number of bytes the ith field of this TupleDesc takes in a page.
+     * This is the length of its type unless the field was created with an
+     * explicit length.
+     * 
+     * @param i
+     *            The index of the field. It must be a valid index.
+     * @return the length in bytes of the ith field
+     * @throws NoSuchElementException
+     *             if i is not a valid field reference.
+     */
+    public int getFieldLen(int i) throws NoSuchElementException {
+        try {
+          return this.items.get(i).getFieldLen();
+        } catch (IndexOutOfBoundsException iobExn) {
+          String errMsg = String.format("No element resides at index %d of this tuple schema", i);
+          throw new NoSuchElementException(errMsg);
+        }
+    }
+
+    /**
+     * Gets the number of bytes that come before the ith field in a tuple of
+     * this TupleDesc, as laid out in a page.
+     * 
+     * @param i
+     *            The index of the field. It must be a valid index.
+     * @return the offset in bytes of the ith field
+     * @throws NoSuchElementException
+     *             if i is not a valid field reference.
+     */
+    public int getFieldOffset(int i) throws NoSuchElementException {
+        int[] offsets = this.offsets;
+        if (offsets == null) {
+          offsets = new int[this.items.size()];
+          int offset = 0;
+          for (int j = 0; j < offsets.length; j++) {
+            offsets[j] = offset;
+            offset += this.items.get(j).getFieldLen();
+          }
+          this.offsets = offsets;
+        }
+        if (i < 0 || i >= offsets.length) {
+          String errMsg = String.format("No element resides at index %d of this tuple schema", i);
+          throw new NoSuchElementException(errMsg);
+        }
+        return offsets[i];
+    }
+
     /**
      * Find the index of the field with a given name.
      * 
@@ -169,7 +220,7 @@ public class TupleDesc implements Serializable, Iterable<TDItem> {
         // some code goes here
         int sizeBytes = 0;
         for (TDItem tdItem : this.items) {
-          sizeBytes += tdItem.getFieldType().getLen();
+          sizeBytes += tdItem.getFieldLen();
         }
         return sizeBytes;
     }
@@ -199,8 +250,8 @@ public class TupleDesc implements Serializable, Iterable<TDItem> {
     /**
      * Compares the specified object with this TupleDesc for equality. Two
      * TupleDescs are considered equal if they have the same number of items
-     * and if the i-th type in this TupleDesc is equal to the i-th type in o
-     * for every i.
+     * and if the i-th type and length in this TupleDesc are equal to the i-th
+     * type and length in o for every i.
      * 
      * @param o
      *            the Object to be compared for equality with this TupleDesc.
@@ -218,7 +269,8 @@ public class TupleDesc implements Serializable, Iterable<TDItem> {
           return false;
         }
         for (int i = 0; i < thisNumFields; i++) {
-          if (this.getFieldType(i) != thatTD.getFieldType(i)) {
+          if (this.getFieldType(i) != thatTD.getFieldType(i)
+              || this.getFieldLen(i) != thatTD.getFieldLen(i)) {
             return false;
           }
         }
@@ -3,6 +3,7 @@ package simpledb;
 import java.text.ParseException;
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -25,6 +26,31 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int len) {
+            return new IntField(buf.getInt());
+        }
+
+        @Override
+        public int getMinCompactLen() {
+            return 4;
+        }
+
+        @Override
+        public int getCompactLen(Field f, int len) {
+            return 4;
+        }
+
+        @Override
+        public void serializeCompact(Field f, ByteBuffer buf, int len) {
+            buf.putInt(((IntField) f).getValue());
+        }
+
+        @Override
+        public Field parseCompact(ByteBuffer buf, int len) {
+            return new IntField(buf.getInt());
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -43,30 +69,105 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int len) {
+            int strLen = buf.getInt();
+            char[] cs = new char[strLen];
+            for (int i = 0; i < strLen; i++) {
+                cs[i] = (char) (buf.get() & 0xFF);
+            }
+            buf.position(buf.position() + len - 4 - strLen);
+            return new StringField(new String(cs), len - 4);
+        }
+
+        @Override
+        public int getMinCompactLen() {
+            return 2;
+        }
+
+        @Override
+        public int getCompactLen(Field f, int len) {
+            return 2 + Math.min(((StringField) f).getValue().length(), len - 4);
+        }
+
+        @Override
+        public void serializeCompact(Field f, ByteBuffer buf, int len) {
+            String value = ((StringField) f).getValue();
+            int strLen = Math.min(value.length(), len - 4);
+            buf.putShort((short) strLen);
+            for (int i = 0; i < strLen; i++) {
+                buf.put((byte) value.charAt(i));
+            }
+        }
+
+        @Override
+        public Field parseCompact(ByteBuffer buf, int len) {
+            int strLen = buf.getShort() & 0xFFFF;
+            char[] cs = new char[strLen];
+            for (int i = 0; i < strLen; i++) {
+                cs[i] = (char) (buf.get() & 0xFF);
+            }
+            return new StringField(new String(cs), len - 4);
+        }
     }, BIGINT_TYPE() {
         @Override
         public int getLen() {
-            return BIGINT_LEN+4;
+            return BIGINT_LEN;
         }
         
         @Override
         public Field parse(DataInputStream dis) throws ParseException {
             try {
-                int biglen = dis.readInt();
-                byte bs[] = new byte[biglen];
-                dis.read(bs);
-                dis.skipBytes(BIGINT_LEN-biglen);
+                byte bs[] = new byte[BIGINT_LEN];
+                dis.readFully(bs);
                 BigInteger bi = new BigInteger(bs);
                 return new BigIntField(bi);
             } catch (IOException e) {
                 throw new ParseException("Couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int len) {
+            return BigIntField.read(buf, len);
+        }
+
+        @Override
+        public int getMinCompactLen() {
+            return 3;
+        }
+
+        @Override
+        public int getCompactLen(Field f, int len) {
+            // the length of BigInteger.toByteArray()
+            return 2 + ((BigIntField) f).getValue().bitLength() / 8 + 1;
+        }
+
+        @Override
+        public void serializeCompact(Field f, ByteBuffer buf, int len) {
+            byte[] bytes = ((BigIntField) f).getValue().toByteArray();
+            if (bytes.length > len) {
+                throw new IllegalArgumentException("BigInt of " + bytes.length + " bytes does not fit in "
+                        + len + " bytes");
+            }
+            buf.putShort((short) bytes.length);
+            buf.put(bytes);
+        }
+
+        @Override
+        public Field parseCompact(ByteBuffer buf, int len) {
+            byte[] bytes = new byte[buf.getShort() & 0xFFFF];
+            buf.get(bytes);
+            return new BigIntField(new BigInteger(bytes));
+        }
     };
     
     public static final int STRING_LEN = 128;
-    // needed an arbitrary value higher than 33, choosing 40 because divisible by 8
-    public static final int BIGINT_LEN = 40; 
+    // Default width of a BIGINT_TYPE column: big enough for a Paillier ciphertext
+    // (< n^2) under a HeapFile.BITS_INTEGER-bit modulus, plus a sign bit. Encrypted
+    // tables size their Paillier columns from their own key instead.
+    public static final int BIGINT_LEN = 2 * HeapFile.BITS_INTEGER / 8 + 1;
 
   /**
    * @return the number of bytes required to store a field of this type.
@@ -82,4 +183,45 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object whose contents
+   *   are the len bytes at the current position of buf, as written by
+   *   {@link Field#serialize(ByteBuffer, int)}. Advances buf by len bytes.
+   * @param buf The buffer to read from, usually wrapping a page
+   * @param len The length of the field, as given by {@link TupleDesc#getFieldLen}
+   */
+    public abstract Field parse(ByteBuffer buf, int len);
+
+  /**
+   * @return the fewest bytes that {@link #serializeCompact} writes for a
+   *   field of this type
+   */
+    public abstract int getMinCompactLen();
+
+  /**
+   * @return the number of bytes that {@link #serializeCompact} writes for f
+   * @param f A field of this type
+   * @param len The length of the field, as given by {@link TupleDesc#getFieldLen}
+   */
+    public abstract int getCompactLen(Field f, int len);
+
+  /**
+   * Writes f to buf in as few bytes as its value needs, rather than the len
+   * bytes of {@link Field#serialize(ByteBuffer, int)}: strings and BigInts
+   * are written as their length followed by their bytes. Used by
+   * {@link PageLayout#SLOTTED} pages.
+   * @param f A field of this type
+   * @param buf The buffer to write to
+   * @param len The length of the field, as given by {@link TupleDesc#getFieldLen}
+   */
+    public abstract void serializeCompact(Field f, ByteBuffer buf, int len);
+
+  /**
+   * @return a Field object of the same type as this object read from buf
+   *   as written by {@link #serializeCompact}. Advances buf past it.
+   * @param buf The buffer to read from
+   * @param len The length of the field, as given by {@link TupleDesc#getFieldLen}
+   */
+    public abstract Field parseCompact(ByteBuffer buf, int len);
+
 }
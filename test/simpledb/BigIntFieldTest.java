@@ -0,0 +1,140 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BigIntFieldTest extends SimpleDbTestBase {
+
+    /**
+     * Values written at a fixed width read back unchanged and take exactly
+     * that many bytes, for short and long widths and negative values
+     */
+    @Test
+    public void roundTrip() {
+        Random rand = new Random(7);
+        int[] widths = new int[]{ 1, 5, 8, 11, 64, 257 };
+        for (int len : widths) {
+            for (int i = 0; i < 50; i++) {
+                BigInteger v = new BigInteger(len * 8 - 1, rand);
+                if (i % 2 == 1) {
+                    v = v.negate();
+                }
+                ByteBuffer buf = ByteBuffer.allocate(len + 3);
+                buf.put((byte) 1);
+                new BigIntField(v).serialize(buf, len);
+                assertEquals(1 + len, buf.position());
+                buf.flip();
+                buf.get();
+                assertEquals(v, ((BigIntField) Type.BIGINT_TYPE.parse(buf, len)).getValue());
+                assertEquals(1 + len, buf.position());
+            }
+        }
+    }
+
+    /**
+     * Values wider than the column are rejected rather than truncated
+     */
+    @Test
+    public void tooWide() {
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        try {
+            new BigIntField(BigInteger.ONE.shiftLeft(40)).serialize(buf, 5);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new BigIntField(BigInteger.ONE.shiftLeft(100)).serialize(buf, 12);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    /**
+     * A page whose BIGINT column has a non-default width keeps its values
+     * through getPageData and back
+     */
+    @Test
+    public void pageRoundTrip() throws Exception {
+        int len = 129;
+        ArrayList<TDItem> items = new ArrayList<TDItem>();
+        items.add(new TDItem(Type.INT_TYPE, "id"));
+        items.add(new TDItem(Type.BIGINT_TYPE, "c", len));
+        TupleDesc td = new TupleDesc(items);
+        assertEquals(4 + len, td.getSize());
+
+        File f = File.createTempFile("bigint", ".dat");
+        f.deleteOnExit();
+        EncryptedFile ef = new EncryptedFile(f, td);
+        Database.getCatalog().addTable(ef, "bigint_test");
+
+        HeapPageId pid = new HeapPageId(ef.getId(), 0);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        Random rand = new Random(13);
+        ArrayList<BigInteger> values = new ArrayList<BigInteger>();
+        int slots = page.getNumEmptySlots();
+        for (int i = 0; i < slots; i++) {
+            Tuple t = new Tuple(td);
+            BigInteger v = new BigInteger(len * 8 - 1, rand);
+            t.setField(0, new IntField(i));
+            t.setField(1, new BigIntField(v));
+            page.insertTuple(t);
+            values.add(v);
+        }
+
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        int i = 0;
+        for (Tuple t : copy.getValidTuples()) {
+            assertEquals(i, ((IntField) t.getField(0)).getValue());
+            assertEquals(values.get(i), ((BigIntField) t.getField(1)).getValue());
+            i++;
+        }
+        assertEquals(values.size(), i);
+    }
+
+    /**
+     * Fields with equal values are equal and hash alike, even when the values
+     * do not fit in an int and are distinct BigInteger objects
+     */
+    @Test
+    public void hashAndEquals() {
+        BigInteger v = BigInteger.ONE.shiftLeft(100).add(BigInteger.valueOf(12345));
+        BigIntField a = new BigIntField(v);
+        BigIntField b = new BigIntField(new BigInteger(v.toByteArray()));
+        BigIntField c = new BigIntField(v.add(BigInteger.ONE));
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertTrue(a.compare(Predicate.Op.EQUALS, b));
+        assertFalse(a.compare(Predicate.Op.NOT_EQUALS, b));
+        assertFalse(a.equals(c));
+        assertTrue(a.compare(Predicate.Op.NOT_EQUALS, c));
+        assertFalse(a.equals(new IntField(1)));
+
+        HashMap<Field, Integer> map = new HashMap<Field, Integer>();
+        map.put(a, 1);
+        assertEquals(Integer.valueOf(1), map.get(b));
+        assertNull(map.get(c));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BigIntFieldTest.class);
+    }
+}
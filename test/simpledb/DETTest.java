@@ -0,0 +1,128 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class DETTest extends SimpleDbTestBase {
+
+    /**
+     * Equal plaintexts give equal ciphertexts of a fixed width, and
+     * ciphertexts decrypt back to their plaintexts
+     */
+    @Test
+    public void deterministic() {
+        DET_KeyPair keyPair = DET_KeyPair.generate();
+        DET_PublicKey publicKey = keyPair.getPublicKey();
+        int[] values = new int[]{ 0, 1, -1, 42, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        for (int v : values) {
+            BigInteger c = publicKey.encrypt(v);
+            assertEquals(c, new DET_PublicKey(publicKey.getKey()).encrypt(v));
+            assertTrue(c.signum() >= 0);
+            assertTrue(c.toByteArray().length <= DET_PublicKey.CIPHERTEXT_LEN);
+            assertEquals(v, keyPair.decrypt(c));
+        }
+        assertFalse(publicKey.encrypt(1).equals(publicKey.encrypt(2)));
+        assertFalse(publicKey.encrypt(1).equals(DET_KeyPair.generate().getPublicKey().encrypt(1)));
+    }
+
+    /**
+     * @return the number of tuples op returns
+     */
+    private static int count(OpIterator op) throws Exception {
+        int n = 0;
+        op.open();
+        while (op.hasNext()) {
+            op.next();
+            n++;
+        }
+        op.close();
+        return n;
+    }
+
+    /**
+     * Tables encrypted with the default keys share a DET key, so a hash join
+     * of their DET columns finds the same matches as one of the plaintext
+     */
+    @Test
+    public void equalityJoin() throws Exception {
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, 500, 50, null, null, "l");
+        HeapFile right = SystemTestUtil.createRandomHeapFile(2, 300, 50, null, null, "r");
+        EncryptedFile leftEnc = left.encrypt();
+        EncryptedFile rightEnc = right.encrypt();
+        leftEnc.getFile().deleteOnExit();
+        rightEnc.getFile().deleteOnExit();
+        int leftDet = leftEnc.getTupleDesc().fieldNameToIndex(HeapFile.DET_PREFIX + "l0");
+        int rightDet = rightEnc.getTupleDesc().fieldNameToIndex(HeapFile.DET_PREFIX + "r1");
+        assertEquals(Type.BIGINT_TYPE, leftEnc.getTupleDesc().getFieldType(leftDet));
+
+        TransactionId tid = new TransactionId();
+        int expected = count(new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+                new SeqScan(tid, left.getId()), new SeqScan(tid, right.getId())));
+        assertTrue(expected > 0);
+        assertEquals(expected, count(new HashEquiJoin(new JoinPredicate(leftDet, Predicate.Op.EQUALS, rightDet),
+                new SeqScan(tid, leftEnc.getId()), new SeqScan(tid, rightEnc.getId()))));
+        assertEquals(expected, count(new Join(new JoinPredicate(leftDet, Predicate.Op.EQUALS, rightDet),
+                new SeqScan(tid, leftEnc.getId()), new SeqScan(tid, rightEnc.getId()))));
+    }
+
+    /**
+     * Paillier sums grouped by a DET column decrypt to the sums grouped by
+     * the plaintext column
+     */
+    @Test
+    public void groupBy() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, 20, null, null, "c");
+        EncryptedFile encF = hf.encrypt();
+        encF.getFile().deleteOnExit();
+        Map<String, KeyPair> keyPairs = Database.getKeyStore().getKeyPairs(encF.getId());
+        Paillier_KeyPair paillier = (Paillier_KeyPair) keyPairs.get(HeapFile.PAILLIER_PREFIX);
+        DET_KeyPair det = (DET_KeyPair) keyPairs.get(HeapFile.DET_PREFIX);
+
+        TransactionId tid = new TransactionId();
+        HashMap<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int group = ((IntField) t.getField(0)).getValue();
+            int value = ((IntField) t.getField(1)).getValue();
+            expected.put(group, (expected.containsKey(group) ? expected.get(group) : 0) + value);
+        }
+        it.close();
+
+        TupleDesc td = encF.getTupleDesc();
+        EncryptedAggregate sum = new EncryptedAggregate(new SeqScan(tid, encF.getId()),
+                td.fieldNameToIndex(HeapFile.PAILLIER_PREFIX + "c1"),
+                td.fieldNameToIndex(HeapFile.DET_PREFIX + "c0"), EncryptedAggregator.EncOp.PAILLIER_SUM);
+        HashMap<Integer, Integer> actual = new HashMap<Integer, Integer>();
+        sum.open();
+        while (sum.hasNext()) {
+            Tuple t = sum.next();
+            int group = det.decrypt(((BigIntField) t.getField(0)).getValue());
+            int value = paillier.decrypt(((BigIntField) t.getField(1)).getValue()).intValue();
+            assertFalse(actual.containsKey(group));
+            actual.put(group, value);
+        }
+        sum.close();
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DETTest.class);
+    }
+}
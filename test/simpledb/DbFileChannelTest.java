@@ -0,0 +1,172 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class DbFileChannelTest extends SimpleDbTestBase {
+
+    @After
+    public void restoreMapping() {
+        DbFileChannel.setMapped(true);
+    }
+
+    /**
+     * @return page pageNo of f, read without the channel
+     */
+    private static byte[] onDisk(File f, int pageNo) throws Exception {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        raf.seek((long) pageNo * data.length);
+        raf.read(data);
+        raf.close();
+        return data;
+    }
+
+    /**
+     * Pages read from the mapping and from the channel are those on disk, and
+     * a scan returns the same tuples either way
+     */
+    @Test
+    public void mappedAndUnmapped() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 3000, null, tuples);
+        DbFileChannel channel = table.getChannel();
+        assertEquals(table.getFile().length() / BufferPool.getPageSize(), channel.numPages());
+        for (boolean mapped : new boolean[]{ true, false }) {
+            DbFileChannel.setMapped(mapped);
+            for (int i = 0; i < channel.numPages(); i++) {
+                assertArrayEquals(onDisk(table.getFile(), i), channel.readPage(i));
+            }
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            SystemTestUtil.matchTuples(table, tuples);
+        }
+    }
+
+    /**
+     * The files of a path share one channel, which counts the pages written
+     * through it, and the pages written to the file by other means once the
+     * size is read again
+     */
+    @Test
+    public void pagesTracked() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        HeapFile again = new HeapFile(table.getFile(), table.getTupleDesc());
+        DbFileChannel channel = table.getChannel();
+        assertSame(channel, again.getChannel());
+
+        int pages = channel.numPages();
+        byte[] data = HeapPage.createEmptyPageData();
+        data[0] = 1;
+        assertEquals(pages, channel.appendPage(data));
+        assertEquals(pages + 1, channel.appendPage(HeapPage.createEmptyPageData()));
+        assertEquals(pages + 2, again.numPages());
+        assertArrayEquals(data, channel.readPage(pages));
+
+        // a page appended behind the channel's back
+        RandomAccessFile raf = new RandomAccessFile(table.getFile(), "rw");
+        raf.seek(raf.length());
+        raf.write(data);
+        raf.close();
+        assertEquals(pages + 2, channel.numPages());
+        assertEquals(pages + 3, table.numPages());
+        assertArrayEquals(data, table.getChannel().readPage(pages + 2));
+
+        // past the end of the file a page reads as zeros
+        channel.truncate();
+        assertEquals(0, table.numPages());
+        assertArrayEquals(HeapPage.createEmptyPageData(), channel.readPage(0));
+    }
+
+    /**
+     * A file read as it grows a page at a time is mapped again only when it
+     * has doubled, and the pages past the mapping are read from the channel
+     */
+    @Test
+    public void remappedRarely() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        DbFileChannel channel = table.getChannel();
+        channel.truncate();
+        for (int i = 0; i < 64; i++) {
+            byte[] data = HeapPage.createEmptyPageData();
+            data[0] = (byte) i;
+            assertEquals(i, channel.appendPage(data));
+            assertArrayEquals(data, channel.readPage(i));
+            assertArrayEquals(onDisk(table.getFile(), i / 2), channel.readPage(i / 2));
+        }
+        // once for each of 1, 2, 4, ... 64 pages
+        assertEquals(7, channel.numMaps());
+    }
+
+    /**
+     * A file replaced on disk is opened anew
+     */
+    @Test
+    public void fileReplaced() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        File f = table.getFile();
+        assertEquals(f.length() / BufferPool.getPageSize(), table.numPages());
+        assertEquals(true, f.delete());
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File replacement = SystemTestUtil.createRandomHeapFileUnopened(2, 10, 100, null, tuples);
+        assertEquals(true, replacement.renameTo(f));
+
+        HeapFile reopened = Utility.openHeapFile(2, f);
+        assertSame(table.getChannel(), reopened.getChannel());
+        assertEquals(1, reopened.numPages());
+        SystemTestUtil.matchTuples(reopened, tuples);
+    }
+
+    /**
+     * No more than MAX_OPEN channels are open at once, and a channel closed
+     * to open another is opened again when it is used. Catalog.clear closes
+     * every channel and forgets those of deleted files.
+     */
+    @Test
+    public void openBounded() throws Exception {
+        ArrayList<DbFileChannel> channels = new ArrayList<DbFileChannel>();
+        for (int i = 0; i < DbFileChannel.MAX_OPEN + 10; i++) {
+            File f = File.createTempFile("channel", ".dat");
+            f.deleteOnExit();
+            DbFileChannel channel = DbFileChannel.get(f);
+            byte[] data = HeapPage.createEmptyPageData();
+            data[0] = (byte) i;
+            channel.appendPage(data);
+            channels.add(channel);
+            assertTrue(DbFileChannel.numOpen() <= DbFileChannel.MAX_OPEN);
+        }
+        for (int i = 0; i < channels.size(); i++) {
+            assertEquals((byte) i, channels.get(i).readPage(0)[0]);
+        }
+
+        File deleted = channels.get(0).getFile();
+        assertEquals(true, deleted.delete());
+        File kept = channels.get(1).getFile();
+        Database.getCatalog().clear();
+        assertEquals(0, DbFileChannel.numOpen());
+        assertSame(channels.get(1), DbFileChannel.get(kept));
+        assertNotSame(channels.get(0), DbFileChannel.get(deleted));
+        assertEquals(0, DbFileChannel.get(deleted).numPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DbFileChannelTest.class);
+    }
+}
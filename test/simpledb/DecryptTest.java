@@ -0,0 +1,136 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class DecryptTest extends SimpleDbTestBase {
+
+    private static final int COLUMNS = 3;
+    private static final int ROWS = 2000;
+
+    private HeapFile table;
+    private EncryptedFile encrypted;
+
+    @Before
+    public void createTable() throws Exception {
+        this.table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, 1000, null, null, "c");
+        this.encrypted = this.table.encrypt();
+        this.encrypted.getFile().deleteOnExit();
+    }
+
+    /**
+     * @return the values of the next n tuples of op, or of all that are left
+     *   if n is negative
+     */
+    private static List<ArrayList<Integer>> read(OpIterator op, int n) throws Exception {
+        List<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        while ((n < 0 || rows.size() < n) && op.hasNext()) {
+            rows.add(SystemTestUtil.tupleToList(op.next()));
+        }
+        return rows;
+    }
+
+    /**
+     * @return the plaintext rows, each repeated once for every encryption
+     *   of the table: Paillier, OPE and DET
+     */
+    private List<ArrayList<Integer>> expected() throws Exception {
+        SeqScan scan = new SeqScan(new TransactionId(), this.table.getId());
+        scan.open();
+        List<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> row : read(scan, -1)) {
+            ArrayList<Integer> repeated = new ArrayList<Integer>();
+            for (int i = 0; i < 3; i++) {
+                repeated.addAll(row);
+            }
+            rows.add(repeated);
+        }
+        scan.close();
+        return rows;
+    }
+
+    private Decrypt decrypt() throws Exception {
+        return new Decrypt(new SeqScan(new TransactionId(), this.encrypted.getId(), "t"),
+                Database.getKeyStore().getKeyPairs(this.encrypted.getId()));
+    }
+
+    /**
+     * Every column decrypts to its plaintext, and tuples come out in the
+     * order of the child although batches are decrypted in parallel
+     */
+    @Test
+    public void keepsChildOrder() throws Exception {
+        assertTrue(ROWS > 4 * Decrypt.BATCH_SIZE);
+        Decrypt decrypt = this.decrypt();
+        assertEquals(COLUMNS * 3, decrypt.getTupleDesc().numFields());
+        assertEquals(Type.INT_TYPE, decrypt.getTupleDesc().getFieldType(0));
+        assertEquals("t.c0", decrypt.getTupleDesc().getFieldName(0));
+        decrypt.open();
+        assertEquals(this.expected(), read(decrypt, -1));
+        decrypt.close();
+    }
+
+    /**
+     * Rewinding with batches still in flight starts again from the first
+     * tuple of the child
+     */
+    @Test
+    public void rewindMidStream() throws Exception {
+        List<ArrayList<Integer>> expected = this.expected();
+        Decrypt decrypt = this.decrypt();
+        decrypt.open();
+        assertEquals(expected.subList(0, Decrypt.BATCH_SIZE + 3), read(decrypt, Decrypt.BATCH_SIZE + 3));
+        decrypt.rewind();
+        assertEquals(expected, read(decrypt, -1));
+        decrypt.close();
+
+        // and so does reopening
+        decrypt.open();
+        assertEquals(expected.subList(0, 10), read(decrypt, 10));
+        decrypt.close();
+    }
+
+    /**
+     * Scans and projections over the ciphertext columns report the widths
+     * the columns have in the file, so their tuples match their TupleDesc
+     */
+    @Test
+    public void ciphertextWidths() throws Exception {
+        SeqScan scan = new SeqScan(new TransactionId(), this.encrypted.getId(), "t");
+        TupleDesc fileTd = this.encrypted.getTupleDesc();
+        for (int i = 0; i < fileTd.numFields(); i++) {
+            assertEquals(fileTd.getFieldLen(i), scan.getTupleDesc().getFieldLen(i));
+        }
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        ArrayList<Type> types = new ArrayList<Type>();
+        for (int i = fileTd.numFields() - 1; i >= 0; i--) {
+            fields.add(i);
+            types.add(fileTd.getFieldType(i));
+        }
+        Project project = new Project(fields, types, scan);
+        project.open();
+        Tuple t = project.next();
+        assertTrue(scan.getTupleDesc().equals(fileTd));
+        assertTrue(project.getTupleDesc().equals(t.getTupleDesc()));
+        assertEquals(fileTd.getFieldLen(0), project.getTupleDesc().getFieldLen(fileTd.numFields() - 1));
+        project.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DecryptTest.class);
+    }
+}
@@ -46,7 +46,7 @@ public class DecryptionTest {
         
         HeapFile tableEnc = this.table.decrypt(keyPairs, HeapFile.PAILLIER_PREFIX);
         TupleDesc tupDescEnc = tableEnc.getTupleDesc();
-        assertEquals((this.table.getTupleDesc().numFields() - HeapFile.NUM_EXTRA_COLUMNS)/HeapFile.NUM_ENCRYPTIONS, tupDescEnc.numFields());
+        assertEquals(this.table.getTupleDesc().numFields() / HeapFile.NUM_ENCRYPTIONS, tupDescEnc.numFields());
         
         DbFileIterator plainTableEncIter = tableEnc.iterator(new TransactionId());
         DbFileIterator tableEncIter = this.table.iterator(new TransactionId());
@@ -3,6 +3,11 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
@@ -25,6 +30,8 @@ public class EncryptedAggregateTest extends SimpleDbTestBase {
     OpIterator min;
     OpIterator count;
 
+    Paillier_KeyPair keyPair;
+
     /**
      * Initialize each unit test
      */
@@ -82,6 +89,59 @@ public class EncryptedAggregateTest extends SimpleDbTestBase {
 
     }
 
+    /**
+     * @return a Paillier key pair for small sums, made on first use
+     */
+    private Paillier_KeyPair keyPair() {
+      if (this.keyPair == null) {
+        Paillier_KeyPairBuilder keygen = new Paillier_KeyPairBuilder();
+        keygen.upperBound(BigInteger.valueOf(Integer.MAX_VALUE));
+        keygen.bits(HeapFile.BITS_INTEGER);
+        this.keyPair = keygen.generateKeyPair();
+      }
+      return this.keyPair;
+    }
+
+    /**
+     * @return the (group, value) tuples of child, with every value replaced
+     *   by its Paillier ciphertext. The tuples have no RecordId, so an
+     *   aggregate over them must be given the key.
+     */
+    private TupleIterator encrypted(OpIterator child) throws Exception {
+      TupleDesc td = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.BIGINT_TYPE });
+      List<Tuple> tuples = new ArrayList<Tuple>();
+      child.open();
+      while (child.hasNext()) {
+        Tuple t = child.next();
+        Tuple enc = new Tuple(td);
+        enc.setField(0, t.getField(0));
+        enc.setField(1, new BigIntField(this.keyPair().getPublicKey().encrypt(
+            BigInteger.valueOf(((IntField) t.getField(1)).getValue()))));
+        tuples.add(enc);
+      }
+      child.close();
+      return new TupleIterator(td, tuples);
+    }
+
+    /**
+     * @return the (group, sum) tuples of op, an open Paillier aggregate, with
+     *   every sum decrypted
+     */
+    private TupleIterator decrypted(OpIterator op) throws Exception {
+      List<Tuple> tuples = new ArrayList<Tuple>();
+      while (op.hasNext()) {
+        Tuple t = op.next();
+        Tuple dec = new Tuple(Utility.getTupleDesc(2));
+        dec.setField(0, t.getField(0));
+        dec.setField(1, new IntField(this.keyPair().decrypt(
+            ((BigIntField) t.getField(1)).getValue()).intValue()));
+        tuples.add(dec);
+      }
+      TupleIterator it = new TupleIterator(Utility.getTupleDesc(2), tuples);
+      it.open();
+      return it;
+    }
+
     /**
      * Unit test for Aggregate.getTupleDesc()
      */
@@ -114,11 +174,11 @@ public class EncryptedAggregateTest extends SimpleDbTestBase {
      * Unit test for Aggregate.getNext() using a sum aggregate
      */
     @Test public void sumAggregate() throws Exception {
-            EncryptedAggregate op = new EncryptedAggregate(scan1, 1, 0,
-                  EncryptedAggregator.EncOp.PAILLIER_SUM);
+      EncryptedAggregate op = new EncryptedAggregate(encrypted(scan1), 1, 0,
+          EncryptedAggregator.EncOp.PAILLIER_SUM, this.keyPair().getPublicKey());
       op.open();
       sum.open();
-      TestUtil.matchAllTuples(sum, op);
+      TestUtil.matchAllTuples(sum, decrypted(op));
     }
 
   //  /**
@@ -152,6 +212,93 @@ public class EncryptedAggregateTest extends SimpleDbTestBase {
         TestUtil.matchAllTuples(min, op);
     }
 
+    /**
+     * The child is not read until the aggregate is opened
+     */
+    @Test public void lazyUntilOpen() throws Exception {
+        final int[] opens = new int[]{ 0 };
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        scan1.open();
+        while (scan1.hasNext()) {
+            tuples.add(scan1.next());
+        }
+        scan1.close();
+        TupleIterator child = new TupleIterator(scan1.getTupleDesc(), tuples) {
+            private static final long serialVersionUID = 1L;
+
+            public void open() {
+                opens[0]++;
+                super.open();
+            }
+        };
+        EncryptedAggregate op = new EncryptedAggregate(child, 1, 0, EncryptedAggregator.EncOp.OPE_MIN);
+        assertEquals(0, opens[0]);
+        op.open();
+        assertEquals(1, opens[0]);
+        min.open();
+        TestUtil.matchAllTuples(min, op);
+    }
+
+    /**
+     * Groups spread over every partition, and each comes out once with the
+     * aggregate of all its rows
+     */
+    @Test public void partitionedGroupBy() throws Exception {
+        int groups = 256;
+        int rows = 20 * EncryptedAggregate.BATCH_SIZE;
+        int[] data = new int[2 * rows];
+        for (int i = 0; i < rows; i++) {
+            data[2 * i] = i % groups;
+            data[2 * i + 1] = i;
+        }
+        EncryptedAggregate op = new EncryptedAggregate(TestUtil.createTupleList(width1, data), 1, 0,
+                EncryptedAggregator.EncOp.OPE_MAX);
+        op.open();
+        int[] expected = new int[2 * groups];
+        for (int g = 0; g < groups; g++) {
+            expected[2 * g] = g;
+            expected[2 * g + 1] = rows - groups + g;
+        }
+        TestUtil.matchAllTuples(TestUtil.createTupleList(width1, expected), op);
+        op.rewind();
+        int n = 0;
+        while (op.hasNext()) {
+            op.next();
+            n++;
+        }
+        assertEquals(groups, n);
+        op.close();
+    }
+
+    /**
+     * Grouped Paillier sums spread over every partition, and each group
+     * decrypts to the sum of all its rows
+     */
+    @Test public void partitionedPaillierSum() throws Exception {
+        int groups = 64;
+        int rows = 8 * EncryptedAggregate.BATCH_SIZE;
+        int[] data = new int[2 * rows];
+        int[] expected = new int[2 * groups];
+        for (int i = 0; i < rows; i++) {
+            data[2 * i] = i % groups;
+            data[2 * i + 1] = i;
+            expected[2 * (i % groups)] = i % groups;
+            expected[2 * (i % groups) + 1] += i;
+        }
+        EncryptedAggregate op = new EncryptedAggregate(encrypted(TestUtil.createTupleList(width1, data)),
+                1, 0, EncryptedAggregator.EncOp.PAILLIER_SUM, this.keyPair().getPublicKey());
+        op.open();
+        TestUtil.matchAllTuples(TestUtil.createTupleList(width1, expected), decrypted(op));
+        op.rewind();
+        int n = 0;
+        while (op.hasNext()) {
+            op.next();
+            n++;
+        }
+        assertEquals(groups, n);
+        op.close();
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,265 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class EncryptedAggregateViewTest extends SimpleDbTestBase {
+
+    private static final int OPE_FACTOR = 5;
+    // the columns of a two-column twin: PAILLIER_0, PAILLIER_1, OPE_0, OPE_1
+    private static final int SUMMED = 0;
+    private static final int GROUPED = 3;
+
+    private ConcurrentHashMap<String, KeyPair> keyPairs;
+    private Paillier_KeyPair paillier;
+
+    @Before
+    public void createKeys() {
+        Paillier_KeyPairBuilder keygen = new Paillier_KeyPairBuilder();
+        keygen.upperBound(BigInteger.valueOf(Integer.MAX_VALUE));
+        keygen.bits(HeapFile.BITS_INTEGER);
+        this.paillier = keygen.generateKeyPair();
+        this.keyPairs = new ConcurrentHashMap<String, KeyPair>();
+        this.keyPairs.put(HeapFile.PAILLIER_PREFIX, (KeyPair) this.paillier);
+        this.keyPairs.put(HeapFile.OPE_PREFIX, (KeyPair) new OPE_KeyPair(
+                new OPE_PrivateKey(new OPE_CipherPrivate.Mult(BigInteger.valueOf(OPE_FACTOR))),
+                new OPE_PublicKey(new OPE_CipherPublic.Mult(BigInteger.valueOf(OPE_FACTOR)))));
+    }
+
+    private Tuple encryptedTuple(TupleDesc td, int a, int b) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new BigIntField(this.paillier.getPublicKey().encrypt(BigInteger.valueOf(a))));
+        t.setField(1, new BigIntField(this.paillier.getPublicKey().encrypt(BigInteger.valueOf(b))));
+        t.setField(2, new BigIntField(BigInteger.valueOf(a * OPE_FACTOR)));
+        t.setField(3, new BigIntField(BigInteger.valueOf(b * OPE_FACTOR)));
+        return t;
+    }
+
+    /**
+     * @return the ciphertext in an OPE column, which is a BIGINT under the
+     *   OPE key of these tests
+     */
+    private static int ope(Field f) {
+        return ((BigIntField) f).getValue().intValueExact();
+    }
+
+    /**
+     * @return "count sum" of each group of the table, by group ciphertext,
+     *   computed from its tuples
+     */
+    private Map<Integer, String> scanned(EncryptedFile encF) {
+        TreeMap<Integer, int[]> groups = new TreeMap<Integer, int[]>();
+        for (Tuple t : encF.getValidTuples(new TransactionId())) {
+            int group = ope(t.getField(GROUPED));
+            if (!groups.containsKey(group)) {
+                groups.put(group, new int[2]);
+            }
+            groups.get(group)[0]++;
+            groups.get(group)[1] += this.paillier.decrypt(((BigIntField) t.getField(SUMMED)).getValue()).intValue();
+        }
+        TreeMap<Integer, String> rows = new TreeMap<Integer, String>();
+        for (Map.Entry<Integer, int[]> e : groups.entrySet()) {
+            rows.put(e.getKey(), e.getValue()[0] + " " + e.getValue()[1]);
+        }
+        return rows;
+    }
+
+    /**
+     * @return "count sum" of each group of the view that is not empty, by
+     *   group ciphertext
+     */
+    private int numTables() {
+        int n = 0;
+        for (Iterator<Integer> it = Database.getCatalog().tableIdIterator(); it.hasNext(); it.next()) {
+            n++;
+        }
+        return n;
+    }
+
+    private Map<Integer, String> viewed(EncryptedAggregateView view) throws Exception {
+        TreeMap<Integer, String> rows = new TreeMap<Integer, String>();
+        DbFileIterator it = view.getStore().iterator(new TransactionId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple row = it.next();
+            int count = ((IntField) row.getField(view.getCountField())).getValue();
+            if (count > 0) {
+                BigInteger sum = this.paillier.decrypt(((BigIntField) row.getField(view.getProductField())).getValue());
+                rows.put(ope(row.getField(0)), count + " " + sum.intValue());
+            }
+        }
+        it.close();
+        return rows;
+    }
+
+    /**
+     * The view follows inserts and deletes through the BufferPool and is read
+     * back from disk
+     */
+    @Test
+    public void maintained() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 200, 20, null, null);
+        EncryptedFile encF = hf.encrypt(this.keyPairs);
+        encF.getFile().deleteOnExit();
+        EncryptedAggregateView view = encF.createAggregateView(GROUPED, SUMMED);
+        view.getStore().getFile().deleteOnExit();
+        assertEquals(this.scanned(encF), this.viewed(view));
+
+        BufferPool bufferPool = Database.getBufferPool();
+        TupleDesc td = encF.getTupleDesc();
+        Random rand = new Random(7);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 300; i++) {
+            bufferPool.insertTuple(tid, encF.getId(), this.encryptedTuple(td, rand.nextInt(100), rand.nextInt(30)));
+        }
+        int deleted = 0;
+        for (Tuple t : encF.getValidTuples(tid)) {
+            if (ope(t.getField(2)) < 30 * OPE_FACTOR) {
+                bufferPool.deleteTuple(tid, t);
+                deleted++;
+            }
+        }
+        assertTrue(deleted > 0);
+        bufferPool.transactionComplete(tid, true);
+        Map<Integer, String> committed = this.scanned(encF);
+        assertEquals(committed, this.viewed(view));
+
+        // groups emptied by deletes are left out, and emptied groups that
+        // get new tuples and new groups are counted again
+        tid = new TransactionId();
+        for (Tuple t : encF.getValidTuples(tid)) {
+            if (ope(t.getField(GROUPED)) < 10 * OPE_FACTOR) {
+                bufferPool.deleteTuple(tid, t);
+            }
+        }
+        for (int i = 0; i < 20; i++) {
+            bufferPool.insertTuple(tid, encF.getId(), this.encryptedTuple(td, i, i % 2 == 0 ? i / 2 : 30 + i));
+        }
+        bufferPool.transactionComplete(tid, true);
+        committed = this.scanned(encF);
+        assertEquals(committed, this.viewed(view));
+
+        // a restarted database opens the view from its file
+        bufferPool.flushAllPages();
+        File file = encF.getFile();
+        Database.reset();
+        EncryptedFile reopened = new EncryptedFile(file, td, this.paillier.getPublicKey());
+        Database.getCatalog().addTable(reopened, "reopened");
+        EncryptedAggregateView reopenedView = reopened.getAggregateView(GROUPED, SUMMED);
+        assertEquals(reopenedView, reopened.createAggregateView(GROUPED, SUMMED));
+        // opening the view again replaces its store in the Catalog
+        int tables = this.numTables();
+        new EncryptedFile(file, td, this.paillier.getPublicKey());
+        assertEquals(tables, this.numTables());
+        assertEquals(reopenedView.getStore().getId(),
+                Database.getCatalog().getTableId(reopenedView.getStore().getFile().getAbsolutePath()));
+        assertEquals(view.getStore().getFile(), reopenedView.getStore().getFile());
+        assertEquals(committed, this.viewed(reopenedView));
+    }
+
+    /**
+     * Building a view of more rows than a batch, spread over many small
+     * groups, sums every group across the batches
+     */
+    @Test
+    public void builtInBatches() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, EncryptedAggregateView.BUILD_BATCH_SIZE + 500,
+                1000, null, null);
+        EncryptedFile encF = hf.encrypt(this.keyPairs);
+        encF.getFile().deleteOnExit();
+        EncryptedAggregateView view = encF.createAggregateView(GROUPED, SUMMED);
+        view.getStore().getFile().deleteOnExit();
+        Map<Integer, String> scanned = this.scanned(encF);
+        assertTrue(scanned.size() > 500);
+        assertEquals(scanned, this.viewed(view));
+    }
+
+    /**
+     * Only Paillier columns can be summed, grouped on DET or OPE columns
+     */
+    @Test
+    public void badColumnsRejected() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, 20, null, null);
+        EncryptedFile encF = hf.encrypt(this.keyPairs);
+        encF.getFile().deleteOnExit();
+        for (int[] columns : new int[][]{ { GROUPED, 2 }, { 1, SUMMED } }) {
+            try {
+                encF.createAggregateView(columns[0], columns[1]);
+                fail("expected exception");
+            } catch (DbException e) {
+            }
+        }
+    }
+
+    /**
+     * A grouped SUM or COUNT over a twin with a matching view is read from
+     * the view, one row per group, and matches the plaintext aggregate
+     */
+    @Test
+    public void answeredFromView() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 1000, 10, null, null, "t");
+        Database.getCatalog().addTable(table, "t");
+        EncryptedFile twin = table.encrypt();
+        twin.getFile().deleteOnExit();
+        TupleDesc twinTd = twin.getTupleDesc();
+        twin.createAggregateView(twinTd.fieldNameToIndex(HeapFile.DET_PREFIX + "t0"),
+                twinTd.fieldNameToIndex(HeapFile.PAILLIER_PREFIX + "t1")).getStore().getFile().deleteOnExit();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("t", new TableStats(table.getId(), 1));
+
+        for (String op : new String[]{ "SUM", "COUNT" }) {
+            LogicalPlan lp = new LogicalPlan();
+            lp.addScan(table.getId(), "t");
+            lp.addProjectField("t.t0", null);
+            lp.addProjectField("t.t1", op);
+            lp.addAggregate(op, "t.t1", "t.t0");
+            SplitPlanner planner = new SplitPlanner(lp);
+            OpIterator plan = planner.physicalPlan(new TransactionId(), stats, false);
+            assertEquals(1, planner.getServerScans().size());
+            ServerScan scan = planner.getServerScans().get(0);
+            assertTrue(scan.getServerPlan() instanceof Project);
+
+            List<String> expected = SystemTestUtil.rows(new Aggregate(new SeqScan(new TransactionId(), table.getId(), "t"),
+                    1, 0, LogicalPlan.getAggOp(op)));
+            assertEquals(op, expected, SystemTestUtil.rows(plan));
+            assertEquals(expected.size(), scan.getTuplesShipped());
+        }
+
+        // a filtered query cannot use the view
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.t2", Predicate.Op.GREATER_THAN, "2");
+        lp.addProjectField("t.t0", null);
+        lp.addProjectField("t.t1", "SUM");
+        lp.addAggregate("SUM", "t.t1", "t.t0");
+        SplitPlanner planner = new SplitPlanner(lp);
+        planner.physicalPlan(new TransactionId(), stats, false);
+        assertTrue(planner.getServerScans().get(0).getServerPlan() instanceof EncryptedAggregate);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EncryptedAggregateViewTest.class);
+    }
+}
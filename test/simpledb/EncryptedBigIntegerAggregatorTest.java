@@ -0,0 +1,142 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class EncryptedBigIntegerAggregatorTest extends SimpleDbTestBase {
+
+    private static final int GROUPS = 3;
+
+    private Paillier_KeyPair keyPair;
+    private Paillier_PublicKey publicKey;
+    private TupleDesc td;
+
+    @Before
+    public void setUp() {
+        Paillier_KeyPairBuilder keygen = new Paillier_KeyPairBuilder();
+        keygen.upperBound(BigInteger.valueOf(Integer.MAX_VALUE));
+        keygen.bits(HeapFile.BITS_INTEGER);
+        this.keyPair = keygen.generateKeyPair();
+        this.publicKey = this.keyPair.getPublicKey();
+        this.td = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.BIGINT_TYPE });
+    }
+
+    /**
+     * Paillier.sum over many ciphertexts should match multiplying them one by one
+     */
+    @Test
+    public void productTreeSum() {
+        Random rand = new Random(3);
+        List<BigInteger> encs = new ArrayList<BigInteger>();
+        BigInteger expected = BigInteger.ZERO;
+        BigInteger naive = BigInteger.ONE;
+        for (int i = 0; i < Paillier.PRODUCT_LEAF_SIZE * 9 + 17; i++) {
+            BigInteger plain = BigInteger.valueOf(rand.nextInt(1000));
+            BigInteger enc = this.publicKey.encrypt(plain);
+            encs.add(enc);
+            expected = expected.add(plain);
+            naive = Paillier.add(naive, enc, this.publicKey);
+        }
+        BigInteger sum = Paillier.sum(encs, this.publicKey);
+        assertEquals(naive, sum);
+        assertEquals(expected, this.keyPair.decrypt(sum));
+        assertEquals(BigInteger.ZERO, this.keyPair.decrypt(
+                Paillier.sum(new ArrayList<BigInteger>(), this.publicKey)));
+    }
+
+    /**
+     * Grouped PAILLIER_SUM over several partitions per group decrypts to the
+     * plaintext sums
+     */
+    @Test
+    public void paillierSumGrouped() throws Exception {
+        this.paillierSumGrouped(GROUPS);
+    }
+
+    /**
+     * Grouped PAILLIER_SUM over more groups than fit a partition many times
+     * over, each with a few rows in every partition, decrypts to the
+     * plaintext sums
+     */
+    @Test
+    public void paillierSumManyGroups() throws Exception {
+        this.paillierSumGrouped(EncryptedBigIntegerAggregator.PARTITION_SIZE / 4);
+    }
+
+    private void paillierSumGrouped(int groups) throws Exception {
+        EncryptedBigIntegerAggregator agg = new EncryptedBigIntegerAggregator(0, Type.INT_TYPE, 1,
+                EncryptedAggregator.EncOp.PAILLIER_SUM, this.publicKey);
+        Map<Integer, BigInteger> expected = new HashMap<Integer, BigInteger>();
+        Random rand = new Random(11);
+        int rows = EncryptedBigIntegerAggregator.PARTITION_SIZE * 2 + 100;
+        for (int i = 0; i < rows; i++) {
+            int group = i % groups;
+            BigInteger plain = BigInteger.valueOf(rand.nextInt(10000));
+            Tuple t = new Tuple(this.td);
+            t.setField(0, new IntField(group));
+            t.setField(1, new BigIntField(this.publicKey.encrypt(plain)));
+            agg.mergeTupleIntoGroup(t);
+            BigInteger prev = expected.get(group);
+            expected.put(group, prev == null ? plain : prev.add(plain));
+        }
+
+        OpIterator it = agg.iterator();
+        it.open();
+        int seen = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int group = ((IntField) t.getField(0)).getValue();
+            BigInteger sum = ((BigIntField) t.getField(1)).getValue();
+            assertEquals(expected.get(group), this.keyPair.decrypt(sum));
+            seen++;
+        }
+        assertEquals(groups, seen);
+        it.close();
+    }
+
+    /**
+     * Ungrouped PAILLIER_SUM returns a single BigIntField ciphertext
+     */
+    @Test
+    public void paillierSumNoGrouping() throws Exception {
+        EncryptedBigIntegerAggregator agg = new EncryptedBigIntegerAggregator(
+                Aggregator.NO_GROUPING, null, 1, EncryptedAggregator.EncOp.PAILLIER_SUM, this.publicKey);
+        for (int i = 1; i <= 100; i++) {
+            Tuple t = new Tuple(this.td);
+            t.setField(0, new IntField(0));
+            t.setField(1, new BigIntField(this.publicKey.encrypt(BigInteger.valueOf(i))));
+            agg.mergeTupleIntoGroup(t);
+        }
+        OpIterator it = agg.iterator();
+        it.open();
+        assertTrue(it.hasNext());
+        Tuple t = it.next();
+        assertEquals(Type.BIGINT_TYPE, t.getTupleDesc().getFieldType(0));
+        assertEquals(BigInteger.valueOf(5050),
+                this.keyPair.decrypt(((BigIntField) t.getField(0)).getValue()));
+        assertFalse(it.hasNext());
+        it.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EncryptedBigIntegerAggregatorTest.class);
+    }
+}
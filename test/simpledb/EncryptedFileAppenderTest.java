@@ -0,0 +1,111 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class EncryptedFileAppenderTest extends SimpleDbTestBase {
+
+    private static final int COLUMNS = 2;
+
+    private TupleDesc td;
+    private EncryptedFile file;
+
+    @Before
+    public void setUp() throws Exception {
+        File f = File.createTempFile("appender", ".dat");
+        f.deleteOnExit();
+        this.td = Utility.getTupleDesc(COLUMNS);
+        this.file = new EncryptedFile(f, this.td);
+    }
+
+    private List<Tuple> makeTuples(int start, int count) {
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = start; i < start + count; i++) {
+            Tuple t = new Tuple(this.td);
+            for (int j = 0; j < COLUMNS; j++) {
+                t.setField(j, new IntField(i));
+            }
+            tuples.add(t);
+        }
+        return tuples;
+    }
+
+    private void assertScan(int count) throws Exception {
+        DbFileIterator it = this.file.iterator(new TransactionId());
+        it.open();
+        for (int i = 0; i < count; i++) {
+            assertTrue(it.hasNext());
+            assertEquals(i, ((IntField) it.next().getField(0)).getValue());
+        }
+        assertFalse(it.hasNext());
+        it.close();
+    }
+
+    /**
+     * Tuples fill consecutive pages and can be scanned back in order
+     */
+    @Test
+    public void bulkAppend() throws Exception {
+        List<Tuple> tuples = this.makeTuples(0, 2000);
+        List<HeapPageId> pids = this.file.bulkAppend(tuples.iterator(), "appender_test");
+
+        assertEquals(this.file.numPages(), pids.size());
+        assertTrue(pids.size() > 1);
+        for (int i = 0; i < pids.size(); i++) {
+            assertEquals(this.file.getId(), pids.get(i).getTableId());
+            assertEquals(i, pids.get(i).getPageNumber());
+        }
+        for (Tuple t : tuples) {
+            assertTrue(pids.contains(t.getRecordId().getPageId()));
+        }
+        this.assertScan(2000);
+    }
+
+    /**
+     * A second load starts on a new page after the existing ones
+     */
+    @Test
+    public void appendToExisting() throws Exception {
+        List<HeapPageId> first = this.file.bulkAppend(this.makeTuples(0, 10).iterator(), "appender_test");
+        assertEquals(1, first.size());
+
+        EncryptedFileAppender appender = new EncryptedFileAppender(this.file, null);
+        for (Tuple t : this.makeTuples(10, 10)) {
+            assertEquals(new HeapPageId(this.file.getId(), 1), appender.append(t));
+        }
+        List<HeapPageId> second = appender.close();
+        assertEquals(1, second.size());
+        assertEquals(2, this.file.numPages());
+        this.assertScan(20);
+    }
+
+    /**
+     * Loading nothing into an empty file still leaves one scannable page
+     */
+    @Test
+    public void appendNothing() throws Exception {
+        List<HeapPageId> pids = this.file.bulkAppend(new ArrayList<Tuple>().iterator(), "appender_test");
+        assertEquals(1, pids.size());
+        assertEquals(1, this.file.numPages());
+        this.assertScan(0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EncryptedFileAppenderTest.class);
+    }
+}
@@ -0,0 +1,212 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class EncryptedFilterTest extends SimpleDbTestBase {
+
+    private static final int OPE_FACTOR = 5;
+
+    private HeapFile table;
+    private EncryptedFile twin;
+    private HashMap<String, TableStats> stats;
+
+    @Before
+    public void createTables() throws Exception {
+        Paillier_KeyPairBuilder keygen = new Paillier_KeyPairBuilder();
+        keygen.upperBound(BigInteger.valueOf(Integer.MAX_VALUE));
+        keygen.bits(HeapFile.BITS_INTEGER);
+        ConcurrentHashMap<String, KeyPair> keyPairs = new ConcurrentHashMap<String, KeyPair>();
+        keyPairs.put(HeapFile.PAILLIER_PREFIX, (KeyPair) keygen.generateKeyPair());
+        keyPairs.put(HeapFile.OPE_PREFIX, (KeyPair) new OPE_KeyPair(
+                new OPE_PrivateKey(new OPE_CipherPrivate.Mult(BigInteger.valueOf(OPE_FACTOR))),
+                new OPE_PublicKey(new OPE_CipherPublic.Mult(BigInteger.valueOf(OPE_FACTOR)))));
+
+        this.table = SystemTestUtil.createRandomHeapFile(2, 1000, 100, null, null, "c");
+        Database.getCatalog().addTable(this.table, "t");
+        this.twin = this.table.encrypt(keyPairs);
+        this.twin.getFile().deleteOnExit();
+        this.stats = new HashMap<String, TableStats>();
+        this.stats.put("t", new TableStats(this.table.getId(), 1));
+    }
+
+    /**
+     * @return the plan of SELECT * FROM t WHERE t.c0 op0 v0 AND t.c1 op1 v1
+     */
+    private OpIterator plan(Predicate.Op op0, int v0, Predicate.Op op1, int v1) throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(this.table.getId(), "t");
+        lp.addFilter("t.c0", op0, String.valueOf(v0));
+        lp.addFilter("t.c1", op1, String.valueOf(v1));
+        lp.addProjectField("null.*", null);
+        return lp.physicalPlan(new TransactionId(), this.stats, false);
+    }
+
+    /**
+     * @return the rows of the plaintext table that pass both filters, as
+     *   sorted strings
+     */
+    private List<String> expected(Predicate.Op op0, int v0, Predicate.Op op1, int v1) throws Exception {
+        SeqScan scan = new SeqScan(new TransactionId(), this.table.getId(), "t");
+        return SystemTestUtil.rows(new Filter(new Predicate(1, op1, new IntField(v1)),
+                new Filter(new Predicate(0, op0, new IntField(v0)), scan)));
+    }
+
+    /**
+     * @return the operator under the projection at the top of plan
+     */
+    private static OpIterator child(OpIterator plan) {
+        return ((Operator) plan).getChildren()[0];
+    }
+
+    /**
+     * Filters on a table with an encrypted twin (which encrypt() adds to the
+     * Catalog) run on the OPE columns of the
+     * twin and give the same rows as filtering the plaintext table
+     */
+    @Test
+    public void rewrittenToOPE() throws Exception {
+        Predicate.Op[] ops = new Predicate.Op[]{ Predicate.Op.EQUALS, Predicate.Op.NOT_EQUALS,
+                Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ,
+                Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ };
+        for (Predicate.Op op : ops) {
+            OpIterator plan = this.plan(op, 40, Predicate.Op.LESS_THAN_OR_EQ, 70);
+            assertTrue(child(plan) instanceof Decrypt);
+            assertEquals(op.toString(), this.expected(op, 40, Predicate.Op.LESS_THAN_OR_EQ, 70), SystemTestUtil.rows(plan));
+        }
+    }
+
+    /**
+     * A rewritten filter on an indexed OPE column is answered from the index
+     */
+    @Test
+    public void rewrittenToIndexScan() throws Exception {
+        int opeField = this.twin.getTupleDesc().fieldNameToIndex(HeapFile.OPE_PREFIX + "c0");
+        this.twin.createIndex(opeField).getFile().deleteOnExit();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(this.table.getId(), "t");
+        lp.addFilter("t.c0", Predicate.Op.EQUALS, "17");
+        lp.addProjectField("null.*", null);
+        OpIterator plan = lp.physicalPlan(new TransactionId(), this.stats, false);
+        // the scan under the decryption of the OPE columns
+        assertTrue(child(child(child(plan))) instanceof IndexScan);
+        assertEquals(this.expected(Predicate.Op.EQUALS, 17, Predicate.Op.GREATER_THAN_OR_EQ, Integer.MIN_VALUE),
+                SystemTestUtil.rows(plan));
+    }
+
+    /**
+     * A row inserted after encrypt() is not in the twin, so the table is
+     * filtered in plaintext until it is encrypted again
+     */
+    @Test
+    public void staleTwin() throws Exception {
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, this.table.getId(), Utility.getHeapTuple(new int[]{ 5000, 50 }));
+        Database.getBufferPool().transactionComplete(tid, true);
+        assertEquals(null, this.table.getEncryptedTwin());
+        OpIterator plan = this.plan(Predicate.Op.EQUALS, 5000, Predicate.Op.EQUALS, 50);
+        assertTrue(child(plan) instanceof Filter);
+        List<String> expected = this.expected(Predicate.Op.EQUALS, 5000, Predicate.Op.EQUALS, 50);
+        assertEquals(1, expected.size());
+        assertEquals(expected, SystemTestUtil.rows(plan));
+
+        this.table.encrypt().getFile().deleteOnExit();
+        plan = this.plan(Predicate.Op.EQUALS, 5000, Predicate.Op.EQUALS, 50);
+        assertTrue(child(plan) instanceof Decrypt);
+        assertEquals(expected, SystemTestUtil.rows(plan));
+    }
+
+    /**
+     * A DELETE deletes the rows of the table it filters, not those of its
+     * twin
+     */
+    @Test
+    public void deleteReadsTable() throws Exception {
+        List<String> expected = this.expected(Predicate.Op.NOT_EQUALS, 17, Predicate.Op.GREATER_THAN_OR_EQ,
+                Integer.MIN_VALUE);
+        int twinRows = this.twin.getValidTuples(new TransactionId()).size();
+        TableStats.setTableStats("t", this.stats.get("t"));
+        new Parser().processNextStatement("DELETE FROM t WHERE t.c0 = 17;");
+        assertEquals(expected, this.expected(Predicate.Op.GREATER_THAN_OR_EQ, Integer.MIN_VALUE,
+                Predicate.Op.GREATER_THAN_OR_EQ, Integer.MIN_VALUE));
+        assertEquals(twinRows, this.twin.getValidTuples(new TransactionId()).size());
+    }
+
+    /**
+     * Values near the int limits, whose OPE ciphertexts do not fit in an int,
+     * are kept whole in BIGINT OPE columns, so filters rewritten onto the twin
+     * by either planner give the same rows as filtering the plaintext table
+     */
+    @Test
+    public void ciphertextsPastIntRange() throws Exception {
+        this.table = SystemTestUtil.createRandomHeapFile(2, 0, 100, null, null, "c");
+        Database.getCatalog().addTable(this.table, "t");
+        int[][] rows = new int[][]{ { 500000000, 1 }, { 20, 2 }, { Integer.MAX_VALUE, 3 },
+                { Integer.MAX_VALUE - 1, 4 }, { 0, 5 } };
+        TransactionId tid = new TransactionId();
+        for (int[] row : rows) {
+            Database.getBufferPool().insertTuple(tid, this.table.getId(), Utility.getHeapTuple(row));
+        }
+        Database.getBufferPool().transactionComplete(tid, true);
+        this.twin = this.table.encrypt();
+        this.twin.getFile().deleteOnExit();
+        assertEquals(Type.BIGINT_TYPE, this.twin.getTupleDesc().getFieldType(
+                this.twin.getTupleDesc().fieldNameToIndex(HeapFile.OPE_PREFIX + "c0")));
+        this.stats.put("t", new TableStats(this.table.getId(), 1));
+
+        Predicate.Op[] ops = new Predicate.Op[]{ Predicate.Op.GREATER_THAN, Predicate.Op.LESS_THAN,
+                Predicate.Op.EQUALS };
+        int[] values = new int[]{ 10, 500000000, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        for (Predicate.Op op : ops) {
+            for (int v : values) {
+                List<String> expected = this.expected(op, v, Predicate.Op.GREATER_THAN, 0);
+                OpIterator plan = this.plan(op, v, Predicate.Op.GREATER_THAN, 0);
+                assertTrue(child(plan) instanceof Decrypt);
+                assertEquals(op + " " + v, expected, SystemTestUtil.rows(plan));
+
+                LogicalPlan lp = new LogicalPlan();
+                lp.addScan(this.table.getId(), "t");
+                lp.addFilter("t.c0", op, String.valueOf(v));
+                lp.addFilter("t.c1", Predicate.Op.GREATER_THAN, "0");
+                lp.addProjectField("null.*", null);
+                SplitPlanner planner = new SplitPlanner(lp);
+                assertEquals(op + " " + v, expected,
+                        SystemTestUtil.rows(planner.physicalPlan(new TransactionId(), this.stats, false)));
+                assertEquals(1, planner.getServerScans().size());
+            }
+        }
+    }
+
+    /**
+     * A table that was never encrypted is filtered in plaintext
+     */
+    @Test
+    public void noTwin() throws Exception {
+        this.table = SystemTestUtil.createRandomHeapFile(2, 1000, 100, null, null, "c");
+        Database.getCatalog().addTable(this.table, "t");
+        this.stats.put("t", new TableStats(this.table.getId(), 1));
+        OpIterator plan = this.plan(Predicate.Op.GREATER_THAN, 40, Predicate.Op.LESS_THAN, 70);
+        assertTrue(child(plan) instanceof Filter);
+        assertEquals(this.expected(Predicate.Op.GREATER_THAN, 40, Predicate.Op.LESS_THAN, 70), SystemTestUtil.rows(plan));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EncryptedFilterTest.class);
+    }
+}
@@ -51,7 +51,7 @@ public class EncryptionTest {
         System.out.println("Time to encrypt file with 3 rows: " + (encryptTime - startTime)/1000000 + " ms");
         
         TupleDesc tupDescEnc = tableEnc.getTupleDesc();
-        assertEquals(this.table.getTupleDesc().numFields() * HeapFile.NUM_ENCRYPTIONS + HeapFile.NUM_EXTRA_COLUMNS, tupDescEnc.numFields());
+        assertEquals(this.table.getTupleDesc().numFields() * HeapFile.NUM_ENCRYPTIONS, tupDescEnc.numFields());
         
         
         
@@ -139,7 +139,7 @@ public class EncryptionTest {
         System.out.println("Time to encrypt file with 10000 rows + 100 columns: " + (encryptTime - startTime)/million + " ms");
         
         TupleDesc tupDescEnc = tableEnc.getTupleDesc();
-        assertEquals(this.table.getTupleDesc().numFields() * HeapFile.NUM_ENCRYPTIONS + HeapFile.NUM_EXTRA_COLUMNS, tupDescEnc.numFields());
+        assertEquals(this.table.getTupleDesc().numFields() * HeapFile.NUM_ENCRYPTIONS, tupDescEnc.numFields());
         
         
         
@@ -230,7 +230,7 @@ public class EncryptionTest {
         System.out.println("Time to encrypt file with " +rows+" rows "+cols+" 10 columns: " + (encryptTime - fileTime)/million + " ms");
         
         TupleDesc tupDescEnc = tableEnc.getTupleDesc();
-        assertEquals(this.table.getTupleDesc().numFields() * HeapFile.NUM_ENCRYPTIONS + HeapFile.NUM_EXTRA_COLUMNS, tupDescEnc.numFields());
+        assertEquals(this.table.getTupleDesc().numFields() * HeapFile.NUM_ENCRYPTIONS, tupDescEnc.numFields());
         
        
         long endTime = System.nanoTime();
@@ -274,7 +274,7 @@ public class EncryptionTest {
         System.out.println("Time to encrypt file with " +rows+" rows "+cols+" columns: " + (encryptTime - fileTime)/million + " ms");
         
         TupleDesc tupDescEnc = tableEnc.getTupleDesc();
-        assertEquals(this.table.getTupleDesc().numFields() * HeapFile.NUM_ENCRYPTIONS + HeapFile.NUM_EXTRA_COLUMNS, tupDescEnc.numFields());
+        assertEquals(this.table.getTupleDesc().numFields() * HeapFile.NUM_ENCRYPTIONS, tupDescEnc.numFields());
         
        
         long endTime = System.nanoTime();
@@ -0,0 +1,172 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    /**
+     * @return a table of three full pages
+     */
+    private HeapFile fullTable() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        int perPage = new HeapPage(new HeapPageId(table.getId(), 0), HeapPage.createEmptyPageData())
+                .getNumEmptySlots();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3 * perPage; i++) {
+            Database.getBufferPool().insertTuple(tid, table.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid, true);
+        Database.getBufferPool().flushAllPages();
+        return table;
+    }
+
+    private static int pageOf(Tuple t) {
+        return t.getRecordId().getPageId().getPageNumber();
+    }
+
+    /**
+     * Pages filled by inserts are marked full, so the next insert goes
+     * straight to a new page, and a page that has a tuple deleted is used
+     * again
+     */
+    @Test
+    public void insertsFollowMap() throws Exception {
+        HeapFile table = this.fullTable();
+        FreeSpaceMap map = table.getFreeSpaceMap();
+        assertEquals(3, table.numPages());
+        assertEquals(-1, map.nextFree(0, 3));
+
+        TransactionId tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        table.insertTuple(tid, t);
+        assertEquals(3, pageOf(t));
+        assertEquals(3, map.nextFree(0, table.numPages()));
+
+        Tuple victim = table.getValidTuples(tid).get(0);
+        table.deleteTuple(tid, victim);
+        assertEquals(pageOf(victim), map.nextFree(0, table.numPages()));
+        t = Utility.getHeapTuple(-2, 2);
+        table.insertTuple(tid, t);
+        assertEquals(pageOf(victim), pageOf(t));
+        Database.getBufferPool().transactionComplete(tid, true);
+    }
+
+    /**
+     * Pages the map has not seen yet count as free, and a page the map
+     * wrongly takes for free is marked full by the insert that finds it full
+     */
+    @Test
+    public void unknownPagesTried() throws Exception {
+        HeapFile table = this.fullTable();
+        FreeSpaceMap map = table.getFreeSpaceMap();
+        map.clear();
+        assertEquals(0, map.nextFree(0, 3));
+        TransactionId tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        table.insertTuple(tid, t);
+        assertEquals(3, pageOf(t));
+        assertEquals(3, map.nextFree(0, table.numPages()));
+        Database.getBufferPool().transactionComplete(tid, true);
+    }
+
+    /**
+     * @return a tuple of page pageNo of the table
+     */
+    private static Tuple tupleOf(HeapFile table, int pageNo) throws Exception {
+        for (Tuple t : table.getValidTuples(new TransactionId())) {
+            if (pageOf(t) == pageNo) {
+                return t;
+            }
+        }
+        throw new AssertionError("page " + pageNo + " is empty");
+    }
+
+    /**
+     * The map is written to its file for pages as they are on disk, and read
+     * back from it, unless the file of the table was replaced since it was
+     * written
+     */
+    @Test
+    public void persisted() throws Exception {
+        HeapFile table = this.fullTable();
+        FreeSpaceMap map = table.getFreeSpaceMap();
+        assertTrue(map.getFile().exists());
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().deleteTuple(tid, tupleOf(table, 1));
+        assertEquals(1, map.nextFree(0, 3));
+        map.reload();
+        assertEquals(-1, map.nextFree(0, 3));
+        Database.getBufferPool().transactionComplete(tid, true);
+        Database.getBufferPool().flushAllPages();
+        map.reload();
+        assertEquals(1, map.nextFree(0, 3));
+        assertEquals(-1, map.nextFree(2, 3));
+
+        File other = SystemTestUtil.createRandomHeapFileUnopened(2, 0, 10, null, null);
+        assertTrue(other.renameTo(table.getFile()));
+        map.reload();
+        assertEquals(2, map.nextFree(2, 3));
+        assertEquals(false, map.getFile().exists());
+    }
+
+    /**
+     * A page filled by an insert is only marked full in memory until it is
+     * written, and is marked free again when it is read back from disk, as
+     * by an abort
+     */
+    @Test
+    public void unwrittenInsertUnmarked() throws Exception {
+        HeapFile table = this.fullTable();
+        FreeSpaceMap map = table.getFreeSpaceMap();
+        BufferPool bufferPool = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        bufferPool.deleteTuple(tid, tupleOf(table, 1));
+        bufferPool.transactionComplete(tid, true);
+        bufferPool.flushAllPages();
+
+        tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        bufferPool.insertTuple(tid, table.getId(), t);
+        assertEquals(1, pageOf(t));
+        assertEquals(-1, map.nextFree(0, 3));
+        ((HeapPage) table.readPage(new HeapPageId(table.getId(), 1))).markFreeSpace();
+        assertEquals(1, map.nextFree(0, 3));
+        map.reload();
+        assertEquals(1, map.nextFree(0, 3));
+        bufferPool.transactionComplete(tid, true);
+    }
+
+    /**
+     * The map of a table whose file was deleted is dropped with its file
+     * when the catalog is cleared
+     */
+    @Test
+    public void droppedWithTable() throws Exception {
+        HeapFile table = this.fullTable();
+        File fsm = table.getFreeSpaceMap().getFile();
+        assertTrue(fsm.exists());
+        Database.getCatalog().clear();
+        assertTrue(fsm.exists());
+        assertTrue(table.getFile().delete());
+        Database.getCatalog().clear();
+        assertEquals(false, fsm.exists());
+        assertEquals(null, FreeSpaceMap.forTable(table.getId()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,94 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HeapFileEncryptorTest extends SimpleDbTestBase {
+
+    private static final int COLUMNS = 3;
+    private static final int ROWS = 2000;
+
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private ConcurrentHashMap<String, KeyPair> keyPairs;
+    private Paillier_KeyPair paillierKeyPair;
+
+    @Before
+    public void setUp() throws Exception {
+        this.tuples = new ArrayList<ArrayList<Integer>>();
+        this.hf = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, 1000, null, this.tuples);
+
+        Paillier_KeyPairBuilder paillierKeyGen = new Paillier_KeyPairBuilder();
+        paillierKeyGen.upperBound(BigInteger.valueOf(Integer.MAX_VALUE));
+        paillierKeyGen.bits(HeapFile.BITS_INTEGER);
+        this.paillierKeyPair = paillierKeyGen.generateKeyPair();
+        OPE_KeyPair opeKeyPair = new OPE_KeyPair(
+                new OPE_PrivateKey(new OPE_CipherPrivate.Mult(BigInteger.valueOf(5))),
+                new OPE_PublicKey(new OPE_CipherPublic.Mult(BigInteger.valueOf(5))));
+
+        this.keyPairs = new ConcurrentHashMap<String, KeyPair>();
+        this.keyPairs.put(HeapFile.PAILLIER_PREFIX, (KeyPair) this.paillierKeyPair);
+        this.keyPairs.put(HeapFile.OPE_PREFIX, (KeyPair) opeKeyPair);
+    }
+
+    /**
+     * Encrypting a multi-page file should keep every tuple, in source order,
+     * and the pages written to disk should read back correctly
+     */
+    @Test
+    public void encryptManyPages() throws Exception {
+        EncryptedFile encF = this.hf.encrypt(this.keyPairs);
+        assertTrue(this.hf.numPages() > 1);
+        assertTrue(encF.numPages() > this.hf.numPages());
+
+        DbFileIterator it = encF.iterator(new TransactionId());
+        it.open();
+        for (ArrayList<Integer> expected : this.tuples) {
+            assertTrue(it.hasNext());
+            Tuple encTup = it.next();
+            for (int j = 0; j < COLUMNS; j++) {
+                BigInteger paillier = ((BigIntField) encTup.getField(j)).getValue();
+                assertEquals(BigInteger.valueOf(expected.get(j)), this.paillierKeyPair.decrypt(paillier));
+                BigInteger ope = ((BigIntField) encTup.getField(COLUMNS + j)).getValue();
+                assertEquals(BigInteger.valueOf(expected.get(j)).multiply(BigInteger.valueOf(5)), ope);
+            }
+        }
+        assertFalse(it.hasNext());
+        it.close();
+    }
+
+    /**
+     * An empty source file still produces a readable, empty EncryptedFile
+     */
+    @Test
+    public void encryptEmpty() throws Exception {
+        HeapFile empty = SystemTestUtil.createRandomHeapFile(COLUMNS, 0, null, null);
+        EncryptedFile encF = empty.encrypt(this.keyPairs);
+        assertEquals(1, encF.numPages());
+
+        DbFileIterator it = encF.iterator(new TransactionId());
+        it.open();
+        assertFalse(it.hasNext());
+        it.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileEncryptorTest.class);
+    }
+}
@@ -3,8 +3,6 @@ package simpledb;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
-import java.io.FileInputStream;
-import java.io.ObjectInputStream;
 import java.math.BigInteger;
 import java.util.*;
 import org.junit.After;
@@ -144,11 +142,8 @@ public class HeapFileReadTest extends SimpleDbTestBase {
 
         Paillier_KeyPair keyPairFromFile;
         try {
-            String filename = String.valueOf(smallFile.getId()) + ".paillier";
-            ObjectInputStream objectInputStream = 
-                    new ObjectInputStream(new FileInputStream(filename));
-            keyPairFromFile = (Paillier_KeyPair) objectInputStream.readObject();
-            objectInputStream.close();
+            keyPairFromFile = (Paillier_KeyPair) new TableKeyStore(Database.getKeyStore().getFile())
+                    .getKeyPairs(smallFile.getId()).get(HeapFile.PAILLIER_PREFIX);
             
             DbFileIterator encIt = encF.iterator(tid);
 
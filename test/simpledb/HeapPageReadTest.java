@@ -120,6 +120,25 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * A page that is only read writes back the bytes it was read from, and a
+     * changed field is written over them
+     */
+    @Test public void unreadFieldsKept() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        byte[] expected = Arrays.copyOf(EXAMPLE_DATA, BufferPool.getPageSize());
+        assertTrue(Arrays.equals(expected, page.getPageData()));
+
+        Tuple tup = page.iterator().next();
+        tup.setField(1, new IntField(-1));
+        HeapPage reread = new HeapPage(pid, page.getPageData());
+        Iterator<Tuple> it = reread.iterator();
+        assertEquals(new IntField(-1), it.next().getField(1));
+        for (int row = 1; it.hasNext(); row++) {
+            assertEquals(new IntField(EXAMPLE_VALUES[row][1]), it.next().getField(1));
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -85,6 +85,26 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.deleteTuple() on a page holding duplicate tuples:
+     * each delete empties the slot of the tuple it is given
+     */
+    @Test public void deleteDuplicateTuples() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        Tuple first = Utility.getHeapTuple(new int[]{ 17, 96 });
+        Tuple second = Utility.getHeapTuple(new int[]{ 17, 96 });
+        page.insertTuple(first);
+        page.insertTuple(second);
+        int firstSlot = first.getRecordId().getTupleNumber();
+        int secondSlot = second.getRecordId().getTupleNumber();
+
+        page.deleteTuple(second);
+        assertTrue(page.isSlotUsed(firstSlot));
+        assertEquals(false, page.isSlotUsed(secondSlot));
+        page.deleteTuple(first);
+        assertEquals(false, page.isSlotUsed(firstSlot));
+    }
+
     /**
      * Unit test for HeapPage.deleteTuple() with false tuples
      */
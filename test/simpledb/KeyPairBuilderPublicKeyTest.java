@@ -3,6 +3,7 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 
 import java.math.BigInteger;
+import java.util.Random;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -52,4 +53,14 @@ public class KeyPairBuilderPublicKeyTest {
         assertEquals(BigInteger.ONE, l.gcd(n));
     }
 
+    @Test
+    public void testSeededGeneratorIsDeterministic() {
+        Paillier_PublicKey first = new Paillier_KeyPairBuilder().bits(512)
+                .randomNumberGenerator(new Random(42)).generateKeyPair().getPublicKey();
+        Paillier_PublicKey second = new Paillier_KeyPairBuilder().bits(512)
+                .randomNumberGenerator(new Random(42)).generateKeyPair().getPublicKey();
+
+        assertEquals(first.getN(), second.getN());
+        assertEquals(first.getG(), second.getG());
+    }
 }
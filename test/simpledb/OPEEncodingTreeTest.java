@@ -0,0 +1,335 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OPEEncodingTreeTest extends SimpleDbTestBase {
+
+    private File file;
+    private OPE_EncodingTree tree;
+
+    @Before
+    public void createTree() throws Exception {
+        this.file = File.createTempFile("ope_tree", ".dat");
+        this.file.deleteOnExit();
+        this.tree = OPE_EncodingTree.forInts(this.file);
+    }
+
+    /**
+     * @return the ciphertext of each plaintext, by plaintext
+     */
+    private TreeMap<Long, Long> encodeAll(OPE_EncodingTree tree, long[] plaintexts) {
+        TreeMap<Long, Long> ciphertexts = new TreeMap<Long, Long>();
+        for (long p : plaintexts) {
+            ciphertexts.put(p, tree.encode(BigInteger.valueOf(p)).longValue());
+        }
+        return ciphertexts;
+    }
+
+    private static void assertOrdered(TreeMap<Long, Long> ciphertexts) {
+        Long last = null;
+        for (Long c : ciphertexts.values()) {
+            assertTrue(last == null || last < c);
+            assertTrue(c >= -(1L << OPE_EncodingTree.INT_CIPHER_BITS) && c < 1L << OPE_EncodingTree.INT_CIPHER_BITS);
+            last = c;
+        }
+    }
+
+    /**
+     * Ciphertexts are ordered like their plaintexts, whether the plaintexts
+     * come in random order or ascending, which leaves the least room for the
+     * later ones, and decode back to them
+     */
+    @Test
+    public void orderPreserved() throws Exception {
+        Random rand = new Random(3);
+        long[] random = new long[5000];
+        for (int i = 0; i < random.length; i++) {
+            random[i] = rand.nextInt();
+        }
+        random[0] = Integer.MIN_VALUE;
+        random[1] = Integer.MAX_VALUE;
+        TreeMap<Long, Long> ciphertexts = this.encodeAll(this.tree, random);
+        assertOrdered(ciphertexts);
+        assertEquals(ciphertexts.size(), this.tree.size());
+        for (Map.Entry<Long, Long> e : ciphertexts.entrySet()) {
+            assertEquals(e.getKey().longValue(), this.tree.decode(BigInteger.valueOf(e.getValue())).longValue());
+        }
+
+        // a narrow ciphertext range is filled up without running out
+        OPE_EncodingTree narrow = OPE_EncodingTree.create(this.file, 0, 999, 0, 1999);
+        long[] ascending = new long[1000];
+        for (int i = 0; i < ascending.length; i++) {
+            ascending[i] = i;
+        }
+        assertOrdered(this.encodeAll(narrow, ascending));
+    }
+
+    /**
+     * A plaintext encoded again, from the cache or from the tree, gets the
+     * same ciphertext, and unknown ciphertexts and plaintexts outside the
+     * domain are rejected
+     */
+    @Test
+    public void stable() throws Exception {
+        long[] plaintexts = new long[OPE_EncodingTree.CACHE_SIZE * 2];
+        for (int i = 0; i < plaintexts.length; i++) {
+            plaintexts[i] = i * 7 - 10000;
+        }
+        TreeMap<Long, Long> first = this.encodeAll(this.tree, plaintexts);
+        assertEquals(first, this.encodeAll(this.tree, plaintexts));
+        assertEquals(plaintexts.length, this.tree.size());
+
+        for (long p : new long[]{ Integer.MAX_VALUE + 1L, Integer.MIN_VALUE - 1L, Long.MAX_VALUE }) {
+            try {
+                this.tree.encode(BigInteger.valueOf(p));
+                fail("expected exception");
+            } catch (IllegalArgumentException e) {
+            }
+        }
+        try {
+            this.tree.decode(BigInteger.valueOf(first.firstEntry().getValue() - 1));
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    /**
+     * A bound selects the same encoded plaintexts by ciphertext as its
+     * comparison does by plaintext, for encoded and unencoded plaintexts
+     * alike, and encodes nothing
+     */
+    @Test
+    public void bound() throws Exception {
+        long[] plaintexts = new long[]{ -50, -7, 0, 3, 10, 11, 40, 1000 };
+        TreeMap<Long, Long> ciphertexts = this.encodeAll(this.tree, plaintexts);
+        long length = this.file.length();
+        Predicate.Op[] ops = new Predicate.Op[]{ Predicate.Op.EQUALS, Predicate.Op.NOT_EQUALS,
+                Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ,
+                Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ };
+        for (long p = -60; p <= 1010; p++) {
+            for (Predicate.Op op : ops) {
+                OPE_EncodingTree.Bound bound = this.tree.bound(BigInteger.valueOf(p), op);
+                Field constant = new BigIntField(bound.ciphertext);
+                for (Map.Entry<Long, Long> e : ciphertexts.entrySet()) {
+                    boolean expected = new BigIntField(BigInteger.valueOf(e.getKey()))
+                            .compare(op, new BigIntField(BigInteger.valueOf(p)));
+                    boolean actual = new BigIntField(BigInteger.valueOf(e.getValue())).compare(bound.op, constant);
+                    assertEquals(e.getKey() + " " + op + " " + p, expected, actual);
+                }
+            }
+        }
+        assertEquals(plaintexts.length, this.tree.size());
+        assertEquals(length, this.file.length());
+    }
+
+    private File copyOf(File f) throws Exception {
+        File copy = File.createTempFile("ope_tree", ".dat");
+        copy.deleteOnExit();
+        Files.copy(f.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return copy;
+    }
+
+    /**
+     * A tree read back from its file encodes as before, even after a record
+     * cut short, and a deserialized key opens the tree already open for its
+     * file the first time it is used
+     */
+    @Test
+    public void persisted() throws Exception {
+        long[] plaintexts = new long[]{ 5, -3, 100, 42, 0, 99999 };
+        TreeMap<Long, Long> ciphertexts = this.encodeAll(this.tree, plaintexts);
+
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+        raf.seek(raf.length());
+        raf.writeLong(7);
+        raf.close();
+        // a copy, since open returns the tree already open for this.file
+        File copy = this.copyOf(this.file);
+        OPE_EncodingTree reopened = OPE_EncodingTree.open(copy);
+        assertEquals(plaintexts.length, reopened.size());
+        assertEquals(ciphertexts, this.encodeAll(reopened, plaintexts));
+        // the new record is appended where the cut one started
+        BigInteger seven = reopened.encode(BigInteger.valueOf(7));
+        File again = this.copyOf(copy);
+        OPE_EncodingTree readAgain = OPE_EncodingTree.open(again);
+        assertEquals(plaintexts.length + 1, readAgain.size());
+        assertEquals(seven, readAgain.encode(BigInteger.valueOf(7)));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(reopened.keyPair());
+        out.close();
+        OPE_KeyPair keyPair = (OPE_KeyPair) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertSame(reopened, ((OPE_CipherPublic.Tree) keyPair.getPublicKey().getCipher()).getTree());
+    }
+
+    /**
+     * A table encrypted with a tree key pair decrypts to its plaintext
+     */
+    @Test
+    public void encryptTable() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 500, 1000, null, null, "c");
+        ConcurrentHashMap<String, KeyPair> keyPairs = table.getDefaultKeyPairs();
+        keyPairs.put(HeapFile.OPE_PREFIX, (KeyPair) this.tree.keyPair());
+        EncryptedFile encrypted = table.encrypt(keyPairs);
+        encrypted.getFile().deleteOnExit();
+        assertEquals(Type.BIGINT_TYPE, encrypted.getTupleDesc().getFieldType(
+                encrypted.getTupleDesc().fieldNameToIndex(HeapFile.OPE_PREFIX + "c0")));
+
+        List<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        SeqScan scan = new SeqScan(new TransactionId(), table.getId());
+        scan.open();
+        while (scan.hasNext()) {
+            ArrayList<Integer> row = SystemTestUtil.tupleToList(scan.next());
+            ArrayList<Integer> repeated = new ArrayList<Integer>();
+            for (int i = 0; i < 3; i++) {
+                repeated.addAll(row);
+            }
+            expected.add(repeated);
+        }
+        scan.close();
+
+        Decrypt decrypt = new Decrypt(new SeqScan(new TransactionId(), encrypted.getId(), "t"),
+                Database.getKeyStore().getKeyPairs(encrypted.getId()));
+        List<ArrayList<Integer>> actual = new ArrayList<ArrayList<Integer>>();
+        decrypt.open();
+        while (decrypt.hasNext()) {
+            actual.add(SystemTestUtil.tupleToList(decrypt.next()));
+        }
+        decrypt.close();
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Tables encrypted with the default keys while a default tree is set
+     * share its key pair, filter any int on their OPE columns and take the
+     * MIN of them on the server
+     */
+    @Test
+    public void defaultKeys() throws Exception {
+        HeapFile.setDefaultOpeTree(this.tree);
+        EncryptedFile twin;
+        HeapFile table;
+        try {
+            table = SystemTestUtil.createRandomHeapFile(2, 1000, Integer.MAX_VALUE, null, null, "c");
+            Database.getCatalog().addTable(table, "t");
+            twin = table.encrypt();
+            twin.getFile().deleteOnExit();
+        } finally {
+            HeapFile.setDefaultOpeTree(null);
+        }
+        assertEquals(this.tree.keyPair().getPublicKey(),
+                ((OPE_KeyPair) Database.getKeyStore().getKeyPairs(twin.getId()).get(HeapFile.OPE_PREFIX))
+                        .getPublicKey());
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("t", new TableStats(table.getId(), 1));
+
+        int median = Integer.MAX_VALUE / 2;
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.c0", Predicate.Op.GREATER_THAN, String.valueOf(median));
+        lp.addProjectField("null.*", null);
+        OpIterator plan = lp.physicalPlan(new TransactionId(), stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof Decrypt);
+        assertEquals(SystemTestUtil.rows(new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(median)),
+                new SeqScan(new TransactionId(), table.getId(), "t"))), SystemTestUtil.rows(plan));
+
+        lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addProjectField("t.c1", "MIN");
+        lp.addAggregate("MIN", "t.c1", null);
+        SplitPlanner planner = new SplitPlanner(lp);
+        plan = planner.physicalPlan(new TransactionId(), stats, false);
+        assertTrue(planner.getServerScans().get(0).getServerPlan() instanceof EncryptedAggregate);
+        assertEquals(SystemTestUtil.rows(new Aggregate(new SeqScan(new TransactionId(), table.getId(), "t"),
+                1, Aggregator.NO_GROUPING, Aggregator.Op.MIN)), SystemTestUtil.rows(plan));
+    }
+
+    /**
+     * Filtering a table on a constant that has never been encoded, planned by
+     * either planner, neither encodes the constant nor writes to the tree,
+     * and gives the rows of the plaintext table
+     */
+    @Test
+    public void filterEncodesNothing() throws Exception {
+        HeapFile.setDefaultOpeTree(this.tree);
+        HeapFile table;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        try {
+            table = SystemTestUtil.createRandomHeapFile(2, 1000, 1000000, null, tuples, "c");
+            Database.getCatalog().addTable(table, "t");
+            table.encrypt().getFile().deleteOnExit();
+        } finally {
+            HeapFile.setDefaultOpeTree(null);
+        }
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("t", new TableStats(table.getId(), 1));
+        int size = this.tree.size();
+        long length = this.file.length();
+
+        // a constant that is in neither column, so it was never encoded
+        HashSet<Integer> values = new HashSet<Integer>();
+        for (ArrayList<Integer> row : tuples) {
+            values.addAll(row);
+        }
+        int constant = 500000;
+        while (values.contains(constant)) {
+            constant++;
+        }
+        Predicate.Op[] ops = new Predicate.Op[]{ Predicate.Op.EQUALS, Predicate.Op.NOT_EQUALS,
+                Predicate.Op.GREATER_THAN, Predicate.Op.LESS_THAN_OR_EQ };
+        for (Predicate.Op op : ops) {
+            List<String> expected = SystemTestUtil.rows(new Filter(new Predicate(0, op, new IntField(constant)),
+                    new SeqScan(new TransactionId(), table.getId(), "t")));
+            LogicalPlan lp = new LogicalPlan();
+            lp.addScan(table.getId(), "t");
+            lp.addFilter("t.c0", op, String.valueOf(constant));
+            lp.addProjectField("null.*", null);
+            OpIterator plan = lp.physicalPlan(new TransactionId(), stats, false);
+            assertTrue(((Operator) plan).getChildren()[0] instanceof Decrypt);
+            assertEquals(op.toString(), expected, SystemTestUtil.rows(plan));
+            SplitPlanner planner = new SplitPlanner(lp);
+            assertEquals(op.toString(), expected, SystemTestUtil.rows(planner.physicalPlan(new TransactionId(), stats, false)));
+            assertEquals(1, planner.getServerScans().size());
+        }
+        assertEquals(size, this.tree.size());
+        assertEquals(length, this.file.length());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OPEEncodingTreeTest.class);
+    }
+}
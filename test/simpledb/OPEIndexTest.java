@@ -0,0 +1,323 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OPEIndexTest extends SimpleDbTestBase {
+
+    // small pages so that a few thousand entries make a tree several levels deep
+    private static final int PAGE_SIZE = 256;
+    private static final int OPE_FACTOR = 5;
+
+    private ConcurrentHashMap<String, KeyPair> keyPairs;
+    private Paillier_PublicKey paillierPublicKey;
+
+    @Before
+    public void createKeys() {
+        BufferPool.setPageSize(PAGE_SIZE);
+        Database.reset();
+        Paillier_KeyPairBuilder keygen = new Paillier_KeyPairBuilder();
+        keygen.upperBound(BigInteger.valueOf(Integer.MAX_VALUE));
+        keygen.bits(HeapFile.BITS_INTEGER);
+        Paillier_KeyPair paillier = keygen.generateKeyPair();
+        this.paillierPublicKey = paillier.getPublicKey();
+        this.keyPairs = new ConcurrentHashMap<String, KeyPair>();
+        this.keyPairs.put(HeapFile.PAILLIER_PREFIX, (KeyPair) paillier);
+        this.keyPairs.put(HeapFile.OPE_PREFIX, (KeyPair) new OPE_KeyPair(
+                new OPE_PrivateKey(new OPE_CipherPrivate.Mult(BigInteger.valueOf(OPE_FACTOR))),
+                new OPE_PublicKey(new OPE_CipherPublic.Mult(BigInteger.valueOf(OPE_FACTOR)))));
+    }
+
+    @After
+    public void resetPageSize() {
+        BufferPool.resetPageSize();
+    }
+
+    /**
+     * @return the field of the ciphertext c in the OPE columns, which are
+     *   BIGINTs under the OPE key of these tests
+     */
+    private static Field ope(long c) {
+        return new BigIntField(BigInteger.valueOf(c));
+    }
+
+    private EncryptedFile encryptedTable(int rows) throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, 100, null, null);
+        EncryptedFile encF = hf.encrypt(this.keyPairs);
+        encF.getFile().deleteOnExit();
+        return encF;
+    }
+
+    /**
+     * @return the ciphertexts of field in every tuple, read by op
+     */
+    private static List<Long> readField(OpIterator op, int field) throws Exception {
+        ArrayList<Long> values = new ArrayList<Long>();
+        op.open();
+        while (op.hasNext()) {
+            values.add(OPE_Index.key(op.next().getField(field)));
+        }
+        op.close();
+        return values;
+    }
+
+    /**
+     * Index scans for every operator return the same tuples as filtering a
+     * sequential scan, in key order
+     */
+    @Test
+    public void rangeScans() throws Exception {
+        EncryptedFile encF = this.encryptedTable(3000);
+        int field = 2;
+        encF.createIndex(field).getFile().deleteOnExit();
+        assertTrue(encF.getIndex(field).numPages() > OPE_IndexPage.internalCapacity());
+
+        int[] operands = new int[]{ -1, 0, 17 * OPE_FACTOR, 50 * OPE_FACTOR, 99 * OPE_FACTOR, 1000 };
+        TransactionId tid = new TransactionId();
+        // the Paillier columns keep their width
+        assertTrue(new IndexScan(tid, encF.getId(), "t", field, Predicate.Op.EQUALS, ope(0))
+                .getTupleDesc().equals(encF.getTupleDesc()));
+        List<Field> fields = new ArrayList<Field>();
+        for (int v : operands) {
+            fields.add(ope(v));
+        }
+        fields.add(ope(Long.MIN_VALUE));
+        fields.add(ope(Long.MAX_VALUE));
+        assertRangeScans(encF, field, fields);
+    }
+
+    /**
+     * Asserts that index scans on field for every operator and operand
+     * return the same tuples as filtering a sequential scan, in key order
+     */
+    private static void assertRangeScans(EncryptedFile encF, int field, List<Field> operands) throws Exception {
+        Predicate.Op[] ops = new Predicate.Op[]{ Predicate.Op.EQUALS, Predicate.Op.GREATER_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ, Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ };
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : ops) {
+            for (Field operand : operands) {
+                List<Long> expected = readField(new Filter(new Predicate(field, op, operand),
+                        new SeqScan(tid, encF.getId())), field);
+                Collections.sort(expected);
+                List<Long> actual = readField(new IndexScan(tid, encF.getId(), "t", field, op, operand), field);
+                assertEquals(op + " " + operand, expected, actual);
+            }
+        }
+    }
+
+    /**
+     * The BIGINT OPE columns of a table encrypted through an encoding tree
+     * are indexed too, and answer the same ranges as a sequential scan,
+     * including bounds past the keys of the index
+     */
+    @Test
+    public void treeEncryptedColumn() throws Exception {
+        File treeFile = File.createTempFile("ope_tree", ".dat");
+        treeFile.deleteOnExit();
+        OPE_EncodingTree tree = OPE_EncodingTree.forInts(treeFile);
+        this.keyPairs.put(HeapFile.OPE_PREFIX, (KeyPair) tree.keyPair());
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, Integer.MAX_VALUE, null, null);
+        EncryptedFile encF = hf.encrypt(this.keyPairs);
+        encF.getFile().deleteOnExit();
+        int field = 2;
+        assertEquals(Type.BIGINT_TYPE, encF.getTupleDesc().getFieldType(field));
+        encF.createIndex(field).getFile().deleteOnExit();
+
+        List<Field> operands = new ArrayList<Field>();
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = encF.iterator(tid);
+        it.open();
+        for (int i = 0; i < 5 && it.hasNext(); i++) {
+            operands.add(it.next().getField(field));
+        }
+        it.close();
+        operands.add(new BigIntField(tree.encode(BigInteger.valueOf(Integer.MAX_VALUE / 2))));
+        operands.add(new BigIntField(BigInteger.valueOf(Long.MIN_VALUE).subtract(BigInteger.ONE)));
+        operands.add(new BigIntField(BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE)));
+        assertRangeScans(encF, field, operands);
+    }
+
+    /**
+     * The index follows inserts and deletes through the BufferPool, including
+     * splits of the root, and is read back from disk
+     */
+    @Test
+    public void maintained() throws Exception {
+        EncryptedFile encF = this.encryptedTable(10);
+        int field = 3;
+        OPE_Index index = encF.createIndex(field);
+        index.getFile().deleteOnExit();
+        BufferPool bufferPool = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        Random rand = new Random(5);
+        TupleDesc td = encF.getTupleDesc();
+        for (int i = 0; i < 2000; i++) {
+            Tuple t = new Tuple(td);
+            for (int j = 0; j < 2; j++) {
+                int v = rand.nextInt(50);
+                t.setField(j, new BigIntField(this.paillierPublicKey.encrypt(BigInteger.valueOf(v))));
+                t.setField(2 + j, ope(v * OPE_FACTOR));
+            }
+            bufferPool.insertTuple(tid, encF.getId(), t);
+            if (i % 20 == 0) {
+                bufferPool.flushAllPages();
+            }
+        }
+        int deleted = 0;
+        for (Tuple t : encF.getValidTuples(tid)) {
+            if (OPE_Index.key(t.getField(field)) < 10 * OPE_FACTOR) {
+                bufferPool.deleteTuple(tid, t);
+                deleted++;
+            }
+            if (deleted % 20 == 0) {
+                bufferPool.flushAllPages();
+            }
+        }
+        assertTrue(deleted > 0);
+        bufferPool.flushAllPages();
+
+        List<String> expected = new ArrayList<String>();
+        for (Tuple t : encF.getValidTuples(tid)) {
+            expected.add(entry(OPE_Index.key(t.getField(field)),
+                    t.getRecordId().getPageId().getPageNumber(), t.getRecordId().getTupleNumber()));
+        }
+        assertEquals(2010 - deleted, expected.size());
+        Collections.sort(expected);
+        assertEquals(expected, entries(index, tid));
+
+        // a restarted database opens the index from its file
+        File file = encF.getFile();
+        Database.reset();
+        EncryptedFile reopened = new EncryptedFile(file, td);
+        Database.getCatalog().addTable(reopened, "reopened");
+        OPE_Index reopenedIndex = reopened.createIndex(field);
+        assertEquals(index.getFile(), reopenedIndex.getFile());
+        assertEquals(expected, entries(reopenedIndex, new TransactionId()));
+    }
+
+    /**
+     * A slot emptied and reused behind the index, which still points at it
+     * with the old ciphertext, is not returned for a range its new tuple is
+     * not in
+     */
+    @Test
+    public void reusedSlotFiltered() throws Exception {
+        EncryptedFile encF = this.encryptedTable(200);
+        int field = 2;
+        encF.createIndex(field).getFile().deleteOnExit();
+        TransactionId tid = new TransactionId();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(encF.getId(), 0),
+                Permissions.READ_WRITE);
+        Tuple old = page.getTuple(0);
+        Field operand = old.getField(field);
+        Tuple replacement = new Tuple(encF.getTupleDesc());
+        for (int j = 0; j < encF.getTupleDesc().numFields(); j++) {
+            replacement.setField(j, old.getField(j));
+        }
+        replacement.setField(field, ope(OPE_Index.key(operand) + 1));
+        page.deleteTuple(old);
+        page.insertTuple(replacement);
+        assertEquals(0, replacement.getRecordId().getTupleNumber());
+
+        List<Long> actual = readField(new IndexScan(tid, encF.getId(), "t", field, Predicate.Op.EQUALS, operand),
+                field);
+        for (long key : actual) {
+            assertEquals(OPE_Index.key(operand), key);
+        }
+    }
+
+    /**
+     * Only OPE columns can be indexed
+     */
+    @Test
+    public void paillierColumnRejected() throws Exception {
+        EncryptedFile encF = this.encryptedTable(10);
+        try {
+            encF.createIndex(0);
+            fail("expected exception");
+        } catch (DbException e) {
+        }
+    }
+
+    /**
+     * The planner answers a selective filter on a table whose encrypted twin
+     * is indexed on the filtered column with an IndexScan of the twin, and
+     * keeps the Filter otherwise
+     */
+    @Test
+    public void plannerChoosesIndex() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, 100, null, null, "c");
+        Database.getCatalog().addTable(hf, "t");
+        EncryptedFile encF = hf.encrypt(this.keyPairs);
+        encF.getFile().deleteOnExit();
+        Database.getCatalog().addTable(encF, "enc");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("t", new TableStats(hf.getId(), 1));
+
+        assertTrue(plan(stats, Predicate.Op.EQUALS) instanceof Filter);
+        encF.createIndex(2).getFile().deleteOnExit();
+        assertTrue(plan(stats, Predicate.Op.EQUALS) instanceof IndexScan);
+        assertTrue(plan(stats, Predicate.Op.GREATER_THAN) instanceof Filter);
+    }
+
+    /**
+     * @return the operator the planner puts under the projection and
+     *   decryption of SELECT t.c0 FROM t WHERE t.c0 op 7
+     */
+    private static OpIterator plan(HashMap<String, TableStats> stats, Predicate.Op op)
+        throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(Database.getCatalog().getTableId("t"), "t");
+        lp.addFilter("t.c0", op, "7");
+        lp.addProjectField("t.c0", null);
+        OpIterator plan = lp.physicalPlan(new TransactionId(), stats, false);
+        while (plan instanceof Project || plan instanceof Decrypt) {
+            plan = ((Operator) plan).getChildren()[0];
+        }
+        return plan;
+    }
+
+    private static String entry(long key, int page, int slot) {
+        return String.format("%020d:%011d:%011d",
+                BigInteger.valueOf(key).subtract(BigInteger.valueOf(Long.MIN_VALUE)), page, slot);
+    }
+
+    private static List<String> entries(OPE_Index index, TransactionId tid) throws Exception {
+        List<String> entries = new ArrayList<String>();
+        DbFileIterator it = index.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            entries.add(entry(((BigIntField) t.getField(0)).getValue().longValueExact(),
+                    ((IntField) t.getField(1)).getValue(), ((IntField) t.getField(2)).getValue()));
+        }
+        it.close();
+        return entries;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OPEIndexTest.class);
+    }
+}
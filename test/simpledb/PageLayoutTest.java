@@ -0,0 +1,263 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageLayoutTest extends SimpleDbTestBase {
+
+    /**
+     * @return the rows of op, each repeated times times, sorted
+     */
+    private static List<String> rows(OpIterator op, int times) throws Exception {
+        List<String> rows = new ArrayList<String>();
+        op.open();
+        while (op.hasNext()) {
+            ArrayList<Integer> row = SystemTestUtil.tupleToList(op.next());
+            ArrayList<Integer> repeated = new ArrayList<Integer>();
+            for (int i = 0; i < times; i++) {
+                repeated.addAll(row);
+            }
+            rows.add(repeated.toString());
+        }
+        op.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /**
+     * A PAX page stores each column contiguously after the header, and reads
+     * back the tuples it was given
+     */
+    @Test
+    public void columnsContiguous() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 0, null, null);
+        Database.getCatalog().setPageLayout(table.getId(), PageLayout.PAX);
+        HeapPageId pid = new HeapPageId(table.getId(), 0);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        int numSlots = page.getNumEmptySlots();
+        for (int i = 0; i < 10; i++) {
+            page.insertTuple(Utility.getHeapTuple(new int[]{ i, 100 + i, 200 + i }));
+        }
+        byte[] data = page.getPageData();
+        int headerSize = (numSlots + 7) / 8;
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        for (int col = 0; col < 3; col++) {
+            for (int i = 0; i < 10; i++) {
+                assertEquals(100 * col + i, buf.getInt(headerSize + 4 * (col * numSlots + i)));
+            }
+        }
+
+        HeapPage read = new HeapPage(pid, data);
+        assertEquals(numSlots - 10, read.getNumEmptySlots());
+        Tuple t = read.getTuple(7);
+        assertEquals(new IntField(207), t.getField(2));
+        assertEquals(new IntField(7), t.getField(0));
+        assertArrayEquals(data, read.getPageData());
+    }
+
+    private List<String> decrypted(EncryptedFile twin) throws Exception {
+        return rows(new Decrypt(new SeqScan(new TransactionId(), twin.getId(), "t"),
+                Database.getKeyStore().getKeyPairs(twin.getId())), 1);
+    }
+
+    /**
+     * An EncryptedFile written with PAX pages decrypts to its plaintext,
+     * and takes inserts and deletes through the BufferPool
+     */
+    @Test
+    public void encryptedTwin() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 2000, 1000, null, null, "c");
+        Database.getCatalog().setPageLayout(table.getEncryptedTwinId(), PageLayout.PAX);
+        EncryptedFile twin = table.encrypt();
+        twin.getFile().deleteOnExit();
+        assertEquals(PageLayout.PAX, Database.getCatalog().getPageLayout(twin.getId()));
+
+        // Paillier, OPE and DET columns each decrypt to the plaintext
+        List<String> expected = rows(new SeqScan(new TransactionId(), table.getId()), 3);
+        assertEquals(expected, this.decrypted(twin));
+
+        TransactionId tid = new TransactionId();
+        BufferPool bufferPool = Database.getBufferPool();
+        Tuple victim = twin.getValidTuples(tid).get(0);
+        bufferPool.deleteTuple(tid, victim);
+        Tuple copy = new Tuple(twin.getTupleDesc());
+        for (int i = 0; i < copy.getTupleDesc().numFields(); i++) {
+            copy.setField(i, victim.getField(i));
+        }
+        bufferPool.insertTuple(tid, twin.getId(), copy);
+        assertEquals(victim.getRecordId(), copy.getRecordId());
+        bufferPool.transactionComplete(tid, true);
+        bufferPool.flushAllPages();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(expected, this.decrypted(twin));
+    }
+
+    /**
+     * @return the table stored in the file of table, added to the catalog
+     *   again after it was cleared, as after a restart
+     */
+    private static HeapFile reopened(HeapFile table) throws Exception {
+        Database.getBufferPool().flushAllPages();
+        Database.getCatalog().clear();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapFile reopened = new HeapFile(table.getFile(), table.getTupleDesc());
+        Database.getCatalog().addTable(reopened);
+        return reopened;
+    }
+
+    /**
+     * A PAX table keeps its layout when it is added again after the
+     * catalog was cleared, and loses it once set back to ROW
+     */
+    @Test
+    public void paxReopened() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 0, null, null);
+        Database.getCatalog().setPageLayout(table.getId(), PageLayout.PAX);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1000; i++) {
+            Database.getBufferPool().insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[]{ i, -i, 2 * i }));
+        }
+        Database.getBufferPool().transactionComplete(tid, true);
+        List<String> expected = rows(new SeqScan(new TransactionId(), table.getId()), 1);
+
+        HeapFile reopened = reopened(table);
+        assertEquals(PageLayout.PAX, Database.getCatalog().getPageLayout(reopened.getId()));
+        assertEquals(expected, rows(new SeqScan(new TransactionId(), reopened.getId()), 1));
+
+        Database.getCatalog().setPageLayout(reopened.getId(), PageLayout.ROW);
+        assertEquals(false, new File(table.getFile().getPath() + PageLayout.SUFFIX).exists());
+        reopened = reopened(table);
+        assertEquals(PageLayout.ROW, Database.getCatalog().getPageLayout(reopened.getId()));
+    }
+
+    /**
+     * @return an empty table of an int, a string and a BigInt column whose
+     *   pages have the given layout
+     */
+    private static HeapFile mixedTable(PageLayout layout) throws Exception {
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        HeapFile table = new HeapFile(f, new TupleDesc(
+                new Type[]{ Type.INT_TYPE, Type.STRING_TYPE, Type.BIGINT_TYPE },
+                new String[]{ "a", "b", "c" }));
+        table.getFreeSpaceMap().getFile().deleteOnExit();
+        new File(f.getPath() + PageLayout.SUFFIX).deleteOnExit();
+        Database.getCatalog().addTable(table, f.getName());
+        Database.getCatalog().setPageLayout(table.getId(), layout);
+        return table;
+    }
+
+    private static Tuple mixedTuple(HeapFile table, int i) {
+        Tuple t = new Tuple(table.getTupleDesc());
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField("s" + i, Type.STRING_LEN));
+        t.setField(2, new BigIntField(BigInteger.valueOf(i).negate()));
+        return t;
+    }
+
+    /**
+     * @return the number of tuples of the table that fit in one page
+     */
+    private static int fill(HeapFile table, HeapPage page) throws Exception {
+        int n = 0;
+        while (page.hasRoomFor(mixedTuple(table, n))) {
+            page.insertTuple(mixedTuple(table, n++));
+        }
+        return n;
+    }
+
+    /**
+     * A SLOTTED page stores short strings and small BigInts in the bytes
+     * they need, so it holds more tuples than a ROW page, and reads back
+     * the tuples it was given
+     */
+    @Test
+    public void slottedFitsMore() throws Exception {
+        HeapFile row = mixedTable(PageLayout.ROW);
+        int rowTuples = fill(row, new HeapPage(new HeapPageId(row.getId(), 0), HeapPage.createEmptyPageData()));
+        HeapFile slotted = mixedTable(PageLayout.SLOTTED);
+        HeapPageId pid = new HeapPageId(slotted.getId(), 0);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        int slottedTuples = fill(slotted, page);
+        assertTrue(slottedTuples > 5 * rowTuples);
+        try {
+            page.insertTuple(mixedTuple(slotted, -1));
+            fail("expected exception");
+        } catch (DbException e) {
+        }
+
+        page.deleteTuple(page.getTuple(3));
+        byte[] data = page.getPageData();
+        HeapPage read = new HeapPage(pid, data);
+        assertArrayEquals(data, read.getPageData());
+        assertEquals(false, read.isSlotUsed(3));
+        for (int i = 0; i < slottedTuples; i++) {
+            if (i != 3) {
+                Tuple t = read.getTuple(i);
+                assertEquals(mixedTuple(slotted, i).toString(), t.toString());
+                assertEquals(new RecordId(pid, i), t.getRecordId());
+            }
+        }
+        // the slot left by the delete takes a record as large as the old one
+        assertTrue(read.hasRoomFor(mixedTuple(slotted, 3)));
+        read.insertTuple(mixedTuple(slotted, 3));
+        assertEquals(new RecordId(pid, 3), read.getTuple(3).getRecordId());
+    }
+
+    /**
+     * A SLOTTED table is filled, changed and scanned through the BufferPool,
+     * and keeps its layout when it is added again after the catalog was
+     * cleared
+     */
+    @Test
+    public void slottedTable() throws Exception {
+        HeapFile table = mixedTable(PageLayout.SLOTTED);
+        TransactionId tid = new TransactionId();
+        BufferPool bufferPool = Database.getBufferPool();
+        for (int i = 0; i < 1000; i++) {
+            bufferPool.insertTuple(tid, table.getId(), mixedTuple(table, i));
+        }
+        for (Tuple t : table.getValidTuples(tid)) {
+            if (((IntField) t.getField(0)).getValue() % 2 == 0) {
+                bufferPool.deleteTuple(tid, t);
+            }
+        }
+        bufferPool.transactionComplete(tid, true);
+        HeapFile reopened = reopened(table);
+        assertEquals(PageLayout.SLOTTED, Database.getCatalog().getPageLayout(reopened.getId()));
+
+        List<String> expected = new ArrayList<String>();
+        for (int i = 1; i < 1000; i += 2) {
+            expected.add(mixedTuple(table, i).toString());
+        }
+        List<String> scanned = new ArrayList<String>();
+        for (Tuple t : reopened.getValidTuples(new TransactionId())) {
+            scanned.add(t.toString());
+        }
+        assertEquals(expected, scanned);
+        assertTrue(reopened.numPages() < 1000 / 10);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageLayoutTest.class);
+    }
+}
@@ -0,0 +1,74 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PaillierDecryptAllTest {
+
+    private Paillier_KeyPair keyPair;
+    private Paillier_PublicKey publicKey;
+
+    @Before
+    public void init() {
+        Paillier_KeyPairBuilder keygen = new Paillier_KeyPairBuilder();
+        keygen.upperBound(BigInteger.valueOf(Integer.MAX_VALUE));
+        keygen.bits(512);
+        this.keyPair = keygen.generateKeyPair();
+        this.publicKey = keyPair.getPublicKey();
+    }
+
+    /**
+     * CRT decryption should agree with decryption through lambda
+     */
+    @Test
+    public void testCRTMatchesLambda() {
+        Paillier_PrivateKey privateKey = keyPair.getPrivateKey();
+        assertTrue(privateKey.hasFactors());
+        Paillier_PrivateKey noFactors = new Paillier_PrivateKey(privateKey.getLambda(),
+                privateKey.getPreCalculatedDenominator());
+        Paillier_KeyPair slowPair = new Paillier_KeyPair(noFactors, publicKey,
+                BigInteger.valueOf(Integer.MAX_VALUE));
+
+        Random rand = new Random(17);
+        for (int i = 0; i < 200; i++) {
+            BigInteger plain = BigInteger.valueOf(rand.nextInt());
+            BigInteger c = publicKey.encrypt(plain);
+            assertEquals(plain, keyPair.decrypt(c));
+            assertEquals(plain, slowPair.decrypt(c));
+        }
+    }
+
+    /**
+     * decryptAll should return the plaintexts in input order
+     */
+    @Test
+    public void testDecryptAll() {
+        int count = Paillier_KeyPair.DECRYPT_BATCH_SIZE * 10 + 3;
+        BigInteger[] plains = new BigInteger[count];
+        BigInteger[] cs = new BigInteger[count];
+        for (int i = 0; i < count; i++) {
+            plains[i] = BigInteger.valueOf(i - count / 2);
+            cs[i] = publicKey.encrypt(plains[i]);
+        }
+        BigInteger[] decrypted = keyPair.decryptAll(cs);
+        assertEquals(count, decrypted.length);
+        for (int i = 0; i < count; i++) {
+            assertEquals(plains[i], decrypted[i]);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PaillierDecryptAllTest.class);
+    }
+}
@@ -0,0 +1,66 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PaillierNoisePoolTest {
+
+    private Paillier_KeyPair keyPair;
+    private Paillier_PublicKey publicKey;
+
+    @Before
+    public void init() {
+        Paillier_KeyPairBuilder keygen = new Paillier_KeyPairBuilder();
+        keygen.upperBound(BigInteger.valueOf(Integer.MAX_VALUE));
+        keygen.bits(HeapFile.BITS_INTEGER);
+        this.keyPair = keygen.generateKeyPair();
+        this.publicKey = keyPair.getPublicKey();
+    }
+
+    /**
+     * The builder should pick g = n + 1 so encryption can skip g^m
+     */
+    @Test
+    public void testSimpleGenerator() {
+        assertEquals(publicKey.getN().add(BigInteger.ONE), publicKey.getG());
+    }
+
+    /**
+     * Values encrypted with pooled noise should still decrypt correctly
+     */
+    @Test
+    public void testEncryptDecrypt() {
+        for (int i = -500; i < 500; i++) {
+            BigInteger plain = BigInteger.valueOf(i * 7919L);
+            assertEquals(plain, keyPair.decrypt(publicKey.encrypt(plain)));
+        }
+    }
+
+    /**
+     * The pool never holds more than its capacity and never returns trivial noise
+     */
+    @Test
+    public void testBounded() throws Exception {
+        Paillier_NoisePool pool = new Paillier_NoisePool(publicKey, 16);
+        for (int i = 0; i < 100; i++) {
+            BigInteger r = pool.next();
+            assertTrue(r.signum() > 0);
+            assertTrue(r.compareTo(publicKey.getnSquared()) < 0);
+            assertTrue(pool.available() <= pool.getCapacity());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PaillierNoisePoolTest.class);
+    }
+}
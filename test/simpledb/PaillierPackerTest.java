@@ -0,0 +1,148 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PaillierPackerTest extends SimpleDbTestBase {
+
+    private static final int COLUMNS = 15;
+
+    private Paillier_KeyPair keyPair;
+    private Paillier_PublicKey publicKey;
+    private Paillier_Packer packer;
+
+    @Before
+    public void init() {
+        Paillier_KeyPairBuilder keygen = new Paillier_KeyPairBuilder();
+        keygen.upperBound(BigInteger.valueOf(Integer.MAX_VALUE));
+        keygen.bits(512);
+        this.keyPair = keygen.generateKeyPair();
+        this.publicKey = keyPair.getPublicKey();
+        this.packer = new Paillier_Packer(this.publicKey);
+    }
+
+    /**
+     * Slot count follows from the key size and the slot width
+     */
+    @Test
+    public void testSlots() {
+        assertEquals(Paillier_Packer.VALUE_BITS + Paillier_Packer.DEFAULT_HEADROOM_BITS, packer.getSlotBits());
+        assertEquals((publicKey.getN().bitLength() - 1) / packer.getSlotBits(), packer.getSlots());
+        assertEquals(2, packer.numPackedColumns(COLUMNS));
+    }
+
+    /**
+     * Summing packed ciphertexts sums every column, including negative values
+     * and values at the edges of the int range
+     */
+    @Test
+    public void testPackedSum() {
+        Random rand = new Random(23);
+        int slots = packer.getSlots();
+        int packedColumns = packer.numPackedColumns(COLUMNS);
+        long[] expected = new long[COLUMNS];
+        List<List<BigInteger>> encs = new ArrayList<List<BigInteger>>();
+        for (int k = 0; k < packedColumns; k++) {
+            encs.add(new ArrayList<BigInteger>());
+        }
+        for (int row = 0; row < 1000; row++) {
+            int[] values = new int[COLUMNS];
+            for (int j = 0; j < COLUMNS; j++) {
+                values[j] = row == 0 ? Integer.MIN_VALUE : row == 1 ? Integer.MAX_VALUE : rand.nextInt();
+                expected[j] += values[j];
+            }
+            for (int k = 0; k < packedColumns; k++) {
+                int count = Math.min(slots, COLUMNS - k * slots);
+                encs.get(k).add(publicKey.encrypt(packer.pack(values, k * slots, count)));
+            }
+        }
+        for (int k = 0; k < packedColumns; k++) {
+            int count = Math.min(slots, COLUMNS - k * slots);
+            BigInteger sum = keyPair.decrypt(Paillier.sum(encs.get(k), publicKey));
+            long[] sums = packer.unpack(sum, count);
+            for (int i = 0; i < count; i++) {
+                assertEquals(expected[k * slots + i], sums[i]);
+            }
+        }
+    }
+
+    /**
+     * A packed table written to disk sums all of its columns with a single
+     * PAILLIER_SUM over each packed column, using the key kept by the table
+     */
+    @Test
+    public void testPackedTable() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(COLUMNS, 500, null, tuples);
+        ConcurrentHashMap<String, KeyPair> keyPairs = new ConcurrentHashMap<String, KeyPair>();
+        keyPairs.put(HeapFile.PAILLIER_PREFIX, (KeyPair) keyPair);
+        keyPairs.put(HeapFile.OPE_PREFIX, (KeyPair) new OPE_KeyPair(
+                new OPE_PrivateKey(new OPE_CipherPrivate.Mult(BigInteger.valueOf(5))),
+                new OPE_PublicKey(new OPE_CipherPublic.Mult(BigInteger.valueOf(5)))));
+        EncryptedFile encF = hf.encrypt(keyPairs, true);
+
+        TupleDesc encTd = encF.getTupleDesc();
+        assertEquals(HeapFile.PAILLIER_PACKED_PREFIX + "1", encTd.getFieldName(1));
+        assertEquals(publicKey.getCiphertextLen(), encTd.getFieldLen(0));
+        assertEquals(publicKey, encF.getPaillierPublicKey());
+
+        int slots = packer.getSlots();
+        for (int k = 0; k < packer.numPackedColumns(COLUMNS); k++) {
+            SeqScan scan = new SeqScan(new TransactionId(), encF.getId());
+            EncryptedAggregate sum = new EncryptedAggregate(scan, k, Aggregator.NO_GROUPING,
+                    EncryptedAggregator.EncOp.PAILLIER_SUM);
+            sum.open();
+            BigInteger packedSum = ((BigIntField) sum.next().getField(0)).getValue();
+            sum.close();
+
+            int count = Math.min(slots, COLUMNS - k * slots);
+            long[] sums = packer.unpack(keyPair.decrypt(packedSum), count);
+            for (int i = 0; i < count; i++) {
+                long expected = 0;
+                for (ArrayList<Integer> tuple : tuples) {
+                    expected += tuple.get(k * slots + i);
+                }
+                assertEquals(expected, sums[i]);
+            }
+        }
+    }
+
+    /**
+     * Packing is refused for keys too small to hold a single value
+     */
+    @Test
+    public void testKeyTooSmall() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 3, null, null);
+        Paillier_KeyPairBuilder keygen = new Paillier_KeyPairBuilder();
+        keygen.upperBound(BigInteger.valueOf(Integer.MAX_VALUE));
+        keygen.bits(HeapFile.BITS_INTEGER);
+        ConcurrentHashMap<String, KeyPair> keyPairs = new ConcurrentHashMap<String, KeyPair>();
+        keyPairs.put(HeapFile.PAILLIER_PREFIX, (KeyPair) keygen.generateKeyPair());
+        try {
+            hf.encrypt(keyPairs, true);
+            fail("expected exception");
+        } catch (DbException e) {
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PaillierPackerTest.class);
+    }
+}
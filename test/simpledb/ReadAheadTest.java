@@ -0,0 +1,101 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    @After
+    public void restoreReadAhead() {
+        ReadAhead.setEnabled(true);
+    }
+
+    /**
+     * Waits until page pageNo of table is in the buffer pool
+     */
+    private static void awaitCached(HeapFile table, int pageNo) throws Exception {
+        HeapPageId pid = new HeapPageId(table.getId(), pageNo);
+        for (int i = 0; i < 500 && !Database.getBufferPool().isCached(pid); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue("page " + pageNo, Database.getBufferPool().isCached(pid));
+    }
+
+    /**
+     * Two pages read in order start reading ahead, the window grows while
+     * the scan catches up with it, and a jump closes it
+     */
+    @Test
+    public void window() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(10, 20000, null, null);
+        int numPages = table.numPages();
+        assertTrue(numPages > 2 * ReadAhead.MAX_WINDOW);
+        Database.resetBufferPool(4 * ReadAhead.MAX_WINDOW);
+        BufferPool bufferPool = Database.getBufferPool();
+
+        ReadAhead readAhead = new ReadAhead(table.getId());
+        readAhead.access(0, numPages);
+        assertEquals(0, readAhead.getWindow());
+        readAhead.access(1, numPages);
+        assertEquals(ReadAhead.MIN_WINDOW, readAhead.getWindow());
+        for (int i = 2; i <= 1 + ReadAhead.MIN_WINDOW; i++) {
+            awaitCached(table, i);
+        }
+        assertEquals(false, bufferPool.isCached(new HeapPageId(table.getId(), 2 + ReadAhead.MIN_WINDOW)));
+
+        // pages read ahead are not read again
+        TransactionId tid = new TransactionId();
+        for (int i = 2; i <= 1 + ReadAhead.MIN_WINDOW; i++) {
+            readAhead.access(i, numPages);
+            bufferPool.getPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+        }
+        assertEquals(ReadAhead.MIN_WINDOW, readAhead.getWindow());
+
+        // a page that is not in yet doubles the window
+        Database.resetBufferPool(4 * ReadAhead.MAX_WINDOW);
+        int pageNo = 2 + ReadAhead.MIN_WINDOW;
+        while (readAhead.getWindow() < ReadAhead.MAX_WINDOW) {
+            int window = readAhead.getWindow();
+            Database.getBufferPool().discardPage(new HeapPageId(table.getId(), pageNo));
+            readAhead.access(pageNo++, numPages);
+            assertEquals(2 * window, readAhead.getWindow());
+        }
+        awaitCached(table, pageNo - 1 + ReadAhead.MAX_WINDOW / 2);
+
+        readAhead.access(0, numPages);
+        assertEquals(0, readAhead.getWindow());
+    }
+
+    /**
+     * Scans read the same tuples with and without reading ahead, in a pool
+     * much smaller than the table
+     */
+    @Test
+    public void scans() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(10, 20000, null, tuples);
+        assertTrue(table.numPages() > 100);
+        for (boolean enabled : new boolean[]{ true, false }) {
+            ReadAhead.setEnabled(enabled);
+            Database.resetBufferPool(20);
+            SystemTestUtil.matchTuples(table, tuples);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,251 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import Zql.ZQuery;
+import Zql.ZStatement;
+import Zql.ZqlParser;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SplitPlannerTest extends SimpleDbTestBase {
+
+    private HashMap<String, TableStats> stats;
+
+    @Before
+    public void createStats() {
+        this.stats = new HashMap<String, TableStats>();
+    }
+
+    /**
+     * @return a new table of random values in [0, max) named name, with
+     *   columns named name0, name1, ... and an encrypted twin
+     */
+    private HeapFile encryptedTable(String name, int columns, int rows, int max) throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(columns, rows, max, null, null, name);
+        Database.getCatalog().addTable(table, name);
+        table.encrypt().getFile().deleteOnExit();
+        this.stats.put(name, new TableStats(table.getId(), 1));
+        return table;
+    }
+
+    /**
+     * @return the rows of SELECT * FROM a, b WHERE a.a1 &lt; aMax AND
+     *   b.b1 &lt; bMax AND a.a0 = b.b0, computed in plaintext
+     */
+    private static List<String> joined(HeapFile a, int aMax, HeapFile b, int bMax) throws Exception {
+        TransactionId tid = new TransactionId();
+        return SystemTestUtil.rows(new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(aMax)), new SeqScan(tid, a.getId(), "a")),
+                new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(bMax)), new SeqScan(tid, b.getId(), "b"))));
+    }
+
+    private static LogicalPlan joinPlan(HeapFile a, int aMax, HeapFile b, int bMax) throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(a.getId(), "a");
+        lp.addScan(b.getId(), "b");
+        lp.addFilter("a.a1", Predicate.Op.LESS_THAN, String.valueOf(aMax));
+        lp.addFilter("b.b1", Predicate.Op.LESS_THAN, String.valueOf(bMax));
+        lp.addJoin("a.a0", "b.b0", Predicate.Op.EQUALS);
+        lp.addProjectField("null.*", null);
+        return lp;
+    }
+
+    /**
+     * A join of two twins of the same size ships no more than the twins
+     * themselves and saves the client the join, so it runs on the server on
+     * their DET columns
+     */
+    @Test
+    public void joinOnServer() throws Exception {
+        // every row passes the filters, so the join is no larger than either twin
+        HeapFile a = this.encryptedTable("a", 3, 600, 1000);
+        HeapFile b = this.encryptedTable("b", 3, 600, 1000);
+        SplitPlanner planner = new SplitPlanner(joinPlan(a, 1000, b, 1000));
+        OpIterator plan = planner.physicalPlan(new TransactionId(), this.stats, false);
+        assertEquals(1, planner.getServerScans().size());
+        ServerScan scan = planner.getServerScans().get(0);
+        assertTrue(((Operator) scan.getServerPlan()).getChildren()[0] instanceof HashEquiJoin);
+
+        List<String> expected = joined(a, 1000, b, 1000);
+        assertEquals(expected, SystemTestUtil.rows(plan));
+        assertEquals(expected.size(), scan.getTuplesShipped());
+    }
+
+    /**
+     * A join of a selective twin with an unfiltered one would ship more
+     * than the two filtered twins, so the client joins them
+     */
+    @Test
+    public void joinOnClient() throws Exception {
+        HeapFile a = this.encryptedTable("a", 3, 600, 1000);
+        HeapFile b = this.encryptedTable("b", 3, 600, 1000);
+        SplitPlanner planner = new SplitPlanner(joinPlan(a, 20, b, 1000));
+        OpIterator plan = planner.physicalPlan(new TransactionId(), this.stats, false);
+        assertEquals(2, planner.getServerScans().size());
+
+        assertEquals(joined(a, 20, b, 1000), SystemTestUtil.rows(plan));
+        long shipped = 0;
+        for (ServerScan scan : planner.getServerScans()) {
+            assertTrue(((Operator) scan.getServerPlan()).getChildren()[0] instanceof Filter);
+            shipped += scan.getTuplesShipped();
+        }
+        assertTrue(shipped < 700);
+    }
+
+    /**
+     * A grouped SUM or MIN over many rows runs on the server, which ships
+     * one encrypted tuple per group, and matches the plaintext aggregate
+     */
+    @Test
+    public void aggregateOnServer() throws Exception {
+        HeapFile table = this.encryptedTable("t", 4, 2000, 10);
+        for (String op : new String[]{ "SUM", "MIN", "MAX" }) {
+            LogicalPlan lp = new LogicalPlan();
+            lp.addScan(table.getId(), "t");
+            lp.addFilter("t.t2", Predicate.Op.GREATER_THAN, "2");
+            lp.addProjectField("t.t0", null);
+            lp.addProjectField("t.t1", op);
+            lp.addAggregate(op, "t.t1", "t.t0");
+            SplitPlanner planner = new SplitPlanner(lp);
+            OpIterator plan = planner.physicalPlan(new TransactionId(), this.stats, false);
+            assertEquals(1, planner.getServerScans().size());
+            ServerScan scan = planner.getServerScans().get(0);
+            assertTrue(scan.getServerPlan() instanceof EncryptedAggregate);
+
+            TransactionId tid = new TransactionId();
+            List<String> expected = SystemTestUtil.rows(new Aggregate(
+                    new Filter(new Predicate(2, Predicate.Op.GREATER_THAN, new IntField(2)),
+                            new SeqScan(tid, table.getId(), "t")),
+                    1, 0, LogicalPlan.getAggOp(op)));
+            assertEquals(op, expected, SystemTestUtil.rows(plan));
+            assertEquals(expected.size(), scan.getTuplesShipped());
+        }
+    }
+
+    /**
+     * @return whether plan has a ServerScan
+     */
+    private static boolean split(OpIterator plan) {
+        if (plan instanceof ServerScan) {
+            return true;
+        }
+        if (plan instanceof Operator && ((Operator) plan).getChildren() != null) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                if (child != null && split(child)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static List<String> parsed(String sql) throws Exception {
+        ZStatement s = new ZqlParser(new ByteArrayInputStream(sql.getBytes("UTF-8"))).readStatement();
+        OpIterator plan = new Parser().handleQueryStatement((ZQuery) s, new TransactionId()).getPhysicalPlan();
+        return SystemTestUtil.rows(plan);
+    }
+
+    /**
+     * The Parser splits a query over a table with a twin, and plans it in
+     * plaintext once a row inserted into the table is missing from the twin
+     */
+    @Test
+    public void parsedQuery() throws Exception {
+        HeapFile table = this.encryptedTable("t", 2, 500, 100);
+        TableStats.setTableStats("t", this.stats.get("t"));
+        String sql = "SELECT * FROM t WHERE t.t0 > 50;";
+        LogicalPlan lp = new Parser().generateLogicalPlan(new TransactionId(), sql);
+        assertTrue(SplitPlanner.splits(lp));
+        assertTrue(split(new SplitPlanner(lp).physicalPlan(new TransactionId(), this.stats, false)));
+        List<String> expected = SystemTestUtil.rows(new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(50)),
+                new SeqScan(new TransactionId(), table.getId(), "t")));
+        assertEquals(expected, parsed(sql));
+
+        TransactionId tid = new TransactionId();
+        Tuple inserted = Utility.getHeapTuple(new int[]{ 5000, 7 });
+        Database.getBufferPool().insertTuple(tid, table.getId(), inserted);
+        Database.getBufferPool().transactionComplete(tid, true);
+        assertFalse(SplitPlanner.splits(new Parser().generateLogicalPlan(new TransactionId(), sql)));
+        expected = new ArrayList<String>(expected);
+        expected.add(inserted.toString());
+        Collections.sort(expected);
+        assertEquals(expected, parsed(sql));
+    }
+
+    /**
+     * Tables without a twin are planned in plaintext on the client
+     */
+    @Test
+    public void noTwin() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 500, 100, null, null, "p");
+        Database.getCatalog().addTable(table, "p");
+        this.stats.put("p", new TableStats(table.getId(), 1));
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "p");
+        lp.addFilter("p.p0", Predicate.Op.LESS_THAN, "50");
+        lp.addProjectField("null.*", null);
+        SplitPlanner planner = new SplitPlanner(lp);
+        OpIterator plan = planner.physicalPlan(new TransactionId(), this.stats, false);
+        assertTrue(planner.getServerScans().isEmpty());
+        assertEquals(SystemTestUtil.rows(new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(50)),
+                new SeqScan(new TransactionId(), table.getId(), "p"))), SystemTestUtil.rows(plan));
+    }
+
+    /**
+     * @return the number of tuples scan returns, and checks that rewinding
+     *   returns them again
+     */
+    private static int readTwice(ServerScan scan) throws Exception {
+        int n = 0;
+        while (scan.hasNext()) {
+            assertEquals(n++, ((IntField) scan.next().getField(0)).getValue());
+        }
+        scan.rewind();
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, ((IntField) scan.next().getField(0)).getValue());
+        }
+        assertFalse(scan.hasNext());
+        return n;
+    }
+
+    /**
+     * A ServerScan replays a small result on rewind, but runs the server plan
+     * again for one too large to keep
+     */
+    @Test
+    public void serverScanRewind() throws Exception {
+        for (int rows : new int[]{ ServerScan.REPLAY_CAPACITY, 3 * ServerScan.REPLAY_CAPACITY }) {
+            int[] data = new int[rows];
+            for (int i = 0; i < rows; i++) {
+                data[i] = i;
+            }
+            ServerScan scan = new ServerScan(TestUtil.createTupleList(1, data));
+            scan.open();
+            assertEquals(rows, readTwice(scan));
+            scan.close();
+            assertEquals(rows > ServerScan.REPLAY_CAPACITY ? 2 * rows : rows, scan.getTuplesShipped());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SplitPlannerTest.class);
+    }
+}
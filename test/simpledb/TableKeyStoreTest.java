@@ -0,0 +1,194 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TableKeyStoreTest extends SimpleDbTestBase {
+
+    private File keyFile;
+
+    @Before
+    public void createKeyFile() throws Exception {
+        this.keyFile = File.createTempFile("table", ".keys");
+        this.keyFile.delete();
+        this.keyFile.deleteOnExit();
+    }
+
+    private static ConcurrentHashMap<String, KeyPair> newKeyPairs(int bits) {
+        Paillier_KeyPairBuilder keygen = new Paillier_KeyPairBuilder();
+        keygen.upperBound(BigInteger.valueOf(Integer.MAX_VALUE));
+        keygen.bits(bits);
+        ConcurrentHashMap<String, KeyPair> pairs = new ConcurrentHashMap<String, KeyPair>();
+        pairs.put(HeapFile.PAILLIER_PREFIX, (KeyPair) keygen.generateKeyPair());
+        pairs.put(HeapFile.OPE_PREFIX, (KeyPair) new OPE_KeyPair(
+                new OPE_PrivateKey(new OPE_CipherPrivate.Line(BigInteger.valueOf(3), BigInteger.valueOf(7))),
+                new OPE_PublicKey(new OPE_CipherPublic.Line(BigInteger.valueOf(3), BigInteger.valueOf(7)))));
+        return pairs;
+    }
+
+    /**
+     * Keys written by one keystore are read back by another on the same file,
+     * and the last record of a table wins
+     */
+    @Test
+    public void roundTrip() throws Exception {
+        TableKeyStore store = new TableKeyStore(this.keyFile);
+        assertNull(store.getKeyPairs(1));
+        ConcurrentHashMap<String, KeyPair> first = newKeyPairs(512);
+        ConcurrentHashMap<String, KeyPair> second = newKeyPairs(HeapFile.BITS_INTEGER);
+        ConcurrentHashMap<String, KeyPair> replaced = newKeyPairs(HeapFile.BITS_INTEGER);
+        first.put(HeapFile.DET_PREFIX, (KeyPair) DET_KeyPair.generate());
+        store.putKeyPairs(1, first);
+        store.putKeyPairs(2, replaced);
+        store.putKeyPairs(2, second);
+
+        TableKeyStore reopened = new TableKeyStore(this.keyFile);
+        assertNull(reopened.getKeyPairs(3));
+        for (int tableId = 1; tableId <= 2; tableId++) {
+            ConcurrentHashMap<String, KeyPair> expected = tableId == 1 ? first : second;
+            Paillier_KeyPair paillier = (Paillier_KeyPair) reopened.getKeyPairs(tableId).get(HeapFile.PAILLIER_PREFIX);
+            Paillier_KeyPair original = (Paillier_KeyPair) expected.get(HeapFile.PAILLIER_PREFIX);
+            assertEquals(original.getPublicKey(), paillier.getPublicKey());
+            BigInteger c = original.getPublicKey().encrypt(BigInteger.valueOf(-1234));
+            assertEquals(BigInteger.valueOf(-1234), paillier.decrypt(c));
+
+            OPE_KeyPair ope = (OPE_KeyPair) reopened.getKeyPairs(tableId).get(HeapFile.OPE_PREFIX);
+            BigInteger e = ope.getPublicKey().encrypt(BigInteger.valueOf(10));
+            assertEquals(BigInteger.valueOf(37), e);
+            assertEquals(BigInteger.valueOf(10), ope.decrypt(e));
+        }
+
+        // only the first table has a DET key, and it is the one shared with new tables
+        DET_KeyPair det = (DET_KeyPair) reopened.getKeyPairs(1).get(HeapFile.DET_PREFIX);
+        DET_KeyPair original = (DET_KeyPair) first.get(HeapFile.DET_PREFIX);
+        assertEquals(original.getPublicKey().encrypt(99), det.getPublicKey().encrypt(99));
+        assertNull(reopened.getKeyPairs(2).get(HeapFile.DET_PREFIX));
+        assertEquals(original.getPublicKey().encrypt(99), reopened.getDetKeyPair().getPublicKey().encrypt(99));
+    }
+
+    /**
+     * A version 1 keystore, whose records have no DET key, is still read,
+     * and is rewritten as version 2 before new records are added to it
+     */
+    @Test
+    public void versionOne() throws Exception {
+        ConcurrentHashMap<String, KeyPair> old = newKeyPairs(HeapFile.BITS_INTEGER);
+        new TableKeyStore(this.keyFile).putKeyPairs(1, old);
+        // a version 1 record is a version 2 record without the DET key, which
+        // is written last, as length -1 when there is none
+        byte[] bytes = Files.readAllBytes(this.keyFile.toPath());
+        ByteBuffer.wrap(bytes).putInt(4, 1);
+        Files.write(this.keyFile.toPath(), Arrays.copyOf(bytes, bytes.length - 2));
+
+        TableKeyStore store = new TableKeyStore(this.keyFile);
+        Paillier_KeyPair paillier = (Paillier_KeyPair) store.getKeyPairs(1).get(HeapFile.PAILLIER_PREFIX);
+        assertEquals(((Paillier_KeyPair) old.get(HeapFile.PAILLIER_PREFIX)).getPublicKey(), paillier.getPublicKey());
+        assertNull(store.getKeyPairs(1).get(HeapFile.DET_PREFIX));
+        assertNull(store.getDetKeyPair());
+        ConcurrentHashMap<String, KeyPair> added = newKeyPairs(HeapFile.BITS_INTEGER);
+        added.put(HeapFile.DET_PREFIX, (KeyPair) DET_KeyPair.generate());
+        store.putKeyPairs(2, added);
+
+        TableKeyStore reopened = new TableKeyStore(this.keyFile);
+        assertEquals(paillier.getPublicKey(),
+                ((Paillier_KeyPair) reopened.getKeyPairs(1).get(HeapFile.PAILLIER_PREFIX)).getPublicKey());
+        assertNull(reopened.getKeyPairs(1).get(HeapFile.DET_PREFIX));
+        assertNotNull(reopened.getKeyPairs(2).get(HeapFile.DET_PREFIX));
+    }
+
+    /**
+     * Storing the key pairs a table already has writes nothing, and once the
+     * replaced records outnumber the live ones the file keeps only the last
+     * record of each table
+     */
+    @Test
+    public void compacted() throws Exception {
+        TableKeyStore store = new TableKeyStore(this.keyFile);
+        ConcurrentHashMap<String, KeyPair> first = newKeyPairs(HeapFile.BITS_INTEGER);
+        ConcurrentHashMap<String, KeyPair> second = newKeyPairs(HeapFile.BITS_INTEGER);
+        store.putKeyPairs(1, first);
+        store.putKeyPairs(2, second);
+        long length = this.keyFile.length();
+        for (int i = 0; i < 10; i++) {
+            store.putKeyPairs(1, first);
+            store.putKeyPairs(2, new TableKeyStore(this.keyFile).getKeyPairs(2));
+        }
+        assertEquals(length, this.keyFile.length());
+
+        for (int i = 0; i < 20; i++) {
+            store.putKeyPairs(1, i % 2 == 0 ? second : first);
+            assertTrue(this.keyFile.length() < 3 * length);
+        }
+        TableKeyStore reopened = new TableKeyStore(this.keyFile);
+        assertEquals(((Paillier_KeyPair) first.get(HeapFile.PAILLIER_PREFIX)).getPublicKey(),
+                ((Paillier_KeyPair) reopened.getKeyPairs(1).get(HeapFile.PAILLIER_PREFIX)).getPublicKey());
+        assertEquals(((Paillier_KeyPair) second.get(HeapFile.PAILLIER_PREFIX)).getPublicKey(),
+                ((Paillier_KeyPair) reopened.getKeyPairs(2).get(HeapFile.PAILLIER_PREFIX)).getPublicKey());
+    }
+
+    /**
+     * Encrypting a table again keeps its keys without adding records
+     */
+    @Test
+    public void reencrypted() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        hf.encrypt().getFile().deleteOnExit();
+        File keys = Database.getKeyStore().getFile();
+        long length = keys.length();
+        for (int i = 0; i < 5; i++) {
+            hf.encrypt();
+        }
+        assertEquals(length, keys.length());
+    }
+
+    /**
+     * A HeapFile generates no keys until it is encrypted, and afterwards a
+     * new HeapFile on the same file and the EncryptedFile both find them
+     */
+    @Test
+    public void lazyKeys() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        assertNull(Database.getKeyStore().getKeyPairs(hf.getId()));
+        EncryptedFile encF = hf.encrypt();
+        ConcurrentHashMap<String, KeyPair> stored = Database.getKeyStore().getKeyPairs(hf.getId());
+        assertNotNull(stored);
+
+        Paillier_PublicKey publicKey = ((Paillier_KeyPair) stored.get(HeapFile.PAILLIER_PREFIX)).getPublicKey();
+        HeapFile reopened = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        assertEquals(publicKey, ((Paillier_KeyPair) reopened.getDefaultKeyPairs()
+                .get(HeapFile.PAILLIER_PREFIX)).getPublicKey());
+        assertEquals(publicKey, new EncryptedFile(encF.getFile(), encF.getTupleDesc()).getPaillierPublicKey());
+
+        // the next table to be encrypted gets its own Paillier key but the same DET key
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        other.encrypt().getFile().deleteOnExit();
+        ConcurrentHashMap<String, KeyPair> otherStored = Database.getKeyStore().getKeyPairs(other.getId());
+        DET_KeyPair det = (DET_KeyPair) stored.get(HeapFile.DET_PREFIX);
+        DET_KeyPair otherDet = (DET_KeyPair) otherStored.get(HeapFile.DET_PREFIX);
+        assertEquals(det.getPublicKey().encrypt(5), otherDet.getPublicKey().encrypt(5));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TableKeyStoreTest.class);
+    }
+}
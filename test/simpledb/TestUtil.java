@@ -380,6 +380,7 @@ public class TestUtil {
                 throw new RuntimeException(e);
             }
             emptyFile.deleteOnExit();
+            new File(emptyFile.getPath() + FreeSpaceMap.SUFFIX).deleteOnExit();
         }
 
         protected void setUp() throws Exception {
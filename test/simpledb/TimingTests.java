@@ -45,7 +45,7 @@ public class TimingTests {
         keyPairs.put(HeapFile.OPE_PREFIX, (KeyPair) opeKeyPair);
         EncryptedFile tableEnc = this.table.encrypt(keyPairs);
         TupleDesc tupDescEnc = tableEnc.getTupleDesc();
-        assertEquals(this.table.getTupleDesc().numFields() * HeapFile.NUM_ENCRYPTIONS + HeapFile.NUM_EXTRA_COLUMNS, tupDescEnc.numFields());
+        assertEquals(this.table.getTupleDesc().numFields() * HeapFile.NUM_ENCRYPTIONS, tupDescEnc.numFields());
         
         DbFileIterator plainTableEncIter = this.table.iterator(new TransactionId());
         DbFileIterator tableEncIter = tableEnc.iterator(new TransactionId());
@@ -0,0 +1,108 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TopKTest extends SimpleDbTestBase {
+
+    private static List<String> rows(OpIterator op) throws Exception {
+        List<String> rows = new ArrayList<String>();
+        while (op.hasNext()) {
+            rows.add(op.next().toString());
+        }
+        return rows;
+    }
+
+    /**
+     * @return the first k rows of OrderBy over child
+     */
+    private static List<String> ordered(int field, boolean asc, int k, OpIterator child) throws Exception {
+        OrderBy orderBy = new OrderBy(field, asc, child);
+        orderBy.open();
+        List<String> rows = rows(orderBy);
+        orderBy.close();
+        return rows.subList(0, Math.min(k, rows.size()));
+    }
+
+    /**
+     * TopK returns the first k tuples of OrderBy, in both orders, keeping
+     * the child's order among tuples that tie
+     */
+    @Test
+    public void matchesOrderBy() throws Exception {
+        // few distinct values in column 0, so most tuples tie
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 1000, 20, null, null);
+        TransactionId tid = new TransactionId();
+        for (boolean asc : new boolean[]{ true, false }) {
+            for (int k : new int[]{ 0, 1, 7, 100, 1000, 5000 }) {
+                TopK topK = new TopK(0, asc, k, new SeqScan(tid, table.getId(), "t"));
+                topK.open();
+                assertEquals(asc + " " + k, ordered(0, asc, k, new SeqScan(tid, table.getId(), "t")), rows(topK));
+                topK.close();
+            }
+        }
+    }
+
+    /**
+     * Rewinding replays the same tuples without reading the child again
+     */
+    @Test
+    public void rewind() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 500, 10000, null, null);
+        TopK topK = new TopK(1, false, 10, new SeqScan(new TransactionId(), table.getId(), "t"));
+        topK.open();
+        List<String> first = rows(topK);
+        assertEquals(10, first.size());
+        topK.rewind();
+        assertEquals(first, rows(topK));
+        topK.close();
+    }
+
+    /**
+     * An ORDER BY ... LIMIT over an encrypted twin keeps only the top tuples
+     * of the OPE column on the server, and matches the plaintext query
+     */
+    @Test
+    public void topKOnServer() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 2000, 1000, null, null, "t");
+        Database.getCatalog().addTable(table, "t");
+        table.encrypt().getFile().deleteOnExit();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("t", new TableStats(table.getId(), 1));
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.t2", Predicate.Op.LESS_THAN, "1000");
+        lp.addProjectField("null.*", null);
+        lp.addOrderBy("t.t1", false, 25);
+        SplitPlanner planner = new SplitPlanner(lp);
+        OpIterator plan = planner.physicalPlan(new TransactionId(), stats, false);
+        assertEquals(1, planner.getServerScans().size());
+        ServerScan scan = planner.getServerScans().get(0);
+        assertTrue(((Operator) scan.getServerPlan()).getChildren()[0] instanceof TopK);
+
+        plan.open();
+        List<String> actual = rows(plan);
+        plan.close();
+        assertEquals(ordered(1, false, 25, new SeqScan(new TransactionId(), table.getId(), "t")), actual);
+        assertEquals(25, scan.getTuplesShipped());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TopKTest.class);
+    }
+}
@@ -1,6 +1,12 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Test;
@@ -57,6 +63,50 @@ public class TupleTest extends SimpleDbTestBase {
 	}
     }
 
+    /**
+     * A tuple over encoded bytes decodes each field where the TupleDesc puts
+     * it, and writes back untouched fields as they were
+     */
+    @Test public void lazyFields() {
+        ArrayList<TDItem> items = new ArrayList<TDItem>();
+        items.add(new TDItem(Type.INT_TYPE, "a"));
+        items.add(new TDItem(Type.BIGINT_TYPE, "b", 33));
+        items.add(new TDItem(Type.STRING_TYPE, "c"));
+        items.add(new TDItem(Type.INT_TYPE, "d"));
+        TupleDesc td = new TupleDesc(items);
+        Field[] fields = new Field[]{ new IntField(-7), new BigIntField(BigInteger.ONE.shiftLeft(200).negate()),
+                new StringField("lazy", Type.STRING_LEN), new IntField(42) };
+        assertEquals(4 + 33, td.getFieldOffset(2));
+
+        // the tuple starts 5 bytes into the buffer
+        byte[] data = new byte[5 + td.getSize()];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        buf.position(5);
+        for (int i = 0; i < fields.length; i++) {
+            fields[i].serialize(buf, td.getFieldLen(i));
+        }
+
+        Tuple tup = new Tuple(td, data, 5);
+        assertEquals(fields[3], tup.getField(3));
+        assertEquals(fields[1], tup.getField(1));
+        tup.setField(0, new IntField(8));
+        byte[] written = new byte[td.getSize()];
+        buf = ByteBuffer.wrap(written);
+        for (int i = 0; i < fields.length; i++) {
+            tup.serializeField(i, buf);
+        }
+        Tuple reread = new Tuple(td, written, 0);
+        assertEquals(new IntField(8), reread.getField(0));
+        Iterator<Field> it = reread.fields();
+        it.next();
+        for (int i = 1; i < fields.length; i++) {
+            assertEquals(fields[i], it.next());
+        }
+        // the fields after the first are copied byte for byte
+        ByteBuffer expected = ByteBuffer.wrap(data, 5 + 4, td.getSize() - 4).slice();
+        assertEquals(expected, ByteBuffer.wrap(written, 4, td.getSize() - 4).slice());
+    }
+
     /**
      * JUnit suite target
      */
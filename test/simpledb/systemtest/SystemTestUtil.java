@@ -3,6 +3,7 @@ package simpledb.systemtest;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -81,6 +82,11 @@ public class SystemTestUtil {
         // Convert the tuples list to a heap file and open it
         File temp = File.createTempFile("table", ".dat");
         temp.deleteOnExit();
+        // the files kept next to the table and to its encrypted twin
+        for (String path : new String[]{ temp.getPath(), temp.getPath() + HeapFile.ENCRYPTION_SUFFIX }) {
+            new File(path + FreeSpaceMap.SUFFIX).deleteOnExit();
+            new File(path + PageLayout.SUFFIX).deleteOnExit();
+        }
         HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), columns);
         return temp;
     }
@@ -94,6 +100,21 @@ public class SystemTestUtil {
         return list;
     }
 
+    /**
+     * @return the rows of op as strings, sorted so that plans which produce
+     *         them in a different order compare equal
+     */
+    public static List<String> rows(OpIterator op) throws Exception {
+        List<String> rows = new ArrayList<String>();
+        op.open();
+        while (op.hasNext()) {
+            rows.add(op.next().toString());
+        }
+        op.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
     public static void matchTuples(DbFile f, List<ArrayList<Integer>> tuples)
             throws DbException, TransactionAbortedException, IOException {
         TransactionId tid = new TransactionId();